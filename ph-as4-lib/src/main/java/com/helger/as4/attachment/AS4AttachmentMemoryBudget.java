@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerSize;
+import com.helger.commons.statistics.StatisticsManager;
+
+/**
+ * Process-wide accountant for the number of bytes of attachments that are
+ * kept in memory. An attachment is only kept in memory if it does not exceed
+ * the maximum in-memory size and if the remaining budget suffices, otherwise
+ * it is spilled to a temporary file. This bounds the heap usage even if many
+ * messages are received concurrently.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4AttachmentMemoryBudget
+{
+  /** The default maximum size of a single attachment kept in memory */
+  public static final long DEFAULT_MAX_IN_MEMORY_SIZE = 64 * CGlobal.BYTES_PER_KILOBYTE;
+  /** The default total budget of all attachments kept in memory */
+  public static final long DEFAULT_BUDGET = 64 * CGlobal.BYTES_PER_MEGABYTE;
+
+  private static final IMutableStatisticsHandlerSize s_aStatsUsage = StatisticsManager.getSizeHandler (AS4AttachmentMemoryBudget.class.getName () +
+                                                                                                      "$usage");
+  private static final IMutableStatisticsHandlerCounter s_aStatsDenied = StatisticsManager.getCounterHandler (AS4AttachmentMemoryBudget.class.getName () +
+                                                                                                             "$denied");
+  private static final AtomicLong s_aUsed = new AtomicLong (0);
+  private static volatile long s_nMaxInMemorySize = DEFAULT_MAX_IN_MEMORY_SIZE;
+  private static volatile long s_nBudget = DEFAULT_BUDGET;
+
+  private AS4AttachmentMemoryBudget ()
+  {}
+
+  /**
+   * @return The maximum number of bytes of a single attachment that may be
+   *         kept in memory.
+   */
+  @Nonnegative
+  public static long getMaxInMemorySize ()
+  {
+    return s_nMaxInMemorySize;
+  }
+
+  /**
+   * @param nMaxInMemorySize
+   *        The maximum number of bytes of a single attachment that may be kept
+   *        in memory. Must be &ge; 0. 0 means that all attachments are spilled
+   *        to disk.
+   */
+  public static void setMaxInMemorySize (@Nonnegative final long nMaxInMemorySize)
+  {
+    ValueEnforcer.isGE0 (nMaxInMemorySize, "MaxInMemorySize");
+    s_nMaxInMemorySize = nMaxInMemorySize;
+  }
+
+  /**
+   * @return The maximum number of bytes of all attachments that may be kept in
+   *         memory at the same time.
+   */
+  @Nonnegative
+  public static long getBudget ()
+  {
+    return s_nBudget;
+  }
+
+  /**
+   * @param nBudget
+   *        The maximum number of bytes of all attachments that may be kept in
+   *        memory at the same time. Must be &ge; 0.
+   */
+  public static void setBudget (@Nonnegative final long nBudget)
+  {
+    ValueEnforcer.isGE0 (nBudget, "Budget");
+    s_nBudget = nBudget;
+  }
+
+  /**
+   * @return The number of bytes currently kept in memory.
+   */
+  @Nonnegative
+  public static long getUsedBytes ()
+  {
+    return s_aUsed.get ();
+  }
+
+  /**
+   * Try to reserve memory for an attachment.
+   *
+   * @param nAttachmentSize
+   *        The total size of the attachment incl. the bytes to be reserved.
+   *        Used to check the maximum in-memory size.
+   * @param nBytes
+   *        The number of bytes to reserve. Must be &ge; 0.
+   * @return <code>true</code> if the bytes were reserved and must be released
+   *         with {@link #release(long)} later, <code>false</code> if the
+   *         attachment should be spilled to disk.
+   */
+  public static boolean tryAcquire (final long nAttachmentSize, @Nonnegative final long nBytes)
+  {
+    ValueEnforcer.isGE0 (nBytes, "Bytes");
+    if (nAttachmentSize > s_nMaxInMemorySize)
+      return false;
+
+    final long nBudget = s_nBudget;
+    while (true)
+    {
+      final long nUsed = s_aUsed.get ();
+      final long nNewUsed = nUsed + nBytes;
+      if (nNewUsed > nBudget)
+      {
+        s_aStatsDenied.increment ();
+        return false;
+      }
+      if (s_aUsed.compareAndSet (nUsed, nNewUsed))
+      {
+        s_aStatsUsage.addSize (nNewUsed);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Release previously reserved memory.
+   *
+   * @param nBytes
+   *        The number of bytes to release. Must be &ge; 0.
+   */
+  public static void release (@Nonnegative final long nBytes)
+  {
+    ValueEnforcer.isGE0 (nBytes, "Bytes");
+    if (nBytes > 0)
+      s_aUsed.addAndGet (-nBytes);
+  }
+}
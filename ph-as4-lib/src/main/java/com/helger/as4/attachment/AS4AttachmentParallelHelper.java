@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.functional.IThrowingConsumer;
+
+/**
+ * Helper to process the attachments of a single message concurrently. The
+ * per-attachment work (like reading, decrypting and digesting the content) is
+ * independent and CPU bound, so for messages with many attachments it can be
+ * spread on a shared, bounded fork-join pool. Messages with fewer attachments
+ * than the threshold are processed in the calling thread.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4AttachmentParallelHelper
+{
+  /** The maximum number of threads used for all messages together */
+  public static final int DEFAULT_PARALLELISM = Runtime.getRuntime ().availableProcessors ();
+
+  private static final class SingletonHolder
+  {
+    static final ForkJoinPool s_aPool = new ForkJoinPool (DEFAULT_PARALLELISM);
+  }
+
+  private AS4AttachmentParallelHelper ()
+  {}
+
+  /**
+   * Check if the provided number of attachments is processed in parallel.
+   *
+   * @param nAttachmentCount
+   *        Number of attachments of a message.
+   * @param nThreshold
+   *        The minimum number of attachments for parallel processing. Values
+   *        &le; 0 disable parallel processing.
+   * @return <code>true</code> for parallel processing.
+   */
+  public static boolean isParallel (@Nonnegative final int nAttachmentCount, final int nThreshold)
+  {
+    return nThreshold > 0 && nAttachmentCount >= nThreshold && nAttachmentCount > 1;
+  }
+
+  /**
+   * Run the provided action for each attachment and wait until all are done.
+   *
+   * @param aAttachments
+   *        The attachments to process. May not be <code>null</code>.
+   * @param nThreshold
+   *        The minimum number of attachments for parallel processing. Values
+   *        &le; 0 disable parallel processing.
+   * @param aAction
+   *        The action to be invoked for each attachment. Must be thread-safe
+   *        if parallel processing is enabled. May not be <code>null</code>.
+   * @throws Exception
+   *         The first exception thrown by the action. Other attachments may
+   *         or may not have been processed.
+   * @param <T>
+   *        Attachment type
+   */
+  public static <T> void forEach (@Nonnull final Iterable <? extends T> aAttachments,
+                                  final int nThreshold,
+                                  @Nonnull final IThrowingConsumer <? super T, ? extends Exception> aAction) throws Exception
+  {
+    ValueEnforcer.notNull (aAttachments, "Attachments");
+    ValueEnforcer.notNull (aAction, "Action");
+
+    final ICommonsList <T> aList = new CommonsArrayList <> (aAttachments);
+    if (!isParallel (aList.size (), nThreshold))
+    {
+      for (final T aAttachment : aList)
+        aAction.accept (aAttachment);
+      return;
+    }
+
+    // Remember the first exception, to rethrow it unwrapped
+    final AtomicReference <Exception> aFirstException = new AtomicReference <> ();
+    final ICommonsList <Callable <Void>> aTasks = new CommonsArrayList <> (aList.size ());
+    for (final T aAttachment : aList)
+      aTasks.add ( () -> {
+        try
+        {
+          aAction.accept (aAttachment);
+        }
+        catch (final Exception ex)
+        {
+          aFirstException.compareAndSet (null, ex);
+        }
+        return null;
+      });
+
+    // Blocks until all tasks are done
+    SingletonHolder.s_aPool.invokeAll (aTasks);
+    final Exception aEx = aFirstException.get ();
+    if (aEx != null)
+      throw aEx;
+  }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A repeatable input stream provider that delivers the compressed content of
+ * an uncompressed source. Compression happens lazily while the first consumer
+ * reads the stream, and the compressed bytes are written to a temporary file
+ * in the same pass. All subsequent consumers read the temporary file. This
+ * way, the first consumer (usually the signature digest, otherwise the
+ * encryption or the MIME serialization) does not require a separate
+ * compression pass upfront.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+final class AS4CompressingInputStreamProvider implements IHasInputStream
+{
+  /**
+   * Input stream that compresses the source on the fly and writes the
+   * compressed data to the spill file as well.
+   */
+  private final class CompressingInputStream extends InputStream
+  {
+    private final InputStream m_aSrcIS;
+    private final File m_aSpillFile;
+    private final OutputStream m_aSpillOS;
+    private final NonBlockingByteArrayOutputStream m_aPending = new NonBlockingByteArrayOutputStream ();
+    private final OutputStream m_aCompressOS;
+    private final byte [] m_aSrcBuffer = new byte [16 * CGlobal.BYTES_PER_KILOBYTE];
+    private int m_nPendingPos = 0;
+    private boolean m_bEOF = false;
+    private boolean m_bClosed = false;
+
+    CompressingInputStream (@Nonnull final InputStream aSrcIS) throws IOException
+    {
+      m_aSrcIS = aSrcIS;
+      m_aSpillFile = m_aResMgr.createTempFile ();
+      m_aSpillOS = FileHelper.getBufferedOutputStream (m_aSpillFile);
+      if (m_aSpillOS == null)
+        throw new IOException ("Failed to open temporary file " + m_aSpillFile.getAbsolutePath ());
+
+      // Every compressed byte goes to the reader and to the spill file
+      m_aCompressOS = m_eCompressionMode.getCompressStream (new OutputStream ()
+      {
+        @Override
+        public void write (final int b) throws IOException
+        {
+          m_aPending.write (b);
+          m_aSpillOS.write (b);
+        }
+
+        @Override
+        public void write (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+        {
+          m_aPending.write (aBuf, nOfs, nLen);
+          m_aSpillOS.write (aBuf, nOfs, nLen);
+        }
+      });
+    }
+
+    private boolean _fill () throws IOException
+    {
+      while (m_nPendingPos >= m_aPending.size ())
+      {
+        if (m_bEOF)
+          return false;
+
+        m_aPending.reset ();
+        m_nPendingPos = 0;
+        final int nRead = m_aSrcIS.read (m_aSrcBuffer);
+        if (nRead < 0)
+        {
+          // Writes the trailer
+          m_aCompressOS.close ();
+          m_aSpillOS.close ();
+          m_bEOF = true;
+          // Completely written - can be used by all further readers
+          if (m_aCompressedFile == null)
+            m_aCompressedFile = m_aSpillFile;
+        }
+        else
+          m_aCompressOS.write (m_aSrcBuffer, 0, nRead);
+      }
+      return true;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      if (!_fill ())
+        return -1;
+      return m_aPending.directGetBuffer ()[m_nPendingPos++] & 0xff;
+    }
+
+    @Override
+    public int read (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      if (nLen == 0)
+        return 0;
+      if (!_fill ())
+        return -1;
+      final int nCount = Math.min (nLen, m_aPending.size () - m_nPendingPos);
+      System.arraycopy (m_aPending.directGetBuffer (), m_nPendingPos, aBuf, nOfs, nCount);
+      m_nPendingPos += nCount;
+      return nCount;
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      if (!m_bClosed)
+      {
+        m_bClosed = true;
+        StreamHelper.close (m_aSrcIS);
+        if (!m_bEOF)
+        {
+          // Only partially read - the spill file is incomplete and unused
+          StreamHelper.close (m_aCompressOS);
+          StreamHelper.close (m_aSpillOS);
+        }
+      }
+    }
+  }
+
+  private final IHasInputStream m_aSrcISP;
+  private final EAS4CompressionMode m_eCompressionMode;
+  private final AS4ResourceManager m_aResMgr;
+  private File m_aCompressedFile;
+
+  /**
+   * Constructor
+   *
+   * @param aSrcISP
+   *        The provider of the uncompressed source. Must be repeatable, if the
+   *        first consumer may not read the stream completely.
+   * @param eCompressionMode
+   *        The compression mode to use. May not be <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to create the temporary file. May not be
+   *        <code>null</code>.
+   */
+  AS4CompressingInputStreamProvider (@Nonnull final IHasInputStream aSrcISP,
+                                     @Nonnull final EAS4CompressionMode eCompressionMode,
+                                     @Nonnull final AS4ResourceManager aResMgr)
+  {
+    m_aSrcISP = ValueEnforcer.notNull (aSrcISP, "SrcISP");
+    m_eCompressionMode = ValueEnforcer.notNull (eCompressionMode, "CompressionMode");
+    m_aResMgr = ValueEnforcer.notNull (aResMgr, "ResMgr");
+  }
+
+  /**
+   * @return The completely written temporary file with the compressed content
+   *         or <code>null</code> if the content was not yet read completely.
+   */
+  @Nullable
+  File getCompressedFile ()
+  {
+    return m_aCompressedFile;
+  }
+
+  @Nonnull
+  public InputStream getInputStream ()
+  {
+    final File aCompressedFile = m_aCompressedFile;
+    if (aCompressedFile != null)
+      return FileHelper.getBufferedInputStream (aCompressedFile);
+
+    final InputStream aSrcIS = m_aSrcISP.getInputStream ();
+    if (aSrcIS == null)
+      throw new IllegalStateException ("Got no InputStream from " + m_aSrcISP);
+    try
+    {
+      return new CompressingInputStream (aSrcIS);
+    }
+    catch (final IOException ex)
+    {
+      StreamHelper.close (aSrcIS);
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  public boolean isReadMultiple ()
+  {
+    return true;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("SrcISP", m_aSrcISP)
+                                       .append ("CompressionMode", m_eCompressionMode)
+                                       .append ("CompressedFile", m_aCompressedFile)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import com.helger.as4.util.AS4ResourceManager;
+
+/**
+ * Streaming factory interface for {@link WSS4JAttachment} objects for handling
+ * incoming attachments. In contrast to {@link IIncomingAttachmentFactory} only
+ * the MIME part headers are parsed upfront and the part body is provided as an
+ * {@link InputStream}, so that the part never needs to be fully buffered in
+ * memory.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface IIncomingAttachmentStreamFactory extends Serializable
+{
+  /**
+   * Create an attachment from the headers and the body of a single MIME part.
+   * The provided stream must be fully consumed by this method, as it is no
+   * longer readable after this method returns.
+   *
+   * @param aHeaders
+   *        The already parsed MIME part headers. May not be <code>null</code>.
+   * @param aIS
+   *        The raw (not yet Content-Transfer-Encoding decoded) part body. May
+   *        not be <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The internal attachment representation. Never <code>null</code>.
+   * @throws IOException
+   *         In case of IO error
+   * @throws MessagingException
+   *         In case MIME part decoding fails.
+   */
+  @Nonnull
+  WSS4JAttachment createAttachment (@Nonnull InternetHeaders aHeaders,
+                                    @Nonnull @WillNotClose InputStream aIS,
+                                    @Nonnull AS4ResourceManager aResMgr) throws IOException, MessagingException;
+}
@@ -30,10 +30,13 @@ import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
 import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.wss4j.common.ext.Attachment;
 import org.apache.wss4j.common.util.AttachmentUtils;
@@ -49,6 +52,7 @@ import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.file.FilenameHelper;
 import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.string.StringHelper;
@@ -67,6 +71,9 @@ import com.helger.mail.datasource.InputStreamProviderDataSource;
  */
 public class WSS4JAttachment extends Attachment
 {
+  /** The default MIME type of a MIME part without a Content-Type header */
+  private static final String DEFAULT_PART_MIME_TYPE = "text/plain";
+
   private final AS4ResourceManager m_aResMgr;
   private IHasInputStream m_aISP;
   private EContentTransferEncoding m_eCTE = EContentTransferEncoding.BINARY;
@@ -262,7 +269,8 @@ public class WSS4JAttachment extends Attachment
   }
 
   /**
-   * Constructor. Performs compression internally.
+   * Constructor. Performs compression internally. The content is compressed
+   * lazily while it is read for the first time.
    *
    * @param aSrcFile
    *        Source, uncompressed, unencrypted file.
@@ -274,7 +282,8 @@ public class WSS4JAttachment extends Attachment
    *        The resource manager to use. May not be <code>null</code>.
    * @return The newly created attachment instance. Never <code>null</code>.
    * @throws IOException
-   *         In case something goes wrong during compression
+   *         Kept for API compatibility. Compression errors are thrown upon
+   *         reading.
    */
   @Nonnull
   public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final File aSrcFile,
@@ -288,31 +297,27 @@ public class WSS4JAttachment extends Attachment
     final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, aMimeType.getAsString ());
     _addOutgoingHeaders (ret, FilenameHelper.getWithoutPath (aSrcFile));
 
-    // If the attachment has an compressionMode do it directly, so that
-    // encryption later on works on the compressed content
-    File aRealFile;
+    final IHasInputStream aSrcISP = HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aSrcFile));
     if (eCompressionMode != null)
     {
       ret.setCompressionMode (eCompressionMode);
 
-      // Create temporary file with compressed content
-      aRealFile = aResMgr.createTempFile ();
-      try (final OutputStream aOS = eCompressionMode.getCompressStream (FileHelper.getBufferedOutputStream (aRealFile)))
-      {
-        StreamHelper.copyInputStreamToOutputStream (FileHelper.getBufferedInputStream (aSrcFile), aOS);
-      }
+      // Compress while the first consumer (e.g. the signature digest) reads
+      // it, so that signing and encryption work on the compressed content
+      // without an additional pass
+      ret.setSourceStreamProvider (new AS4CompressingInputStreamProvider (aSrcISP, eCompressionMode, aResMgr));
     }
     else
     {
       // No compression - use file as-is
-      aRealFile = aSrcFile;
+      ret.setSourceStreamProvider (aSrcISP);
     }
-    ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
     return ret;
   }
 
   /**
-   * Constructor. Performs compression internally.
+   * Constructor. Performs compression internally. The content is compressed
+   * lazily while it is read for the first time.
    *
    * @param aSrcData
    *        Source in-memory data, uncompressed, unencrypted file.
@@ -326,7 +331,8 @@ public class WSS4JAttachment extends Attachment
    *        The resource manager to use. May not be <code>null</code>.
    * @return The newly created attachment instance. Never <code>null</code>.
    * @throws IOException
-   *         In case something goes wrong during compression
+   *         Kept for API compatibility. Compression errors are thrown upon
+   *         reading.
    */
   @Nonnull
   public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final byte [] aSrcData,
@@ -342,31 +348,35 @@ public class WSS4JAttachment extends Attachment
     final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, aMimeType.getAsString ());
     _addOutgoingHeaders (ret, sFilename);
 
-    // If the attachment has an compressionMode do it directly, so that
-    // encryption later on works on the compressed content
+    final IHasInputStream aSrcISP = HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aSrcData));
     if (eCompressionMode != null)
     {
       ret.setCompressionMode (eCompressionMode);
 
-      // Create temporary file with compressed content
-      final File aRealFile = aResMgr.createTempFile ();
-      try (final OutputStream aOS = eCompressionMode.getCompressStream (FileHelper.getBufferedOutputStream (aRealFile)))
-      {
-        aOS.write (aSrcData);
-      }
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
+      // Compress lazily upon first read
+      ret.setSourceStreamProvider (new AS4CompressingInputStreamProvider (aSrcISP, eCompressionMode, aResMgr));
     }
     else
     {
       // No compression - use data as-is
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aSrcData)));
+      ret.setSourceStreamProvider (aSrcISP);
     }
     return ret;
   }
 
+  /**
+   * Check if an attachment of the passed size may be kept in memory at all.
+   * This only considers the configurable maximum size of a single attachment
+   * and not the global memory budget.
+   *
+   * @param nBytes
+   *        The attachment size in bytes.
+   * @return <code>true</code> if it may be kept in memory.
+   * @see AS4AttachmentMemoryBudget#getMaxInMemorySize()
+   */
   public static boolean canBeKeptInMemory (final long nBytes)
   {
-    return nBytes <= 64 * CGlobal.BYTES_PER_KILOBYTE;
+    return nBytes <= AS4AttachmentMemoryBudget.getMaxInMemorySize ();
   }
 
   @Nonnull
@@ -429,4 +439,183 @@ public class WSS4JAttachment extends Attachment
 
     return ret;
   }
+
+  /**
+   * Read the passed stream exactly once and make its content available for
+   * repeated reading. The content is kept in memory as long as
+   * {@link #canBeKeptInMemory(long)} allows it and the global
+   * {@link AS4AttachmentMemoryBudget} is not exhausted. As soon as one of them
+   * is exceeded, everything is spilled to a temporary file of the passed
+   * resource manager, so that the content is never fully buffered in memory.
+   * The memory reserved for the content is released when the resource manager
+   * is closed.
+   *
+   * @param aIS
+   *        The input stream to read. May not be <code>null</code>. Is fully
+   *        consumed but not closed.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return A repeatable input stream provider. Never <code>null</code>.
+   * @throws IOException
+   *         In case reading or spilling fails
+   */
+  @Nonnull
+  public static IHasInputStream createRepeatableInputStreamProvider (@Nonnull @WillNotClose final InputStream aIS,
+                                                                     @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+
+    // Pipe to memory until the threshold or the budget is reached, then spill
+    // to a file
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    File aTempFile = null;
+    OutputStream aFileOS = null;
+    long nReserved = 0;
+    try
+    {
+      final byte [] aBuffer = new byte [16 * CGlobal.BYTES_PER_KILOBYTE];
+      int nRead;
+      while ((nRead = aIS.read (aBuffer)) > -1)
+      {
+        if (aFileOS == null)
+        {
+          if (AS4AttachmentMemoryBudget.tryAcquire ((long) aBAOS.size () + nRead, nRead))
+            nReserved += nRead;
+          else
+          {
+            // Threshold or budget exceeded - switch to temp file
+            aTempFile = aResMgr.createTempFile ();
+            aFileOS = FileHelper.getBufferedOutputStream (aTempFile);
+            if (aFileOS == null)
+              throw new IOException ("Failed to open temporary file " + aTempFile.getAbsolutePath ());
+            aBAOS.writeTo (aFileOS);
+            aBAOS.reset ();
+            AS4AttachmentMemoryBudget.release (nReserved);
+            nReserved = 0;
+          }
+        }
+        if (aFileOS != null)
+          aFileOS.write (aBuffer, 0, nRead);
+        else
+          aBAOS.write (aBuffer, 0, nRead);
+      }
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      AS4AttachmentMemoryBudget.release (nReserved);
+      throw ex;
+    }
+    finally
+    {
+      StreamHelper.close (aFileOS);
+    }
+
+    if (aTempFile == null)
+    {
+      // Release the reserved memory together with all other resources
+      final long nRealReserved = nReserved;
+      aResMgr.addCloseable ( () -> AS4AttachmentMemoryBudget.release (nRealReserved));
+
+      // keep small parts in memory - use the buffer directly without a copy
+      final byte [] aData = aBAOS.directGetBuffer ();
+      final int nLength = aBAOS.size ();
+      return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aData, 0, nLength));
+    }
+
+    final File aRealFile = aTempFile;
+    return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile));
+  }
+
+  /**
+   * Get the body of a MIME part with the Content-Transfer-Encoding decoded on
+   * the fly.
+   *
+   * @param aHeaders
+   *        The parsed MIME part headers. May not be <code>null</code>.
+   * @param aIS
+   *        The raw MIME part body. May not be <code>null</code>.
+   * @return The decoding InputStream or the passed InputStream if no
+   *         Content-Transfer-Encoding is present. Never <code>null</code>.
+   * @throws MessagingException
+   *         In case the Content-Transfer-Encoding is unknown
+   */
+  @Nonnull
+  public static InputStream getDecodedInputStream (@Nonnull final InternetHeaders aHeaders,
+                                                   @Nonnull final InputStream aIS) throws MessagingException
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    final String sCTE = aHeaders.getHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, null);
+    if (StringHelper.hasNoText (sCTE))
+      return aIS;
+    return MimeUtility.decode (aIS, sCTE.trim ());
+  }
+
+  /**
+   * Create an incoming attachment from the parsed MIME part headers and the
+   * part body stream. The body is decoded according to the
+   * Content-Transfer-Encoding header and read via
+   * {@link #createRepeatableInputStreamProvider(InputStream, AS4ResourceManager)}.
+   *
+   * @param aHeaders
+   *        The parsed MIME part headers. May not be <code>null</code>.
+   * @param aIS
+   *        The raw MIME part body. May not be <code>null</code>. Is fully
+   *        consumed but not closed.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws MessagingException
+   *         In case the Content-Transfer-Encoding is unknown
+   * @throws IOException
+   *         In case reading or spilling fails
+   */
+  @Nonnull
+  public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final InternetHeaders aHeaders,
+                                                              @Nonnull @WillNotClose final InputStream aIS,
+                                                              @Nonnull final AS4ResourceManager aResMgr) throws MessagingException,
+                                                                                                         IOException
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+
+    final String sContentType = aHeaders.getHeader (CHttpHeader.CONTENT_TYPE, null);
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr,
+                                                     StringHelper.hasText (sContentType) ? sContentType
+                                                                                         : DEFAULT_PART_MIME_TYPE);
+
+    {
+      // Reference in header is: <ID>
+      // See
+      // http://docs.oasis-open.org/wss-m/wss/v1.1.1/os/wss-SwAProfile-v1.1.1-os.html
+      // chapter 5.2
+      final String sRealContentID = StringHelper.trimStartAndEnd (aHeaders.getHeader (CHttpHeader.CONTENT_ID, null),
+                                                                  '<',
+                                                                  '>');
+      ret.setId (sRealContentID);
+    }
+
+    // Decode Content-Transfer-Encoding on the fly
+    final InputStream aDecodedIS = getDecodedInputStream (aHeaders, aIS);
+
+    ret.setSourceStreamProvider (createRepeatableInputStreamProvider (aDecodedIS, aResMgr));
+
+    // Convert all headers to attributes
+    final Enumeration <?> aEnum = aHeaders.getAllHeaders ();
+    while (aEnum.hasMoreElements ())
+    {
+      final Header aHeader = (Header) aEnum.nextElement ();
+      ret.addHeader (aHeader.getName (), aHeader.getValue ());
+    }
+
+    // These headers are mandatory and overwrite headers from the MIME body part
+    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DESCRIPTION, "Attachment");
+    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + ret.getId () + ">");
+    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, ret.getMimeType ());
+
+    return ret;
+  }
 }
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.http.AS4PooledHttpClientFactory;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+
+/**
+ * Process-wide executors used by
+ * {@link AbstractAS4Client#sendMessageAsync(String, org.apache.http.client.ResponseHandler)}.
+ * Building a message (incl. signing and encryption) is CPU bound and runs on a
+ * pool with one thread per available processor. The HTTP exchange is IO bound
+ * and runs on a separate pool that is sized according to the maximum number of
+ * pooled HTTP connections, so that no more threads than connections are
+ * blocked. Both pools are created lazily and use daemon threads. The queue of
+ * the send pool is bounded (see {@link #setSendQueueSize(int)}) - if it is
+ * full, new send tasks are rejected with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4ClientExecutors
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4ClientExecutors.class);
+  /** The default maximum number of send tasks waiting for a thread */
+  public static final int DEFAULT_SEND_QUEUE_SIZE = 1000;
+
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("s_aRWLock")
+  private static int s_nSendQueueSize = DEFAULT_SEND_QUEUE_SIZE;
+  private static ExecutorService s_aBuildES;
+  private static ExecutorService s_aSendES;
+
+  private AS4ClientExecutors ()
+  {}
+
+  @Nonnull
+  private static ExecutorService _createBoundedPool (@Nonnegative final int nThreads,
+                                                     final int nQueueSize,
+                                                     @Nonnull final String sNamingPattern)
+  {
+    final BlockingQueue <Runnable> aQueue = nQueueSize > 0 ? new ArrayBlockingQueue <> (nQueueSize)
+                                                           : new LinkedBlockingQueue <> ();
+    final ThreadPoolExecutor ret = new ThreadPoolExecutor (nThreads,
+                                                           nThreads,
+                                                           60,
+                                                           TimeUnit.SECONDS,
+                                                           aQueue,
+                                                           new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                            .setNamingPattern (sNamingPattern)
+                                                                                            .build (),
+                                                           new ThreadPoolExecutor.AbortPolicy ());
+    // Don't keep idle threads forever
+    ret.allowCoreThreadTimeOut (true);
+    return ret;
+  }
+
+  /**
+   * @return The maximum number of send tasks waiting for a thread. Values
+   *         &le; 0 mean unbounded. Defaults to
+   *         {@link #DEFAULT_SEND_QUEUE_SIZE}.
+   */
+  public static int getSendQueueSize ()
+  {
+    return s_aRWLock.readLocked ( () -> s_nSendQueueSize);
+  }
+
+  /**
+   * Set the maximum number of send tasks waiting for a thread. This only
+   * affects send executors created afterwards, so it should be called before
+   * the first usage or followed by {@link #shutdown()}.
+   *
+   * @param nSendQueueSize
+   *        The new maximum queue size. Values &le; 0 mean unbounded.
+   */
+  public static void setSendQueueSize (final int nSendQueueSize)
+  {
+    s_aRWLock.writeLocked ( () -> s_nSendQueueSize = nSendQueueSize);
+  }
+
+  /**
+   * @return The executor for building AS4 messages. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ExecutorService getBuildExecutor ()
+  {
+    ExecutorService ret = s_aRWLock.readLocked ( () -> s_aBuildES);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        if (s_aBuildES == null)
+          s_aBuildES = _createBoundedPool (Runtime.getRuntime ().availableProcessors (),
+                                           0,
+                                           "as4-client-build-%d");
+        return s_aBuildES;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * @return The executor for sending AS4 messages via HTTP. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static ExecutorService getSendExecutor ()
+  {
+    ExecutorService ret = s_aRWLock.readLocked ( () -> s_aSendES);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        if (s_aSendES == null)
+          s_aSendES = _createBoundedPool (AS4PooledHttpClientFactory.getDefaultInstance ().getMaxTotal (),
+                                          s_nSendQueueSize,
+                                          "as4-client-send-%d");
+        return s_aSendES;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Shutdown both executors and wait until all pending tasks are finished. New
+   * executors are created upon next usage.
+   */
+  public static void shutdown ()
+  {
+    s_aRWLock.writeLocked ( () -> {
+      if (s_aBuildES != null)
+      {
+        ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (s_aBuildES);
+        s_aBuildES = null;
+      }
+      if (s_aSendES != null)
+      {
+        ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (s_aSendES);
+        s_aSendES = null;
+      }
+    });
+    s_aLogger.info ("AS4 client executors were shut down");
+  }
+}
@@ -291,7 +291,7 @@ public class AS4ClientUserMessage extends AbstractAS4Client
     }
 
     // Wrap SOAP XML
-    return new BuiltMessage (sMessageID, new HttpXMLEntity (aDoc, getSOAPVersion ()));
+    return new BuiltMessage (sMessageID, new HttpXMLEntity (aDoc, getSOAPVersion (), !isChunkedTransfer ()));
   }
 
   public Node getPayload ()
@@ -16,6 +16,10 @@
  */
 package com.helger.as4.client;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -136,6 +140,7 @@ public abstract class AbstractAS4Client extends BasicAS4Sender
   private ISupplier <String> m_aMessageIDFactory = () -> MessageHelperMethods.createRandomMessageID ();
 
   private ESOAPVersion m_eSOAPVersion = ESOAPVersion.AS4_DEFAULT;
+  private boolean m_bChunkedTransfer = false;
 
   protected AbstractAS4Client ()
   {}
@@ -156,6 +161,13 @@ public abstract class AbstractAS4Client extends BasicAS4Sender
       throw new IllegalStateException ("Key password is not configured.");
   }
 
+  /**
+   * Create the crypto factory based on the keystore attributes of this client.
+   * The keystore itself is loaded only once and shared via the
+   * {@link com.helger.as4.crypto.AS4CryptoRegistry}.
+   *
+   * @return A new crypto factory. Never <code>null</code>.
+   */
   @Nonnull
   protected AS4CryptoFactory internalCreateCryptoFactory ()
   {
@@ -183,6 +195,86 @@ public abstract class AbstractAS4Client extends BasicAS4Sender
     return new SentMessage <> (aBuiltMsg.getMessageID (), aResponse);
   }
 
+  /**
+   * Asynchronous version of {@link #sendMessage(String, ResponseHandler)} using
+   * the default executors from {@link AS4ClientExecutors}. Note: this client
+   * object must not be modified until the returned future is completed.
+   *
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aResponseHandler
+   *        The response handler to use. May not be <code>null</code>.
+   * @return The future that is completed with the sent message or
+   *         exceptionally if building or sending fails or if the send
+   *         executor rejects the task. Never <code>null</code>.
+   * @param <T>
+   *        Response data type
+   */
+  @Nonnull
+  public <T> CompletableFuture <SentMessage <T>> sendMessageAsync (@Nonnull final String sURL,
+                                                                   @Nonnull final ResponseHandler <? extends T> aResponseHandler)
+  {
+    return sendMessageAsync (sURL,
+                             aResponseHandler,
+                             AS4ClientExecutors.getBuildExecutor (),
+                             AS4ClientExecutors.getSendExecutor ());
+  }
+
+  /**
+   * Asynchronous version of {@link #sendMessage(String, ResponseHandler)}. The
+   * message is built on the build executor and sent on the send executor, so
+   * that the calling thread is never blocked. Note: this client object must
+   * not be modified until the returned future is completed.
+   *
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aResponseHandler
+   *        The response handler to use. May not be <code>null</code>.
+   * @param aBuildExecutor
+   *        The executor to build (sign and encrypt) the message. May not be
+   *        <code>null</code>.
+   * @param aSendExecutor
+   *        The executor to perform the HTTP exchange. May not be
+   *        <code>null</code>.
+   * @return The future that is completed with the sent message or
+   *         exceptionally if building or sending fails or if the send
+   *         executor rejects the task. Never <code>null</code>.
+   * @param <T>
+   *        Response data type
+   */
+  @Nonnull
+  public <T> CompletableFuture <SentMessage <T>> sendMessageAsync (@Nonnull final String sURL,
+                                                                   @Nonnull final ResponseHandler <? extends T> aResponseHandler,
+                                                                   @Nonnull final Executor aBuildExecutor,
+                                                                   @Nonnull final Executor aSendExecutor)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+    ValueEnforcer.notNull (aBuildExecutor, "BuildExecutor");
+    ValueEnforcer.notNull (aSendExecutor, "SendExecutor");
+
+    return CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        return buildMessage ();
+      }
+      catch (final Exception ex)
+      {
+        throw new CompletionException (ex);
+      }
+    }, aBuildExecutor).thenApplyAsync (aBuiltMsg -> {
+      try
+      {
+        final T aResponse = sendGenericMessage (sURL, aBuiltMsg.getHttpEntity (), aResponseHandler);
+        return new SentMessage <> (aBuiltMsg.getMessageID (), aResponse);
+      }
+      catch (final Exception ex)
+      {
+        throw new CompletionException (ex);
+      }
+    }, aSendExecutor);
+  }
+
   @Nullable
   public IMicroDocument sendMessageAndGetMicroDocument (@Nonnull final String sURL) throws Exception
   {
@@ -384,4 +476,28 @@ public abstract class AbstractAS4Client extends BasicAS4Sender
     ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
     m_eSOAPVersion = eSOAPVersion;
   }
+
+  /**
+   * @return <code>true</code> if XML messages are sent with chunked transfer
+   *         encoding, <code>false</code> if the Content-Length is determined in
+   *         advance (the default).
+   */
+  public boolean isChunkedTransfer ()
+  {
+    return m_bChunkedTransfer;
+  }
+
+  /**
+   * Enable or disable chunked transfer encoding for XML messages. Chunked
+   * transfer avoids serializing the message twice, but is not supported by
+   * all AS4 implementations.
+   *
+   * @param bChunkedTransfer
+   *        <code>true</code> to use chunked transfer encoding,
+   *        <code>false</code> to send the Content-Length.
+   */
+  public void setChunkedTransfer (final boolean bChunkedTransfer)
+  {
+    m_bChunkedTransfer = bChunkedTransfer;
+  }
 }
@@ -28,6 +28,7 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.util.EntityUtils;
 
 import com.helger.as4.http.AS4HttpDebug;
+import com.helger.as4.http.AS4PooledHttpClientFactory;
 import com.helger.as4.http.HttpMimeMessageEntity;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.commons.ValueEnforcer;
@@ -39,8 +40,9 @@ import com.helger.httpclient.IHttpClientProvider;
 
 public class BasicAS4Sender
 {
-  // By default no special SSL context present
-  private IHttpClientProvider m_aHTTPClientProvider = new HttpClientFactory ().setRetries (3);
+  // By default no special SSL context present and the process-wide connection
+  // pool is used
+  private IHttpClientProvider m_aHTTPClientProvider = AS4PooledHttpClientFactory.getDefaultInstance ();
 
   public BasicAS4Sender ()
   {}
@@ -58,8 +60,10 @@ public class BasicAS4Sender
   /**
    * Set the HTTP client provider to be used. This is e.g. necessary when a
    * custom SSL context is to be used. See {@link HttpClientFactory} as the
-   * default implementation of {@link IHttpClientProvider}. This provider is
-   * used in {@link #sendGenericMessage(String, HttpEntity, ResponseHandler)}.
+   * basic implementation of {@link IHttpClientProvider} and
+   * {@link AS4PooledHttpClientFactory} as the default implementation that
+   * shares keep-alive connections. This provider is used in
+   * {@link #sendGenericMessage(String, HttpEntity, ResponseHandler)}.
    *
    * @param aHttpClientProvider
    *        The HTTP client provider to be used. May not be <code>null</code>.
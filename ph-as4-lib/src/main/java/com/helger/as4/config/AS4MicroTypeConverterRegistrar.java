@@ -19,6 +19,8 @@ package com.helger.as4.config;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
 
+import com.helger.as4.delivery.AS4OutgoingDelivery;
+import com.helger.as4.delivery.AS4OutgoingDeliveryMicroTypeConverter;
 import com.helger.as4.duplicate.AS4DuplicateItem;
 import com.helger.as4.duplicate.AS4DuplicateItemMicroTypeConverter;
 import com.helger.as4.model.mpc.MPC;
@@ -83,5 +85,8 @@ public final class AS4MicroTypeConverterRegistrar implements IMicroTypeConverter
     aRegistry.registerMicroElementTypeConverter (MPC.class, new MPCMicroTypeConverter ());
 
     aRegistry.registerMicroElementTypeConverter (AS4DuplicateItem.class, new AS4DuplicateItemMicroTypeConverter ());
+
+    aRegistry.registerMicroElementTypeConverter (AS4OutgoingDelivery.class,
+                                                 new AS4OutgoingDeliveryMicroTypeConverter ());
   }
 }
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.io.File;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.crypto.Crypto;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single loaded keystore inside the {@link AS4CryptoRegistry}. Contains the
+ * WSS4J {@link Crypto} together with the already unwrapped private key and
+ * certificate of the configured alias, as well as the state of the keystore and
+ * truststore files at load time, to detect changes on disk.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4CryptoEntry
+{
+  /**
+   * The state of a single file at load time.
+   */
+  static final class FileState
+  {
+    private final File m_aFile;
+    private final long m_nLastModified;
+    private final long m_nLength;
+
+    FileState (@Nonnull final File aFile)
+    {
+      m_aFile = aFile;
+      m_nLastModified = aFile.lastModified ();
+      m_nLength = aFile.length ();
+    }
+
+    boolean isChanged ()
+    {
+      return m_aFile.lastModified () != m_nLastModified || m_aFile.length () != m_nLength;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("File", m_aFile)
+                                         .append ("LastModified", m_nLastModified)
+                                         .append ("Length", m_nLength)
+                                         .getToString ();
+    }
+  }
+
+  private final Crypto m_aCrypto;
+  private final PrivateKey m_aPrivateKey;
+  private final X509Certificate m_aCertificate;
+  private final FileState m_aKeyStoreState;
+  private final FileState m_aTrustStoreState;
+  private final AtomicLong m_aLastCheck;
+
+  AS4CryptoEntry (@Nonnull final Crypto aCrypto,
+                  @Nullable final PrivateKey aPrivateKey,
+                  @Nullable final X509Certificate aCertificate,
+                  @Nullable final FileState aKeyStoreState,
+                  @Nullable final FileState aTrustStoreState,
+                  final long nCheckTime)
+  {
+    m_aCrypto = ValueEnforcer.notNull (aCrypto, "Crypto");
+    m_aPrivateKey = aPrivateKey;
+    m_aCertificate = aCertificate;
+    m_aKeyStoreState = aKeyStoreState;
+    m_aTrustStoreState = aTrustStoreState;
+    m_aLastCheck = new AtomicLong (nCheckTime);
+  }
+
+  /**
+   * @return The loaded crypto. Never <code>null</code>.
+   */
+  @Nonnull
+  public Crypto getCrypto ()
+  {
+    return m_aCrypto;
+  }
+
+  /**
+   * @return The private key of the configured alias. May be <code>null</code>
+   *         if no alias is configured or the key could not be loaded.
+   */
+  @Nullable
+  public PrivateKey getPrivateKey ()
+  {
+    return m_aPrivateKey;
+  }
+
+  /**
+   * @return The certificate of the configured alias. May be <code>null</code>
+   *         if no alias is configured or the certificate could not be loaded.
+   */
+  @Nullable
+  public X509Certificate getCertificate ()
+  {
+    return m_aCertificate;
+  }
+
+  /**
+   * @return The keystore file on disk. May be <code>null</code> if the
+   *         keystore was not loaded from a file (e.g. from inside a JAR), in
+   *         which case it is never reloaded.
+   */
+  @Nullable
+  public File getKeyStoreFile ()
+  {
+    return m_aKeyStoreState == null ? null : m_aKeyStoreState.m_aFile;
+  }
+
+  /**
+   * @return The separately configured truststore file on disk. May be
+   *         <code>null</code> if no truststore is configured or if it was not
+   *         loaded from a file.
+   */
+  @Nullable
+  public File getTrustStoreFile ()
+  {
+    return m_aTrustStoreState == null ? null : m_aTrustStoreState.m_aFile;
+  }
+
+  /**
+   * Check if the keystore or truststore file was modified since this entry was
+   * loaded. The file system is queried at most once per check interval.
+   *
+   * @param nNow
+   *        Current time in milliseconds.
+   * @param nCheckIntervalMS
+   *        Minimum duration in milliseconds between two file system checks.
+   * @return <code>true</code> if a file changed and the entry should be
+   *         reloaded.
+   */
+  boolean isOutdated (final long nNow, final long nCheckIntervalMS)
+  {
+    if (m_aKeyStoreState == null && m_aTrustStoreState == null)
+      return false;
+
+    final long nLastCheck = m_aLastCheck.get ();
+    if (nNow - nLastCheck < nCheckIntervalMS || !m_aLastCheck.compareAndSet (nLastCheck, nNow))
+    {
+      // Recently checked or another thread is checking right now
+      return false;
+    }
+    return (m_aKeyStoreState != null && m_aKeyStoreState.isChanged ()) ||
+           (m_aTrustStoreState != null && m_aTrustStoreState.isChanged ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Crypto", m_aCrypto)
+                                       .append ("HasPrivateKey", m_aPrivateKey != null)
+                                       .append ("Certificate",
+                                                m_aCertificate == null ? null
+                                                                       : m_aCertificate.getSubjectX500Principal ()
+                                                                                       .getName ())
+                                       .append ("KeyStoreState", m_aKeyStoreState)
+                                       .appendIfNotNull ("TrustStoreState", m_aTrustStoreState)
+                                       .getToString ();
+  }
+}
@@ -94,9 +94,17 @@ public final class AS4CryptoFactory implements Serializable
     return m_aCryptoProps;
   }
 
+  /**
+   * @return The crypto to be used. If the crypto properties reference a
+   *         keystore, the shared and automatically reloaded instance from the
+   *         {@link AS4CryptoRegistry} is returned. Never <code>null</code>.
+   */
   @Nonnull
   public Crypto getCrypto ()
   {
+    if (AS4CryptoRegistry.isSupported (m_aCryptoProps))
+      return AS4CryptoRegistry.getEntry (m_aCryptoProps).getCrypto ();
+
     Crypto ret = m_aCrypto;
     if (ret == null)
     {
@@ -0,0 +1,400 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.io.File;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.crypto.CryptoFactory;
+import org.apache.wss4j.common.crypto.CryptoType;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.ArrayHelper;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.collection.map.LRUMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.exception.InitializationException;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Process-wide registry of loaded keystores. Loading a keystore (incl.
+ * unwrapping the private key) is expensive, so each keystore is loaded only
+ * once and shared between all {@link AS4CryptoFactory} instances with exactly
+ * the same crypto properties (incl. the truststore settings). If the keystore
+ * or the truststore is a file on disk, it is atomically reloaded as soon as a
+ * change of the file is detected. The file system is checked at most once per
+ * check interval.
+ * <br>
+ * Keystores are loaded lazily upon first access. The number of loaded
+ * keystores is bounded and the least recently used one is evicted if the limit
+ * is exceeded, so that a single server can handle many identities with
+ * predictable memory usage. An evicted keystore is simply loaded again upon
+ * next access. Loading happens outside of the registry lock, so that loading
+ * one keystore does not block access to the others.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4CryptoRegistry
+{
+  /** The default interval in milliseconds to check for keystore changes */
+  public static final long DEFAULT_CHECK_INTERVAL_MS = 10 * 1000L;
+  /** The default maximum number of loaded keystores */
+  public static final int DEFAULT_MAX_SIZE = 100;
+
+  private static final class KeyStoreKey
+  {
+    // All crypto properties - two factories only share a Crypto if they are
+    // configured identically
+    private final ICommonsSortedMap <String, String> m_aProps = new CommonsTreeMap <> ();
+    private final String m_sPath;
+    private final String m_sType;
+    private final String m_sAlias;
+    private final String m_sKeyPassword;
+    private final String m_sTrustStorePath;
+
+    KeyStoreKey (@Nonnull final CryptoProperties aCP)
+    {
+      aCP.getAsProperties ().forEach ( (k, v) -> m_aProps.put (String.valueOf (k), String.valueOf (v)));
+      m_sPath = aCP.getKeyStorePath ();
+      m_sType = aCP.getKeyStoreType () == null ? null : aCP.getKeyStoreType ().getID ();
+      m_sAlias = aCP.getKeyAlias ();
+      m_sKeyPassword = aCP.getKeyPassword ();
+      m_sTrustStorePath = aCP.getTrustStorePath ();
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final KeyStoreKey rhs = (KeyStoreKey) o;
+      return m_aProps.equals (rhs.m_aProps);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_aProps).getHashCode ();
+    }
+
+    @Override
+    public String toString ()
+    {
+      // Passwords are intentionally not contained
+      return new ToStringGenerator (this).append ("Path", m_sPath)
+                                         .append ("Type", m_sType)
+                                         .append ("Alias", m_sAlias)
+                                         .appendIfNotNull ("TrustStorePath", m_sTrustStorePath)
+                                         .getToString ();
+    }
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4CryptoRegistry.class);
+  private static final String PROPERTY_CRYPTO_PROVIDER = "org.apache.wss4j.crypto.provider";
+
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("s_aRWLock")
+  private static LRUMap <KeyStoreKey, AS4CryptoEntry> s_aMap = _createMap (DEFAULT_MAX_SIZE);
+  private static volatile long s_nCheckIntervalMS = DEFAULT_CHECK_INTERVAL_MS;
+  private static final Map <KeyStoreKey, CompletableFuture <AS4CryptoEntry>> s_aLoading = new ConcurrentHashMap <> ();
+
+  private AS4CryptoRegistry ()
+  {}
+
+  @Nonnull
+  private static LRUMap <KeyStoreKey, AS4CryptoEntry> _createMap (@Nonnegative final int nMaxSize)
+  {
+    return new LRUMap <KeyStoreKey, AS4CryptoEntry> (nMaxSize)
+    {
+      @Override
+      protected void onRemoveEldestEntry (@Nonnegative final int nSize,
+                                          @Nonnull final Map.Entry <KeyStoreKey, AS4CryptoEntry> aEntry)
+      {
+        s_aLogger.info ("Evicting least recently used keystore " + aEntry.getKey ());
+      }
+    };
+  }
+
+  @Nonnegative
+  public static int getMaxSize ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aMap.getMaxSize ());
+  }
+
+  /**
+   * Set the maximum number of loaded keystores. All currently loaded keystores
+   * are discarded.
+   *
+   * @param nMaxSize
+   *        The maximum number of keystores. Must be &gt; 0.
+   */
+  public static void setMaxSize (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    s_aRWLock.writeLocked ( () -> s_aMap = _createMap (nMaxSize));
+  }
+
+  /**
+   * @return The number of currently loaded keystores.
+   */
+  @Nonnegative
+  public static int size ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aMap.size ());
+  }
+
+  @Nonnegative
+  public static long getCheckIntervalMS ()
+  {
+    return s_nCheckIntervalMS;
+  }
+
+  /**
+   * Set the minimum interval between two checks of the same keystore file for
+   * modifications.
+   *
+   * @param nCheckIntervalMS
+   *        Interval in milliseconds. Must be &ge; 0. 0 means check on every
+   *        access.
+   */
+  public static void setCheckIntervalMS (@Nonnegative final long nCheckIntervalMS)
+  {
+    ValueEnforcer.isGE0 (nCheckIntervalMS, "CheckIntervalMS");
+    s_nCheckIntervalMS = nCheckIntervalMS;
+  }
+
+  /**
+   * Check if the provided crypto properties can be handled by the registry.
+   *
+   * @param aCP
+   *        Crypto properties to check. May be <code>null</code>.
+   * @return <code>true</code> if the properties are read and a keystore path
+   *         is contained.
+   */
+  public static boolean isSupported (@Nullable final CryptoProperties aCP)
+  {
+    return aCP != null && aCP.isRead () && StringHelper.hasText (aCP.getKeyStorePath ());
+  }
+
+  @Nullable
+  private static File _getStoreFile (@Nullable final String sPath)
+  {
+    if (StringHelper.hasNoText (sPath))
+      return null;
+
+    // Same order as in Merlin: first class path, then file system
+    final File aCPFile = ClassPathResource.getAsFile (sPath);
+    if (aCPFile != null && aCPFile.isFile ())
+      return aCPFile;
+    final File aFile = new File (sPath);
+    return aFile.isFile () ? aFile : null;
+  }
+
+  @Nonnull
+  private static Crypto _createCrypto (@Nonnull final CryptoProperties aCP)
+  {
+    final Properties aProps = aCP.getAsProperties ();
+    final String sProvider = aProps.getProperty (PROPERTY_CRYPTO_PROVIDER);
+    if (sProvider == null || sProvider.equals (Merlin.class.getName ()))
+    {
+      // Unwrap the private key only once per loaded keystore
+      aProps.setProperty (PROPERTY_CRYPTO_PROVIDER, AS4KeyCachingMerlin.class.getName ());
+    }
+
+    try
+    {
+      return CryptoFactory.getInstance (aProps);
+    }
+    catch (final Throwable t)
+    {
+      throw new InitializationException ("Failed to init crypto properties!", t);
+    }
+  }
+
+  @Nonnull
+  private static AS4CryptoEntry _load (@Nonnull final KeyStoreKey aKey, @Nonnull final CryptoProperties aCP)
+  {
+    // Determine file states first, so that changes while loading are detected
+    // as well
+    final File aKeyStoreFile = _getStoreFile (aKey.m_sPath);
+    final AS4CryptoEntry.FileState aKeyStoreState = aKeyStoreFile == null ? null
+                                                                          : new AS4CryptoEntry.FileState (aKeyStoreFile);
+    final File aTrustStoreFile = _getStoreFile (aKey.m_sTrustStorePath);
+    final AS4CryptoEntry.FileState aTrustStoreState = aTrustStoreFile == null ? null
+                                                                              : new AS4CryptoEntry.FileState (aTrustStoreFile);
+    final long nNow = System.currentTimeMillis ();
+    final Crypto aCrypto = _createCrypto (aCP);
+
+    PrivateKey aPrivateKey = null;
+    X509Certificate aCert = null;
+    if (StringHelper.hasText (aKey.m_sAlias))
+    {
+      try
+      {
+        final CryptoType aCryptoType = new CryptoType (CryptoType.TYPE.ALIAS);
+        aCryptoType.setAlias (aKey.m_sAlias);
+        aCert = ArrayHelper.getFirst (aCrypto.getX509Certificates (aCryptoType));
+        if (aKey.m_sKeyPassword != null)
+          aPrivateKey = aCrypto.getPrivateKey (aKey.m_sAlias, aKey.m_sKeyPassword);
+      }
+      catch (final Exception ex)
+      {
+        s_aLogger.warn ("Failed to resolve key of alias '" + aKey.m_sAlias + "' in " + aKey + ": " + ex.getMessage ());
+      }
+    }
+
+    s_aLogger.info ("Loaded keystore " + aKey + (aKeyStoreFile != null ? " from " + aKeyStoreFile : ""));
+    return new AS4CryptoEntry (aCrypto, aPrivateKey, aCert, aKeyStoreState, aTrustStoreState, nNow);
+  }
+
+  /**
+   * Get the loaded keystore for the provided crypto properties. If the
+   * keystore was not yet loaded or if the underlying file was modified since
+   * the last load, it is loaded and the result is cached.
+   *
+   * @param aCP
+   *        The crypto properties to use. May not be <code>null</code> and must
+   *        be supported.
+   * @return The loaded entry. Never <code>null</code>.
+   * @throws InitializationException
+   *         If the keystore could not be loaded initially.
+   * @see #isSupported(CryptoProperties)
+   */
+  @Nonnull
+  public static AS4CryptoEntry getEntry (@Nonnull final CryptoProperties aCP)
+  {
+    ValueEnforcer.isTrue (isSupported (aCP), "CryptoProperties are not supported");
+
+    final KeyStoreKey aKey = new KeyStoreKey (aCP);
+    // LRUMap is access ordered so a write lock is needed
+    final AS4CryptoEntry aEntry = s_aRWLock.writeLocked ( () -> s_aMap.get (aKey));
+    if (aEntry != null && !aEntry.isOutdated (System.currentTimeMillis (), s_nCheckIntervalMS))
+      return aEntry;
+
+    // Only one thread loads a certain keystore - the others wait for it
+    final CompletableFuture <AS4CryptoEntry> aNewLoad = new CompletableFuture <> ();
+    final CompletableFuture <AS4CryptoEntry> aRunningLoad = s_aLoading.putIfAbsent (aKey, aNewLoad);
+    if (aRunningLoad != null)
+    {
+      try
+      {
+        return aRunningLoad.join ();
+      }
+      catch (final CompletionException ex)
+      {
+        if (ex.getCause () instanceof RuntimeException)
+          throw (RuntimeException) ex.getCause ();
+        throw ex;
+      }
+    }
+
+    try
+    {
+      final AS4CryptoEntry ret = _loadAndSwap (aKey, aCP, aEntry);
+      aNewLoad.complete (ret);
+      return ret;
+    }
+    catch (final RuntimeException ex)
+    {
+      aNewLoad.completeExceptionally (ex);
+      throw ex;
+    }
+    finally
+    {
+      s_aLoading.remove (aKey, aNewLoad);
+    }
+  }
+
+  @Nonnull
+  private static AS4CryptoEntry _loadAndSwap (@Nonnull final KeyStoreKey aKey,
+                                              @Nonnull final CryptoProperties aCP,
+                                              @Nullable final AS4CryptoEntry aOutdatedEntry)
+  {
+    final AS4CryptoEntry aCurEntry = s_aRWLock.writeLocked ( () -> s_aMap.get (aKey));
+    if (aCurEntry != null && aCurEntry != aOutdatedEntry)
+    {
+      // Another thread was faster
+      return aCurEntry;
+    }
+
+    // Loading may take long, so it happens without holding the lock
+    final AS4CryptoEntry aNewEntry;
+    try
+    {
+      aNewEntry = _load (aKey, aCP);
+    }
+    catch (final InitializationException ex)
+    {
+      if (aCurEntry == null)
+        throw ex;
+      // Keep the previous one e.g. if the file is currently written
+      s_aLogger.error ("Failed to reload keystore " + aKey + " - keeping the previous version", ex);
+      return aCurEntry;
+    }
+
+    final AS4CryptoEntry ret = s_aRWLock.writeLocked ( () -> {
+      final AS4CryptoEntry aLatestEntry = s_aMap.get (aKey);
+      if (aLatestEntry != null && aLatestEntry != aCurEntry)
+      {
+        // Replaced in the meantime - keep the other one
+        return aLatestEntry;
+      }
+      s_aMap.put (aKey, aNewEntry);
+      return aNewEntry;
+    });
+
+    if (ret == aNewEntry && aCurEntry != null)
+    {
+      // The trust anchors may have changed
+      AS4TrustVerificationCache.clearCache ();
+    }
+    return ret;
+  }
+
+  /**
+   * Remove all cached entries, so that all keystores are loaded again upon
+   * next access. This also clears the {@link AS4TrustVerificationCache}.
+   */
+  public static void clearCache ()
+  {
+    s_aRWLock.writeLocked ( () -> s_aMap.clear ());
+    AS4TrustVerificationCache.clearCache ();
+  }
+}
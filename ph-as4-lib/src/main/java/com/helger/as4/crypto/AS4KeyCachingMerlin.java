@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.security.auth.callback.CallbackHandler;
+
+import org.apache.wss4j.common.crypto.Merlin;
+import org.apache.wss4j.common.crypto.PasswordEncryptor;
+import org.apache.wss4j.common.ext.WSSecurityException;
+
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.functional.IThrowingSupplier;
+
+/**
+ * A {@link Merlin} that unwraps each private key only once. WSS4J retrieves the
+ * private key for every signed or decrypted message and unwrapping it from the
+ * keystore is expensive. Signing looks up the key by alias and password,
+ * decryption by certificate or public key and a password callback. The latter
+ * search the keystore for the alias and query the callback before they
+ * delegate to the alias variant, so all variants are cached. A cached key is
+ * only returned for the same password or the same callback handler. As each
+ * instance belongs to exactly one loaded keystore, the cache is implicitly
+ * discarded when the {@link AS4CryptoRegistry} reloads the keystore.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4KeyCachingMerlin extends Merlin
+{
+  private static final class CachedKey
+  {
+    // The password or the callback handler the key was unwrapped with
+    private final Object m_aSecret;
+    private final PrivateKey m_aKey;
+
+    CachedKey (final Object aSecret, final PrivateKey aKey)
+    {
+      m_aSecret = aSecret;
+      m_aKey = aKey;
+    }
+  }
+
+  // Key is the alias, the certificate or the public key
+  private final Map <Object, CachedKey> m_aKeys = new ConcurrentHashMap <> ();
+
+  /**
+   * Constructor as required by the WSS4J
+   * {@link org.apache.wss4j.common.crypto.CryptoFactory}.
+   *
+   * @param aProperties
+   *        The crypto properties.
+   * @param aClassLoader
+   *        The class loader to use.
+   * @param aPasswordEncryptor
+   *        The optional password encryptor.
+   * @throws WSSecurityException
+   *         If the keystore cannot be loaded
+   * @throws IOException
+   *         If the keystore cannot be read
+   */
+  public AS4KeyCachingMerlin (final Properties aProperties,
+                              final ClassLoader aClassLoader,
+                              final PasswordEncryptor aPasswordEncryptor) throws WSSecurityException, IOException
+  {
+    super (aProperties, aClassLoader, aPasswordEncryptor);
+  }
+
+  private PrivateKey _getPrivateKey (@Nonnull final Object aLookup,
+                                     final Object aSecret,
+                                     @Nonnull final IThrowingSupplier <PrivateKey, WSSecurityException> aLoader) throws WSSecurityException
+  {
+    final CachedKey aCached = m_aKeys.get (aLookup);
+    if (aCached != null && EqualsHelper.equals (aCached.m_aSecret, aSecret))
+      return aCached.m_aKey;
+
+    // Throws an exception on error
+    final PrivateKey ret = aLoader.get ();
+    m_aKeys.put (aLookup, new CachedKey (aSecret, ret));
+    return ret;
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (@Nonnull final String sIdentifier,
+                                   final String sPassword) throws WSSecurityException
+  {
+    return _getPrivateKey (sIdentifier, sPassword, () -> super.getPrivateKey (sIdentifier, sPassword));
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (@Nonnull final X509Certificate aCertificate,
+                                   final CallbackHandler aCallbackHandler) throws WSSecurityException
+  {
+    return _getPrivateKey (aCertificate, aCallbackHandler, () -> super.getPrivateKey (aCertificate, aCallbackHandler));
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (@Nonnull final PublicKey aPublicKey,
+                                   final CallbackHandler aCallbackHandler) throws WSSecurityException
+  {
+    return _getPrivateKey (aPublicKey, aCallbackHandler, () -> super.getPrivateKey (aPublicKey, aCallbackHandler));
+  }
+}
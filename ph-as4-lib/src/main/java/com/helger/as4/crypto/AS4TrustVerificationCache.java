@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.crypto.Crypto;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.map.LRUMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.security.messagedigest.EMessageDigestAlgorithm;
+
+/**
+ * Process-wide, bounded cache of successful certificate trust verifications.
+ * Validating a certificate chain against the truststore is expensive, so the
+ * result of a successful validation is remembered for a limited time, keyed by
+ * the SHA-256 fingerprint of the chain. An entry is only valid for the
+ * {@link Crypto} it was validated against, so a reloaded truststore
+ * automatically invalidates all entries. To keep revocation checking
+ * reasonably up to date, entries expire after a configurable TTL and never
+ * outlive the validity of the certificate.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4TrustVerificationCache
+{
+  /** The default maximum number of cached entries */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  /** The default time to live of an entry in milliseconds */
+  public static final long DEFAULT_TTL_MS = 10 * CGlobal.MILLISECONDS_PER_MINUTE;
+
+  private static final class Entry
+  {
+    private final Crypto m_aCrypto;
+    private final long m_nExpirationMS;
+
+    Entry (@Nonnull final Crypto aCrypto, final long nExpirationMS)
+    {
+      m_aCrypto = aCrypto;
+      m_nExpirationMS = nExpirationMS;
+    }
+  }
+
+  private static final IMutableStatisticsHandlerCounter s_aStatsHit = StatisticsManager.getCounterHandler (AS4TrustVerificationCache.class.getName () +
+                                                                                                           "$hit");
+  private static final IMutableStatisticsHandlerCounter s_aStatsMiss = StatisticsManager.getCounterHandler (AS4TrustVerificationCache.class.getName () +
+                                                                                                            "$miss");
+
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("s_aRWLock")
+  private static LRUMap <String, Entry> s_aMap = new LRUMap <> (DEFAULT_MAX_SIZE);
+  private static volatile long s_nTTLMS = DEFAULT_TTL_MS;
+
+  private AS4TrustVerificationCache ()
+  {}
+
+  @Nonnegative
+  public static int getMaxSize ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aMap.getMaxSize ());
+  }
+
+  /**
+   * Set the maximum number of cached entries. This clears the cache.
+   *
+   * @param nMaxSize
+   *        The maximum number of entries. Must be &gt; 0.
+   */
+  public static void setMaxSize (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    s_aRWLock.writeLocked ( () -> s_aMap = new LRUMap <> (nMaxSize));
+  }
+
+  @Nonnegative
+  public static long getTTLMS ()
+  {
+    return s_nTTLMS;
+  }
+
+  /**
+   * Set the time to live of new entries.
+   *
+   * @param nTTLMS
+   *        Time to live in milliseconds. Must be &ge; 0. 0 disables caching.
+   */
+  public static void setTTLMS (@Nonnegative final long nTTLMS)
+  {
+    ValueEnforcer.isGE0 (nTTLMS, "TTLMS");
+    s_nTTLMS = nTTLMS;
+  }
+
+  /**
+   * Get the cache key of the passed certificate chain.
+   *
+   * @param aCerts
+   *        The certificate chain. May neither be <code>null</code> nor empty.
+   * @param bRevocationEnabled
+   *        Was revocation checking enabled for the validation?
+   * @return The hex encoded SHA-256 fingerprint of the whole chain plus the
+   *         revocation flag. Never <code>null</code>.
+   * @throws CertificateEncodingException
+   *         If a certificate cannot be encoded
+   */
+  @Nonnull
+  public static String getCacheKey (@Nonnull final X509Certificate [] aCerts,
+                                    final boolean bRevocationEnabled) throws CertificateEncodingException
+  {
+    ValueEnforcer.notEmptyNoNullValue (aCerts, "Certs");
+    final MessageDigest aMD = EMessageDigestAlgorithm.SHA_256.createMessageDigest ();
+    for (final X509Certificate aCert : aCerts)
+      aMD.update (aCert.getEncoded ());
+    return StringHelper.getHexEncoded (aMD.digest ()) + (bRevocationEnabled ? ":rev" : "");
+  }
+
+  /**
+   * Check if the trust of the passed key was successfully verified against the
+   * passed crypto before and is not yet expired. Increments the hit or miss
+   * counter.
+   *
+   * @param sKey
+   *        The cache key as created by
+   *        {@link #getCacheKey(X509Certificate[], boolean)}. May be
+   *        <code>null</code>.
+   * @param aCrypto
+   *        The crypto containing the truststore. May be <code>null</code>.
+   * @return <code>true</code> if the trust is cached.
+   */
+  public static boolean isTrusted (@Nullable final String sKey, @Nullable final Crypto aCrypto)
+  {
+    if (sKey != null && aCrypto != null)
+    {
+      // LRUMap is access ordered so a write lock is needed
+      final Entry aEntry = s_aRWLock.writeLocked ( () -> s_aMap.get (sKey));
+      if (aEntry != null)
+      {
+        if (aEntry.m_aCrypto == aCrypto && System.currentTimeMillis () < aEntry.m_nExpirationMS)
+        {
+          s_aStatsHit.increment ();
+          return true;
+        }
+        // Outdated
+        s_aRWLock.writeLocked ( () -> s_aMap.remove (sKey, aEntry));
+      }
+    }
+    s_aStatsMiss.increment ();
+    return false;
+  }
+
+  /**
+   * Remember a successful trust verification.
+   *
+   * @param sKey
+   *        The cache key as created by
+   *        {@link #getCacheKey(X509Certificate[], boolean)}. May not be
+   *        <code>null</code>.
+   * @param aCerts
+   *        The verified certificate chain. May not be <code>null</code>.
+   * @param aCrypto
+   *        The crypto containing the truststore. May not be <code>null</code>.
+   */
+  public static void putTrusted (@Nonnull final String sKey,
+                                 @Nonnull final X509Certificate [] aCerts,
+                                 @Nonnull final Crypto aCrypto)
+  {
+    ValueEnforcer.notNull (sKey, "Key");
+    ValueEnforcer.notEmptyNoNullValue (aCerts, "Certs");
+    ValueEnforcer.notNull (aCrypto, "Crypto");
+
+    final long nTTLMS = s_nTTLMS;
+    if (nTTLMS > 0)
+    {
+      long nExpiration = System.currentTimeMillis () + nTTLMS;
+      // Never longer than the validity of the chain
+      for (final X509Certificate aCert : aCerts)
+        nExpiration = Math.min (nExpiration, aCert.getNotAfter ().getTime ());
+      final Entry aEntry = new Entry (aCrypto, nExpiration);
+      s_aRWLock.writeLocked ( () -> s_aMap.put (sKey, aEntry));
+    }
+  }
+
+  /**
+   * @return The number of currently cached entries, including expired ones
+   *         that were not yet evicted.
+   */
+  @Nonnegative
+  public static int size ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aMap.size ());
+  }
+
+  @Nonnegative
+  public static long getHitCount ()
+  {
+    return s_aStatsHit.getCount ();
+  }
+
+  @Nonnegative
+  public static long getMissCount ()
+  {
+    return s_aStatsMiss.getCount ();
+  }
+
+  /**
+   * Remove all cached entries. Must be called whenever the truststore
+   * changes.
+   */
+  public static void clearCache ()
+  {
+    s_aRWLock.writeLocked ( () -> s_aMap.clear ());
+  }
+}
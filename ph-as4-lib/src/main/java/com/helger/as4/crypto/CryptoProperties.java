@@ -122,6 +122,12 @@ public class CryptoProperties implements Serializable
     return _getProperty ("org.apache.wss4j.crypto.merlin.keystore.private.password");
   }
 
+  @Nullable
+  public String getTrustStorePath ()
+  {
+    return _getProperty ("org.apache.wss4j.crypto.merlin.truststore.file");
+  }
+
   @Override
   public String toString ()
   {
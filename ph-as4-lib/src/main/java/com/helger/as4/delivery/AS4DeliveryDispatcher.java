@@ -0,0 +1,877 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.delivery;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.client.AS4ClientExecutors;
+import com.helger.as4.client.AbstractAS4Client;
+import com.helger.as4.client.BasicAS4Sender;
+import com.helger.as4.http.AS4PooledHttpClientFactory;
+import com.helger.as4.http.HttpMimeMessageEntity;
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.pmode.IPMode;
+import com.helger.as4.model.pmode.PModeReceptionAwareness;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.exception.InitializationException;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.lang.ClassHelper;
+import com.helger.commons.state.ETriState;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.httpclient.IHttpClientProvider;
+import com.helger.httpclient.response.ResponseHandlerHttpEntity;
+import com.helger.photon.basic.app.io.WebFileIO;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+import com.helger.xml.microdom.IMicroDocument;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.serialize.MicroReader;
+
+/**
+ * Reliable delivery of outgoing AS4 messages. Each submitted message is first
+ * stored in the persistent {@link AS4OutgoingQueueManager} and is then
+ * transmitted in the background. Failed transmissions are retried with an
+ * exponential backoff with jitter, based on the {@link PModeReceptionAwareness}
+ * of the PMode used. A delivery is completed, when a receipt with a matching
+ * <code>RefToMessageId</code> is received - either synchronously in the HTTP
+ * response or asynchronously via
+ * {@link #onReceiptReceived(String, X509Certificate)}. The
+ * number of concurrent transmissions per endpoint (scheme, host and port) is
+ * limited - additional deliveries to the same endpoint wait in memory without
+ * occupying a thread. Pending deliveries are resumed after a restart.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4DeliveryDispatcher extends AbstractGlobalSingleton
+{
+  public static final int DEFAULT_MAX_DELIVERIES_PER_ENDPOINT = 4;
+  public static final double DEFAULT_BACKOFF_MULTIPLIER = 2.0;
+  public static final long DEFAULT_MAX_RETRY_INTERVAL_MS = 60 * 60 * 1000L;
+  public static final double DEFAULT_JITTER = 0.2;
+  /** Delay before re-dispatching deliveries rejected by the send executor */
+  public static final long REJECTED_REDISPATCH_DELAY_MS = 1000;
+
+  private static final String QUEUE_XML = "as4-outgoing-queue.xml";
+  private static final String DATA_DIR = "as4-outgoing/";
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4DeliveryDispatcher.class);
+
+  /**
+   * The number of running transmissions of a single endpoint together with the
+   * deliveries waiting for a free slot.
+   */
+  private static final class Endpoint
+  {
+    @GuardedBy ("this")
+    private int m_nInFlight = 0;
+    @GuardedBy ("this")
+    private final Queue <String> m_aWaiting = new ArrayDeque <> ();
+  }
+
+  private AS4OutgoingQueueManager m_aQueueMgr;
+  private ScheduledThreadPoolExecutor m_aScheduler;
+  private final Map <String, Endpoint> m_aEndpoints = new ConcurrentHashMap <> ();
+  private final Map <String, CompletableFuture <IAS4OutgoingDelivery>> m_aFutures = new ConcurrentHashMap <> ();
+  private volatile IHttpClientProvider m_aHttpClientProvider = AS4PooledHttpClientFactory.getDefaultInstance ();
+  private volatile PModeReceptionAwareness m_aDefaultReceptionAwareness = PModeReceptionAwareness.createDefault ();
+  private volatile int m_nMaxDeliveriesPerEndpoint = DEFAULT_MAX_DELIVERIES_PER_ENDPOINT;
+  private volatile double m_dBackoffMultiplier = DEFAULT_BACKOFF_MULTIPLIER;
+  private volatile long m_nMaxRetryIntervalMS = DEFAULT_MAX_RETRY_INTERVAL_MS;
+  private volatile double m_dJitter = DEFAULT_JITTER;
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4DeliveryDispatcher ()
+  {}
+
+  @Override
+  protected void onAfterInstantiation (@Nonnull final IScope aScope)
+  {
+    try
+    {
+      m_aQueueMgr = new AS4OutgoingQueueManager (QUEUE_XML);
+      m_aScheduler = new ScheduledThreadPoolExecutor (1,
+                                                      new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                       .setNamingPattern ("as4-delivery-%d")
+                                                                                       .build ());
+      // Don't wait for delayed retries upon shutdown
+      m_aScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+
+      // Resume all pending deliveries
+      final long nNow = PDTFactory.getCurrentMillis ();
+      for (final IAS4OutgoingDelivery aDelivery : m_aQueueMgr.getAllActiveDeliveries ())
+        _schedule (aDelivery.getID (), PDTFactory.getMillis (aDelivery.getNextAttemptDateTime ()) - nNow);
+
+      s_aLogger.info (ClassHelper.getClassLocalName (this) + " was initialized");
+    }
+    catch (final Throwable t)
+    {
+      throw new InitializationException ("Failed to init " + ClassHelper.getClassLocalName (this), t);
+    }
+  }
+
+  @Override
+  protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed) throws Exception
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aScheduler);
+    // Pending deliveries are resumed upon next start
+    for (final CompletableFuture <IAS4OutgoingDelivery> aFuture : m_aFutures.values ())
+      aFuture.cancel (false);
+    m_aFutures.clear ();
+  }
+
+  @Nonnull
+  public static AS4DeliveryDispatcher getInstance ()
+  {
+    return getGlobalSingleton (AS4DeliveryDispatcher.class);
+  }
+
+  @Nullable
+  public static AS4DeliveryDispatcher getInstanceIfInstantiated ()
+  {
+    return getGlobalSingletonIfInstantiated (AS4DeliveryDispatcher.class);
+  }
+
+  /**
+   * @return The underlying persistent queue. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4OutgoingQueueManager getQueueMgr ()
+  {
+    return m_aQueueMgr;
+  }
+
+  @Nonnull
+  public AS4DeliveryDispatcher setHttpClientProvider (@Nonnull final IHttpClientProvider aHttpClientProvider)
+  {
+    ValueEnforcer.notNull (aHttpClientProvider, "HttpClientProvider");
+    m_aHttpClientProvider = aHttpClientProvider;
+    return this;
+  }
+
+  /**
+   * Set the reception awareness settings to be used for deliveries without a
+   * PMode or for PModes without reception awareness settings.
+   *
+   * @param aReceptionAwareness
+   *        The settings to use. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4DeliveryDispatcher setDefaultReceptionAwareness (@Nonnull final PModeReceptionAwareness aReceptionAwareness)
+  {
+    ValueEnforcer.notNull (aReceptionAwareness, "ReceptionAwareness");
+    m_aDefaultReceptionAwareness = aReceptionAwareness;
+    return this;
+  }
+
+  @Nonnegative
+  public int getMaxDeliveriesPerEndpoint ()
+  {
+    return m_nMaxDeliveriesPerEndpoint;
+  }
+
+  /**
+   * @param nMaxDeliveriesPerEndpoint
+   *        The maximum number of concurrent transmissions to a single endpoint.
+   *        Must be &gt; 0. Only applies to transmissions started afterwards.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4DeliveryDispatcher setMaxDeliveriesPerEndpoint (@Nonnegative final int nMaxDeliveriesPerEndpoint)
+  {
+    ValueEnforcer.isGT0 (nMaxDeliveriesPerEndpoint, "MaxDeliveriesPerEndpoint");
+    m_nMaxDeliveriesPerEndpoint = nMaxDeliveriesPerEndpoint;
+    return this;
+  }
+
+  /**
+   * Set the parameters of the exponential backoff. The n-th retry is performed
+   * after <code>RetryInterval * Multiplier^(n-1)</code> milliseconds, limited
+   * to the maximum retry interval and randomly varied by &plusmn; jitter.
+   *
+   * @param dMultiplier
+   *        Backoff multiplier. Must be &ge; 1.
+   * @param nMaxRetryIntervalMS
+   *        Maximum retry interval in milliseconds. Must be &ge; 0.
+   * @param dJitter
+   *        Relative jitter between 0 and 1.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4DeliveryDispatcher setBackoff (final double dMultiplier,
+                                           @Nonnegative final long nMaxRetryIntervalMS,
+                                           final double dJitter)
+  {
+    ValueEnforcer.isTrue (dMultiplier >= 1, "Multiplier must be >= 1");
+    ValueEnforcer.isGE0 (nMaxRetryIntervalMS, "MaxRetryIntervalMS");
+    ValueEnforcer.isBetweenInclusive (dJitter, "Jitter", 0, 1);
+    m_dBackoffMultiplier = dMultiplier;
+    m_nMaxRetryIntervalMS = nMaxRetryIntervalMS;
+    m_dJitter = dJitter;
+    return this;
+  }
+
+  /**
+   * Get the delay before the provided retry.
+   *
+   * @param nRetryIntervalMS
+   *        The base retry interval in milliseconds as defined in the PMode.
+   * @param nRetry
+   *        The 1-based index of the retry.
+   * @return The delay in milliseconds. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getRetryDelayMS (@Nonnegative final long nRetryIntervalMS, @Nonnegative final int nRetry)
+  {
+    final double dBase = Math.min (nRetryIntervalMS * Math.pow (m_dBackoffMultiplier, Math.max (nRetry - 1, 0)),
+                                   m_nMaxRetryIntervalMS);
+    final double dFactor = 1 + m_dJitter * (2 * ThreadLocalRandom.current ().nextDouble () - 1);
+    return Math.max ((long) (dBase * dFactor), 0);
+  }
+
+  @Nonnull
+  private PModeReceptionAwareness _getReceptionAwareness (@Nullable final String sPModeID)
+  {
+    if (sPModeID != null)
+    {
+      final IPMode aPMode = MetaAS4Manager.getPModeMgr ().getPModeOfID (sPModeID);
+      if (aPMode != null && aPMode.getReceptionAwareness () != null)
+        return aPMode.getReceptionAwareness ();
+    }
+    return m_aDefaultReceptionAwareness;
+  }
+
+  @Nonnull
+  private static String _getEndpointKey (@Nonnull final String sURL)
+  {
+    try
+    {
+      final URI aURI = new URI (sURL);
+      return aURI.getScheme () + "://" + aURI.getHost () + ":" + aURI.getPort ();
+    }
+    catch (final Exception ex)
+    {
+      return sURL;
+    }
+  }
+
+  @Nonnull
+  private static File _getFile (@Nonnull final IAS4OutgoingDelivery aDelivery)
+  {
+    return WebFileIO.getDataIO ().getFile (aDelivery.getFilename ());
+  }
+
+  /**
+   * Build the message of the provided client and submit it for reliable
+   * delivery.
+   *
+   * @param aClient
+   *        The client to build the message. May not be <code>null</code>.
+   * @param sURL
+   *        The destination URL. May neither be <code>null</code> nor empty.
+   * @param sPModeID
+   *        The ID of the PMode to take the retry settings from. May be
+   *        <code>null</code>.
+   * @param aPartnerCertificate
+   *        The certificate the receiver signs its signal messages with. If
+   *        present, asynchronous receipts and errors must be signed with
+   *        exactly this certificate. May be <code>null</code>.
+   * @return The future that is completed when the delivery reached a final
+   *         state. Never <code>null</code>.
+   * @throws Exception
+   *         If building or storing the message failed
+   * @see #submit(AbstractAS4Client.BuiltMessage, String, String,
+   *      X509Certificate)
+   */
+  @Nonnull
+  public CompletableFuture <IAS4OutgoingDelivery> submit (@Nonnull final AbstractAS4Client aClient,
+                                                          @Nonnull @Nonempty final String sURL,
+                                                          @Nullable final String sPModeID,
+                                                          @Nullable final X509Certificate aPartnerCertificate) throws Exception
+  {
+    ValueEnforcer.notNull (aClient, "Client");
+    return submit (aClient.buildMessage (), sURL, sPModeID, aPartnerCertificate);
+  }
+
+  /**
+   * Submit an already built message for reliable delivery. The HTTP body is
+   * written to the data directory before this method returns.
+   *
+   * @param aBuiltMsg
+   *        The message to deliver. May not be <code>null</code>.
+   * @param sURL
+   *        The destination URL. May neither be <code>null</code> nor empty.
+   * @param sPModeID
+   *        The ID of the PMode to take the retry settings from. May be
+   *        <code>null</code>.
+   * @param aPartnerCertificate
+   *        The certificate the receiver signs its signal messages with. If
+   *        present, asynchronous receipts and errors must be signed with
+   *        exactly this certificate. May be <code>null</code>.
+   * @return The future that is completed when the delivery reached a final
+   *         state. Never <code>null</code>.
+   * @throws IOException
+   *         If the message could not be stored
+   * @throws MessagingException
+   *         If the MIME headers could not be read
+   */
+  @Nonnull
+  public CompletableFuture <IAS4OutgoingDelivery> submit (@Nonnull final AbstractAS4Client.BuiltMessage aBuiltMsg,
+                                                          @Nonnull @Nonempty final String sURL,
+                                                          @Nullable final String sPModeID,
+                                                          @Nullable final X509Certificate aPartnerCertificate) throws IOException,
+                                                                                                               MessagingException
+  {
+    ValueEnforcer.notNull (aBuiltMsg, "BuiltMsg");
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    // Determine the HTTP headers
+    final HttpEntity aEntity = aBuiltMsg.getHttpEntity ();
+    final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+    if (aEntity instanceof HttpMimeMessageEntity)
+    {
+      final HttpPost aPost = new HttpPost (sURL);
+      MessageHelperMethods.moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aEntity).getMimeMessage (), aPost);
+      for (final Header aHeader : aPost.getAllHeaders ())
+        aHeaders.put (aHeader.getName (), aHeader.getValue ());
+    }
+    else
+      if (aEntity.getContentType () != null)
+        aHeaders.put (CHttpHeader.CONTENT_TYPE, aEntity.getContentType ().getValue ());
+
+    // Store the body
+    final String sFilename = DATA_DIR + UUID.randomUUID ().toString () + ".msg";
+    final File aFile = WebFileIO.getDataIO ().getFile (sFilename);
+    FileOperations.createDirRecursiveIfNotExisting (aFile.getParentFile ());
+    try (final OutputStream aOS = FileHelper.getBufferedOutputStream (aFile))
+    {
+      aEntity.writeTo (aOS);
+    }
+
+    final String sMessageID = aBuiltMsg.getMessageID ();
+    final CompletableFuture <IAS4OutgoingDelivery> ret = new CompletableFuture <> ();
+    m_aFutures.put (sMessageID, ret);
+    try
+    {
+      m_aQueueMgr.createDelivery (new AS4OutgoingDelivery (sMessageID,
+                                                              sPModeID,
+                                                              sURL,
+                                                              aPartnerCertificate,
+                                                              aHeaders,
+                                                              sFilename));
+    }
+    catch (final RuntimeException ex)
+    {
+      // E.g. the same message ID is already queued
+      m_aFutures.remove (sMessageID, ret);
+      FileOperations.deleteFileIfExisting (aFile);
+      throw ex;
+    }
+    _schedule (sMessageID, 0);
+    return ret;
+  }
+
+  private void _schedule (@Nonnull final String sMessageID, final long nDelayMS)
+  {
+    try
+    {
+      m_aScheduler.schedule ( () -> _dispatch (sMessageID), Math.max (nDelayMS, 0), TimeUnit.MILLISECONDS);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shutting down - will be resumed upon next start
+      s_aLogger.info ("Not scheduling delivery of '" + sMessageID + "' because the dispatcher is shut down");
+    }
+  }
+
+  private void _dispatch (@Nonnull final String sMessageID)
+  {
+    final IAS4OutgoingDelivery aDelivery = m_aQueueMgr.getDeliveryOfID (sMessageID);
+    if (aDelivery == null || aDelivery.getState ().isFinal ())
+      return;
+
+    final String sEndpointKey = _getEndpointKey (aDelivery.getURL ());
+    final Endpoint aEndpoint = m_aEndpoints.computeIfAbsent (sEndpointKey, k -> new Endpoint ());
+    synchronized (aEndpoint)
+    {
+      if (aEndpoint.m_nInFlight >= m_nMaxDeliveriesPerEndpoint)
+      {
+        // Wait until a transmission to this endpoint is finished
+        aEndpoint.m_aWaiting.add (sMessageID);
+        return;
+      }
+      aEndpoint.m_nInFlight++;
+    }
+    _run (sMessageID, aEndpoint);
+  }
+
+  private void _run (@Nonnull final String sMessageID, @Nonnull final Endpoint aEndpoint)
+  {
+    try
+    {
+      _execute (sMessageID, aEndpoint);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Send queue is full - release the slot and try again later. The waiting
+      // deliveries are re-dispatched as well, because no running transmission
+      // may be left to pick them up.
+      final ICommonsList <String> aRedispatch = new CommonsArrayList <> (sMessageID);
+      synchronized (aEndpoint)
+      {
+        aRedispatch.addAll (aEndpoint.m_aWaiting);
+        aEndpoint.m_aWaiting.clear ();
+        aEndpoint.m_nInFlight--;
+      }
+      s_aLogger.warn ("Send executor rejected delivery of '" +
+                      sMessageID +
+                      "' - re-dispatching " +
+                      aRedispatch.size () +
+                      " deliveries in " +
+                      REJECTED_REDISPATCH_DELAY_MS +
+                      " ms");
+      for (final String sRedispatchID : aRedispatch)
+        _schedule (sRedispatchID, REJECTED_REDISPATCH_DELAY_MS);
+    }
+  }
+
+  private void _execute (@Nonnull final String sMessageID, @Nonnull final Endpoint aEndpoint)
+  {
+    AS4ClientExecutors.getSendExecutor ().execute ( () -> {
+      try
+      {
+        _attempt (sMessageID);
+      }
+      catch (final RuntimeException ex)
+      {
+        s_aLogger.error ("Internal error delivering '" + sMessageID + "'", ex);
+      }
+      finally
+      {
+        String sNextMessageID;
+        synchronized (aEndpoint)
+        {
+          sNextMessageID = aEndpoint.m_aWaiting.poll ();
+          if (sNextMessageID == null)
+            aEndpoint.m_nInFlight--;
+        }
+        // Pass the slot to the next waiting delivery
+        if (sNextMessageID != null)
+          _run (sNextMessageID, aEndpoint);
+      }
+    });
+  }
+
+  private static boolean _canRetry (@Nonnull final IAS4OutgoingDelivery aDelivery,
+                                    @Nonnull final PModeReceptionAwareness aRA)
+  {
+    // The first attempt is no retry
+    return aRA.isRetry () && aDelivery.getAttemptCount () <= aRA.getMaxRetries ();
+  }
+
+  @Nonnull
+  private LocalDateTime _getNextAttemptDT (@Nonnull final IAS4OutgoingDelivery aDelivery,
+                                           @Nonnull final PModeReceptionAwareness aRA)
+  {
+    final long nDelayMS = getRetryDelayMS (aRA.getRetryIntervalMS (), aDelivery.getAttemptCount ());
+    return PDTFactory.getCurrentLocalDateTime ().plus (nDelayMS, ChronoUnit.MILLIS);
+  }
+
+  private void _complete (@Nullable final IAS4OutgoingDelivery aDelivery)
+  {
+    if (aDelivery == null)
+    {
+      // Another thread was faster
+      return;
+    }
+
+    if (aDelivery.getState () == EAS4DeliveryState.DELIVERED)
+    {
+      // Keep only failed deliveries for manual inspection
+      FileOperations.deleteFileIfExisting (_getFile (aDelivery));
+      m_aQueueMgr.deleteDelivery (aDelivery.getID ());
+      s_aLogger.info ("Successfully delivered '" + aDelivery.getID () + "'");
+    }
+    else
+      s_aLogger.warn ("Finally failed to deliver '" + aDelivery.getID () + "': " + aDelivery.getLastError ());
+
+    final CompletableFuture <IAS4OutgoingDelivery> aFuture = m_aFutures.remove (aDelivery.getID ());
+    if (aFuture != null)
+      aFuture.complete (aDelivery);
+  }
+
+  private void _attempt (@Nonnull final String sMessageID)
+  {
+    final IAS4OutgoingDelivery aCurDelivery = m_aQueueMgr.getDeliveryOfID (sMessageID);
+    if (aCurDelivery == null || aCurDelivery.getState ().isFinal ())
+      return;
+
+    final PModeReceptionAwareness aRA = _getReceptionAwareness (aCurDelivery.getPModeID ());
+    if (aCurDelivery.getState () == EAS4DeliveryState.AWAITING_RECEIPT && !_canRetry (aCurDelivery, aRA))
+    {
+      _complete (m_aQueueMgr.markFailed (sMessageID, "No receipt received"));
+      return;
+    }
+
+    final IAS4OutgoingDelivery aDelivery = m_aQueueMgr.markAttemptStarted (sMessageID);
+    if (aDelivery == null)
+      return;
+
+    final ICommonsOrderedMap <String, String> aHeaders = aDelivery.getAllHeaders ();
+    final BasicAS4Sender aSender = new BasicAS4Sender ()
+    {
+      @Override
+      protected void customizeHttpPost (@Nonnull final HttpPost aPost)
+      {
+        aHeaders.forEach (aPost::addHeader);
+      }
+    };
+    aSender.setHttpClientProvider (m_aHttpClientProvider);
+
+    try
+    {
+      final Wrapper <String> aContentType = new Wrapper <> ();
+      final byte [] aResponse = aSender.sendGenericMessage (aDelivery.getURL (),
+                                                            new FileEntity (_getFile (aDelivery)),
+                                                            aHttpResponse -> {
+                                                              final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
+                                                              if (aEntity == null)
+                                                                return null;
+                                                              final Header aCTHeader = aEntity.getContentType ();
+                                                              if (aCTHeader != null)
+                                                                aContentType.set (aCTHeader.getValue ());
+                                                              return EntityUtils.toByteArray (aEntity);
+                                                            });
+      final ETriState eReceipt = getSynchronousReceiptState (aResponse, aContentType.get (), sMessageID);
+      if (eReceipt.isTrue () || (eReceipt.isUndefined () && !aRA.isReceptionAwareness ()))
+        _complete (m_aQueueMgr.markDelivered (sMessageID));
+      else
+        if (eReceipt.isFalse ())
+          _complete (m_aQueueMgr.markFailed (sMessageID, "ebMS error received"));
+        else
+        {
+          // Receipt is expected asynchronously
+          final LocalDateTime aNextDT = _getNextAttemptDT (aDelivery, aRA);
+          if (m_aQueueMgr.markAwaitingReceipt (sMessageID, aNextDT) != null)
+            _schedule (sMessageID, PDTFactory.getMillis (aNextDT) - PDTFactory.getCurrentMillis ());
+        }
+    }
+    catch (final Exception ex)
+    {
+      final String sError = ClassHelper.getClassLocalName (ex) + ": " + ex.getMessage ();
+      if (_canRetry (aDelivery, aRA))
+      {
+        final LocalDateTime aNextDT = _getNextAttemptDT (aDelivery, aRA);
+        s_aLogger.warn ("Attempt " +
+                        aDelivery.getAttemptCount () +
+                        " to deliver '" +
+                        sMessageID +
+                        "' failed - retrying at " +
+                        aNextDT +
+                        ": " +
+                        sError);
+        if (m_aQueueMgr.markRetry (sMessageID, aNextDT, sError) != null)
+          _schedule (sMessageID, PDTFactory.getMillis (aNextDT) - PDTFactory.getCurrentMillis ());
+      }
+      else
+        _complete (m_aQueueMgr.markFailed (sMessageID, sError));
+    }
+  }
+
+  /**
+   * Check if the synchronous response contains a receipt or an error for the
+   * provided message ID. A MIME response is detected by its leading boundary.
+   *
+   * @param aResponse
+   *        The HTTP response body. May be <code>null</code>.
+   * @param sMessageID
+   *        The message ID of the sent message. May not be <code>null</code>.
+   * @return {@link ETriState#TRUE} if a receipt was found,
+   *         {@link ETriState#FALSE} if an error was found and
+   *         {@link ETriState#UNDEFINED} if neither was found.
+   * @see #getSynchronousReceiptState(byte[], String, String)
+   */
+  @Nonnull
+  public static ETriState getSynchronousReceiptState (@Nullable final byte [] aResponse,
+                                                      @Nonnull final String sMessageID)
+  {
+    return getSynchronousReceiptState (aResponse, null, sMessageID);
+  }
+
+  private static int _getFirstNonWhitespaceIndex (@Nonnull final byte [] aBytes)
+  {
+    int nIndex = 0;
+    // Skip an UTF-8 BOM
+    if (aBytes.length >= 3 && (aBytes[0] & 0xff) == 0xef && (aBytes[1] & 0xff) == 0xbb && (aBytes[2] & 0xff) == 0xbf)
+      nIndex = 3;
+    while (nIndex < aBytes.length && Character.isWhitespace (aBytes[nIndex]))
+      nIndex++;
+    return nIndex;
+  }
+
+  @Nullable
+  private static byte [] _getRootMimePart (@Nonnull final byte [] aResponse,
+                                           final int nStartIndex,
+                                           @Nullable final String sContentType) throws MessagingException,
+                                                                                 IOException
+  {
+    String sRealContentType = sContentType;
+    if (sRealContentType == null)
+    {
+      // Take the boundary from the first line
+      int nEndIndex = nStartIndex;
+      while (nEndIndex < aResponse.length && aResponse[nEndIndex] != '\r' && aResponse[nEndIndex] != '\n')
+        nEndIndex++;
+      final String sBoundary = new String (aResponse,
+                                           nStartIndex + 2,
+                                           nEndIndex - nStartIndex - 2,
+                                           StandardCharsets.ISO_8859_1).trim ();
+      if (sBoundary.isEmpty ())
+        return null;
+      sRealContentType = "multipart/related; boundary=\"" + sBoundary + "\"";
+    }
+
+    final MimeMultipart aMultipart = new MimeMultipart (new ByteArrayDataSource (aResponse, sRealContentType));
+    if (aMultipart.getCount () == 0)
+      return null;
+    // The SOAP envelope is the first part
+    return StreamHelper.getAllBytes (aMultipart.getBodyPart (0).getInputStream ());
+  }
+
+  /**
+   * Check if the synchronous response contains a receipt or an error for the
+   * provided message ID. Both plain SOAP and MIME responses (with the SOAP
+   * envelope as the first part) are supported.
+   *
+   * @param aResponse
+   *        The HTTP response body. May be <code>null</code>.
+   * @param sContentType
+   *        The HTTP response content type. May be <code>null</code>.
+   * @param sMessageID
+   *        The message ID of the sent message. May not be <code>null</code>.
+   * @return {@link ETriState#TRUE} if a receipt was found,
+   *         {@link ETriState#FALSE} if an error was found and
+   *         {@link ETriState#UNDEFINED} if neither was found.
+   */
+  @Nonnull
+  public static ETriState getSynchronousReceiptState (@Nullable final byte [] aResponse,
+                                                      @Nullable final String sContentType,
+                                                      @Nonnull final String sMessageID)
+  {
+    if (aResponse == null || aResponse.length == 0)
+      return ETriState.UNDEFINED;
+
+    byte [] aSOAP = aResponse;
+    int nStartIndex = _getFirstNonWhitespaceIndex (aResponse);
+    final boolean bIsMultipart = sContentType != null ? sContentType.trim ()
+                                                                    .toLowerCase (Locale.US)
+                                                                    .startsWith ("multipart/")
+                                                      : nStartIndex + 2 < aResponse.length &&
+                                                        aResponse[nStartIndex] == '-' &&
+                                                        aResponse[nStartIndex + 1] == '-';
+    if (bIsMultipart)
+    {
+      try
+      {
+        aSOAP = _getRootMimePart (aResponse, nStartIndex, sContentType);
+      }
+      catch (final MessagingException | IOException ex)
+      {
+        aSOAP = null;
+      }
+      if (aSOAP == null)
+      {
+        s_aLogger.warn ("Failed to parse MIME response for '" + sMessageID + "'");
+        return ETriState.UNDEFINED;
+      }
+      nStartIndex = _getFirstNonWhitespaceIndex (aSOAP);
+    }
+
+    // Only XML responses are checked
+    if (nStartIndex >= aSOAP.length || aSOAP[nStartIndex] != '<')
+    {
+      s_aLogger.warn ("Response for '" + sMessageID + "' is not an XML document");
+      return ETriState.UNDEFINED;
+    }
+
+    final int nLength = aSOAP.length - nStartIndex;
+    final IMicroDocument aDoc = MicroReader.readMicroXML (new NonBlockingByteArrayInputStream (aSOAP,
+                                                                                              nStartIndex,
+                                                                                              nLength));
+    if (aDoc == null || aDoc.getDocumentElement () == null)
+    {
+      s_aLogger.warn ("Failed to parse XML response for '" + sMessageID + "'");
+      return ETriState.UNDEFINED;
+    }
+
+    for (final IMicroElement eSignal : aDoc.getDocumentElement ().getAllChildElementsRecursive ())
+      if (eSignal.hasLocalName ("SignalMessage"))
+      {
+        for (final IMicroElement eError : eSignal.getAllChildElements (x -> x.hasLocalName ("Error")))
+          if (sMessageID.equals (eError.getAttributeValue ("refToMessageInError")))
+            return ETriState.FALSE;
+
+        final IMicroElement eMessageInfo = eSignal.getFirstChildElement (x -> x.hasLocalName ("MessageInfo"));
+        final IMicroElement eRefTo = eMessageInfo == null ? null
+                                                          : eMessageInfo.getFirstChildElement (x -> x.hasLocalName ("RefToMessageId"));
+        if (eRefTo != null && sMessageID.equals (eRefTo.getTextContentTrimmed ()))
+        {
+          if (eSignal.getFirstChildElement (x -> x.hasLocalName ("Receipt")) != null)
+            return ETriState.TRUE;
+          if (eSignal.getFirstChildElement (x -> x.hasLocalName ("Error")) != null)
+            return ETriState.FALSE;
+        }
+      }
+    return ETriState.UNDEFINED;
+  }
+
+  /**
+   * Check if an asynchronously received signal message may complete the
+   * delivery with the passed ID. Unsigned signals are never accepted, because
+   * the referenced message ID is easy to guess. If the delivery was submitted
+   * with a partner certificate, the signal must be signed with exactly that
+   * certificate.
+   *
+   * @param sRefToMessageID
+   *        The referenced message ID. May be <code>null</code>.
+   * @param aSigningCertificate
+   *        The certificate of the verified signature. May be <code>null</code>.
+   * @return <code>true</code> if the signal may be applied.
+   */
+  private boolean _isAcceptedSignal (@Nullable final String sRefToMessageID,
+                                     @Nullable final X509Certificate aSigningCertificate)
+  {
+    final IAS4OutgoingDelivery aDelivery = m_aQueueMgr.getDeliveryOfID (sRefToMessageID);
+    if (aDelivery == null)
+      return false;
+
+    if (aSigningCertificate == null)
+    {
+      s_aLogger.warn ("Ignoring unsigned signal message for delivery '" + sRefToMessageID + "'");
+      return false;
+    }
+    if (aDelivery.getPartnerCertificate () != null && !aDelivery.getPartnerCertificate ().equals (aSigningCertificate))
+    {
+      s_aLogger.warn ("Ignoring signal message for delivery '" +
+                      sRefToMessageID +
+                      "' signed by the unexpected certificate " +
+                      aSigningCertificate.getSubjectX500Principal ().getName ());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * To be invoked when a receipt was received asynchronously.
+   *
+   * @param sRefToMessageID
+   *        The <code>RefToMessageId</code> of the receipt. May be
+   *        <code>null</code>.
+   * @param aSigningCertificate
+   *        The certificate whose signature on the receipt was verified. May be
+   *        <code>null</code> if the receipt was not signed, in which case it is
+   *        ignored.
+   * @return <code>true</code> if a pending delivery was completed by this
+   *         receipt.
+   */
+  public boolean onReceiptReceived (@Nullable final String sRefToMessageID,
+                                    @Nullable final X509Certificate aSigningCertificate)
+  {
+    if (!_isAcceptedSignal (sRefToMessageID, aSigningCertificate))
+      return false;
+
+    final IAS4OutgoingDelivery aDelivery = m_aQueueMgr.markDelivered (sRefToMessageID);
+    _complete (aDelivery);
+    return aDelivery != null;
+  }
+
+  /**
+   * To be invoked when an ebMS error was received asynchronously.
+   *
+   * @param sRefToMessageID
+   *        The <code>RefToMessageId</code> of the error. May be
+   *        <code>null</code>.
+   * @param sError
+   *        The error description. May be <code>null</code>.
+   * @param aSigningCertificate
+   *        The certificate whose signature on the error was verified. May be
+   *        <code>null</code> if the error was not signed, in which case it is
+   *        ignored.
+   * @return <code>true</code> if a pending delivery was failed by this error.
+   */
+  public boolean onErrorReceived (@Nullable final String sRefToMessageID,
+                                  @Nullable final String sError,
+                                  @Nullable final X509Certificate aSigningCertificate)
+  {
+    if (!_isAcceptedSignal (sRefToMessageID, aSigningCertificate))
+      return false;
+
+    final IAS4OutgoingDelivery aDelivery = m_aQueueMgr.markFailed (sRefToMessageID, sError);
+    _complete (aDelivery);
+    return aDelivery != null;
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.delivery;
+
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Default implementation of {@link IAS4OutgoingDelivery}. Only modified by the
+ * {@link AS4OutgoingQueueManager}.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class AS4OutgoingDelivery implements IAS4OutgoingDelivery
+{
+  private final String m_sMessageID;
+  private final LocalDateTime m_aCreationDT;
+  private final String m_sPModeID;
+  private final String m_sURL;
+  private final X509Certificate m_aPartnerCertificate;
+  private final ICommonsOrderedMap <String, String> m_aHeaders;
+  private final String m_sFilename;
+  private EAS4DeliveryState m_eState;
+  private int m_nAttemptCount;
+  private LocalDateTime m_aNextAttemptDT;
+  private String m_sLastError;
+
+  public AS4OutgoingDelivery (@Nonnull @Nonempty final String sMessageID,
+                              @Nullable final String sPModeID,
+                              @Nonnull @Nonempty final String sURL,
+                              @Nullable final X509Certificate aPartnerCertificate,
+                              @Nonnull final ICommonsOrderedMap <String, String> aHeaders,
+                              @Nonnull @Nonempty final String sFilename)
+  {
+    this (sMessageID,
+          PDTFactory.getCurrentLocalDateTime (),
+          sPModeID,
+          sURL,
+          aPartnerCertificate,
+          aHeaders,
+          sFilename,
+          EAS4DeliveryState.PENDING,
+          0,
+          PDTFactory.getCurrentLocalDateTime (),
+          null);
+  }
+
+  AS4OutgoingDelivery (@Nonnull @Nonempty final String sMessageID,
+                       @Nonnull final LocalDateTime aCreationDT,
+                       @Nullable final String sPModeID,
+                       @Nonnull @Nonempty final String sURL,
+                       @Nullable final X509Certificate aPartnerCertificate,
+                       @Nonnull final ICommonsOrderedMap <String, String> aHeaders,
+                       @Nonnull @Nonempty final String sFilename,
+                       @Nonnull final EAS4DeliveryState eState,
+                       @Nonnegative final int nAttemptCount,
+                       @Nonnull final LocalDateTime aNextAttemptDT,
+                       @Nullable final String sLastError)
+  {
+    m_sMessageID = ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    m_aCreationDT = ValueEnforcer.notNull (aCreationDT, "CreationDT");
+    m_sPModeID = sPModeID;
+    m_sURL = ValueEnforcer.notEmpty (sURL, "URL");
+    m_aPartnerCertificate = aPartnerCertificate;
+    m_aHeaders = ValueEnforcer.notNull (aHeaders, "Headers").getClone ();
+    m_sFilename = ValueEnforcer.notEmpty (sFilename, "Filename");
+    setState (eState);
+    m_nAttemptCount = ValueEnforcer.isGE0 (nAttemptCount, "AttemptCount");
+    setNextAttemptDateTime (aNextAttemptDT);
+    m_sLastError = sLastError;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sMessageID;
+  }
+
+  @Nonnull
+  public LocalDateTime getCreationDateTime ()
+  {
+    return m_aCreationDT;
+  }
+
+  @Nullable
+  public String getPModeID ()
+  {
+    return m_sPModeID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getURL ()
+  {
+    return m_sURL;
+  }
+
+  @Nullable
+  public X509Certificate getPartnerCertificate ()
+  {
+    return m_aPartnerCertificate;
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, String> getAllHeaders ()
+  {
+    return m_aHeaders.getClone ();
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getFilename ()
+  {
+    return m_sFilename;
+  }
+
+  @Nonnull
+  public EAS4DeliveryState getState ()
+  {
+    return m_eState;
+  }
+
+  final void setState (@Nonnull final EAS4DeliveryState eState)
+  {
+    m_eState = ValueEnforcer.notNull (eState, "State");
+  }
+
+  @Nonnegative
+  public int getAttemptCount ()
+  {
+    return m_nAttemptCount;
+  }
+
+  final void incrementAttemptCount ()
+  {
+    m_nAttemptCount++;
+  }
+
+  @Nonnull
+  public LocalDateTime getNextAttemptDateTime ()
+  {
+    return m_aNextAttemptDT;
+  }
+
+  final void setNextAttemptDateTime (@Nonnull final LocalDateTime aNextAttemptDT)
+  {
+    m_aNextAttemptDT = ValueEnforcer.notNull (aNextAttemptDT, "NextAttemptDT");
+  }
+
+  @Nullable
+  public String getLastError ()
+  {
+    return m_sLastError;
+  }
+
+  final void setLastError (@Nullable final String sLastError)
+  {
+    m_sLastError = sLastError;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4OutgoingDelivery rhs = (AS4OutgoingDelivery) o;
+    return m_sMessageID.equals (rhs.m_sMessageID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_sMessageID).getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("MessageID", m_sMessageID)
+                                       .append ("CreationDT", m_aCreationDT)
+                                       .appendIfNotNull ("PModeID", m_sPModeID)
+                                       .append ("URL", m_sURL)
+                                       .appendIfNotNull ("PartnerCertificate",
+                                                         m_aPartnerCertificate == null ? null
+                                                                                       : m_aPartnerCertificate.getSubjectX500Principal ()
+                                                                                                              .getName ())
+                                       .append ("Headers", m_aHeaders)
+                                       .append ("Filename", m_sFilename)
+                                       .append ("State", m_eState)
+                                       .append ("AttemptCount", m_nAttemptCount)
+                                       .append ("NextAttemptDT", m_aNextAttemptDT)
+                                       .appendIfNotNull ("LastError", m_sLastError)
+                                       .getToString ();
+  }
+}
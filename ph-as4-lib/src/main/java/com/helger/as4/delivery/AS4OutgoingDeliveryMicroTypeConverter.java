@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.delivery;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.security.certificate.CertificateHelper;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.MicroElement;
+import com.helger.xml.microdom.convert.IMicroTypeConverter;
+
+/**
+ * Micro type converter for class {@link AS4OutgoingDelivery}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutgoingDeliveryMicroTypeConverter implements IMicroTypeConverter <AS4OutgoingDelivery>
+{
+  private static final String ATTR_MESSAGE_ID = "msgid";
+  private static final String ATTR_CREATION_DT = "creationdt";
+  private static final String ATTR_PMODE_ID = "pmodeid";
+  private static final String ATTR_URL = "url";
+  private static final String ELEMENT_PARTNER_CERTIFICATE = "partnercert";
+  private static final String ELEMENT_HEADER = "header";
+  private static final String ATTR_NAME = "name";
+  private static final String ATTR_VALUE = "value";
+  private static final String ATTR_FILENAME = "filename";
+  private static final String ATTR_STATE = "state";
+  private static final String ATTR_ATTEMPT_COUNT = "attempts";
+  private static final String ATTR_NEXT_ATTEMPT_DT = "nextattemptdt";
+  private static final String ELEMENT_LAST_ERROR = "lasterror";
+
+  @Nonnull
+  public IMicroElement convertToMicroElement (@Nonnull final AS4OutgoingDelivery aValue,
+                                              @Nullable final String sNamespaceURI,
+                                              @Nonnull final String sTagName)
+  {
+    final IMicroElement ret = new MicroElement (sNamespaceURI, sTagName);
+    ret.setAttribute (ATTR_MESSAGE_ID, aValue.getMessageID ());
+    ret.setAttributeWithConversion (ATTR_CREATION_DT, aValue.getCreationDateTime ());
+    ret.setAttribute (ATTR_PMODE_ID, aValue.getPModeID ());
+    ret.setAttribute (ATTR_URL, aValue.getURL ());
+    if (aValue.getPartnerCertificate () != null)
+      ret.appendElement (sNamespaceURI, ELEMENT_PARTNER_CERTIFICATE)
+         .appendText (CertificateHelper.getPEMEncodedCertificate (aValue.getPartnerCertificate ()));
+    aValue.getAllHeaders ()
+          .forEach ( (k, v) -> ret.appendElement (sNamespaceURI, ELEMENT_HEADER)
+                                  .setAttribute (ATTR_NAME, k)
+                                  .setAttribute (ATTR_VALUE, v));
+    ret.setAttribute (ATTR_FILENAME, aValue.getFilename ());
+    ret.setAttribute (ATTR_STATE, aValue.getState ().getID ());
+    ret.setAttribute (ATTR_ATTEMPT_COUNT, aValue.getAttemptCount ());
+    ret.setAttributeWithConversion (ATTR_NEXT_ATTEMPT_DT, aValue.getNextAttemptDateTime ());
+    if (aValue.getLastError () != null)
+      ret.appendElement (sNamespaceURI, ELEMENT_LAST_ERROR).appendText (aValue.getLastError ());
+    return ret;
+  }
+
+  @Nonnull
+  public AS4OutgoingDelivery convertToNative (@Nonnull final IMicroElement aElement)
+  {
+    final String sMessageID = aElement.getAttributeValue (ATTR_MESSAGE_ID);
+    final LocalDateTime aCreationDT = aElement.getAttributeValueWithConversion (ATTR_CREATION_DT,
+                                                                                LocalDateTime.class);
+    final String sPModeID = aElement.getAttributeValue (ATTR_PMODE_ID);
+    final String sURL = aElement.getAttributeValue (ATTR_URL);
+    final IMicroElement ePartnerCert = aElement.getFirstChildElement (ELEMENT_PARTNER_CERTIFICATE);
+    X509Certificate aPartnerCert = null;
+    if (ePartnerCert != null)
+      try
+      {
+        aPartnerCert = CertificateHelper.convertStringToCertficate (ePartnerCert.getTextContent ());
+      }
+      catch (final CertificateException ex)
+      {
+        throw new IllegalStateException ("Failed to read partner certificate of message " + sMessageID, ex);
+      }
+    final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+    for (final IMicroElement eHeader : aElement.getAllChildElements (ELEMENT_HEADER))
+      aHeaders.put (eHeader.getAttributeValue (ATTR_NAME), eHeader.getAttributeValue (ATTR_VALUE));
+    final String sFilename = aElement.getAttributeValue (ATTR_FILENAME);
+    final EAS4DeliveryState eState = EAS4DeliveryState.getFromIDOrNull (aElement.getAttributeValue (ATTR_STATE));
+    final int nAttemptCount = aElement.getAttributeValueAsInt (ATTR_ATTEMPT_COUNT, 0);
+    final LocalDateTime aNextAttemptDT = aElement.getAttributeValueWithConversion (ATTR_NEXT_ATTEMPT_DT,
+                                                                                   LocalDateTime.class);
+    final IMicroElement eLastError = aElement.getFirstChildElement (ELEMENT_LAST_ERROR);
+    final String sLastError = eLastError == null ? null : eLastError.getTextContent ();
+    return new AS4OutgoingDelivery (sMessageID,
+                                    aCreationDT,
+                                    sPModeID,
+                                    sURL,
+                                    aPartnerCert,
+                                    aHeaders,
+                                    sFilename,
+                                    eState,
+                                    nAttemptCount,
+                                    aNextAttemptDT,
+                                    sLastError);
+  }
+}
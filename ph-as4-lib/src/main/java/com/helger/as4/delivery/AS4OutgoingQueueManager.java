@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.delivery;
+
+import java.time.LocalDateTime;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.state.EChange;
+import com.helger.dao.DAOException;
+import com.helger.photon.basic.app.dao.AbstractPhotonMapBasedWALDAO;
+
+/**
+ * The persistent queue of outgoing deliveries used by the
+ * {@link AS4DeliveryDispatcher}. All state transitions are ignored for
+ * deliveries that are already in a final state.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutgoingQueueManager extends AbstractPhotonMapBasedWALDAO <IAS4OutgoingDelivery, AS4OutgoingDelivery>
+{
+  public AS4OutgoingQueueManager (@Nullable final String sFilename) throws DAOException
+  {
+    super (AS4OutgoingDelivery.class, sFilename);
+  }
+
+  @Nonnull
+  public IAS4OutgoingDelivery createDelivery (@Nonnull final AS4OutgoingDelivery aDelivery)
+  {
+    ValueEnforcer.notNull (aDelivery, "Delivery");
+
+    m_aRWLock.writeLocked ( () -> {
+      internalCreateItem (aDelivery);
+    });
+    return aDelivery;
+  }
+
+  @Nullable
+  public IAS4OutgoingDelivery getDeliveryOfID (@Nullable final String sMessageID)
+  {
+    return getOfIDLocked (sMessageID);
+  }
+
+  /**
+   * @return All deliveries that are not in a final state. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IAS4OutgoingDelivery> getAllActiveDeliveries ()
+  {
+    return getAll (x -> !x.getState ().isFinal ());
+  }
+
+  @Nullable
+  private IAS4OutgoingDelivery _modify (@Nullable final String sMessageID,
+                                        @Nonnull final Consumer <AS4OutgoingDelivery> aModifier)
+  {
+    return m_aRWLock.writeLocked ( () -> {
+      final AS4OutgoingDelivery aDelivery = getOfID (sMessageID);
+      if (aDelivery == null || aDelivery.getState ().isFinal ())
+        return null;
+      aModifier.accept (aDelivery);
+      internalUpdateItem (aDelivery);
+      return aDelivery;
+    });
+  }
+
+  /**
+   * Remember that a transmission attempt is started.
+   *
+   * @param sMessageID
+   *        Message ID of the delivery. May be <code>null</code>.
+   * @return The modified delivery or <code>null</code> if no such active
+   *         delivery exists.
+   */
+  @Nullable
+  public IAS4OutgoingDelivery markAttemptStarted (@Nullable final String sMessageID)
+  {
+    return _modify (sMessageID, AS4OutgoingDelivery::incrementAttemptCount);
+  }
+
+  @Nullable
+  public IAS4OutgoingDelivery markAwaitingReceipt (@Nullable final String sMessageID,
+                                                   @Nonnull final LocalDateTime aNextAttemptDT)
+  {
+    return _modify (sMessageID, x -> {
+      x.setState (EAS4DeliveryState.AWAITING_RECEIPT);
+      x.setNextAttemptDateTime (aNextAttemptDT);
+      x.setLastError (null);
+    });
+  }
+
+  @Nullable
+  public IAS4OutgoingDelivery markRetry (@Nullable final String sMessageID,
+                                         @Nonnull final LocalDateTime aNextAttemptDT,
+                                         @Nullable final String sError)
+  {
+    return _modify (sMessageID, x -> {
+      x.setState (EAS4DeliveryState.PENDING);
+      x.setNextAttemptDateTime (aNextAttemptDT);
+      x.setLastError (sError);
+    });
+  }
+
+  @Nullable
+  public IAS4OutgoingDelivery markDelivered (@Nullable final String sMessageID)
+  {
+    return _modify (sMessageID, x -> x.setState (EAS4DeliveryState.DELIVERED));
+  }
+
+  @Nullable
+  public IAS4OutgoingDelivery markFailed (@Nullable final String sMessageID, @Nullable final String sError)
+  {
+    return _modify (sMessageID, x -> {
+      x.setState (EAS4DeliveryState.FAILED);
+      x.setLastError (sError);
+    });
+  }
+
+  @Nonnull
+  public EChange deleteDelivery (@Nullable final String sMessageID)
+  {
+    return m_aRWLock.writeLocked ( () -> EChange.valueOf (internalDeleteItem (sMessageID) != null));
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.delivery;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The state of a single outgoing delivery.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4DeliveryState implements IHasID <String>
+{
+  /** Not yet sent or waiting for the next retry */
+  PENDING ("pending"),
+  /** Sent successfully but no receipt received yet */
+  AWAITING_RECEIPT ("awaiting"),
+  /** Receipt received (or not required) - final state */
+  DELIVERED ("delivered"),
+  /** Permanently failed - final state */
+  FAILED ("failed");
+
+  private final String m_sID;
+
+  private EAS4DeliveryState (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return <code>true</code> if no further action is performed on a delivery
+   *         in this state.
+   */
+  public boolean isFinal ()
+  {
+    return this == DELIVERED || this == FAILED;
+  }
+
+  @Nullable
+  public static EAS4DeliveryState getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4DeliveryState.class, sID);
+  }
+}
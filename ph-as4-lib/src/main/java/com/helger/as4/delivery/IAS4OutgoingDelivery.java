@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.delivery;
+
+import java.io.Serializable;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.id.IHasID;
+
+/**
+ * Read-only interface for a single message in the outgoing queue of the
+ * {@link AS4DeliveryDispatcher}. The ID is the AS4 message ID.
+ *
+ * @author Philip Helger
+ */
+public interface IAS4OutgoingDelivery extends IHasID <String>, Serializable
+{
+  /**
+   * @return The AS4 message ID. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  default String getMessageID ()
+  {
+    return getID ();
+  }
+
+  /**
+   * @return The date time when the delivery was queued. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  LocalDateTime getCreationDateTime ();
+
+  /**
+   * @return The ID of the PMode to take the retry settings from. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  String getPModeID ();
+
+  /**
+   * @return The destination URL. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  String getURL ();
+
+  /**
+   * @return The certificate the receiver signs its receipts and errors with.
+   *         If present, only signals signed with exactly this certificate
+   *         complete the delivery. May be <code>null</code>.
+   */
+  @Nullable
+  X509Certificate getPartnerCertificate ();
+
+  /**
+   * @return The HTTP headers to send. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsOrderedMap <String, String> getAllHeaders ();
+
+  /**
+   * @return The name of the file containing the HTTP body, relative to the
+   *         data directory. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  String getFilename ();
+
+  /**
+   * @return The current delivery state. Never <code>null</code>.
+   */
+  @Nonnull
+  EAS4DeliveryState getState ();
+
+  /**
+   * @return The number of transmission attempts performed so far. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  int getAttemptCount ();
+
+  /**
+   * @return The date time of the next transmission attempt. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  LocalDateTime getNextAttemptDateTime ();
+
+  /**
+   * @return The error message of the last failed attempt. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  String getLastError ();
+}
@@ -30,29 +30,21 @@ import com.helger.dao.DAOException;
 import com.helger.photon.basic.app.dao.AbstractPhotonMapBasedWALDAO;
 
 /**
- * This is the duplicate checker for avoiding duplicate messages.
+ * This is the duplicate checker for avoiding duplicate messages. It is based
+ * on an XML based WAL DAO and therefore only suitable for low message volumes.
+ * See {@link AS4SegmentedDuplicateStore} for the default implementation.
  *
  * @author Philip Helger
  */
 public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS4DuplicateItem, AS4DuplicateItem>
+                                       implements
+                                       IAS4DuplicateStore
 {
   public AS4DuplicateManager (@Nullable final String sFilename) throws DAOException
   {
     super (AS4DuplicateItem.class, sFilename);
   }
 
-  /**
-   * Check if the passed message ID was already handled.
-   *
-   * @param sMessageID
-   *        Message ID to check. May be <code>null</code>.
-   * @param sProfileID
-   *        Active AS4 profile ID. May be used to define the PMode further. May
-   *        be <code>null</code>.
-   * @param sPModeID
-   *        Active AS4 PMode ID. May be <code>null</code>.
-   * @return {@link EContinue#CONTINUE} to continue
-   */
   @Nonnull
   public EContinue registerAndCheck (@Nullable final String sMessageID,
                                      @Nullable final String sProfileID,
@@ -79,24 +71,17 @@ public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS
     return EContinue.CONTINUE;
   }
 
-  /**
-   * Remove all entries in the cache.
-   *
-   * @return {@link EChange}
-   */
+  public boolean containsMessageID (@Nullable final String sMessageID)
+  {
+    return containsWithID (sMessageID);
+  }
+
   @Nonnull
   public EChange clearCache ()
   {
     return m_aRWLock.writeLocked ( () -> internalRemoveAllItemsNoCallback ());
   }
 
-  /**
-   * Delete all duplicate items that were created before the provided time.
-   *
-   * @param aRefDT
-   *        The reference date time to compare to. May not be <code>null</code>.
-   * @return A non-<code>null</code> list of all evicted message IDs.
-   */
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <String> evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
@@ -0,0 +1,498 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.EAppend;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.EChange;
+import com.helger.commons.state.EContinue;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.photon.basic.app.io.WebFileIO;
+
+/**
+ * The default {@link IAS4DuplicateStore}. Message IDs are kept in a
+ * {@link ConcurrentHashMap}, so that check and registration is a lock-free (or
+ * bin-level locked) insert-if-absent. Additionally each message ID is
+ * assigned to the time segment it was received in. Eviction always removes
+ * complete segments, so the cost of eviction does not depend on the total
+ * number of stored message IDs.<br>
+ * If a directory is provided, each segment is persisted in a separate binary
+ * append-only log file in that directory, which is simply deleted upon
+ * eviction. Upon startup all existing log files are read again. Appends are
+ * buffered and flushed as a group in a configurable interval and whenever a
+ * new segment is started, so that not every message ID costs a flush.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4SegmentedDuplicateStore implements IAS4DuplicateStore
+{
+  /** The default duration of a single segment */
+  public static final Duration DEFAULT_SEGMENT_DURATION = Duration.ofMinutes (1);
+  /** The default interval in which the segment log files are flushed */
+  public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis (100);
+  /** The file extension of the segment log files */
+  public static final String FILE_EXTENSION = ".dup";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4SegmentedDuplicateStore.class);
+
+  /**
+   * A single time segment.
+   */
+  private final class Segment
+  {
+    private final long m_nIndex;
+    private final Queue <String> m_aMessageIDs = new ConcurrentLinkedQueue <> ();
+    // Read lock for adding, write lock for closing
+    private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+    @GuardedBy ("m_aRWLock")
+    private boolean m_bClosed = false;
+    @GuardedBy ("this")
+    private DataOutputStream m_aLog;
+    @GuardedBy ("this")
+    private boolean m_bDirty = false;
+
+    Segment (final long nIndex)
+    {
+      m_nIndex = nIndex;
+    }
+
+    @Nullable
+    private File _getFile ()
+    {
+      return m_aDirectory == null ? null : new File (m_aDirectory, Long.toString (m_nIndex) + FILE_EXTENSION);
+    }
+
+    private synchronized void _append (@Nonnull final String sMessageID)
+    {
+      final File aFile = _getFile ();
+      if (aFile == null)
+        return;
+      try
+      {
+        if (m_aLog == null)
+          m_aLog = new DataOutputStream (FileHelper.getBufferedOutputStream (aFile, EAppend.APPEND));
+        m_aLog.writeUTF (sMessageID);
+        if (m_aFlushES == null)
+          m_aLog.flush ();
+        else
+          m_bDirty = true;
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.error ("Failed to persist message ID '" + sMessageID + "' to " + aFile, ex);
+      }
+    }
+
+    /**
+     * Flush all buffered appends to the log file.
+     */
+    synchronized void flushLog ()
+    {
+      if (m_bDirty && m_aLog != null)
+      {
+        try
+        {
+          m_aLog.flush ();
+        }
+        catch (final IOException ex)
+        {
+          s_aLogger.error ("Failed to flush duplicate log file " + _getFile (), ex);
+        }
+      }
+      m_bDirty = false;
+    }
+
+    /**
+     * @return <code>false</code> if this segment is already closed and the
+     *         message ID was not added.
+     */
+    boolean add (@Nonnull final String sMessageID, final boolean bPersist)
+    {
+      return m_aRWLock.readLocked ( () -> {
+        if (m_bClosed)
+          return false;
+        m_aMessageIDs.add (sMessageID);
+        if (bPersist)
+          _append (sMessageID);
+        return true;
+      });
+    }
+
+    /**
+     * Close the log file, if open. It is re-opened upon the next append.
+     */
+    synchronized void closeLog ()
+    {
+      // Closing implicitly flushes
+      StreamHelper.close (m_aLog);
+      m_aLog = null;
+      m_bDirty = false;
+    }
+
+    /**
+     * Close this segment, so that no more message IDs can be added, and delete
+     * the log file.
+     *
+     * @return All message IDs of this segment.
+     */
+    @Nonnull
+    ICommonsList <String> evict ()
+    {
+      m_aRWLock.writeLocked ( () -> m_bClosed = true);
+      closeLog ();
+      final File aFile = _getFile ();
+      if (aFile != null)
+        FileOperations.deleteFileIfExisting (aFile);
+      return new CommonsArrayList <> (m_aMessageIDs);
+    }
+  }
+
+  private final File m_aDirectory;
+  private final long m_nSegmentMillis;
+  private final Map <String, Segment> m_aMessageIDs = new ConcurrentHashMap <> ();
+  private final ConcurrentNavigableMap <Long, Segment> m_aSegments = new ConcurrentSkipListMap <> ();
+  // null if every append is flushed immediately
+  private final ScheduledExecutorService m_aFlushES;
+  private final AtomicLong m_aCurrentIndex = new AtomicLong (Long.MIN_VALUE);
+
+  /**
+   * Constructor with the default segment duration, persisting into a
+   * directory relative to the data path.
+   *
+   * @param sDirectoryName
+   *        Directory name relative to the data path. May be <code>null</code>
+   *        to use an in-memory only store.
+   */
+  public AS4SegmentedDuplicateStore (@Nullable final String sDirectoryName)
+  {
+    this (StringHelper.hasNoText (sDirectoryName) ? null : WebFileIO.getDataIO ().getFile (sDirectoryName),
+          DEFAULT_SEGMENT_DURATION);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDirectory
+   *        The directory to persist the segment log files in. May be
+   *        <code>null</code> to use an in-memory only store.
+   * @param aSegmentDuration
+   *        The duration of a single segment. This is the granularity of
+   *        eviction. May not be <code>null</code> and must be at least one
+   *        millisecond.
+   */
+  public AS4SegmentedDuplicateStore (@Nullable final File aDirectory, @Nonnull final Duration aSegmentDuration)
+  {
+    this (aDirectory, aSegmentDuration, DEFAULT_FLUSH_INTERVAL);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDirectory
+   *        The directory to persist the segment log files in. May be
+   *        <code>null</code> to use an in-memory only store.
+   * @param aSegmentDuration
+   *        The duration of a single segment. This is the granularity of
+   *        eviction. May not be <code>null</code> and must be at least one
+   *        millisecond.
+   * @param aFlushInterval
+   *        The interval in which buffered appends are flushed to the log
+   *        files. This is the maximum time span of message IDs that may be
+   *        lost upon a crash. May not be <code>null</code>. A zero duration
+   *        flushes every single append.
+   */
+  public AS4SegmentedDuplicateStore (@Nullable final File aDirectory,
+                                     @Nonnull final Duration aSegmentDuration,
+                                     @Nonnull final Duration aFlushInterval)
+  {
+    ValueEnforcer.notNull (aSegmentDuration, "SegmentDuration");
+    ValueEnforcer.isGT0 (aSegmentDuration.toMillis (), "SegmentDuration.Millis");
+    ValueEnforcer.notNull (aFlushInterval, "FlushInterval");
+    ValueEnforcer.isGE0 (aFlushInterval.toMillis (), "FlushInterval.Millis");
+    m_aDirectory = aDirectory == null ? null : aDirectory.getAbsoluteFile ();
+    m_nSegmentMillis = aSegmentDuration.toMillis ();
+    if (aDirectory != null)
+    {
+      FileOperations.createDirRecursiveIfNotExisting (m_aDirectory);
+      _readAll ();
+    }
+
+    final long nFlushMillis = aFlushInterval.toMillis ();
+    if (aDirectory != null && nFlushMillis > 0)
+    {
+      m_aFlushES = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                .setNamingPattern ("as4-duplicate-flush-%d")
+                                                                                                .build ());
+      m_aFlushES.scheduleWithFixedDelay (this::flush, nFlushMillis, nFlushMillis, TimeUnit.MILLISECONDS);
+    }
+    else
+      m_aFlushES = null;
+  }
+
+  private void _readAll ()
+  {
+    final File [] aFiles = m_aDirectory.listFiles ( (d, n) -> n.endsWith (FILE_EXTENSION));
+    if (aFiles == null)
+      return;
+
+    int nCount = 0;
+    for (final File aFile : aFiles)
+    {
+      final String sName = aFile.getName ();
+      final long nIndex = StringParser.parseLong (sName.substring (0, sName.length () - FILE_EXTENSION.length ()), -1);
+      if (nIndex < 0)
+      {
+        s_aLogger.warn ("Ignoring unexpected file " + aFile);
+        continue;
+      }
+
+      final Segment aSegment = m_aSegments.computeIfAbsent (Long.valueOf (nIndex), Segment::new);
+      try (final DataInputStream aDIS = new DataInputStream (FileHelper.getBufferedInputStream (aFile)))
+      {
+        while (true)
+        {
+          final String sMessageID = aDIS.readUTF ();
+          if (m_aMessageIDs.putIfAbsent (sMessageID, aSegment) == null)
+          {
+            aSegment.add (sMessageID, false);
+            nCount++;
+          }
+        }
+      }
+      catch (final EOFException ex)
+      {
+        // End of file reached - may also be a truncated last record
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.error ("Failed to read duplicate log file " + aFile, ex);
+      }
+    }
+    s_aLogger.info ("Read " + nCount + " message IDs from " + aFiles.length + " segment(s) in " + m_aDirectory);
+  }
+
+  /**
+   * @return The directory in which the segment logs are stored. May be
+   *         <code>null</code> for an in-memory store.
+   */
+  @Nullable
+  public final File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  /**
+   * @return The duration of a single segment. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getSegmentDuration ()
+  {
+    return Duration.ofMillis (m_nSegmentMillis);
+  }
+
+  /**
+   * @return The number of currently active segments. Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getSegmentCount ()
+  {
+    return m_aSegments.size ();
+  }
+
+  @Nonnull
+  public EContinue registerAndCheck (@Nullable final String sMessageID,
+                                     @Nullable final String sProfileID,
+                                     @Nullable final String sPModeID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+    {
+      // No message ID present - don't check for duplication
+      return EContinue.CONTINUE;
+    }
+
+    final long nIndex = PDTFactory.getCurrentMillis () / m_nSegmentMillis;
+    _onSegmentIndex (nIndex);
+    return _register (sMessageID, nIndex);
+  }
+
+  /**
+   * Register a message ID that was received at the provided time. This is
+   * meant for importing message IDs from another store, so that they are
+   * evicted according to their original reception time.
+   *
+   * @param sMessageID
+   *        Message ID to register. May be <code>null</code>.
+   * @param aReceivedDT
+   *        The time the message was received. May not be <code>null</code>.
+   * @return {@link EContinue#CONTINUE} if the message ID was registered and
+   *         {@link EContinue#BREAK} if it was already contained.
+   */
+  @Nonnull
+  public EContinue register (@Nullable final String sMessageID, @Nonnull final LocalDateTime aReceivedDT)
+  {
+    ValueEnforcer.notNull (aReceivedDT, "ReceivedDT");
+    if (StringHelper.hasNoText (sMessageID))
+      return EContinue.CONTINUE;
+    return _register (sMessageID, Math.floorDiv (PDTFactory.getMillis (aReceivedDT), m_nSegmentMillis));
+  }
+
+  @Nonnull
+  private EContinue _register (@Nonnull final String sMessageID, final long nIndex)
+  {
+    final Long aIndex = Long.valueOf (nIndex);
+    while (true)
+    {
+      final Segment aSegment = m_aSegments.computeIfAbsent (aIndex, Segment::new);
+      if (m_aMessageIDs.putIfAbsent (sMessageID, aSegment) != null)
+      {
+        // ID already in use
+        return EContinue.BREAK;
+      }
+      if (aSegment.add (sMessageID, true))
+        return EContinue.CONTINUE;
+
+      // The segment was evicted concurrently - try again with a new one
+      m_aMessageIDs.remove (sMessageID, aSegment);
+    }
+  }
+
+  private void _onSegmentIndex (final long nIndex)
+  {
+    final long nOldIndex = m_aCurrentIndex.get ();
+    if (nIndex > nOldIndex && m_aCurrentIndex.compareAndSet (nOldIndex, nIndex))
+    {
+      // Rotation: the previous segments are (almost) never appended again, so
+      // write all pending appends and release the file handles
+      for (final Segment aSegment : m_aSegments.headMap (Long.valueOf (nIndex), false).values ())
+        aSegment.closeLog ();
+    }
+  }
+
+  /**
+   * Flush all buffered appends of all segments to disk. This is called
+   * automatically in the configured flush interval and upon {@link #close()}.
+   */
+  public void flush ()
+  {
+    for (final Segment aSegment : m_aSegments.values ())
+      aSegment.flushLog ();
+  }
+
+  public boolean containsMessageID (@Nullable final String sMessageID)
+  {
+    return sMessageID != null && m_aMessageIDs.containsKey (sMessageID);
+  }
+
+  @Nonnegative
+  public int size ()
+  {
+    return m_aMessageIDs.size ();
+  }
+
+  @Nonnull
+  private ICommonsList <String> _evict (@Nonnull final Map <Long, Segment> aSegments)
+  {
+    final ICommonsList <String> ret = new CommonsArrayList <> ();
+    for (final Segment aSegment : aSegments.values ())
+    {
+      // Remove the segment first, so that it is not used anymore
+      if (m_aSegments.remove (Long.valueOf (aSegment.m_nIndex), aSegment))
+      {
+        for (final String sMessageID : aSegment.evict ())
+          if (m_aMessageIDs.remove (sMessageID, aSegment))
+            ret.add (sMessageID);
+      }
+    }
+    return ret;
+  }
+
+  @Nonnull
+  public EChange clearCache ()
+  {
+    return EChange.valueOf (_evict (m_aSegments).isNotEmpty ());
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <String> evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
+  {
+    ValueEnforcer.notNull (aRefDT, "RefDT");
+
+    // All segments that end before or at the reference time
+    final long nRefIndex = Math.floorDiv (PDTFactory.getMillis (aRefDT), m_nSegmentMillis);
+    return _evict (m_aSegments.headMap (Long.valueOf (nRefIndex), false));
+  }
+
+  @Override
+  public void close ()
+  {
+    if (m_aFlushES != null)
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aFlushES);
+    for (final Segment aSegment : m_aSegments.values ())
+      aSegment.closeLog ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Directory", m_aDirectory)
+                                       .append ("SegmentMillis", m_nSegmentMillis)
+                                       .append ("SegmentCount", m_aSegments.size ())
+                                       .append ("Size", m_aMessageIDs.size ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.state.EChange;
+import com.helger.commons.state.EContinue;
+
+/**
+ * Base interface for a store of already received message IDs, used for
+ * duplicate detection. Implementations must be thread-safe.
+ *
+ * @author Philip Helger
+ */
+public interface IAS4DuplicateStore extends AutoCloseable
+{
+  /**
+   * Check if the passed message ID was already handled and register it
+   * otherwise. Check and registration must be performed atomically.
+   *
+   * @param sMessageID
+   *        Message ID to check. May be <code>null</code>.
+   * @param sProfileID
+   *        Active AS4 profile ID. May be used to define the PMode further. May
+   *        be <code>null</code>.
+   * @param sPModeID
+   *        Active AS4 PMode ID. May be <code>null</code>.
+   * @return {@link EContinue#CONTINUE} to continue and
+   *         {@link EContinue#BREAK} if the message ID is a duplicate.
+   */
+  @Nonnull
+  EContinue registerAndCheck (@Nullable String sMessageID, @Nullable String sProfileID, @Nullable String sPModeID);
+
+  /**
+   * @param sMessageID
+   *        Message ID to check. May be <code>null</code>.
+   * @return <code>true</code> if the message ID is contained,
+   *         <code>false</code> if not.
+   */
+  boolean containsMessageID (@Nullable String sMessageID);
+
+  /**
+   * @return The number of contained message IDs. Always &ge; 0.
+   */
+  @Nonnegative
+  int size ();
+
+  /**
+   * @return <code>true</code> if no message ID is contained.
+   */
+  default boolean isEmpty ()
+  {
+    return size () == 0;
+  }
+
+  /**
+   * Remove all entries in the cache.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  EChange clearCache ();
+
+  /**
+   * Delete all duplicate items that were created before the provided time.
+   * Implementations may keep items a little longer than requested, but never
+   * remove newer ones.
+   *
+   * @param aRefDT
+   *        The reference date time to compare to. May not be <code>null</code>.
+   * @return A non-<code>null</code> list of all evicted message IDs.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsList <String> evictAllItemsBefore (@Nonnull LocalDateTime aRefDT);
+
+  /**
+   * Release all resources held by this store. The default implementation does
+   * nothing.
+   */
+  default void close ()
+  {}
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.http;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.HttpClientFactory;
+
+/**
+ * A special {@link HttpClientFactory} that shares a single pooling connection
+ * manager between all HTTP clients created by it. That way keep-alive
+ * connections (and therefore TLS sessions) are reused across messages to the
+ * same endpoint. Closing a client created by this factory does not close the
+ * shared pool - use {@link #shutdown()} for that.<br>
+ * Note: the pool is created lazily upon first usage, so all settings inherited
+ * from {@link HttpClientFactory} (e.g. SSL context) must be applied before the
+ * first client is created.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4PooledHttpClientFactory extends HttpClientFactory
+{
+  public static final int DEFAULT_MAX_TOTAL = 200;
+  public static final int DEFAULT_MAX_PER_ROUTE = 20;
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000L;
+  public static final long DEFAULT_EVICTION_INTERVAL_MS = 5 * 1000L;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4PooledHttpClientFactory.class);
+
+  private static final AS4PooledHttpClientFactory s_aDefaultInstance = new AS4PooledHttpClientFactory ();
+  static
+  {
+    s_aDefaultInstance.setRetries (3);
+  }
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private int m_nMaxTotal = DEFAULT_MAX_TOTAL;
+  private int m_nMaxPerRoute = DEFAULT_MAX_PER_ROUTE;
+  private long m_nIdleTimeoutMS = DEFAULT_IDLE_TIMEOUT_MS;
+  private long m_nEvictionIntervalMS = DEFAULT_EVICTION_INTERVAL_MS;
+  private PoolingHttpClientConnectionManager m_aConnMgr;
+  private IdleConnectionEvictor m_aEvictor;
+
+  public AS4PooledHttpClientFactory ()
+  {}
+
+  /**
+   * @return The process-wide default instance that is used by all AS4 senders
+   *         unless a different HTTP client provider is explicitly set. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static AS4PooledHttpClientFactory getDefaultInstance ()
+  {
+    return s_aDefaultInstance;
+  }
+
+  @Nonnegative
+  public final int getMaxTotal ()
+  {
+    return m_aRWLock.readLocked ( () -> m_nMaxTotal);
+  }
+
+  /**
+   * Set the maximum number of connections in the pool. If the pool is already
+   * created, the change is applied immediately.
+   *
+   * @param nMaxTotal
+   *        Maximum total connections. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PooledHttpClientFactory setMaxTotal (final int nMaxTotal)
+  {
+    ValueEnforcer.isGT0 (nMaxTotal, "MaxTotal");
+    m_aRWLock.writeLocked ( () -> {
+      m_nMaxTotal = nMaxTotal;
+      if (m_aConnMgr != null)
+        m_aConnMgr.setMaxTotal (nMaxTotal);
+    });
+    return this;
+  }
+
+  @Nonnegative
+  public final int getMaxPerRoute ()
+  {
+    return m_aRWLock.readLocked ( () -> m_nMaxPerRoute);
+  }
+
+  /**
+   * Set the maximum number of connections per route (endpoint). If the pool is
+   * already created, the change is applied immediately.
+   *
+   * @param nMaxPerRoute
+   *        Maximum connections per route. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PooledHttpClientFactory setMaxPerRoute (final int nMaxPerRoute)
+  {
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    m_aRWLock.writeLocked ( () -> {
+      m_nMaxPerRoute = nMaxPerRoute;
+      if (m_aConnMgr != null)
+        m_aConnMgr.setDefaultMaxPerRoute (nMaxPerRoute);
+    });
+    return this;
+  }
+
+  @Nonnegative
+  public final long getIdleTimeoutMS ()
+  {
+    return m_aRWLock.readLocked ( () -> m_nIdleTimeoutMS);
+  }
+
+  /**
+   * Set the time after which idle connections are evicted from the pool. Only
+   * effective before the pool is created.
+   *
+   * @param nIdleTimeoutMS
+   *        Idle timeout in milliseconds. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PooledHttpClientFactory setIdleTimeoutMS (final long nIdleTimeoutMS)
+  {
+    ValueEnforcer.isGT0 (nIdleTimeoutMS, "IdleTimeoutMS");
+    m_aRWLock.writeLocked ( () -> m_nIdleTimeoutMS = nIdleTimeoutMS);
+    return this;
+  }
+
+  @Nonnegative
+  public final long getEvictionIntervalMS ()
+  {
+    return m_aRWLock.readLocked ( () -> m_nEvictionIntervalMS);
+  }
+
+  /**
+   * Set the interval in which the pool is checked for idle and expired
+   * connections. Only effective before the pool is created.
+   *
+   * @param nEvictionIntervalMS
+   *        Interval in milliseconds. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PooledHttpClientFactory setEvictionIntervalMS (final long nEvictionIntervalMS)
+  {
+    ValueEnforcer.isGT0 (nEvictionIntervalMS, "EvictionIntervalMS");
+    m_aRWLock.writeLocked ( () -> m_nEvictionIntervalMS = nEvictionIntervalMS);
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if the shared pool was already created.
+   */
+  public final boolean isPoolCreated ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aConnMgr != null);
+  }
+
+  @Override
+  @Nonnull
+  public HttpClientConnectionManager createConnectionManager ()
+  {
+    PoolingHttpClientConnectionManager ret = m_aRWLock.readLocked ( () -> m_aConnMgr);
+    if (ret == null)
+    {
+      ret = m_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (m_aConnMgr == null)
+        {
+          final HttpClientConnectionManager aBaseMgr = super.createConnectionManager ();
+          if (!(aBaseMgr instanceof PoolingHttpClientConnectionManager))
+            throw new IllegalStateException ("Expected a pooling connection manager but got " + aBaseMgr);
+
+          final PoolingHttpClientConnectionManager aConnMgr = (PoolingHttpClientConnectionManager) aBaseMgr;
+          aConnMgr.setMaxTotal (m_nMaxTotal);
+          aConnMgr.setDefaultMaxPerRoute (m_nMaxPerRoute);
+
+          m_aEvictor = new IdleConnectionEvictor (aConnMgr,
+                                                  m_nEvictionIntervalMS,
+                                                  TimeUnit.MILLISECONDS,
+                                                  m_nIdleTimeoutMS,
+                                                  TimeUnit.MILLISECONDS);
+          m_aEvictor.start ();
+          m_aConnMgr = aConnMgr;
+
+          s_aLogger.info ("Created shared HTTP connection pool with max " +
+                          m_nMaxTotal +
+                          " connections and max " +
+                          m_nMaxPerRoute +
+                          " connections per route");
+        }
+        return m_aConnMgr;
+      });
+    }
+    return ret;
+  }
+
+  @Override
+  @Nonnull
+  public HttpClientBuilder createHttpClientBuilder ()
+  {
+    // The connection manager must survive the closing of the client.
+    // Connection state is disabled, so that client-authenticated TLS
+    // connections can be reused as well.
+    return super.createHttpClientBuilder ().setConnectionManagerShared (true).disableConnectionState ();
+  }
+
+  /**
+   * @return The total pool statistics. Never <code>null</code>.
+   */
+  @Nonnull
+  public PoolStats getTotalStats ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aConnMgr != null ? m_aConnMgr.getTotalStats ()
+                                                           : new PoolStats (0, 0, 0, m_nMaxTotal));
+  }
+
+  /**
+   * @return The pool statistics of all known routes. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsMap <HttpRoute, PoolStats> getAllRouteStats ()
+  {
+    return m_aRWLock.readLocked ( () -> {
+      final ICommonsMap <HttpRoute, PoolStats> ret = new CommonsHashMap <> ();
+      if (m_aConnMgr != null)
+        for (final HttpRoute aRoute : m_aConnMgr.getRoutes ())
+          ret.put (aRoute, m_aConnMgr.getStats (aRoute));
+      return ret;
+    });
+  }
+
+  /**
+   * Close all pooled connections and stop the idle connection eviction. A new
+   * pool is created upon next usage.
+   */
+  public void shutdown ()
+  {
+    m_aRWLock.writeLocked ( () -> {
+      if (m_aEvictor != null)
+      {
+        m_aEvictor.shutdown ();
+        m_aEvictor = null;
+      }
+      if (m_aConnMgr != null)
+      {
+        m_aConnMgr.shutdown ();
+        m_aConnMgr = null;
+        s_aLogger.info ("Shut down shared HTTP connection pool");
+      }
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxTotal", m_nMaxTotal)
+                                       .append ("MaxPerRoute", m_nMaxPerRoute)
+                                       .append ("IdleTimeoutMS", m_nIdleTimeoutMS)
+                                       .append ("EvictionIntervalMS", m_nEvictionIntervalMS)
+                                       .append ("PoolCreated", m_aConnMgr != null)
+                                       .getToString ();
+  }
+}
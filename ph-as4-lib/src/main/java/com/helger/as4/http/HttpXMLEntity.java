@@ -16,20 +16,135 @@
  */
 package com.helger.as4.http;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import javax.annotation.Nonnull;
 
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.w3c.dom.Node;
 
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4XMLHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.CountingOutputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.NullOutputStream;
+import com.helger.commons.string.ToStringGenerator;
 
-public class HttpXMLEntity extends StringEntity
+/**
+ * Special HTTP entity that writes an XML node directly to the output stream,
+ * without creating an intermediate String. The node is serialized again for
+ * each write, so the entity is repeatable.
+ *
+ * @author Philip Helger
+ */
+public class HttpXMLEntity extends AbstractHttpEntity
 {
-  public HttpXMLEntity (@Nonnull final Node Node, @Nonnull final ESOAPVersion eSoapVersion)
+  private final Node m_aNode;
+  private final long m_nContentLength;
+
+  /**
+   * Constructor that determines the content length in advance, because not
+   * all AS4 implementations support chunked transfer encoding.
+   *
+   * @param aNode
+   *        The XML node to be sent. May not be <code>null</code>.
+   * @param eSoapVersion
+   *        The SOAP version to use. Determines the content type. May not be
+   *        <code>null</code>.
+   */
+  public HttpXMLEntity (@Nonnull final Node aNode, @Nonnull final ESOAPVersion eSoapVersion)
+  {
+    this (aNode, eSoapVersion, true);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aNode
+   *        The XML node to be sent. May not be <code>null</code>.
+   * @param eSoapVersion
+   *        The SOAP version to use. Determines the content type. May not be
+   *        <code>null</code>.
+   * @param bPrecomputeContentLength
+   *        <code>true</code> to serialize the node once in advance to
+   *        determine the content length, <code>false</code> to use an unknown
+   *        content length (chunked transfer).
+   */
+  public HttpXMLEntity (@Nonnull final Node aNode,
+                        @Nonnull final ESOAPVersion eSoapVersion,
+                        final boolean bPrecomputeContentLength)
   {
-    super (AS4XMLHelper.serializeXML (Node), AS4XMLHelper.XWS.getCharset ());
+    m_aNode = ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (eSoapVersion, "SoapVersion");
     // Required for AS4.NET
     setContentType (eSoapVersion.getMimeType ().getAsString ());
+    if (bPrecomputeContentLength)
+    {
+      final CountingOutputStream aCOS = new CountingOutputStream (new NullOutputStream ());
+      AS4XMLHelper.serializeXML (aNode, aCOS);
+      m_nContentLength = aCOS.getBytesWritten ();
+    }
+    else
+    {
+      // length unknown - negative number
+      m_nContentLength = -1;
+    }
+  }
+
+  /**
+   * @return The XML node passed in the constructor. Never <code>null</code>.
+   */
+  @Nonnull
+  public Node getNode ()
+  {
+    return m_aNode;
+  }
+
+  public boolean isRepeatable ()
+  {
+    return true;
+  }
+
+  public long getContentLength ()
+  {
+    return m_nContentLength;
+  }
+
+  public boolean isStreaming ()
+  {
+    return false;
+  }
+
+  public InputStream getContent () throws IOException
+  {
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    AS4XMLHelper.serializeXML (m_aNode, aBAOS);
+    return aBAOS.getAsInputStream ();
+  }
+
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    try
+    {
+      AS4XMLHelper.serializeXML (m_aNode, aOS);
+    }
+    catch (final IllegalStateException ex)
+    {
+      throw new IOException ("Error writing XML", ex);
+    }
+    aOS.flush ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return ToStringGenerator.getDerived (super.toString ())
+                            .append ("Node", m_aNode)
+                            .append ("ContentLength", m_nContentLength)
+                            .getToString ();
   }
 }
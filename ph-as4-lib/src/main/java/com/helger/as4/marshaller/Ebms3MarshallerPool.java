@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.namespace.QName;
+import javax.xml.validation.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.lang.GenericReflection;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.jaxb.JAXBContextCache;
+import com.helger.jaxb.JAXBMarshallerHelper;
+import com.helger.jaxb.builder.IJAXBDocumentType;
+import com.helger.jaxb.builder.JAXBBuilderDefaultSettings;
+import com.helger.jaxb.validation.LoggingValidationEventHandler;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Process-wide pool of JAXB {@link Marshaller} and {@link Unmarshaller}
+ * objects per document type. Creating and configuring a new (un)marshaller for
+ * every message as done by {@link Ebms3WriterBuilder} and
+ * {@link Ebms3ReaderBuilder} is comparatively expensive, so the objects are
+ * reused here. The compiled {@link Schema} is resolved once per document type
+ * and kept for the lifetime of the JVM.<br>
+ * XSD validation can be disabled globally for deployments with trusted
+ * partners only.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class Ebms3MarshallerPool
+{
+  /** The default maximum number of idle objects per document type */
+  public static final int DEFAULT_MAX_IDLE = 2 * Runtime.getRuntime ().availableProcessors ();
+
+  /**
+   * The idle objects of a single document type.
+   *
+   * @param <T>
+   *        Pooled type
+   */
+  private static final class Pool <T>
+  {
+    private final Schema m_aSchema;
+    private final Queue <T> m_aIdle = new ConcurrentLinkedQueue <> ();
+    private final AtomicInteger m_aIdleCount = new AtomicInteger (0);
+
+    Pool (@Nonnull final IJAXBDocumentType aDocType)
+    {
+      m_aSchema = aDocType.getSchema ((ClassLoader) null);
+    }
+
+    @Nullable
+    T borrow ()
+    {
+      final T ret = m_aIdle.poll ();
+      if (ret != null)
+        m_aIdleCount.decrementAndGet ();
+      return ret;
+    }
+
+    void giveBack (@Nonnull final T aObj)
+    {
+      // Excess objects are simply discarded
+      if (m_aIdleCount.incrementAndGet () <= s_nMaxIdle)
+        m_aIdle.offer (aObj);
+      else
+        m_aIdleCount.decrementAndGet ();
+    }
+  }
+
+  /**
+   * A pooled unmarshaller together with its default event handler.
+   */
+  private static final class PooledUnmarshaller
+  {
+    private final Unmarshaller m_aUnmarshaller;
+    private final ValidationEventHandler m_aDefaultEventHandler;
+
+    PooledUnmarshaller (@Nonnull final Unmarshaller aUnmarshaller) throws JAXBException
+    {
+      m_aUnmarshaller = aUnmarshaller;
+      m_aDefaultEventHandler = new LoggingValidationEventHandler ().andThen (aUnmarshaller.getEventHandler ());
+    }
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (Ebms3MarshallerPool.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsCreated = StatisticsManager.getCounterHandler (Ebms3MarshallerPool.class.getName () +
+                                                                                                              "$created");
+  private static final IMutableStatisticsHandlerCounter s_aStatsReused = StatisticsManager.getCounterHandler (Ebms3MarshallerPool.class.getName () +
+                                                                                                             "$reused");
+
+  private static final Map <IJAXBDocumentType, Pool <Marshaller>> s_aMarshallers = new ConcurrentHashMap <> ();
+  private static final Map <IJAXBDocumentType, Pool <PooledUnmarshaller>> s_aUnmarshallers = new ConcurrentHashMap <> ();
+  private static volatile int s_nMaxIdle = DEFAULT_MAX_IDLE;
+  private static volatile boolean s_bXSDValidationEnabled = true;
+
+  private Ebms3MarshallerPool ()
+  {}
+
+  /**
+   * @return The maximum number of idle (un)marshallers kept per document type.
+   */
+  @Nonnegative
+  public static int getMaxIdle ()
+  {
+    return s_nMaxIdle;
+  }
+
+  /**
+   * @param nMaxIdle
+   *        The maximum number of idle (un)marshallers kept per document type.
+   *        Must be &ge; 0. 0 disables pooling.
+   */
+  public static void setMaxIdle (@Nonnegative final int nMaxIdle)
+  {
+    ValueEnforcer.isGE0 (nMaxIdle, "MaxIdle");
+    s_nMaxIdle = nMaxIdle;
+  }
+
+  /**
+   * @return <code>true</code> if read and written documents are validated
+   *         against the XSDs (the default), <code>false</code> if not.
+   */
+  public static boolean isXSDValidationEnabled ()
+  {
+    return s_bXSDValidationEnabled;
+  }
+
+  /**
+   * Enable or disable the XSD validation of read and written documents.
+   * Disabling it saves time, but should only be done if all partners are
+   * trusted to send valid messages. For incoming messages only the mandatory
+   * elements needed for processing are checked manually in that case.
+   *
+   * @param bXSDValidationEnabled
+   *        <code>true</code> to validate, <code>false</code> to not validate.
+   */
+  public static void setXSDValidationEnabled (final boolean bXSDValidationEnabled)
+  {
+    s_bXSDValidationEnabled = bXSDValidationEnabled;
+    s_aLogger.info ("XSD validation of ebMS documents is " + (bXSDValidationEnabled ? "enabled" : "disabled"));
+  }
+
+  /**
+   * Remove all pooled objects.
+   */
+  public static void clear ()
+  {
+    s_aMarshallers.clear ();
+    s_aUnmarshallers.clear ();
+  }
+
+  @Nonnull
+  private static JAXBContext _getJAXBContext (@Nonnull final IJAXBDocumentType aDocType)
+  {
+    return JAXBContextCache.getInstance ().getFromCache (aDocType.getImplementationClass ());
+  }
+
+  @Nonnull
+  private static Marshaller _createMarshaller (@Nonnull final IJAXBDocumentType aDocType) throws JAXBException
+  {
+    // Same settings as in Ebms3WriterBuilder
+    final Marshaller aMarshaller = _getJAXBContext (aDocType).createMarshaller ();
+    aMarshaller.setEventHandler (new LoggingValidationEventHandler ().andThen (aMarshaller.getEventHandler ()));
+    JAXBMarshallerHelper.setSunNamespacePrefixMapper (aMarshaller, new Ebms3NamespaceHandler ());
+    JAXBMarshallerHelper.setFormattedOutput (aMarshaller, JAXBBuilderDefaultSettings.isDefaultFormattedOutput ());
+    JAXBMarshallerHelper.setEncoding (aMarshaller, JAXBBuilderDefaultSettings.getDefaultCharset ());
+    s_aStatsCreated.increment ();
+    return aMarshaller;
+  }
+
+  /**
+   * Convert the passed JAXB object to a DOM document.
+   *
+   * @param aDocType
+   *        The document type to use. May not be <code>null</code>.
+   * @param aObj
+   *        The object to be written. May not be <code>null</code>.
+   * @return <code>null</code> if writing failed. The error is logged.
+   */
+  @Nullable
+  public static Document getAsDocument (@Nonnull final IJAXBDocumentType aDocType, @Nonnull final Object aObj)
+  {
+    ValueEnforcer.notNull (aDocType, "DocType");
+    ValueEnforcer.notNull (aObj, "Object");
+
+    final Pool <Marshaller> aPool = s_aMarshallers.computeIfAbsent (aDocType, Pool::new);
+    try
+    {
+      Marshaller aMarshaller = aPool.borrow ();
+      if (aMarshaller == null)
+        aMarshaller = _createMarshaller (aDocType);
+      else
+        s_aStatsReused.increment ();
+
+      aMarshaller.setSchema (s_bXSDValidationEnabled ? aPool.m_aSchema : null);
+      final JAXBElement <?> aElement = new JAXBElement <> (new QName (aDocType.getNamespaceURI (),
+                                                                      aDocType.getLocalName ()),
+                                                           GenericReflection.uncheckedCast (aObj.getClass ()),
+                                                           null,
+                                                           aObj);
+      final Document aDoc = XMLFactory.newDocument ();
+      aMarshaller.marshal (aElement, aDoc);
+
+      // Only return successfully used objects
+      aPool.giveBack (aMarshaller);
+      return aDoc;
+    }
+    catch (final JAXBException ex)
+    {
+      s_aLogger.error ("Failed to write " + aObj.getClass ().getName () + " as " + aDocType, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Read a JAXB object from the passed DOM node.
+   *
+   * @param aDocType
+   *        The document type to use. May not be <code>null</code>.
+   * @param aImplClass
+   *        The implementation class to be read. May not be <code>null</code>.
+   * @param aNode
+   *        The node to read from. May not be <code>null</code>.
+   * @param aEventHandler
+   *        The validation event handler to use for this call. May be
+   *        <code>null</code> to use a logging event handler.
+   * @return <code>null</code> if reading failed.
+   * @param <T>
+   *        The type to be read
+   */
+  @Nullable
+  public static <T> T read (@Nonnull final IJAXBDocumentType aDocType,
+                            @Nonnull final Class <T> aImplClass,
+                            @Nonnull final Node aNode,
+                            @Nullable final ValidationEventHandler aEventHandler)
+  {
+    ValueEnforcer.notNull (aDocType, "DocType");
+    ValueEnforcer.notNull (aImplClass, "ImplClass");
+    ValueEnforcer.notNull (aNode, "Node");
+
+    final Pool <PooledUnmarshaller> aPool = s_aUnmarshallers.computeIfAbsent (aDocType, Pool::new);
+    try
+    {
+      PooledUnmarshaller aPU = aPool.borrow ();
+      if (aPU == null)
+      {
+        aPU = new PooledUnmarshaller (_getJAXBContext (aDocType).createUnmarshaller ());
+        s_aStatsCreated.increment ();
+      }
+      else
+        s_aStatsReused.increment ();
+
+      final Unmarshaller aUnmarshaller = aPU.m_aUnmarshaller;
+      aUnmarshaller.setSchema (s_bXSDValidationEnabled ? aPool.m_aSchema : null);
+      aUnmarshaller.setEventHandler (aEventHandler != null ? aEventHandler : aPU.m_aDefaultEventHandler);
+      final T ret;
+      try
+      {
+        ret = aUnmarshaller.unmarshal (aNode, aImplClass).getValue ();
+      }
+      finally
+      {
+        // Don't keep a reference to the caller's handler
+        aUnmarshaller.setEventHandler (aPU.m_aDefaultEventHandler);
+      }
+
+      // Only return successfully used objects
+      aPool.giveBack (aPU);
+      return ret;
+    }
+    catch (final JAXBException ex)
+    {
+      s_aLogger.error ("Failed to read " + aImplClass.getName () + " as " + aDocType, ex);
+      return null;
+    }
+  }
+}
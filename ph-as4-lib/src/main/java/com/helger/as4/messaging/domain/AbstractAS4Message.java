@@ -22,7 +22,8 @@ import javax.annotation.Nullable;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
-import com.helger.as4.marshaller.Ebms3WriterBuilder;
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.as4lib.soap11.Soap11Body;
@@ -80,7 +81,7 @@ public abstract class AbstractAS4Message <IMPLTYPE extends AbstractAS4Message <I
   @Nonnull
   public final Document getAsSOAPDocument (@Nullable final Node aPayload)
   {
-    final Document aEbms3Document = Ebms3WriterBuilder.ebms3Messaging ().getAsDocument (m_aMessaging);
+    final Document aEbms3Document = Ebms3MarshallerPool.getAsDocument (EEbms3DocumentType.MESSAGING, m_aMessaging);
     if (aEbms3Document == null)
       throw new IllegalStateException ("Failed to write EBMS3 Messaging to XML");
 
@@ -97,7 +98,7 @@ public abstract class AbstractAS4Message <IMPLTYPE extends AbstractAS4Message <I
         aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
         if (aRealPayload != null)
           aSoapEnv.getBody ().addAny (aRealPayload);
-        return Ebms3WriterBuilder.soap11 ().getAsDocument (aSoapEnv);
+        return Ebms3MarshallerPool.getAsDocument (EEbms3DocumentType.SOAP_11, aSoapEnv);
       }
       case SOAP_12:
       {
@@ -108,7 +109,7 @@ public abstract class AbstractAS4Message <IMPLTYPE extends AbstractAS4Message <I
         aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
         if (aRealPayload != null)
           aSoapEnv.getBody ().addAny (aRealPayload);
-        return Ebms3WriterBuilder.soap12 ().getAsDocument (aSoapEnv);
+        return Ebms3MarshallerPool.getAsDocument (EEbms3DocumentType.SOAP_12, aSoapEnv);
       }
       default:
         throw new IllegalStateException ("Unsupported SOAP version!");
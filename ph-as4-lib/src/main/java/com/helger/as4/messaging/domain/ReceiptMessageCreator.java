@@ -19,25 +19,24 @@ package com.helger.as4.messaging.domain;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import com.helger.as4.CAS4;
-import com.helger.as4.marshaller.Ebms3WriterBuilder;
-import com.helger.as4.marshaller.XMLDSigReaderBuilder;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4lib.ebms3header.Ebms3MessageInfo;
 import com.helger.as4lib.ebms3header.Ebms3Receipt;
 import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
-import com.helger.as4lib.ebms3header.MessagePartNRInformation;
-import com.helger.as4lib.ebms3header.NonRepudiationInformation;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.string.StringHelper;
 import com.helger.xml.ChildElementIterator;
+import com.helger.xml.XMLFactory;
 import com.helger.xml.XMLHelper;
-import com.helger.xsds.xmldsig.ReferenceType;
 
 public final class ReceiptMessageCreator
 {
@@ -63,6 +62,66 @@ public final class ReceiptMessageCreator
     return aDSRefs;
   }
 
+  /**
+   * Create the ebbp:NonRepudiationInformation element directly in DOM. The
+   * passed ds:Reference elements are deep copied as they are, so that no JAXB
+   * round-trip per reference is necessary.
+   *
+   * @param aDSRefs
+   *        The ds:Reference elements of the received message. May not be
+   *        <code>null</code>.
+   * @return The created element. Never <code>null</code>.
+   */
+  @Nonnull
+  static Element createNonRepudiationInformation (@Nonnull final Iterable <? extends Node> aDSRefs)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element aNRI = aDoc.createElementNS (CAS4.EBBP_NS, "ebbp:NonRepudiationInformation");
+    aDoc.appendChild (aNRI);
+    for (final Node aRef : aDSRefs)
+    {
+      final Element aPart = aDoc.createElementNS (CAS4.EBBP_NS, "ebbp:MessagePartNRInformation");
+      final Node aImported = aDoc.importNode (aRef, true);
+      _removeFormatting (aImported);
+      aPart.appendChild (aImported);
+      aNRI.appendChild (aPart);
+    }
+    return aNRI;
+  }
+
+  /**
+   * Remove all comments and whitespace-only text nodes from the passed node,
+   * as they are not part of the reference content and would not be present if
+   * it was created via JAXB.
+   *
+   * @param aNode
+   *        The node to clean recursively. May not be <code>null</code>.
+   */
+  private static void _removeFormatting (@Nonnull final Node aNode)
+  {
+    Node aChild = aNode.getFirstChild ();
+    while (aChild != null)
+    {
+      final Node aNext = aChild.getNextSibling ();
+      switch (aChild.getNodeType ())
+      {
+        case Node.COMMENT_NODE:
+          aNode.removeChild (aChild);
+          break;
+        case Node.TEXT_NODE:
+          if (StringHelper.hasNoTextAfterTrim (aChild.getNodeValue ()))
+            aNode.removeChild (aChild);
+          break;
+        case Node.ELEMENT_NODE:
+          _removeFormatting (aChild);
+          break;
+        default:
+          break;
+      }
+      aChild = aNext;
+    }
+  }
+
   /**
    * This method creates a receipt message.
    *
@@ -102,20 +161,7 @@ public final class ReceiptMessageCreator
     final Ebms3Receipt aEbms3Receipt = new Ebms3Receipt ();
     if (aDSRefs.isNotEmpty () && bShouldUseNonRepudiation)
     {
-      final NonRepudiationInformation aNonRepudiationInformation = new NonRepudiationInformation ();
-      for (final Node aRef : aDSRefs)
-      {
-        final ReferenceType aRefObj = XMLDSigReaderBuilder.dsigReference ().read (aRef);
-
-        final MessagePartNRInformation aMessagePartNRInformation = new MessagePartNRInformation ();
-        aMessagePartNRInformation.setReference (aRefObj);
-
-        aNonRepudiationInformation.addMessagePartNRInformation (aMessagePartNRInformation);
-      }
-
-      aEbms3Receipt.addAny (Ebms3WriterBuilder.nonRepudiationInformation ()
-                                              .getAsDocument (aNonRepudiationInformation)
-                                              .getDocumentElement ());
+      aEbms3Receipt.addAny (createNonRepudiationInformation (aDSRefs));
     }
     else
     {
@@ -16,18 +16,28 @@
  */
 package com.helger.as4.mgr;
 
+import java.io.File;
+
 import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.AS4SegmentedDuplicateStore;
+import com.helger.as4.duplicate.IAS4DuplicateItem;
+import com.helger.as4.duplicate.IAS4DuplicateStore;
 import com.helger.as4.model.mpc.MPCManager;
 import com.helger.as4.model.pmode.PModeManager;
 import com.helger.as4.profile.AS4ProfileManager;
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.UsedViaReflection;
 import com.helger.commons.exception.InitializationException;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.io.file.FileOperations;
 import com.helger.commons.lang.ClassHelper;
+import com.helger.dao.DAOException;
+import com.helger.photon.basic.app.io.WebFileIO;
 import com.helger.scope.IScope;
 import com.helger.scope.singleton.AbstractGlobalSingleton;
 
@@ -35,14 +45,19 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
 {
   private static final String MPC_XML = "as4-mpc.xml";
   private static final String PMODE_XML = "as4-pmode.xml";
-  private static final String INCOMING_DUPLICATE_XML = "as4-duplicate-incoming.xml";
+  private static final String INCOMING_DUPLICATE_DIR = "as4-duplicate-incoming";
+  // Used until v0.8.0
+  private static final String LEGACY_INCOMING_DUPLICATE_XML = "as4-duplicate-incoming.xml";
 
   private static final Logger s_aLogger = LoggerFactory.getLogger (MetaAS4Manager.class);
 
+  private static volatile IThrowingSupplier <? extends IAS4DuplicateStore, Exception> s_aIncomingDuplicateStoreFactory =
+                                                                                                              () -> new AS4SegmentedDuplicateStore (INCOMING_DUPLICATE_DIR);
+
   private MPCManager m_aMPCMgr;
   private PModeManager m_aPModeMgr;
   private AS4ProfileManager m_aProfileMgr;
-  private AS4DuplicateManager m_aIncomingDuplicateMgr;
+  private IAS4DuplicateStore m_aIncomingDuplicateMgr;
 
   @Deprecated
   @UsedViaReflection
@@ -61,7 +76,8 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
       m_aMPCMgr = new MPCManager (MPC_XML);
       m_aPModeMgr = new PModeManager (PMODE_XML);
       m_aProfileMgr = new AS4ProfileManager ();
-      m_aIncomingDuplicateMgr = new AS4DuplicateManager (INCOMING_DUPLICATE_XML);
+      m_aIncomingDuplicateMgr = s_aIncomingDuplicateStoreFactory.get ();
+      _importLegacyIncomingDuplicates ();
 
       _initCallbacks ();
 
@@ -76,9 +92,57 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
     }
   }
 
+  /**
+   * Import the message IDs of the XML based duplicate manager used before, so
+   * that duplicates are still detected after an update. This happens only
+   * once, because the old file is renamed afterwards.
+   *
+   * @throws DAOException
+   *         If the old file cannot be read
+   */
+  private void _importLegacyIncomingDuplicates () throws DAOException
+  {
+    if (!(m_aIncomingDuplicateMgr instanceof AS4SegmentedDuplicateStore))
+      return;
+
+    final File aLegacyFile = WebFileIO.getDataIO ().getFile (LEGACY_INCOMING_DUPLICATE_XML);
+    if (!aLegacyFile.isFile ())
+      return;
+
+    final AS4SegmentedDuplicateStore aStore = (AS4SegmentedDuplicateStore) m_aIncomingDuplicateMgr;
+    final AS4DuplicateManager aLegacyMgr = new AS4DuplicateManager (LEGACY_INCOMING_DUPLICATE_XML);
+    int nCount = 0;
+    for (final IAS4DuplicateItem aItem : aLegacyMgr.getAll ())
+      if (aStore.register (aItem.getMessageID (), aItem.getDateTime ()).isContinue ())
+        nCount++;
+    aStore.flush ();
+
+    final File aImportedFile = new File (aLegacyFile.getParentFile (), aLegacyFile.getName () + ".imported");
+    if (FileOperations.renameFile (aLegacyFile, aImportedFile).isFailure ())
+      s_aLogger.warn ("Failed to rename " + aLegacyFile + " to " + aImportedFile);
+    s_aLogger.info ("Imported " + nCount + " message IDs from " + aLegacyFile);
+  }
+
   @Override
   protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed) throws Exception
-  {}
+  {
+    if (m_aIncomingDuplicateMgr != null)
+      m_aIncomingDuplicateMgr.close ();
+  }
+
+  /**
+   * Set the factory for the incoming duplicate store. This must be called
+   * before the first access to this manager to have an effect. By default an
+   * {@link AS4SegmentedDuplicateStore} is used.
+   *
+   * @param aFactory
+   *        The factory to use. May not be <code>null</code>.
+   */
+  public static void setIncomingDuplicateStoreFactory (@Nonnull final IThrowingSupplier <? extends IAS4DuplicateStore, Exception> aFactory)
+  {
+    ValueEnforcer.notNull (aFactory, "Factory");
+    s_aIncomingDuplicateStoreFactory = aFactory;
+  }
 
   @Nonnull
   public static MetaAS4Manager getInstance ()
@@ -104,8 +168,17 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
     return getInstance ().m_aProfileMgr;
   }
 
+  /**
+   * Note: up to v0.8.0 this method returned an <code>AS4DuplicateManager</code>.
+   * To use that implementation again, call
+   * {@link #setIncomingDuplicateStoreFactory(IThrowingSupplier)} with a factory
+   * creating an {@link AS4DuplicateManager}.
+   *
+   * @return The store for incoming message IDs used for duplicate detection.
+   *         Never <code>null</code>.
+   */
   @Nonnull
-  public static AS4DuplicateManager getIncomingDuplicateMgr ()
+  public static IAS4DuplicateStore getIncomingDuplicateMgr ()
   {
     return getInstance ().m_aIncomingDuplicateMgr;
   }
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.pmode;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Secondary index of the PModes of a {@link PModeManager} by service and action
+ * of leg 1. Modifications are applied per PMode and must be performed while
+ * holding the write lock of the manager. Lookups need no locking: the lists
+ * stored per key are never modified but replaced.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class PModeIndex
+{
+  /**
+   * A key consisting of two nullable strings.
+   */
+  @Immutable
+  static final class Key
+  {
+    private final String m_sFirst;
+    private final String m_sSecond;
+    // Status vars
+    private int m_nHashCode = HashCodeGenerator.ILLEGAL_HASHCODE;
+
+    Key (@Nullable final String sFirst, @Nullable final String sSecond)
+    {
+      m_sFirst = sFirst;
+      m_sSecond = sSecond;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final Key rhs = (Key) o;
+      return EqualsHelper.equals (m_sFirst, rhs.m_sFirst) && EqualsHelper.equals (m_sSecond, rhs.m_sSecond);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      int ret = m_nHashCode;
+      if (ret == HashCodeGenerator.ILLEGAL_HASHCODE)
+        ret = m_nHashCode = new HashCodeGenerator (this).append (m_sFirst).append (m_sSecond).getHashCode ();
+      return ret;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("First", m_sFirst).append ("Second", m_sSecond).getToString ();
+    }
+  }
+
+  // All PModes per key in the order they were added
+  private final Map <Key, ICommonsList <IPMode>> m_aLeg1ServiceAction = new ConcurrentHashMap <> ();
+  // The key under which each PMode ID is currently indexed
+  private final Map <String, Key> m_aKeyOfID = new ConcurrentHashMap <> ();
+
+  @Nullable
+  static Key getLeg1Key (@Nonnull final IPMode aPMode)
+  {
+    final PModeLeg aLeg = aPMode.getLeg1 ();
+    if (aLeg != null)
+    {
+      final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
+      if (aBI != null)
+        return new Key (aBI.getService (), aBI.getAction ());
+    }
+    return null;
+  }
+
+  PModeIndex ()
+  {}
+
+  /**
+   * Add or re-index the passed PMode. If the PMode was already indexed under a
+   * different key, it is moved.
+   *
+   * @param aPMode
+   *        The PMode to index. May not be <code>null</code>.
+   */
+  void put (@Nonnull final IPMode aPMode)
+  {
+    ValueEnforcer.notNull (aPMode, "PMode");
+
+    final Key aNewKey = getLeg1Key (aPMode);
+    final Key aOldKey = m_aKeyOfID.get (aPMode.getID ());
+    if (aOldKey != null && aOldKey.equals (aNewKey))
+    {
+      // Key unchanged - just replace the object
+      m_aLeg1ServiceAction.computeIfPresent (aOldKey, (k, v) -> {
+        final ICommonsList <IPMode> ret = v.getClone ();
+        ret.replaceAll (x -> x.getID ().equals (aPMode.getID ()) ? aPMode : x);
+        return ret;
+      });
+      return;
+    }
+
+    remove (aPMode.getID ());
+    if (aNewKey != null)
+    {
+      m_aLeg1ServiceAction.compute (aNewKey, (k, v) -> {
+        final ICommonsList <IPMode> ret = v == null ? new CommonsArrayList <> () : v.getClone ();
+        ret.add (aPMode);
+        return ret;
+      });
+      m_aKeyOfID.put (aPMode.getID (), aNewKey);
+    }
+  }
+
+  /**
+   * Remove the PMode with the passed ID from the index.
+   *
+   * @param sPModeID
+   *        The ID of the PMode to remove. May be <code>null</code>.
+   */
+  void remove (@Nullable final String sPModeID)
+  {
+    if (sPModeID == null)
+      return;
+
+    final Key aOldKey = m_aKeyOfID.remove (sPModeID);
+    if (aOldKey != null)
+      m_aLeg1ServiceAction.computeIfPresent (aOldKey, (k, v) -> {
+        final ICommonsList <IPMode> ret = v.getAll (x -> !x.getID ().equals (sPModeID));
+        return ret.isEmpty () ? null : ret;
+      });
+  }
+
+  /**
+   * Remove all entries.
+   */
+  void clear ()
+  {
+    m_aLeg1ServiceAction.clear ();
+    m_aKeyOfID.clear ();
+  }
+
+  @Nullable
+  IPMode getOfLeg1ServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
+  {
+    final ICommonsList <IPMode> aList = m_aLeg1ServiceAction.get (new Key (sService, sAction));
+    return aList == null ? null : aList.getFirst ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Leg1ServiceAction", m_aLeg1ServiceAction.keySet ()).getToString ();
+  }
+}
@@ -24,9 +24,9 @@ import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.helger.as4.model.pmode.leg.PModeLeg;
-import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ELockType;
+import com.helger.commons.annotation.MustBeLocked;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.equals.EqualsHelper;
@@ -34,17 +34,86 @@ import com.helger.commons.state.EChange;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
 import com.helger.dao.DAOException;
+import com.helger.xml.microdom.IMicroDocument;
 import com.helger.photon.basic.app.dao.AbstractPhotonMapBasedWALDAO;
 import com.helger.photon.basic.audit.AuditHelper;
 import com.helger.photon.security.object.BusinessObjectHelper;
 
+/**
+ * Manager for all PModes. In addition to the primary ID based storage, an index
+ * on the service and action of leg 1 is maintained. The index is updated for
+ * each modified PMode, so lookups need no locking. Therefore PModes must only
+ * be modified via this manager.
+ *
+ * @author Philip Helger
+ */
 public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (PModeManager.class);
 
+  // Not initialized here, because it is already filled from the super
+  // constructor
+  private volatile PModeIndex m_aIndex;
+
   public PModeManager (@Nullable final String sFilename) throws DAOException
   {
     super (PMode.class, sFilename);
+    m_aRWLock.writeLocked (this::_reindexAll);
+  }
+
+  /**
+   * Get the index, creating it upon first access. Must be called while holding
+   * the write lock, because it is invoked from the super constructor.
+   */
+  @Nonnull
+  @MustBeLocked (ELockType.WRITE)
+  private PModeIndex _getIndexForUpdate ()
+  {
+    PModeIndex ret = m_aIndex;
+    if (ret == null)
+      ret = m_aIndex = new PModeIndex ();
+    return ret;
+  }
+
+  @MustBeLocked (ELockType.WRITE)
+  private void _reindexAll ()
+  {
+    final PModeIndex aIndex = _getIndexForUpdate ();
+    aIndex.clear ();
+    for (final IPMode aPMode : internalDirectGetAll ())
+      aIndex.put (aPMode);
+  }
+
+  // The following callbacks are invoked while the write lock is held
+
+  @Override
+  @Nonnull
+  protected EChange onRead (@Nonnull final IMicroDocument aDoc)
+  {
+    final EChange ret = super.onRead (aDoc);
+    _reindexAll ();
+    return ret;
+  }
+
+  @Override
+  protected void onRecoveryCreate (@Nonnull final PMode aElement)
+  {
+    super.onRecoveryCreate (aElement);
+    _getIndexForUpdate ().put (aElement);
+  }
+
+  @Override
+  protected void onRecoveryUpdate (@Nonnull final PMode aElement)
+  {
+    super.onRecoveryUpdate (aElement);
+    _getIndexForUpdate ().put (aElement);
+  }
+
+  @Override
+  protected void onRecoveryDelete (@Nonnull final PMode aElement)
+  {
+    super.onRecoveryDelete (aElement);
+    _getIndexForUpdate ().remove (aElement.getID ());
   }
 
   @Nonnull
@@ -57,6 +126,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
 
     m_aRWLock.writeLocked ( () -> {
       internalCreateItem (aPMode);
+      _getIndexForUpdate ().put (aPMode);
     });
     AuditHelper.onAuditCreateSuccess (PMode.OT, aPMode.getID ());
     s_aLogger.info ("Created PMode with ID '" + aPMode.getID () + "'");
@@ -90,6 +160,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
 
       BusinessObjectHelper.setLastModificationNow (aRealPMode);
       internalUpdateItem (aRealPMode);
+      _getIndexForUpdate ().put (aRealPMode);
     }
     finally
     {
@@ -119,6 +190,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
         AuditHelper.onAuditDeleteFailure (PMode.OT, "already-deleted", sPModeID);
         return EChange.UNCHANGED;
       }
+      // Deleted PModes stay in the index, like in the storage
       internalMarkItemDeleted (aDeletedPMode);
     }
     finally
@@ -145,6 +217,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
     try
     {
       internalDeleteItem (sPModeID);
+      _getIndexForUpdate ().remove (sPModeID);
     }
     finally
     {
@@ -165,29 +238,30 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
                 EqualsHelper.equals (p.getResponderID (), sResponderID);
   }
 
+  /**
+   * Find the first PMode with the provided service and action in the business
+   * information of leg 1. This is a constant time lookup.
+   *
+   * @param sService
+   *        Service to search. May be <code>null</code>.
+   * @param sAction
+   *        Action to search. May be <code>null</code>.
+   * @return <code>null</code> if no such PMode exists.
+   */
   @Nullable
   public IPMode getPModeOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
   {
-    return findFirst (x -> {
-      final PModeLeg aLeg = x.getLeg1 ();
-      if (aLeg != null)
-      {
-        final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
-        if (aBI != null)
-        {
-          return EqualsHelper.equals (aBI.getService (), sService) && EqualsHelper.equals (aBI.getAction (), sAction);
-        }
-      }
-      return false;
-    });
+    final PModeIndex aIndex = m_aIndex;
+    return aIndex == null ? null : aIndex.getOfLeg1ServiceAndAction (sService, sAction);
   }
 
   @Nonnull
   public IPMode createOrUpdatePMode (@Nonnull final PMode aPMode)
   {
-    PMode ret = (PMode) findFirst (getPModeFilter (aPMode.getID (),
-                                                   aPMode.getInitiatorID (),
-                                                   aPMode.getResponderID ()));
+    // The ID is unique, so a lookup by ID is sufficient
+    PMode ret = getOfID (aPMode.getID ());
+    if (ret != null && !getPModeFilter (aPMode.getID (), aPMode.getInitiatorID (), aPMode.getResponderID ()).test (ret))
+      ret = null;
     if (ret == null)
     {
       createPMode (aPMode);
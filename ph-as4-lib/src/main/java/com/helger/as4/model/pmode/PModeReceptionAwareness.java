@@ -18,6 +18,7 @@ package com.helger.as4.model.pmode;
 
 import java.io.Serializable;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
 import com.helger.commons.ValueEnforcer;
@@ -29,17 +30,32 @@ public class PModeReceptionAwareness implements Serializable
   public static final boolean DEFAULT_RECEPTION_AWARENESS = true;
   public static final boolean DEFAULT_RETRY = true;
   public static final boolean DEFAULT_DUPLICATE_DETECTION = true;
+  public static final int DEFAULT_MAX_RETRIES = 5;
+  public static final long DEFAULT_RETRY_INTERVAL_MS = 30 * 1000L;
 
   private ETriState m_eReceptionAwareness;
   private ETriState m_eRetry;
   private ETriState m_eDuplicateDetection;
+  private int m_nMaxRetries;
+  private long m_nRetryIntervalMS;
 
   public PModeReceptionAwareness (@Nonnull final ETriState eReceptionAwareness,
                                   @Nonnull final ETriState eRetry,
                                   @Nonnull final ETriState eDuplicateDetection)
+  {
+    this (eReceptionAwareness, eRetry, DEFAULT_MAX_RETRIES, DEFAULT_RETRY_INTERVAL_MS, eDuplicateDetection);
+  }
+
+  public PModeReceptionAwareness (@Nonnull final ETriState eReceptionAwareness,
+                                  @Nonnull final ETriState eRetry,
+                                  @Nonnegative final int nMaxRetries,
+                                  @Nonnegative final long nRetryIntervalMS,
+                                  @Nonnull final ETriState eDuplicateDetection)
   {
     setReceptionAwareness (eReceptionAwareness);
     setRetry (eRetry);
+    setMaxRetries (nMaxRetries);
+    setRetryIntervalMS (nRetryIntervalMS);
     setDuplicateDetection (eDuplicateDetection);
   }
 
@@ -87,6 +103,38 @@ public class PModeReceptionAwareness implements Serializable
     m_eRetry = eRetry;
   }
 
+  /**
+   * @return The maximum number of retries after the initial transmission, if
+   *         retry is enabled. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getMaxRetries ()
+  {
+    return m_nMaxRetries;
+  }
+
+  public final void setMaxRetries (@Nonnegative final int nMaxRetries)
+  {
+    ValueEnforcer.isGE0 (nMaxRetries, "MaxRetries");
+    m_nMaxRetries = nMaxRetries;
+  }
+
+  /**
+   * @return The interval in milliseconds before the first retry. Subsequent
+   *         retries may use a longer interval. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getRetryIntervalMS ()
+  {
+    return m_nRetryIntervalMS;
+  }
+
+  public final void setRetryIntervalMS (@Nonnegative final long nRetryIntervalMS)
+  {
+    ValueEnforcer.isGE0 (nRetryIntervalMS, "RetryIntervalMS");
+    m_nRetryIntervalMS = nRetryIntervalMS;
+  }
+
   public boolean isDuplicateDetectionDefined ()
   {
     return m_eDuplicateDetection.isDefined ();
@@ -119,6 +167,8 @@ public class PModeReceptionAwareness implements Serializable
     final PModeReceptionAwareness rhs = (PModeReceptionAwareness) o;
     return m_eReceptionAwareness.equals (rhs.m_eReceptionAwareness) &&
            m_eRetry.equals (rhs.m_eRetry) &&
+           m_nMaxRetries == rhs.m_nMaxRetries &&
+           m_nRetryIntervalMS == rhs.m_nRetryIntervalMS &&
            m_eDuplicateDetection.equals (rhs.m_eDuplicateDetection);
   }
 
@@ -127,6 +177,8 @@ public class PModeReceptionAwareness implements Serializable
   {
     return new HashCodeGenerator (this).append (m_eReceptionAwareness)
                                        .append (m_eRetry)
+                                       .append (m_nMaxRetries)
+                                       .append (m_nRetryIntervalMS)
                                        .append (m_eDuplicateDetection)
                                        .getHashCode ();
   }
@@ -136,6 +188,8 @@ public class PModeReceptionAwareness implements Serializable
   {
     return new PModeReceptionAwareness (ETriState.valueOf (DEFAULT_RECEPTION_AWARENESS),
                                         ETriState.valueOf (DEFAULT_RETRY),
+                                        DEFAULT_MAX_RETRIES,
+                                        DEFAULT_RETRY_INTERVAL_MS,
                                         ETriState.valueOf (DEFAULT_DUPLICATE_DETECTION));
   }
 }
@@ -25,6 +25,8 @@ public class PModeReceptionAwarenessMicroTypeConverter extends AbstractPModeMicr
   private static final String ATTR_RECEPTION_AWARENESS = "WSSVersion";
   private static final String ATTR_RETRY = "X509Sign";
   private static final String ATTR_DOUBLE_DETECTION = "X509SignatureCertificate";
+  private static final String ATTR_MAX_RETRIES = "MaxRetries";
+  private static final String ATTR_RETRY_INTERVAL_MS = "RetryIntervalMS";
 
   public IMicroElement convertToMicroElement (final PModeReceptionAwareness aValue,
                                               final String sNamespaceURI,
@@ -35,6 +37,8 @@ public class PModeReceptionAwarenessMicroTypeConverter extends AbstractPModeMicr
       ret.setAttribute (ATTR_RECEPTION_AWARENESS, aValue.isReceptionAwareness ());
     if (aValue.isRetryDefined ())
       ret.setAttribute (ATTR_RETRY, aValue.isRetry ());
+    ret.setAttribute (ATTR_MAX_RETRIES, aValue.getMaxRetries ());
+    ret.setAttribute (ATTR_RETRY_INTERVAL_MS, aValue.getRetryIntervalMS ());
     if (aValue.isDuplicateDetectionDefined ())
       ret.setAttribute (ATTR_DOUBLE_DETECTION, aValue.isDuplicateDetection ());
     return ret;
@@ -46,10 +50,18 @@ public class PModeReceptionAwarenessMicroTypeConverter extends AbstractPModeMicr
                                                        PModeReceptionAwareness.DEFAULT_RECEPTION_AWARENESS);
     final ETriState eRetry = getTriState (aElement.getAttributeValue (ATTR_RETRY),
                                           PModeReceptionAwareness.DEFAULT_RETRY);
+    final int nMaxRetries = aElement.getAttributeValueAsInt (ATTR_MAX_RETRIES,
+                                                             PModeReceptionAwareness.DEFAULT_MAX_RETRIES);
+    final long nRetryIntervalMS = aElement.getAttributeValueAsLong (ATTR_RETRY_INTERVAL_MS,
+                                                                    PModeReceptionAwareness.DEFAULT_RETRY_INTERVAL_MS);
     final ETriState eDoubleDetection = getTriState (aElement.getAttributeValue (ATTR_DOUBLE_DETECTION),
                                                     PModeReceptionAwareness.DEFAULT_DUPLICATE_DETECTION);
 
-    return new PModeReceptionAwareness (eReceptionAwareness, eRetry, eDoubleDetection);
+    return new PModeReceptionAwareness (eReceptionAwareness,
+                                        eRetry,
+                                        nMaxRetries,
+                                        nRetryIntervalMS,
+                                        eDoubleDetection);
   }
 
 }
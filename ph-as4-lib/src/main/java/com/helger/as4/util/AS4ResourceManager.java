@@ -65,7 +65,7 @@ public class AS4ResourceManager implements Closeable
     if (m_aInClose.get ())
       throw new IllegalStateException ("ResourceManager is already closing/closed!");
 
-    m_aCloseables.add (aCloseable);
+    m_aRWLock.writeLocked ( () -> m_aCloseables.add (aCloseable));
   }
 
   public void close ()
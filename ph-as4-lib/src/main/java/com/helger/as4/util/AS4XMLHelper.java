@@ -16,11 +16,15 @@
  */
 package com.helger.as4.util;
 
+import java.io.OutputStream;
 import java.util.Locale;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -50,6 +54,23 @@ public final class AS4XMLHelper
     XWS.setIndent (EXMLSerializeIndent.NONE);
   }
 
+  // TransformerFactory.newTransformer is not guaranteed to be thread-safe
+  private static final TransformerFactory s_aTransformerFactory = TransformerFactory.newInstance ();
+  // Transformers are not thread-safe but can be reused after a reset
+  private static final ThreadLocal <Transformer> s_aTransformer = ThreadLocal.withInitial ( () -> {
+    try
+    {
+      synchronized (s_aTransformerFactory)
+      {
+        return s_aTransformerFactory.newTransformer ();
+      }
+    }
+    catch (final TransformerConfigurationException ex)
+    {
+      throw new IllegalStateException ("Failed to create XML Transformer", ex);
+    }
+  });
+
   private AS4XMLHelper ()
   {}
 
@@ -59,15 +80,15 @@ public final class AS4XMLHelper
     return XMLWriter.getNodeAsString (aNode, XWS);
   }
 
-  @Nonnull
-  private static String _serializeRT (@Nonnull final Node aNode)
+  private static void _serializeRT (@Nonnull final Node aNode, @Nonnull final Result aResult)
   {
     try
     {
-      final Transformer aTransformer = TransformerFactory.newInstance ().newTransformer ();
-      final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
-      aTransformer.transform (new DOMSource (aNode), new StreamResult (aSW));
-      return aSW.getAsString ();
+      final Transformer aTransformer = s_aTransformer.get ();
+      // Ensure the same output as a freshly created transformer
+      aTransformer.reset ();
+      aTransformer.setOutputProperty (OutputKeys.ENCODING, XWS.getCharset ().name ());
+      aTransformer.transform (new DOMSource (aNode), aResult);
     }
     catch (final TransformerException ex)
     {
@@ -75,6 +96,14 @@ public final class AS4XMLHelper
     }
   }
 
+  @Nonnull
+  private static String _serializeRT (@Nonnull final Node aNode)
+  {
+    final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
+    _serializeRT (aNode, new StreamResult (aSW));
+    return aSW.getAsString ();
+  }
+
   @Nonnull
   public static String serializeXML (@Nonnull final Node aNode)
   {
@@ -82,6 +111,25 @@ public final class AS4XMLHelper
     return true ? _serializeRT (aNode) : _serializePh (aNode);
   }
 
+  /**
+   * Serialize the passed node directly to the passed output stream, using the
+   * charset of {@link #XWS}. No intermediate String is created. The output
+   * stream is neither flushed nor closed.
+   *
+   * @param aNode
+   *        The node to serialize. May not be <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>.
+   */
+  public static void serializeXML (@Nonnull final Node aNode, @Nonnull final OutputStream aOS)
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    // Use runtime serialization otherwise XMLDsig signature wont work
+    _serializeRT (aNode, new StreamResult (aOS));
+  }
+
   /**
    * Get all attributes of the passed element as a map with a lowercase
    * attribute name.
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4AttachmentMemoryBudget}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AttachmentMemoryBudgetTest
+{
+  @Test
+  public void testAcquireAndRelease ()
+  {
+    final long nOldMax = AS4AttachmentMemoryBudget.getMaxInMemorySize ();
+    final long nOldBudget = AS4AttachmentMemoryBudget.getBudget ();
+    final long nBase = AS4AttachmentMemoryBudget.getUsedBytes ();
+    try
+    {
+      AS4AttachmentMemoryBudget.setMaxInMemorySize (100);
+      AS4AttachmentMemoryBudget.setBudget (nBase + 150);
+
+      // Too large for a single attachment
+      assertFalse (AS4AttachmentMemoryBudget.tryAcquire (101, 101));
+      assertTrue (AS4AttachmentMemoryBudget.tryAcquire (100, 100));
+      assertEquals (nBase + 100, AS4AttachmentMemoryBudget.getUsedBytes ());
+
+      // Budget exhausted
+      assertFalse (AS4AttachmentMemoryBudget.tryAcquire (60, 60));
+      assertTrue (AS4AttachmentMemoryBudget.tryAcquire (50, 50));
+      AS4AttachmentMemoryBudget.release (150);
+      assertEquals (nBase, AS4AttachmentMemoryBudget.getUsedBytes ());
+    }
+    finally
+    {
+      AS4AttachmentMemoryBudget.setMaxInMemorySize (nOldMax);
+      AS4AttachmentMemoryBudget.setBudget (nOldBudget);
+    }
+  }
+
+  @Test
+  public void testSpillWhenBudgetIsExhausted () throws Exception
+  {
+    final long nOldBudget = AS4AttachmentMemoryBudget.getBudget ();
+    final long nBase = AS4AttachmentMemoryBudget.getUsedBytes ();
+    final byte [] aData = new byte [100];
+    try
+    {
+      AS4AttachmentMemoryBudget.setBudget (nBase + 100);
+      try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+      {
+        // Kept in memory
+        WSS4JAttachment.createRepeatableInputStreamProvider (new NonBlockingByteArrayInputStream (aData), aResMgr);
+        assertEquals (nBase + 100, AS4AttachmentMemoryBudget.getUsedBytes ());
+
+        // Spilled to disk, without consuming memory budget
+        final byte [] aRead = StreamHelper.getAllBytes (WSS4JAttachment.createRepeatableInputStreamProvider (new NonBlockingByteArrayInputStream (aData),
+                                                                                                             aResMgr)
+                                                                                     .getInputStream ());
+        assertEquals (100, aRead.length);
+        assertEquals (nBase + 100, AS4AttachmentMemoryBudget.getUsedBytes ());
+      }
+      // Released upon close
+      assertEquals (nBase, AS4AttachmentMemoryBudget.getUsedBytes ());
+    }
+    finally
+    {
+      AS4AttachmentMemoryBudget.setBudget (nOldBudget);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link AS4AttachmentParallelHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AttachmentParallelHelperTest
+{
+  @Test
+  public void testIsParallel ()
+  {
+    assertFalse (AS4AttachmentParallelHelper.isParallel (10, 0));
+    assertFalse (AS4AttachmentParallelHelper.isParallel (3, 4));
+    assertTrue (AS4AttachmentParallelHelper.isParallel (4, 4));
+    assertFalse (AS4AttachmentParallelHelper.isParallel (1, 1));
+  }
+
+  @Test
+  public void testForEach () throws Exception
+  {
+    final ICommonsList <Integer> aList = new CommonsArrayList <> ();
+    for (int i = 0; i < 50; ++i)
+      aList.add (Integer.valueOf (i));
+
+    for (final int nThreshold : new int [] { 0, 2, 100 })
+    {
+      final AtomicInteger aSum = new AtomicInteger ();
+      final Set <String> aThreads = ConcurrentHashMap.newKeySet ();
+      AS4AttachmentParallelHelper.forEach (aList, nThreshold, x -> {
+        aSum.addAndGet (x.intValue ());
+        aThreads.add (Thread.currentThread ().getName ());
+      });
+      assertEquals (49 * 50 / 2, aSum.get ());
+      if (nThreshold != 2)
+        assertEquals (1, aThreads.size ());
+    }
+
+    try
+    {
+      AS4AttachmentParallelHelper.forEach (aList, 2, x -> {
+        if (x.intValue () == 17)
+          throw new IOException ("bla");
+      });
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      assertEquals ("bla", ex.getMessage ());
+    }
+  }
+}
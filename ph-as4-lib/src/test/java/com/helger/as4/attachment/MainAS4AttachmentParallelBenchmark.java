@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * Simple benchmark for {@link AS4AttachmentParallelHelper}, simulating the
+ * per-attachment work of an incoming encrypted and signed message: decrypting
+ * the content, spilling it into a repeatable buffer and digesting it.
+ *
+ * @author Philip Helger
+ */
+public final class MainAS4AttachmentParallelBenchmark
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MainAS4AttachmentParallelBenchmark.class);
+  private static final int ATTACHMENT_SIZE = 512 * CGlobal.BYTES_PER_KILOBYTE;
+  private static final int RUNS = 5;
+
+  private MainAS4AttachmentParallelBenchmark ()
+  {}
+
+  private static void _process (@Nonnull final byte [] aEncrypted,
+                                @Nonnull final SecretKey aKey,
+                                @Nonnull final byte [] aIV,
+                                @Nonnull final AS4ResourceManager aResMgr) throws Exception
+  {
+    final Cipher aCipher = Cipher.getInstance ("AES/CBC/PKCS5Padding");
+    aCipher.init (Cipher.DECRYPT_MODE, aKey, new IvParameterSpec (aIV));
+    final IHasInputStream aISP;
+    try (final InputStream aIS = new CipherInputStream (new NonBlockingByteArrayInputStream (aEncrypted), aCipher))
+    {
+      aISP = WSS4JAttachment.createRepeatableInputStreamProvider (aIS, aResMgr);
+    }
+    final MessageDigest aMD = MessageDigest.getInstance ("SHA-256");
+    try (final InputStream aIS = aISP.getInputStream ())
+    {
+      final byte [] aBuffer = new byte [16 * CGlobal.BYTES_PER_KILOBYTE];
+      int nRead;
+      while ((nRead = aIS.read (aBuffer)) > -1)
+        aMD.update (aBuffer, 0, nRead);
+    }
+    aMD.digest ();
+  }
+
+  private static long _run (@Nonnull final ICommonsList <byte []> aAttachments,
+                            @Nonnull final SecretKey aKey,
+                            @Nonnull final byte [] aIV,
+                            final int nThreshold) throws Exception
+  {
+    final StopWatch aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < RUNS; ++i)
+      try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+      {
+        AS4AttachmentParallelHelper.forEach (aAttachments, nThreshold, x -> _process (x, aKey, aIV, aResMgr));
+      }
+    return aSW.stopAndGetMillis () / RUNS;
+  }
+
+  public static void main (final String [] args) throws Exception
+  {
+    final KeyGenerator aKG = KeyGenerator.getInstance ("AES");
+    aKG.init (128);
+    final SecretKey aKey = aKG.generateKey ();
+    final byte [] aIV = new byte [16];
+    final Cipher aCipher = Cipher.getInstance ("AES/CBC/PKCS5Padding");
+    aCipher.init (Cipher.ENCRYPT_MODE, aKey, new IvParameterSpec (aIV));
+
+    final byte [] aPlain = new byte [ATTACHMENT_SIZE];
+    new Random (42).nextBytes (aPlain);
+    final byte [] aEncrypted = aCipher.doFinal (aPlain);
+
+    // Warm up
+    _run (new CommonsArrayList <> (aEncrypted, aEncrypted, aEncrypted, aEncrypted), aKey, aIV, 0);
+    _run (new CommonsArrayList <> (aEncrypted, aEncrypted, aEncrypted, aEncrypted), aKey, aIV, 2);
+
+    for (final int nCount : new int [] { 1, 5, 10, 20, 50 })
+    {
+      final ICommonsList <byte []> aAttachments = new CommonsArrayList <> ();
+      for (int i = 0; i < nCount; ++i)
+        aAttachments.add (aEncrypted);
+      final long nSequential = _run (aAttachments, aKey, aIV, 0);
+      final long nParallel = _run (aAttachments, aKey, aIV, 2);
+      s_aLogger.info (nCount +
+                      " attachment(s) of " +
+                      ATTACHMENT_SIZE / CGlobal.BYTES_PER_KILOBYTE +
+                      " KB: sequential " +
+                      nSequential +
+                      " ms, parallel " +
+                      nParallel +
+                      " ms");
+    }
+  }
+}
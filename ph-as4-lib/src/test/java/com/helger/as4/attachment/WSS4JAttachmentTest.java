@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.mail.internet.InternetHeaders;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+
+/**
+ * Test class for class {@link WSS4JAttachment}.
+ *
+ * @author Philip Helger
+ */
+public final class WSS4JAttachmentTest
+{
+  private static void _testIncomingStreamed (final int nSize, final boolean bBase64) throws Exception
+  {
+    final byte [] aSrc = new byte [nSize];
+    new Random (nSize).nextBytes (aSrc);
+
+    final InternetHeaders aHeaders = new InternetHeaders ();
+    aHeaders.addHeader ("Content-Type", "application/octet-stream");
+    aHeaders.addHeader ("Content-ID", "<id" + nSize + ">");
+    if (bBase64)
+      aHeaders.addHeader ("Content-Transfer-Encoding", "base64");
+    final byte [] aTransferred = bBase64 ? Base64.getMimeEncoder ().encode (aSrc) : aSrc;
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createIncomingFileAttachment (aHeaders,
+                                                                                         new NonBlockingByteArrayInputStream (aTransferred),
+                                                                                         aResMgr);
+      assertEquals ("id" + nSize, aAttachment.getId ());
+      assertEquals ("application/octet-stream", aAttachment.getMimeType ());
+
+      // Must be readable more than once
+      assertArrayEquals (aSrc, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+      assertArrayEquals (aSrc, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+    }
+  }
+
+  @Test
+  public void testCreateIncomingInMemory () throws Exception
+  {
+    _testIncomingStreamed (0, false);
+    _testIncomingStreamed (100, false);
+    _testIncomingStreamed (100, true);
+  }
+
+  @Test
+  public void testCreateIncomingSpilledToFile () throws Exception
+  {
+    _testIncomingStreamed (512 * CGlobal.BYTES_PER_KILOBYTE, false);
+    _testIncomingStreamed (512 * CGlobal.BYTES_PER_KILOBYTE + 17, true);
+  }
+
+  @Test
+  public void testCreateIncomingDefaultContentType () throws Exception
+  {
+    final InternetHeaders aHeaders = new InternetHeaders ();
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final byte [] aSrc = "abc".getBytes (StandardCharsets.ISO_8859_1);
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createIncomingFileAttachment (aHeaders,
+                                                                                         new NonBlockingByteArrayInputStream (aSrc),
+                                                                                         aResMgr);
+      assertEquals ("text/plain", aAttachment.getMimeType ());
+      assertArrayEquals (aSrc, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+    }
+  }
+
+  @Test
+  public void testCreateRepeatableInputStreamProvider () throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      for (final int nSize : new int [] { 10, 512 * CGlobal.BYTES_PER_KILOBYTE })
+      {
+        final byte [] aSrc = new byte [nSize];
+        new Random (nSize).nextBytes (aSrc);
+        final IHasInputStream aISP = WSS4JAttachment.createRepeatableInputStreamProvider (new NonBlockingByteArrayInputStream (aSrc),
+                                                                                           aResMgr);
+        assertTrue (aISP.isReadMultiple ());
+        assertArrayEquals (aSrc, StreamHelper.getAllBytes (aISP.getInputStream ()));
+        assertArrayEquals (aSrc, StreamHelper.getAllBytes (aISP.getInputStream ()));
+      }
+    }
+  }
+
+  @Test
+  public void testCreateOutgoingCompressedLazily () throws Exception
+  {
+    final byte [] aSrc = new byte [256 * CGlobal.BYTES_PER_KILOBYTE];
+    new Random (17).nextBytes (aSrc);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createOutgoingFileAttachment (aSrc,
+                                                                                        "test.bin",
+                                                                                        CMimeType.APPLICATION_OCTET_STREAM,
+                                                                                        EAS4CompressionMode.GZIP,
+                                                                                        aResMgr);
+      final AS4CompressingInputStreamProvider aISP = (AS4CompressingInputStreamProvider) aAttachment.getInputStreamProvider ();
+      assertTrue (aISP.isReadMultiple ());
+      // Nothing compressed yet
+      assertNull (aISP.getCompressedFile ());
+
+      // Partial read does not complete the spill file
+      try (final InputStream aIS = aAttachment.getSourceStream ())
+      {
+        assertTrue (aIS.read () >= 0);
+      }
+      assertNull (aISP.getCompressedFile ());
+
+      // First complete read compresses and spills in one pass
+      final byte [] aCompressed = StreamHelper.getAllBytes (aAttachment.getSourceStream ());
+      assertNotNull (aISP.getCompressedFile ());
+      assertEquals (aCompressed.length, aISP.getCompressedFile ().length ());
+
+      // Further reads use the spill file
+      assertArrayEquals (aCompressed, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+      assertArrayEquals (aSrc,
+                         StreamHelper.getAllBytes (EAS4CompressionMode.GZIP.getDecompressStream (new NonBlockingByteArrayInputStream (aCompressed))));
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.httpclient.response.ResponseHandlerString;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AbstractAS4Client}.
+ *
+ * @author Philip Helger
+ */
+public final class AbstractAS4ClientTest
+{
+  private static final class MockClient extends AbstractAS4Client
+  {
+    private final boolean m_bFailBuild;
+
+    MockClient (final boolean bFailBuild)
+    {
+      m_bFailBuild = bFailBuild;
+    }
+
+    @Override
+    public BuiltMessage buildMessage () throws Exception
+    {
+      if (m_bFailBuild)
+        throw new IllegalStateException ("build failed");
+      return new BuiltMessage (createMessageID (), new StringEntity ("<x/>", ContentType.TEXT_XML));
+    }
+  }
+
+  @Test
+  public void testSendMessageAsync () throws Exception
+  {
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/as4", aExchange -> {
+      StreamHelper.getAllBytes (aExchange.getRequestBody ());
+      final byte [] aResponse = "pong".getBytes (StandardCharsets.UTF_8);
+      aExchange.sendResponseHeaders (200, aResponse.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aResponse);
+      }
+    });
+    aServer.start ();
+    try
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final CompletableFuture <AbstractAS4Client.SentMessage <String>> aFuture = new MockClient (false).sendMessageAsync (sURL,
+                                                                                                                         new ResponseHandlerString ());
+      final AbstractAS4Client.SentMessage <String> aSentMsg = aFuture.get (30, TimeUnit.SECONDS);
+      assertTrue (aSentMsg.hasResponse ());
+      assertEquals ("pong", aSentMsg.getResponse ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+
+  @Test
+  public void testSendMessageAsyncBuildError () throws Exception
+  {
+    try
+    {
+      new MockClient (true).sendMessageAsync ("http://localhost:1/as4", new ResponseHandlerString ())
+                           .get (30, TimeUnit.SECONDS);
+      fail ();
+    }
+    catch (final ExecutionException ex)
+    {
+      assertTrue (ex.getCause () instanceof IllegalStateException);
+    }
+  }
+}
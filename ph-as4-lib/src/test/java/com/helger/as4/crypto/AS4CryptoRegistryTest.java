@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.security.KeyStore;
+
+import javax.annotation.Nonnull;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.io.file.FileHelper;
+
+/**
+ * Test class for class {@link AS4CryptoRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CryptoRegistryTest
+{
+  private static void _writeEmptyKeyStore (final File aFile) throws Exception
+  {
+    final KeyStore aKS = KeyStore.getInstance ("JKS");
+    aKS.load (null, null);
+    try (final OutputStream aOS = FileHelper.getOutputStream (aFile))
+    {
+      aKS.store (aOS, "test".toCharArray ());
+    }
+  }
+
+  @Test
+  public void testCacheAndReload () throws Exception
+  {
+    final File aFile = File.createTempFile ("as4-crypto", ".jks");
+    final long nOldInterval = AS4CryptoRegistry.getCheckIntervalMS ();
+    try
+    {
+      _writeEmptyKeyStore (aFile);
+
+      final ICommonsMap <String, String> aProps = new CommonsHashMap <> ();
+      aProps.put ("org.apache.wss4j.crypto.provider", org.apache.wss4j.common.crypto.Merlin.class.getName ());
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", aFile.getAbsolutePath ());
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", "jks");
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", "test");
+      final CryptoProperties aCP = new CryptoProperties (aProps);
+      assertTrue (AS4CryptoRegistry.isSupported (aCP));
+      assertFalse (AS4CryptoRegistry.isSupported (new CryptoProperties ((ICommonsMap <String, String>) null)));
+
+      AS4CryptoRegistry.setCheckIntervalMS (0);
+
+      // Shared between different calls
+      final Crypto aCrypto = AS4CryptoRegistry.getEntry (aCP).getCrypto ();
+      assertNotNull (aCrypto);
+      assertTrue (aCrypto instanceof AS4KeyCachingMerlin);
+      assertSame (aCrypto, AS4CryptoRegistry.getEntry (aCP).getCrypto ());
+      assertEquals (aFile.getAbsoluteFile (), AS4CryptoRegistry.getEntry (aCP).getKeyStoreFile ().getAbsoluteFile ());
+
+      // Modify the file
+      _writeEmptyKeyStore (aFile);
+      assertTrue (aFile.setLastModified (aFile.lastModified () + 10_000));
+      final Crypto aCrypto2 = AS4CryptoRegistry.getEntry (aCP).getCrypto ();
+      assertNotSame (aCrypto, aCrypto2);
+      assertSame (aCrypto2, AS4CryptoRegistry.getEntry (aCP).getCrypto ());
+    }
+    finally
+    {
+      AS4CryptoRegistry.setCheckIntervalMS (nOldInterval);
+      AS4CryptoRegistry.clearCache ();
+      aFile.delete ();
+    }
+  }
+
+  @Nonnull
+  private static CryptoProperties _createCP (@Nonnull final File aFile)
+  {
+    final ICommonsMap <String, String> aProps = new CommonsHashMap <> ();
+    aProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", aFile.getAbsolutePath ());
+    aProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", "jks");
+    aProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", "test");
+    return new CryptoProperties (aProps);
+  }
+
+  @Test
+  public void testTrustStore () throws Exception
+  {
+    final File aKeyStoreFile = File.createTempFile ("as4-crypto", ".jks");
+    final File aTrustStoreFile1 = File.createTempFile ("as4-trust", ".jks");
+    final File aTrustStoreFile2 = File.createTempFile ("as4-trust", ".jks");
+    final long nOldInterval = AS4CryptoRegistry.getCheckIntervalMS ();
+    try
+    {
+      _writeEmptyKeyStore (aKeyStoreFile);
+      _writeEmptyKeyStore (aTrustStoreFile1);
+      _writeEmptyKeyStore (aTrustStoreFile2);
+
+      final ICommonsMap <String, String> aProps = new CommonsHashMap <> ();
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", aKeyStoreFile.getAbsolutePath ());
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", "jks");
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", "test");
+      aProps.put ("org.apache.wss4j.crypto.merlin.truststore.type", "jks");
+      aProps.put ("org.apache.wss4j.crypto.merlin.truststore.password", "test");
+      aProps.put ("org.apache.wss4j.crypto.merlin.truststore.file", aTrustStoreFile1.getAbsolutePath ());
+      final CryptoProperties aCP1 = new CryptoProperties (aProps);
+      aProps.put ("org.apache.wss4j.crypto.merlin.truststore.file", aTrustStoreFile2.getAbsolutePath ());
+      final CryptoProperties aCP2 = new CryptoProperties (aProps);
+
+      AS4CryptoRegistry.setCheckIntervalMS (0);
+
+      // Same keystore but different truststores
+      final AS4CryptoEntry aEntry1 = AS4CryptoRegistry.getEntry (aCP1);
+      assertNotSame (aEntry1.getCrypto (), AS4CryptoRegistry.getEntry (aCP2).getCrypto ());
+      assertEquals (aTrustStoreFile1.getAbsoluteFile (), aEntry1.getTrustStoreFile ().getAbsoluteFile ());
+      assertSame (aEntry1.getCrypto (), AS4CryptoRegistry.getEntry (aCP1).getCrypto ());
+
+      // Modify the truststore only
+      _writeEmptyKeyStore (aTrustStoreFile1);
+      assertTrue (aTrustStoreFile1.setLastModified (aTrustStoreFile1.lastModified () + 10_000));
+      assertNotSame (aEntry1.getCrypto (), AS4CryptoRegistry.getEntry (aCP1).getCrypto ());
+    }
+    finally
+    {
+      AS4CryptoRegistry.setCheckIntervalMS (nOldInterval);
+      AS4CryptoRegistry.clearCache ();
+      aKeyStoreFile.delete ();
+      aTrustStoreFile1.delete ();
+      aTrustStoreFile2.delete ();
+    }
+  }
+
+  @Test
+  public void testEviction () throws Exception
+  {
+    final File aFile1 = File.createTempFile ("as4-crypto", ".jks");
+    final File aFile2 = File.createTempFile ("as4-crypto", ".jks");
+    final int nOldMaxSize = AS4CryptoRegistry.getMaxSize ();
+    try
+    {
+      _writeEmptyKeyStore (aFile1);
+      _writeEmptyKeyStore (aFile2);
+      final CryptoProperties aCP1 = _createCP (aFile1);
+      final CryptoProperties aCP2 = _createCP (aFile2);
+
+      AS4CryptoRegistry.setMaxSize (1);
+      assertEquals (0, AS4CryptoRegistry.size ());
+
+      // Loaded lazily
+      final Crypto aCrypto1 = AS4CryptoRegistry.getEntry (aCP1).getCrypto ();
+      assertEquals (1, AS4CryptoRegistry.size ());
+      assertSame (aCrypto1, AS4CryptoRegistry.getEntry (aCP1).getCrypto ());
+
+      // Evicts the first one
+      final Crypto aCrypto2 = AS4CryptoRegistry.getEntry (aCP2).getCrypto ();
+      assertNotSame (aCrypto1, aCrypto2);
+      assertEquals (1, AS4CryptoRegistry.size ());
+
+      // Loaded again
+      assertNotSame (aCrypto1, AS4CryptoRegistry.getEntry (aCP1).getCrypto ());
+      assertEquals (1, AS4CryptoRegistry.size ());
+    }
+    finally
+    {
+      AS4CryptoRegistry.setMaxSize (nOldMaxSize);
+      aFile1.delete ();
+      aFile2.delete ();
+    }
+  }
+}
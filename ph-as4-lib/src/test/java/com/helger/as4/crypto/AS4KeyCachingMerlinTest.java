@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+import org.apache.wss4j.common.ext.WSPasswordCallback;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Test;
+
+import com.helger.commons.io.file.FileHelper;
+
+/**
+ * Test class for class {@link AS4KeyCachingMerlin}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4KeyCachingMerlinTest
+{
+  @Test
+  public void testCachedVariants () throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (1024);
+    final KeyPair aKeyPair = aKPG.generateKeyPair ();
+    final X500Name aName = new X500Name ("CN=test");
+    final long nNow = System.currentTimeMillis ();
+    final JcaX509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (aName,
+                                                                                  BigInteger.ONE,
+                                                                                  new Date (nNow),
+                                                                                  new Date (nNow + 60_000),
+                                                                                  aName,
+                                                                                  aKeyPair.getPublic ());
+    final ContentSigner aSigner = new JcaContentSignerBuilder ("SHA256withRSA").build (aKeyPair.getPrivate ());
+    final X509Certificate aCert = new JcaX509CertificateConverter ().getCertificate (aBuilder.build (aSigner));
+
+    final File aFile = File.createTempFile ("as4-crypto", ".jks");
+    try
+    {
+      final KeyStore aKS = KeyStore.getInstance ("JKS");
+      aKS.load (null, null);
+      aKS.setKeyEntry ("test", aKeyPair.getPrivate (), "key".toCharArray (), new Certificate [] { aCert });
+      try (final OutputStream aOS = FileHelper.getOutputStream (aFile))
+      {
+        aKS.store (aOS, "test".toCharArray ());
+      }
+
+      final Properties aProps = new Properties ();
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", aFile.getAbsolutePath ());
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", "jks");
+      aProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", "test");
+      final AS4KeyCachingMerlin aCrypto = new AS4KeyCachingMerlin (aProps, null, null);
+
+      // By alias and password
+      final PrivateKey aKey = aCrypto.getPrivateKey ("test", "key");
+      assertSame (aKey, aCrypto.getPrivateKey ("test", "key"));
+
+      final AtomicInteger aCallbackCount = new AtomicInteger (0);
+      final CallbackHandler aCB = aCallbacks -> {
+        aCallbackCount.incrementAndGet ();
+        for (final Callback aCallback : aCallbacks)
+          ((WSPasswordCallback) aCallback).setPassword ("key");
+      };
+
+      // By certificate and callback - used for decryption
+      assertSame (aKey, aCrypto.getPrivateKey (aCert, aCB));
+      assertSame (aKey, aCrypto.getPrivateKey (aCert, aCB));
+      assertEquals (1, aCallbackCount.get ());
+
+      // By public key and callback
+      assertSame (aKey, aCrypto.getPrivateKey (aCert.getPublicKey (), aCB));
+      assertSame (aKey, aCrypto.getPrivateKey (aCert.getPublicKey (), aCB));
+      assertEquals (2, aCallbackCount.get ());
+
+      // A different callback handler is asked for the password again
+      final CallbackHandler aOtherCB = aCallbacks -> aCB.handle (aCallbacks);
+      assertSame (aKey, aCrypto.getPrivateKey (aCert, aOtherCB));
+      assertEquals (3, aCallbackCount.get ());
+    }
+    finally
+    {
+      aFile.delete ();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.apache.wss4j.common.crypto.Merlin;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Test;
+
+import com.helger.commons.CGlobal;
+
+/**
+ * Test class for class {@link AS4TrustVerificationCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4TrustVerificationCacheTest
+{
+  private static X509Certificate _createCert (final String sCN) throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (1024);
+    final KeyPair aKP = aKPG.generateKeyPair ();
+    final X500Name aName = new X500Name ("CN=" + sCN);
+    final long nNow = System.currentTimeMillis ();
+    final JcaX509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (aName,
+                                                                                  BigInteger.ONE,
+                                                                                  new Date (nNow - CGlobal.MILLISECONDS_PER_HOUR),
+                                                                                  new Date (nNow + CGlobal.MILLISECONDS_PER_HOUR),
+                                                                                  aName,
+                                                                                  aKP.getPublic ());
+    return new JcaX509CertificateConverter ().getCertificate (aBuilder.build (new JcaContentSignerBuilder ("SHA256withRSA").build (aKP.getPrivate ())));
+  }
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    final X509Certificate [] aCerts1 = { _createCert ("test1") };
+    final X509Certificate [] aCerts2 = { _createCert ("test2") };
+    final Merlin aCrypto = new Merlin ();
+    final long nOldTTL = AS4TrustVerificationCache.getTTLMS ();
+    try
+    {
+      final String sKey1 = AS4TrustVerificationCache.getCacheKey (aCerts1, false);
+      assertEquals (sKey1, AS4TrustVerificationCache.getCacheKey (aCerts1, false));
+      assertNotEquals (sKey1, AS4TrustVerificationCache.getCacheKey (aCerts1, true));
+      final String sKey2 = AS4TrustVerificationCache.getCacheKey (aCerts2, false);
+      assertNotEquals (sKey1, sKey2);
+
+      final long nHits = AS4TrustVerificationCache.getHitCount ();
+      final long nMisses = AS4TrustVerificationCache.getMissCount ();
+      assertFalse (AS4TrustVerificationCache.isTrusted (sKey1, aCrypto));
+      AS4TrustVerificationCache.putTrusted (sKey1, aCerts1, aCrypto);
+      assertTrue (AS4TrustVerificationCache.isTrusted (sKey1, aCrypto));
+      assertFalse (AS4TrustVerificationCache.isTrusted (sKey2, aCrypto));
+      // Different truststore
+      assertFalse (AS4TrustVerificationCache.isTrusted (sKey1, new Merlin ()));
+      assertEquals (nHits + 1, AS4TrustVerificationCache.getHitCount ());
+      assertEquals (nMisses + 3, AS4TrustVerificationCache.getMissCount ());
+
+      // Explicit invalidation
+      AS4TrustVerificationCache.putTrusted (sKey1, aCerts1, aCrypto);
+      AS4TrustVerificationCache.clearCache ();
+      assertFalse (AS4TrustVerificationCache.isTrusted (sKey1, aCrypto));
+
+      // Disabled
+      AS4TrustVerificationCache.setTTLMS (0);
+      AS4TrustVerificationCache.putTrusted (sKey1, aCerts1, aCrypto);
+      assertFalse (AS4TrustVerificationCache.isTrusted (sKey1, aCrypto));
+    }
+    finally
+    {
+      AS4TrustVerificationCache.setTTLMS (nOldTTL);
+      AS4TrustVerificationCache.clearCache ();
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.AS4TestRule;
+import com.helger.as4.client.AbstractAS4Client;
+import com.helger.as4.model.pmode.PModeReceptionAwareness;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.ETriState;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4DeliveryDispatcher}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DeliveryDispatcherTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  private static String _getReceipt (final String sRefToMessageID)
+  {
+    return "<S12:Envelope xmlns:S12='http://www.w3.org/2003/05/soap-envelope' xmlns:eb='http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/'>" +
+           "<S12:Header><eb:Messaging><eb:SignalMessage><eb:MessageInfo><eb:MessageId>r</eb:MessageId>" +
+           "<eb:RefToMessageId>" +
+           sRefToMessageID +
+           "</eb:RefToMessageId></eb:MessageInfo><eb:Receipt/></eb:SignalMessage></eb:Messaging></S12:Header>" +
+           "<S12:Body/></S12:Envelope>";
+  }
+
+  private static X509Certificate _createCertificate (final String sCN) throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (1024);
+    final KeyPair aKeyPair = aKPG.generateKeyPair ();
+    final X500Name aName = new X500Name ("CN=" + sCN);
+    final long nNow = System.currentTimeMillis ();
+    final JcaX509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (aName,
+                                                                                  BigInteger.ONE,
+                                                                                  new Date (nNow),
+                                                                                  new Date (nNow + 60_000),
+                                                                                  aName,
+                                                                                  aKeyPair.getPublic ());
+    final ContentSigner aSigner = new JcaContentSignerBuilder ("SHA256withRSA").build (aKeyPair.getPrivate ());
+    return new JcaX509CertificateConverter ().getCertificate (aBuilder.build (aSigner));
+  }
+
+  @Test
+  public void testGetSynchronousReceiptState ()
+  {
+    assertEquals (ETriState.UNDEFINED, AS4DeliveryDispatcher.getSynchronousReceiptState (null, "a"));
+    assertEquals (ETriState.UNDEFINED,
+                  AS4DeliveryDispatcher.getSynchronousReceiptState ("--MIME".getBytes (StandardCharsets.UTF_8), "a"));
+    assertEquals (ETriState.TRUE,
+                  AS4DeliveryDispatcher.getSynchronousReceiptState (_getReceipt ("a").getBytes (StandardCharsets.UTF_8),
+                                                                    "a"));
+    assertEquals (ETriState.UNDEFINED,
+                  AS4DeliveryDispatcher.getSynchronousReceiptState (_getReceipt ("b").getBytes (StandardCharsets.UTF_8),
+                                                                    "a"));
+
+    // BOM and leading whitespace
+    assertEquals (ETriState.TRUE,
+                  AS4DeliveryDispatcher.getSynchronousReceiptState (("\uFEFF \r\n" +
+                                                                     _getReceipt ("a")).getBytes (StandardCharsets.UTF_8),
+                                                                    "a"));
+
+    // MIME with and without content type
+    final String sMime = "\r\n--bnd\r\nContent-Type: application/soap+xml\r\n\r\n" +
+                         _getReceipt ("a") +
+                         "\r\n--bnd\r\nContent-Type: application/octet-stream\r\n\r\nabc\r\n--bnd--\r\n";
+    assertEquals (ETriState.TRUE,
+                  AS4DeliveryDispatcher.getSynchronousReceiptState (sMime.getBytes (StandardCharsets.UTF_8),
+                                                                    "multipart/related; boundary=\"bnd\"",
+                                                                    "a"));
+    assertEquals (ETriState.TRUE,
+                  AS4DeliveryDispatcher.getSynchronousReceiptState (sMime.getBytes (StandardCharsets.UTF_8), "a"));
+    assertEquals (ETriState.UNDEFINED,
+                  AS4DeliveryDispatcher.getSynchronousReceiptState (sMime.getBytes (StandardCharsets.UTF_8), "b"));
+  }
+
+  @Test
+  public void testRetryUntilReceipt () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/as4", aExchange -> {
+      StreamHelper.getAllBytes (aExchange.getRequestBody ());
+      final int nCall = aCalls.incrementAndGet ();
+      // Fail first, then always respond with a receipt for "msg1"
+      final byte [] aResponse = (nCall == 1 ? "error" : _getReceipt ("msg1")).getBytes (StandardCharsets.UTF_8);
+      aExchange.sendResponseHeaders (nCall == 1 ? 500 : 200, aResponse.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aResponse);
+      }
+    });
+    aServer.start ();
+    try
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final AS4DeliveryDispatcher aDispatcher = AS4DeliveryDispatcher.getInstance ();
+      aDispatcher.setDefaultReceptionAwareness (new PModeReceptionAwareness (ETriState.TRUE,
+                                                                             ETriState.TRUE,
+                                                                             2,
+                                                                             10,
+                                                                             ETriState.TRUE));
+
+      // Synchronous receipt after one retry
+      IAS4OutgoingDelivery aDelivery = aDispatcher.submit (new AbstractAS4Client.BuiltMessage ("msg1",
+                                                                                               new StringEntity ("<x/>",
+                                                                                                                 ContentType.TEXT_XML)),
+                                                           sURL,
+                                                           null,
+                                                           null)
+                                                  .get (30, TimeUnit.SECONDS);
+      assertEquals (EAS4DeliveryState.DELIVERED, aDelivery.getState ());
+      assertEquals (2, aDelivery.getAttemptCount ());
+      assertNull (aDispatcher.getQueueMgr ().getDeliveryOfID ("msg1"));
+
+      // No synchronous receipt - wait for the asynchronous one
+      aDispatcher.setDefaultReceptionAwareness (new PModeReceptionAwareness (ETriState.TRUE,
+                                                                             ETriState.TRUE,
+                                                                             2,
+                                                                             60_000,
+                                                                             ETriState.TRUE));
+      final X509Certificate aPartnerCert = _createCertificate ("partner");
+      final CompletableFuture <IAS4OutgoingDelivery> aFuture = aDispatcher.submit (new AbstractAS4Client.BuiltMessage ("msg2",
+                                                                                                                       new StringEntity ("<x/>",
+                                                                                                                                         ContentType.TEXT_XML)),
+                                                                                   sURL,
+                                                                                   null,
+                                                                                   aPartnerCert);
+      while (aDispatcher.getQueueMgr ().getDeliveryOfID ("msg2").getState () != EAS4DeliveryState.AWAITING_RECEIPT)
+        Thread.sleep (10);
+
+      // Unsigned or signed by someone else - the delivery stays pending
+      assertFalse (aDispatcher.onReceiptReceived ("msg2", null));
+      assertFalse (aDispatcher.onErrorReceived ("msg2", "forged", null));
+      assertFalse (aDispatcher.onReceiptReceived ("msg2", _createCertificate ("attacker")));
+      assertEquals (EAS4DeliveryState.AWAITING_RECEIPT,
+                    aDispatcher.getQueueMgr ().getDeliveryOfID ("msg2").getState ());
+      assertFalse (aFuture.isDone ());
+
+      assertTrue (aDispatcher.onReceiptReceived ("msg2", aPartnerCert));
+      assertFalse (aDispatcher.onReceiptReceived ("msg2", aPartnerCert));
+      aDelivery = aFuture.get (30, TimeUnit.SECONDS);
+      assertEquals (EAS4DeliveryState.DELIVERED, aDelivery.getState ());
+      assertEquals (1, aDelivery.getAttemptCount ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.Duration;
+
+import org.junit.Test;
+
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.file.FileOperations;
+
+/**
+ * Test class for class {@link AS4SegmentedDuplicateStore}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SegmentedDuplicateStoreTest
+{
+  @Test
+  public void testBasic () throws Exception
+  {
+    final File aDir = new File ("target/duplicate-test");
+    FileOperations.deleteDirRecursiveIfExisting (aDir);
+    try
+    {
+      try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir,
+                                                                                Duration.ofMinutes (1),
+                                                                                Duration.ofHours (1)))
+      {
+        assertTrue (aStore.isEmpty ());
+        assertTrue (aStore.registerAndCheck (null, null, null).isContinue ());
+        assertTrue (aStore.registerAndCheck ("a", null, null).isContinue ());
+        assertTrue (aStore.registerAndCheck ("b", "profile", "pmode").isContinue ());
+        assertTrue (aStore.registerAndCheck ("a", null, null).isBreak ());
+        assertEquals (2, aStore.size ());
+        assertEquals (1, aStore.getSegmentCount ());
+
+        // Buffered appends are written upon flush
+        aStore.flush ();
+        final File [] aFiles = aDir.getAbsoluteFile ().listFiles ();
+        assertEquals (1, aFiles.length);
+        assertTrue (aFiles[0].length () > 0);
+
+        // Nothing is older than an hour
+        assertTrue (aStore.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().minusHours (1)).isEmpty ());
+      }
+
+      // Read from disk again
+      try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir, Duration.ofMinutes (1)))
+      {
+        assertEquals (2, aStore.size ());
+        assertTrue (aStore.containsMessageID ("a"));
+        assertTrue (aStore.registerAndCheck ("b", null, null).isBreak ());
+
+        // Evict the complete segment
+        assertEquals (2, aStore.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().plusMinutes (2)).size ());
+        assertTrue (aStore.isEmpty ());
+        assertEquals (0, aStore.getSegmentCount ());
+        assertFalse (aStore.containsMessageID ("a"));
+        assertTrue (aStore.registerAndCheck ("a", null, null).isContinue ());
+        assertTrue (aStore.clearCache ().isChanged ());
+      }
+
+      // Everything was evicted
+      try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir, Duration.ofMinutes (1)))
+      {
+        assertTrue (aStore.isEmpty ());
+
+        // Import with the original reception time
+        assertTrue (aStore.register ("old", PDTFactory.getCurrentLocalDateTime ().minusHours (2)).isContinue ());
+        assertTrue (aStore.register ("old", PDTFactory.getCurrentLocalDateTime ()).isBreak ());
+        assertEquals (1, aStore.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().minusHours (1)).size ());
+        assertTrue (aStore.isEmpty ());
+      }
+    }
+    finally
+    {
+      FileOperations.deleteDirRecursiveIfExisting (aDir);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4PooledHttpClientFactory}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4PooledHttpClientFactoryTest
+{
+  @Test
+  public void testSharedPool () throws Exception
+  {
+    final AS4PooledHttpClientFactory aFactory = new AS4PooledHttpClientFactory ().setMaxTotal (7).setMaxPerRoute (3);
+    assertFalse (aFactory.isPoolCreated ());
+    assertEquals (7, aFactory.getTotalStats ().getMax ());
+
+    try
+    {
+      final HttpClientConnectionManager aMgr = aFactory.createConnectionManager ();
+      assertTrue (aFactory.isPoolCreated ());
+      assertSame (aMgr, aFactory.createConnectionManager ());
+
+      // Closing a client must not close the shared pool
+      try (final CloseableHttpClient aClient = aFactory.createHttpClient ())
+      {}
+      assertSame (aMgr, aFactory.createConnectionManager ());
+      assertEquals (7, aFactory.getTotalStats ().getMax ());
+      assertEquals (0, aFactory.getTotalStats ().getLeased ());
+      assertTrue (aFactory.getAllRouteStats ().isEmpty ());
+
+      // Apply changes to an existing pool
+      aFactory.setMaxTotal (11);
+      assertEquals (11, aFactory.getTotalStats ().getMax ());
+
+      aFactory.shutdown ();
+      assertFalse (aFactory.isPoolCreated ());
+      assertNotSame (aMgr, aFactory.createConnectionManager ());
+    }
+    finally
+    {
+      aFactory.shutdown ();
+    }
+  }
+}
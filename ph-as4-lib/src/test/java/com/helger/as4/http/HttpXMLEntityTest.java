@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.util.AS4XMLHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link HttpXMLEntity}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpXMLEntityTest
+{
+  @Test
+  public void testBasic () throws Exception
+  {
+    final Document aDoc = DOMReader.readXMLDOM ("<root xmlns='urn:test'><child attr='ä'>text</child></root>");
+    final byte [] aExpected = AS4XMLHelper.serializeXML (aDoc).getBytes (AS4XMLHelper.XWS.getCharset ());
+
+    HttpXMLEntity aEntity = new HttpXMLEntity (aDoc, ESOAPVersion.SOAP_12, false);
+    assertTrue (aEntity.isRepeatable ());
+    assertEquals (-1, aEntity.getContentLength ());
+    assertEquals (ESOAPVersion.SOAP_12.getMimeType ().getAsString (), aEntity.getContentType ().getValue ());
+
+    // Write twice
+    for (int i = 0; i < 2; ++i)
+    {
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+      aEntity.writeTo (aBAOS);
+      assertArrayEquals (aExpected, aBAOS.toByteArray ());
+    }
+    assertArrayEquals (aExpected, StreamHelper.getAllBytes (aEntity.getContent ()));
+
+    // Content-Length is the default
+    aEntity = new HttpXMLEntity (aDoc, ESOAPVersion.SOAP_12);
+    assertEquals (aExpected.length, aEntity.getContentLength ());
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.soap11.Soap11Envelope;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.jaxb.validation.CollectingValidationEventHandler;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Test class for class {@link Ebms3MarshallerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class Ebms3MarshallerPoolTest
+{
+  private static Element _readMessagingElement (final String sPath)
+  {
+    final Soap11Envelope aEnv = Ebms3ReaderBuilder.soap11 ().read (new ClassPathResource (sPath));
+    assertNotNull (aEnv);
+    return (Element) aEnv.getHeader ().getAnyAtIndex (0);
+  }
+
+  @Test
+  public void testReadAndWrite ()
+  {
+    final Element aElement = _readMessagingElement ("/soap11test/UserMessage.xml");
+    final Ebms3Messaging aMessaging = Ebms3MarshallerPool.read (EEbms3DocumentType.MESSAGING,
+                                                                Ebms3Messaging.class,
+                                                                aElement,
+                                                                null);
+    assertNotNull (aMessaging);
+
+    // Same result as the builder - also when reusing the pooled marshaller
+    final String sExpected = XMLWriter.getNodeAsString (Ebms3WriterBuilder.ebms3Messaging ()
+                                                                          .getAsDocument (aMessaging));
+    for (int i = 0; i < 3; ++i)
+    {
+      final Document aDoc = Ebms3MarshallerPool.getAsDocument (EEbms3DocumentType.MESSAGING, aMessaging);
+      assertNotNull (aDoc);
+      assertEquals (sExpected, XMLWriter.getNodeAsString (aDoc));
+      assertNotNull (Ebms3MarshallerPool.read (EEbms3DocumentType.MESSAGING,
+                                               Ebms3Messaging.class,
+                                               aDoc.getDocumentElement (),
+                                               null));
+    }
+  }
+
+  @Test
+  public void testValidation ()
+  {
+    final Element aElement = _readMessagingElement ("/soap11test/MessageInfoMissing.xml");
+
+    CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    assertNull (Ebms3MarshallerPool.read (EEbms3DocumentType.MESSAGING, Ebms3Messaging.class, aElement, aCVEH));
+    assertTrue (aCVEH.getErrorList ().containsAtLeastOneError ());
+
+    assertTrue (Ebms3MarshallerPool.isXSDValidationEnabled ());
+    Ebms3MarshallerPool.setXSDValidationEnabled (false);
+    try
+    {
+      // Trusted partner mode
+      aCVEH = new CollectingValidationEventHandler ();
+      assertNotNull (Ebms3MarshallerPool.read (EEbms3DocumentType.MESSAGING, Ebms3Messaging.class, aElement, aCVEH));
+      assertFalse (aCVEH.getErrorList ().containsAtLeastOneError ());
+    }
+    finally
+    {
+      Ebms3MarshallerPool.setXSDValidationEnabled (true);
+    }
+
+    // Validating again
+    assertNull (Ebms3MarshallerPool.read (EEbms3DocumentType.MESSAGING,
+                                          Ebms3Messaging.class,
+                                          aElement,
+                                          new CollectingValidationEventHandler ()));
+  }
+}
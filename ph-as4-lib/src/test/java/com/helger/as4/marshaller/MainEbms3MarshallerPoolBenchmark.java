@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.soap11.Soap11Envelope;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * Simple benchmark comparing reading and writing an ebMS Messaging header with
+ * new builders per call (the old behaviour), with the pooled (un)marshallers of
+ * {@link Ebms3MarshallerPool} and with the pool without XSD validation.
+ *
+ * @author Philip Helger
+ */
+public final class MainEbms3MarshallerPoolBenchmark
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MainEbms3MarshallerPoolBenchmark.class);
+  private static final int WARMUP = 2_000;
+  private static final int RUNS = 20_000;
+
+  private MainEbms3MarshallerPoolBenchmark ()
+  {}
+
+  @Nonnull
+  private static Document _roundtripBuilder (@Nonnull final Element aElement)
+  {
+    final Ebms3Messaging aMessaging = Ebms3ReaderBuilder.ebms3Messaging ().read (aElement);
+    return Ebms3WriterBuilder.ebms3Messaging ().getAsDocument (aMessaging);
+  }
+
+  @Nonnull
+  private static Document _roundtripPool (@Nonnull final Element aElement)
+  {
+    final Ebms3Messaging aMessaging = Ebms3MarshallerPool.read (EEbms3DocumentType.MESSAGING,
+                                                                Ebms3Messaging.class,
+                                                                aElement,
+                                                                null);
+    return Ebms3MarshallerPool.getAsDocument (EEbms3DocumentType.MESSAGING, aMessaging);
+  }
+
+  private static long _run (@Nonnull final Element aElement, @Nonnull final Function <Element, Document> aRoundtrip)
+  {
+    // Avoid dead code elimination
+    long nTotal = 0;
+    for (int i = 0; i < WARMUP; ++i)
+      nTotal += aRoundtrip.apply (aElement).getDocumentElement ().getChildNodes ().getLength ();
+
+    final StopWatch aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < RUNS; ++i)
+      nTotal += aRoundtrip.apply (aElement).getDocumentElement ().getChildNodes ().getLength ();
+    final long nNanos = aSW.stopAndGetNanos ();
+    s_aLogger.debug ("Total: " + nTotal);
+    return nNanos / RUNS;
+  }
+
+  public static void main (final String [] args)
+  {
+    final Soap11Envelope aEnv = Ebms3ReaderBuilder.soap11 ().read (new ClassPathResource ("/soap11test/UserMessage.xml"));
+    final Element aElement = (Element) aEnv.getHeader ().getAnyAtIndex (0);
+
+    final long nBuilder = _run (aElement, MainEbms3MarshallerPoolBenchmark::_roundtripBuilder);
+    final long nPool = _run (aElement, MainEbms3MarshallerPoolBenchmark::_roundtripPool);
+    Ebms3MarshallerPool.setXSDValidationEnabled (false);
+    final long nPoolNoXSD = _run (aElement, MainEbms3MarshallerPoolBenchmark::_roundtripPool);
+    Ebms3MarshallerPool.setXSDValidationEnabled (true);
+
+    s_aLogger.info ("New builders per message:      " + nBuilder + " ns/message");
+    s_aLogger.info ("Pooled (un)marshallers:        " + nPool + " ns/message");
+    s_aLogger.info ("Pooled without XSD validation: " + nPoolNoXSD + " ns/message");
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.messaging.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.marshaller.Ebms3WriterBuilder;
+import com.helger.as4.marshaller.XMLDSigReaderBuilder;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4lib.ebms3header.Ebms3Receipt;
+import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
+import com.helger.as4lib.ebms3header.MessagePartNRInformation;
+import com.helger.as4lib.ebms3header.NonRepudiationInformation;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.xml.XMLHelper;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Test class for class {@link ReceiptMessageCreator}.
+ *
+ * @author Philip Helger
+ */
+public final class ReceiptMessageCreatorTest
+{
+  private static final String REFERENCE = "<ds:Reference URI='#%s'>" +
+                                          "<ds:Transforms><ds:Transform Algorithm='http://www.w3.org/2001/10/xml-exc-c14n#'>" +
+                                          "<ec:InclusiveNamespaces xmlns:ec='http://www.w3.org/2001/10/xml-exc-c14n#' PrefixList='S12'/>" +
+                                          "</ds:Transform></ds:Transforms>" +
+                                          "<ds:DigestMethod Algorithm='http://www.w3.org/2001/04/xmlenc#sha256'/>" +
+                                          "<ds:DigestValue>%s</ds:DigestValue>" +
+                                          "</ds:Reference>";
+  private static final String SIGNED_MESSAGE = "<S12:Envelope xmlns:S12='http://www.w3.org/2003/05/soap-envelope'>" +
+                                               "<S12:Header><wsse:Security xmlns:wsse='" +
+                                               CAS4.WSSE_NS +
+                                               "'><ds:Signature xmlns:ds='" +
+                                               CAS4.DS_NS +
+                                               "'><ds:SignedInfo>" +
+                                               "<ds:CanonicalizationMethod Algorithm='http://www.w3.org/2001/10/xml-exc-c14n#'/>" +
+                                               "<ds:SignatureMethod Algorithm='http://www.w3.org/2001/04/xmldsig-more#rsa-sha256'/>" +
+                                               String.format (REFERENCE, "id-1", "GWKtt4aoCBaAr5V4Vna6NwjuD9Vj/SVj1MEbPaSvrbM=") +
+                                               String.format (REFERENCE, "id-2", "EOHWFx7IPs3x6R0IIAcmY9KB1dmtt0PU2K0M7Ktkvuc=") +
+                                               "</ds:SignedInfo><ds:SignatureValue>AAAA</ds:SignatureValue></ds:Signature>" +
+                                               "</wsse:Security></S12:Header><S12:Body/></S12:Envelope>";
+  // Indented like created by Apache Santuario
+  private static final String REFERENCE_INDENTED = "<ds:Reference URI=\"#%s\">\n" +
+                                                   "<ds:Transforms>\n" +
+                                                   "<ds:Transform Algorithm=\"http://www.w3.org/2001/10/xml-exc-c14n#\">" +
+                                                   "<ec:InclusiveNamespaces xmlns:ec=\"http://www.w3.org/2001/10/xml-exc-c14n#\" PrefixList=\"S12\"/>" +
+                                                   "</ds:Transform>\n" +
+                                                   "</ds:Transforms>\n" +
+                                                   "<!-- digest -->\n" +
+                                                   "<ds:DigestMethod Algorithm=\"http://www.w3.org/2001/04/xmlenc#sha256\"/>\n" +
+                                                   "<ds:DigestValue>%s</ds:DigestValue>\n" +
+                                                   "</ds:Reference>\n";
+  private static final String SIGNED_MESSAGE_INDENTED = "<S12:Envelope xmlns:S12=\"http://www.w3.org/2003/05/soap-envelope\">\n" +
+                                                        "  <S12:Header>\n" +
+                                                        "    <wsse:Security xmlns:wsse=\"" +
+                                                        CAS4.WSSE_NS +
+                                                        "\">\n" +
+                                                        "      <ds:Signature xmlns:ds=\"" +
+                                                        CAS4.DS_NS +
+                                                        "\">\n" +
+                                                        "<ds:SignedInfo>\n" +
+                                                        "<ds:CanonicalizationMethod Algorithm=\"http://www.w3.org/2001/10/xml-exc-c14n#\"/>\n" +
+                                                        "<ds:SignatureMethod Algorithm=\"http://www.w3.org/2001/04/xmldsig-more#rsa-sha256\"/>\n" +
+                                                        String.format (REFERENCE_INDENTED,
+                                                                       "id-1",
+                                                                       "GWKtt4aoCBaAr5V4Vna6NwjuD9Vj/SVj1MEbPaSvrbM=") +
+                                                        String.format (REFERENCE_INDENTED,
+                                                                       "id-2",
+                                                                       "EOHWFx7IPs3x6R0IIAcmY9KB1dmtt0PU2K0M7Ktkvuc=") +
+                                                        "</ds:SignedInfo>\n" +
+                                                        "<ds:SignatureValue>\nAAAA\n</ds:SignatureValue>\n" +
+                                                        "</ds:Signature>\n" +
+                                                        "    </wsse:Security>\n" +
+                                                        "  </S12:Header>\n" +
+                                                        "  <S12:Body/>\n" +
+                                                        "</S12:Envelope>";
+
+  @Nonnull
+  private static Element _getNRI (@Nonnull final Document aReceiptDoc)
+  {
+    final ESOAPVersion eSOAPVersion = ESOAPVersion.SOAP_12;
+    Element aNext = XMLHelper.getFirstChildElementOfName (aReceiptDoc.getDocumentElement (),
+                                                          eSOAPVersion.getNamespaceURI (),
+                                                          eSOAPVersion.getHeaderElementName ());
+    aNext = XMLHelper.getFirstChildElementOfName (aNext, CAS4.EBMS_NS, "Messaging");
+    aNext = XMLHelper.getFirstChildElementOfName (aNext, CAS4.EBMS_NS, "SignalMessage");
+    aNext = XMLHelper.getFirstChildElementOfName (aNext, CAS4.EBMS_NS, "Receipt");
+    aNext = XMLHelper.getFirstChildElementOfName (aNext, CAS4.EBBP_NS, "NonRepudiationInformation");
+    assertNotNull (aNext);
+    return aNext;
+  }
+
+  private static void _testSameAsJAXB (@Nonnull final String sSignedMessage) throws Exception
+  {
+    final ESOAPVersion eSOAPVersion = ESOAPVersion.SOAP_12;
+    final Document aSignedDoc = DOMReader.readXMLDOM (sSignedMessage);
+    assertNotNull (aSignedDoc);
+    final AS4ReceiptMessage aReceipt = ReceiptMessageCreator.createReceiptMessage (eSOAPVersion,
+                                                                                   "receipt-id",
+                                                                                   null,
+                                                                                   aSignedDoc,
+                                                                                   true);
+    final Element aNRI = _getNRI (aReceipt.getAsSOAPDocument ());
+    assertEquals (2, XMLHelper.getDirectChildElementCountNS (aNRI, CAS4.EBBP_NS, "MessagePartNRInformation"));
+
+    // Create the same with JAXB as done before
+    final ICommonsList <Node> aDSRefs = new CommonsArrayList <> ();
+    final Element aSignedInfo = (Element) aSignedDoc.getElementsByTagNameNS (CAS4.DS_NS, "SignedInfo").item (0);
+    for (final Element aRef : XMLHelper.getChildElementIteratorNS (aSignedInfo, CAS4.DS_NS, "Reference"))
+      aDSRefs.add (aRef);
+    assertEquals (2, aDSRefs.size ());
+
+    final NonRepudiationInformation aNonRepudiationInformation = new NonRepudiationInformation ();
+    for (final Node aRef : aDSRefs)
+    {
+      final MessagePartNRInformation aMessagePartNRInformation = new MessagePartNRInformation ();
+      aMessagePartNRInformation.setReference (XMLDSigReaderBuilder.dsigReference ().read (aRef));
+      aNonRepudiationInformation.addMessagePartNRInformation (aMessagePartNRInformation);
+    }
+    final Ebms3Receipt aEbms3Receipt = new Ebms3Receipt ();
+    aEbms3Receipt.addAny (Ebms3WriterBuilder.nonRepudiationInformation ()
+                                            .getAsDocument (aNonRepudiationInformation)
+                                            .getDocumentElement ());
+    final Ebms3SignalMessage aSignalMessage = new Ebms3SignalMessage ();
+    aSignalMessage.setMessageInfo (MessageHelperMethods.createEbms3MessageInfo ("receipt-id", null));
+    aSignalMessage.setReceipt (aEbms3Receipt);
+    final Element aJAXBNRI = _getNRI (new AS4ReceiptMessage (eSOAPVersion, aSignalMessage).getAsSOAPDocument ());
+
+    assertEquals (XMLWriter.getNodeAsString (aJAXBNRI), XMLWriter.getNodeAsString (aNRI));
+  }
+
+  @Test
+  public void testNonRepudiationInformationSameAsJAXB () throws Exception
+  {
+    _testSameAsJAXB (SIGNED_MESSAGE);
+  }
+
+  @Test
+  public void testNonRepudiationInformationIndented () throws Exception
+  {
+    _testSameAsJAXB (SIGNED_MESSAGE_INDENTED);
+  }
+}
@@ -17,6 +17,8 @@
 package com.helger.as4.model.pmode;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -24,6 +26,10 @@ import org.junit.rules.TestRule;
 
 import com.helger.as4.AS4TestRule;
 import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.EMEP;
+import com.helger.as4.model.EMEPBinding;
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
 
 /**
  * Test class for class {@link PModeManager}.
@@ -41,4 +47,92 @@ public final class PModeManagerTest
     final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
     assertNotNull (aPModeMgr);
   }
+
+  @Test
+  public void testIndexedLookup ()
+  {
+    final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
+    final PMode aPMode = new PMode (IPModeIDProvider.DEFAULT_DYNAMIC,
+                                    PModeParty.createSimple ("idx-init", "Role"),
+                                    PModeParty.createSimple ("idx-resp", "Role"),
+                                    "agreement",
+                                    EMEP.ONE_WAY,
+                                    EMEPBinding.PUSH,
+                                    new PModeLeg (null,
+                                                  new PModeLegBusinessInformation ("idx-service",
+                                                                                   "idx-action",
+                                                                                   null,
+                                                                                   null),
+                                                  null,
+                                                  null,
+                                                  null),
+                                    new PModeLeg (null,
+                                                  new PModeLegBusinessInformation ("idx-service2",
+                                                                                   "idx-action2",
+                                                                                   null,
+                                                                                   null),
+                                                  null,
+                                                  null,
+                                                  null),
+                                    null,
+                                    null);
+    aPModeMgr.createPMode (aPMode);
+    try
+    {
+      assertSame (aPMode, aPModeMgr.getPModeOfServiceAndAction ("idx-service", "idx-action"));
+      assertNull (aPModeMgr.getPModeOfServiceAndAction ("idx-service", "idx-action2"));
+      assertNull (aPModeMgr.getPModeOfServiceAndAction ("idx-service2", "idx-action2"));
+
+      // Update must be reflected in the index
+      final PMode aUpdate = new PMode (IPModeIDProvider.DEFAULT_DYNAMIC,
+                                       aPMode.getInitiator (),
+                                       aPMode.getResponder (),
+                                       "agreement",
+                                       EMEP.ONE_WAY,
+                                       EMEPBinding.PUSH,
+                                       new PModeLeg (null,
+                                                     new PModeLegBusinessInformation ("idx-service3",
+                                                                                      "idx-action3",
+                                                                                      null,
+                                                                                      null),
+                                                     null,
+                                                     null,
+                                                     null),
+                                       null,
+                                       null,
+                                       null);
+      aPModeMgr.updatePMode (aUpdate);
+      assertNull (aPModeMgr.getPModeOfServiceAndAction ("idx-service", "idx-action"));
+      assertSame (aPMode, aPModeMgr.getPModeOfServiceAndAction ("idx-service3", "idx-action3"));
+
+      // A second PMode with the same service and action
+      final PMode aPMode2 = new PMode (IPModeIDProvider.DEFAULT_DYNAMIC,
+                                       PModeParty.createSimple ("idx-init2", "Role"),
+                                       PModeParty.createSimple ("idx-resp2", "Role"),
+                                       "agreement",
+                                       EMEP.ONE_WAY,
+                                       EMEPBinding.PUSH,
+                                       aUpdate.getLeg1 (),
+                                       null,
+                                       null,
+                                       null);
+      aPModeMgr.createPMode (aPMode2);
+      try
+      {
+        // The first one is still found
+        assertSame (aPMode, aPModeMgr.getPModeOfServiceAndAction ("idx-service3", "idx-action3"));
+        aPModeMgr.deletePMode (aPMode.getID ());
+        assertSame (aPMode2, aPModeMgr.getPModeOfServiceAndAction ("idx-service3", "idx-action3"));
+      }
+      finally
+      {
+        aPModeMgr.deletePMode (aPMode2.getID ());
+      }
+    }
+    finally
+    {
+      aPModeMgr.deletePMode (aPMode.getID ());
+    }
+    assertNull (aPModeMgr.getPModeOfServiceAndAction ("idx-service3", "idx-action3"));
+  }
 }
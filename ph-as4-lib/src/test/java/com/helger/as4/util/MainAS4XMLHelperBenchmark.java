@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingStringWriter;
+import com.helger.commons.timing.StopWatch;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Simple benchmark comparing the serialization of a SOAP message with a new
+ * {@link Transformer} per call (the old behaviour) and with the cached
+ * {@link Transformer} of {@link AS4XMLHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class MainAS4XMLHelperBenchmark
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MainAS4XMLHelperBenchmark.class);
+  private static final int WARMUP = 2_000;
+  private static final int RUNS = 20_000;
+
+  private MainAS4XMLHelperBenchmark ()
+  {}
+
+  private interface ISerializer
+  {
+    String serialize (@Nonnull Node aNode) throws Exception;
+  }
+
+  @Nonnull
+  private static String _serializeUncached (@Nonnull final Node aNode) throws Exception
+  {
+    final Transformer aTransformer = TransformerFactory.newInstance ().newTransformer ();
+    aTransformer.setOutputProperty (OutputKeys.ENCODING, AS4XMLHelper.XWS.getCharset ().name ());
+    final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
+    aTransformer.transform (new DOMSource (aNode), new StreamResult (aSW));
+    return aSW.getAsString ();
+  }
+
+  private static long _run (@Nonnull final Node aNode, @Nonnull final ISerializer aSerializer) throws Exception
+  {
+    // Avoid dead code elimination
+    long nTotalLen = 0;
+    for (int i = 0; i < WARMUP; ++i)
+      nTotalLen += aSerializer.serialize (aNode).length ();
+
+    final StopWatch aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < RUNS; ++i)
+      nTotalLen += aSerializer.serialize (aNode).length ();
+    final long nNanos = aSW.stopAndGetNanos ();
+    s_aLogger.debug ("Total length: " + nTotalLen);
+    return nNanos / RUNS;
+  }
+
+  public static void main (final String [] args) throws Exception
+  {
+    final Document aDoc = DOMReader.readXMLDOM (new ClassPathResource ("soap12test/UserMessage12.xml"));
+    if (!_serializeUncached (aDoc).equals (AS4XMLHelper.serializeXML (aDoc)))
+      throw new IllegalStateException ("Different serialization results");
+
+    final long nUncached = _run (aDoc, MainAS4XMLHelperBenchmark::_serializeUncached);
+    final long nCached = _run (aDoc, AS4XMLHelper::serializeXML);
+    s_aLogger.info ("New Transformer per message: " + nUncached + " ns/message");
+    s_aLogger.info ("Cached Transformer:          " + nCached + " ns/message");
+  }
+}
@@ -23,7 +23,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 
 import com.helger.as4.AS4TestConstants;
-import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.IAS4DuplicateStore;
 import com.helger.as4.http.HttpXMLEntity;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.commons.concurrent.ThreadHelper;
@@ -56,7 +56,7 @@ public final class AS4CEFTwoWayFuncTest extends AbstractCEFTwoWayTestSetUp
   {
     // Needs to be cleared so we can exactly see if two messages are contained
     // in the duplicate manager
-    final AS4DuplicateManager aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
+    final IAS4DuplicateStore aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
     aIncomingDuplicateMgr.clearCache ();
     assertTrue (aIncomingDuplicateMgr.isEmpty ());
 
@@ -73,8 +73,8 @@ public final class AS4CEFTwoWayFuncTest extends AbstractCEFTwoWayTestSetUp
     // Should only be called once
     final String aID = nList.item (0).getTextContent ();
 
-    assertTrue (aIncomingDuplicateMgr.findFirst (x -> x.getMessageID ().equals (aID)) != null);
-    assertTrue (aIncomingDuplicateMgr.getAll ().size () == 2);
+    assertTrue (aIncomingDuplicateMgr.containsMessageID (aID));
+    assertTrue (aIncomingDuplicateMgr.size () == 2);
   }
 
   /**
@@ -99,7 +99,7 @@ public final class AS4CEFTwoWayFuncTest extends AbstractCEFTwoWayTestSetUp
   {
     // Needs to be cleared so we can exactly see if two messages are contained
     // in the duplicate manager
-    final AS4DuplicateManager aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
+    final IAS4DuplicateStore aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
     aIncomingDuplicateMgr.clearCache ();
     assertTrue (aIncomingDuplicateMgr.isEmpty ());
 
@@ -114,7 +114,7 @@ public final class AS4CEFTwoWayFuncTest extends AbstractCEFTwoWayTestSetUp
     final String aID = nList.item (0).getTextContent ();
     assertTrue (sResponse.contains ("eb:RefToMessageId"));
     assertTrue (sResponse.contains (aID));
-    assertTrue (aIncomingDuplicateMgr.findFirst (x -> x.getMessageID ().equals (aID)) != null);
-    assertTrue (aIncomingDuplicateMgr.getAll ().size () == 2);
+    assertTrue (aIncomingDuplicateMgr.containsMessageID (aID));
+    assertTrue (aIncomingDuplicateMgr.size () == 2);
   }
 }
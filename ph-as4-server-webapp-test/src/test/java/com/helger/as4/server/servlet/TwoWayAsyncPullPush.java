@@ -28,7 +28,7 @@ import org.w3c.dom.NodeList;
 
 import com.helger.as4.AS4TestConstants;
 import com.helger.as4.CAS4;
-import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.IAS4DuplicateStore;
 import com.helger.as4.esens.ESENSPMode;
 import com.helger.as4.http.HttpXMLEntity;
 import com.helger.as4.messaging.domain.PullRequestMessageCreator;
@@ -105,7 +105,7 @@ public class TwoWayAsyncPullPush extends AbstractUserMessageTestSetUpExt
   {
     // Needs to be cleared so we can exactly see if two messages are contained
     // in the duplicate manager
-    final AS4DuplicateManager aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
+    final IAS4DuplicateStore aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
     aIncomingDuplicateMgr.clearCache ();
     assertTrue (aIncomingDuplicateMgr.isEmpty ());
 
@@ -144,9 +144,9 @@ public class TwoWayAsyncPullPush extends AbstractUserMessageTestSetUpExt
     assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
     assertTrue (sResponse.contains ("<eb:RefToMessageId>" + aID));
 
-    assertTrue (aIncomingDuplicateMgr.findFirst (x -> x.getMessageID ().equals (aID)) != null);
+    assertTrue (aIncomingDuplicateMgr.containsMessageID (aID));
     // Pull => First UserMsg, Push part second UserMsg
-    assertTrue (aIncomingDuplicateMgr.getAll ().size () == 2);
+    assertTrue (aIncomingDuplicateMgr.size () == 2);
 
   }
 }
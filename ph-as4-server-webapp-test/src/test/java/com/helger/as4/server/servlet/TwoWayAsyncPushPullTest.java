@@ -28,7 +28,7 @@ import org.w3c.dom.NodeList;
 
 import com.helger.as4.AS4TestConstants;
 import com.helger.as4.CAS4;
-import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.IAS4DuplicateStore;
 import com.helger.as4.esens.ESENSPMode;
 import com.helger.as4.http.HttpXMLEntity;
 import com.helger.as4.messaging.domain.PullRequestMessageCreator;
@@ -105,7 +105,7 @@ public class TwoWayAsyncPushPullTest extends AbstractUserMessageTestSetUpExt
   {
     // Needs to be cleared so we can exactly see if two messages are contained
     // in the duplicate manager
-    final AS4DuplicateManager aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
+    final IAS4DuplicateStore aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
     aIncomingDuplicateMgr.clearCache ();
     assertTrue (aIncomingDuplicateMgr.isEmpty ());
     Document aDoc = _modifyUserMessage (m_aPMode.getID (), null, null, _defaultProperties (), null);
@@ -121,7 +121,7 @@ public class TwoWayAsyncPushPullTest extends AbstractUserMessageTestSetUpExt
     // Should only be called once
     final String aID = nList.item (0).getTextContent ();
 
-    assertTrue (aIncomingDuplicateMgr.findFirst (x -> x.getMessageID ().equals (aID)) != null);
+    assertTrue (aIncomingDuplicateMgr.containsMessageID (aID));
     assertTrue (aIncomingDuplicateMgr.size () == 1);
     assertTrue (sResponse.contains ("<eb:RefToMessageId>" + aID));
 
@@ -24,6 +24,8 @@ import javax.servlet.ServletContext;
 
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
+import com.helger.as4.client.AS4ClientExecutors;
+import com.helger.as4.http.AS4PooledHttpClientFactory;
 import com.helger.as4.servlet.AS4ServerInitializer;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
 import com.helger.commons.debug.GlobalDebug;
@@ -111,5 +113,7 @@ public final class AS4WebAppListener extends WebAppListener
   protected void beforeContextDestroyed (@Nonnull final ServletContext aSC)
   {
     DropFolderUserMessage.destroy ();
+    AS4ClientExecutors.shutdown ();
+    AS4PooledHttpClientFactory.getDefaultInstance ().shutdown ();
   }
 }
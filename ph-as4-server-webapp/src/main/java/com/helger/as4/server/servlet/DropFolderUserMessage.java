@@ -23,7 +23,6 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 
 import javax.annotation.Nonnull;
@@ -38,6 +37,7 @@ import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
 import com.helger.as4.CAS4;
 import com.helger.as4.client.AS4ClientUserMessage;
 import com.helger.as4.client.AbstractAS4Client.SentMessage;
+import com.helger.as4.crypto.AS4CryptoRegistry;
 import com.helger.as4.crypto.CryptoProperties;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
 import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
@@ -71,7 +71,6 @@ import com.helger.peppol.utils.W3CEndpointReferenceHelper;
 import com.helger.sbdh.builder.SBDHReader;
 import com.helger.sbdh.builder.SBDHWriter;
 import com.helger.security.certificate.CertificateHelper;
-import com.helger.security.keystore.KeyStoreHelper;
 
 public final class DropFolderUserMessage
 {
@@ -135,16 +134,14 @@ public final class DropFolderUserMessage
           else
           {
             final CryptoProperties aCP = AS4ServerSettings.getAS4CryptoFactory ().getCryptoProperties ();
-            final KeyStore aOurKS = KeyStoreHelper.loadKeyStore (aCP.getKeyStoreType (),
-                                                                 aCP.getKeyStorePath (),
-                                                                 aCP.getKeyStorePassword ())
-                                                  .getKeyStore ();
-            final KeyStore.PrivateKeyEntry aOurCert = KeyStoreHelper.loadPrivateKey (aOurKS,
-                                                                                     aCP.getKeyStorePath (),
-                                                                                     aCP.getKeyAlias (),
-                                                                                     aCP.getKeyPassword ()
-                                                                                        .toCharArray ())
-                                                                    .getKeyEntry ();
+            // Cached keystore - no need to touch the keystore file for every
+            // message
+            final X509Certificate aOurCert = AS4CryptoRegistry.getEntry (aCP).getCertificate ();
+            if (aOurCert == null)
+              throw new IllegalStateException ("Failed to resolve our certificate from keystore " +
+                                               aCP.getKeyStorePath () +
+                                               " and alias " +
+                                               aCP.getKeyAlias ());
             final X509Certificate aTheirCert = CertificateHelper.convertStringToCertficate (aEndpoint.getCertificate ());
 
             final AS4ClientUserMessage aClient = new AS4ClientUserMessage ();
@@ -172,8 +169,7 @@ public final class DropFolderUserMessage
             aClient.setAgreementRefValue ("xxx");
 
             aClient.setFromRole (CAS4.DEFAULT_ROLE);
-            aClient.setFromPartyID (_getCN (((X509Certificate) aOurCert.getCertificate ()).getSubjectX500Principal ()
-                                                                                          .getName ()));
+            aClient.setFromPartyID (_getCN (aOurCert.getSubjectX500Principal ().getName ()));
             aClient.setToRole (CAS4.DEFAULT_ROLE);
             aClient.setToPartyID (_getCN (aTheirCert.getSubjectX500Principal ().getName ()));
             aClient.setEbms3Properties (new CommonsArrayList <> (MessageHelperMethods.createEbms3Property (CAS4.ORIGINAL_SENDER,
@@ -0,0 +1,508 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.attr.IAttributeContainerAny;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.http.EHttpMethod;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.http.EHttpVersion;
+import com.helger.web.scope.IRequestWebScope;
+import com.helger.web.scope.mgr.WebScoped;
+import com.helger.xservlet.handler.IXServletHandler;
+
+/**
+ * An {@link IXServletHandler} that handles requests with Servlet 3.1
+ * asynchronous, non-blocking I/O. The request body is received with a
+ * {@link ReadListener} into a spill buffer, so that no container thread is
+ * blocked while a slow partner uploads. Afterwards the nested handler is
+ * invoked in a dedicated bounded pool and the buffered response is written
+ * with a {@link WriteListener}. If the queue of the pool is full, the request
+ * is rejected with HTTP 503. If the request does not support asynchronous
+ * processing, the nested handler is invoked synchronously.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncXServletHandler implements IXServletHandler
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4AsyncXServletHandler.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsRejected = StatisticsManager.getCounterHandler (AS4AsyncXServletHandler.class.getName () +
+                                                                                                                "$rejected");
+  private static final IMutableStatisticsHandlerCounter s_aStatsTimeout = StatisticsManager.getCounterHandler (AS4AsyncXServletHandler.class.getName () +
+                                                                                                               "$timeout");
+
+  /**
+   * A request whose body was already fully received.
+   */
+  private static final class BufferedRequest extends HttpServletRequestWrapper
+  {
+    private final IHasInputStream m_aBody;
+    private ServletInputStream m_aIS;
+
+    BufferedRequest (@Nonnull final HttpServletRequest aRequest, @Nonnull final IHasInputStream aBody)
+    {
+      super (aRequest);
+      m_aBody = aBody;
+    }
+
+    @Override
+    public ServletInputStream getInputStream ()
+    {
+      if (m_aIS == null)
+      {
+        final InputStream aIS = m_aBody.getInputStream ();
+        m_aIS = new ServletInputStream ()
+        {
+          private boolean m_bFinished = false;
+
+          @Override
+          public int read () throws IOException
+          {
+            final int ret = aIS.read ();
+            if (ret < 0)
+              m_bFinished = true;
+            return ret;
+          }
+
+          @Override
+          public int read (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+          {
+            final int ret = aIS.read (aBuf, nOfs, nLen);
+            if (ret < 0)
+              m_bFinished = true;
+            return ret;
+          }
+
+          @Override
+          public boolean isFinished ()
+          {
+            return m_bFinished;
+          }
+
+          @Override
+          public boolean isReady ()
+          {
+            return true;
+          }
+
+          @Override
+          public void setReadListener (final ReadListener aReadListener)
+          {
+            throw new IllegalStateException ("The request body was already received");
+          }
+
+          @Override
+          public void close () throws IOException
+          {
+            aIS.close ();
+          }
+        };
+      }
+      return m_aIS;
+    }
+  }
+
+  /**
+   * A response whose body is buffered, so that it can be written with
+   * non-blocking I/O afterwards.
+   */
+  private static final class BufferedResponse extends HttpServletResponseWrapper
+  {
+    private final ServletOutputStream m_aOS;
+    private PrintWriter m_aWriter;
+
+    BufferedResponse (@Nonnull final HttpServletResponse aResponse, @Nonnull final OutputStream aBody)
+    {
+      super (aResponse);
+      m_aOS = new ServletOutputStream ()
+      {
+        @Override
+        public void write (final int b) throws IOException
+        {
+          aBody.write (b);
+        }
+
+        @Override
+        public void write (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+        {
+          aBody.write (aBuf, nOfs, nLen);
+        }
+
+        @Override
+        public boolean isReady ()
+        {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener (final WriteListener aWriteListener)
+        {
+          throw new IllegalStateException ("The response body is buffered");
+        }
+      };
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream ()
+    {
+      return m_aOS;
+    }
+
+    @Override
+    public PrintWriter getWriter () throws IOException
+    {
+      if (m_aWriter == null)
+        m_aWriter = new PrintWriter (new OutputStreamWriter (m_aOS, getCharacterEncoding ()));
+      return m_aWriter;
+    }
+
+    @Override
+    public void flushBuffer () throws IOException
+    {
+      // Body is written afterwards
+      if (m_aWriter != null)
+        m_aWriter.flush ();
+    }
+
+    void finish ()
+    {
+      if (m_aWriter != null)
+        m_aWriter.flush ();
+    }
+  }
+
+  /**
+   * The state of a single asynchronous request.
+   */
+  private final class AsyncRequest implements ReadListener, WriteListener, AsyncListener
+  {
+    private final AsyncContext m_aAsyncContext;
+    // Captured once, because the async context cannot be used after completion
+    private final HttpServletRequest m_aRequest;
+    private final HttpServletResponse m_aResponse;
+    private final EHttpVersion m_eHttpVersion;
+    private final EHttpMethod m_eHttpMethod;
+    private final IAttributeContainerAny <String> m_aAttrs;
+    private final IAttributeContainerAny <String> m_aParams;
+    private final AS4ResourceManager m_aResMgr = new AS4ResourceManager ();
+    private final AS4SpillOutputStream m_aRequestBody = new AS4SpillOutputStream (m_aResMgr);
+    private final byte [] m_aBuffer = new byte [16 * CGlobal.BYTES_PER_KILOBYTE];
+    private final AtomicBoolean m_aProcessing = new AtomicBoolean (false);
+    private final AtomicBoolean m_aFinished = new AtomicBoolean (false);
+    private ServletInputStream m_aIS;
+    private volatile ServletOutputStream m_aOS;
+    private volatile InputStream m_aResponseIS;
+    private volatile boolean m_bTimedOut = false;
+
+    AsyncRequest (@Nonnull final AsyncContext aAsyncContext,
+                  @Nonnull final HttpServletRequest aRequest,
+                  @Nonnull final HttpServletResponse aResponse,
+                  @Nonnull final EHttpVersion eHttpVersion,
+                  @Nonnull final EHttpMethod eHttpMethod,
+                  @Nonnull final IRequestWebScope aRequestScope)
+    {
+      m_aAsyncContext = aAsyncContext;
+      m_aRequest = aRequest;
+      m_aResponse = aResponse;
+      m_eHttpVersion = eHttpVersion;
+      m_eHttpMethod = eHttpMethod;
+      m_aAttrs = aRequestScope.attrs ().getClone ();
+      m_aParams = aRequestScope.params ().getClone ();
+    }
+
+    void start () throws IOException
+    {
+      m_aAsyncContext.addListener (this);
+      m_aIS = m_aRequest.getInputStream ();
+      m_aIS.setReadListener (this);
+    }
+
+    private void _finish ()
+    {
+      if (m_aFinished.compareAndSet (false, true))
+      {
+        StreamHelper.close (m_aResponseIS);
+        StreamHelper.close (m_aResMgr);
+        try
+        {
+          m_aAsyncContext.complete ();
+        }
+        catch (final IllegalStateException ex)
+        {
+          // Already completed by the container, e.g. after a timeout
+          s_aLogger.debug ("Failed to complete async context: " + ex.getMessage ());
+        }
+      }
+    }
+
+    private void _finishWithStatus (final int nStatusCode)
+    {
+      try
+      {
+        if (!m_aResponse.isCommitted ())
+        {
+          m_aResponse.reset ();
+          m_aResponse.setStatus (nStatusCode);
+        }
+      }
+      catch (final IllegalStateException ex)
+      {
+        // Response is no longer usable, e.g. after a timeout
+        s_aLogger.debug ("Failed to set response status " + nStatusCode + ": " + ex.getMessage ());
+      }
+      _finish ();
+    }
+
+    public void onDataAvailable () throws IOException
+    {
+      int nRead;
+      while (m_aIS.isReady () && (nRead = m_aIS.read (m_aBuffer)) >= 0)
+        m_aRequestBody.write (m_aBuffer, 0, nRead);
+    }
+
+    public void onAllDataRead ()
+    {
+      m_aRequestBody.close ();
+      try
+      {
+        m_aProcessing.set (true);
+        m_aES.execute (this::_process);
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        m_aProcessing.set (false);
+        s_aStatsRejected.increment ();
+        s_aLogger.warn ("Rejecting AS4 request because the processing queue is full");
+        _finishWithStatus (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      }
+    }
+
+    private void _process ()
+    {
+      final AS4SpillOutputStream aResponseBody = new AS4SpillOutputStream (m_aResMgr);
+      boolean bWriting = false;
+      try
+      {
+        final HttpServletRequest aRequest = new BufferedRequest (m_aRequest, m_aRequestBody.getAsInputStreamProvider ());
+        final BufferedResponse aResponse = new BufferedResponse (m_aResponse, aResponseBody);
+        try (final WebScoped aWebScoped = new WebScoped (aRequest, aResponse))
+        {
+          aWebScoped.getRequestScope ().attrs ().putAllIn (m_aAttrs);
+          aWebScoped.getRequestScope ().params ().putAllIn (m_aParams);
+          m_aNestedHandler.onRequest (aRequest,
+                                      aResponse,
+                                      m_eHttpVersion,
+                                      m_eHttpMethod,
+                                      aWebScoped.getRequestScope ());
+        }
+        aResponse.finish ();
+        aResponseBody.close ();
+
+        if (!m_aFinished.get () && !m_bTimedOut)
+        {
+          // Write the response non-blocking
+          m_aResponseIS = aResponseBody.getAsInputStreamProvider ().getInputStream ();
+          m_aOS = m_aResponse.getOutputStream ();
+          m_aOS.setWriteListener (this);
+          bWriting = true;
+        }
+      }
+      catch (final Throwable t)
+      {
+        StreamHelper.close (aResponseBody);
+        s_aLogger.error ("Error processing async AS4 request", t);
+        _finishWithStatus (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+      finally
+      {
+        // Release all resources if the response is not written
+        if (!bWriting)
+          _finish ();
+      }
+    }
+
+    public void onWritePossible () throws IOException
+    {
+      while (m_aOS.isReady ())
+      {
+        final int nRead = m_aResponseIS.read (m_aBuffer);
+        if (nRead < 0)
+        {
+          _finish ();
+          return;
+        }
+        m_aOS.write (m_aBuffer, 0, nRead);
+      }
+    }
+
+    public void onError (@Nonnull final Throwable t)
+    {
+      // Read or write error - usually the client went away
+      s_aLogger.warn ("I/O error on async AS4 request: " + t.getMessage ());
+      if (!m_aProcessing.get () || m_aOS != null)
+        _finish ();
+    }
+
+    public void onStartAsync (@Nonnull final AsyncEvent aEvent)
+    {}
+
+    public void onComplete (@Nonnull final AsyncEvent aEvent)
+    {}
+
+    public void onTimeout (@Nonnull final AsyncEvent aEvent)
+    {
+      s_aStatsTimeout.increment ();
+      m_bTimedOut = true;
+      s_aLogger.warn ("Async AS4 request timed out" + (m_aProcessing.get () ? " while processing" : " while receiving"));
+      // Resources of a running processing are released when it is done
+      if (!m_aProcessing.get () || m_aOS != null)
+        _finishWithStatus (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    public void onError (@Nonnull final AsyncEvent aEvent)
+    {
+      onError (aEvent.getThrowable ());
+    }
+  }
+
+  private final IXServletHandler m_aNestedHandler;
+  private final long m_nTimeoutMS;
+  private final int m_nThreads;
+  private final int m_nQueueSize;
+  private ThreadPoolExecutor m_aES;
+
+  /**
+   * Constructor
+   *
+   * @param aNestedHandler
+   *        The handler to be invoked once the request body is received. May
+   *        not be <code>null</code>.
+   * @param nTimeoutMS
+   *        The maximum milliseconds for the whole request. Values &le; 0 mean
+   *        no timeout.
+   * @param nThreads
+   *        The number of processing threads. Must be &gt; 0.
+   * @param nQueueSize
+   *        The maximum number of received requests waiting for processing.
+   *        Must be &gt; 0.
+   */
+  public AS4AsyncXServletHandler (@Nonnull final IXServletHandler aNestedHandler,
+                                  final long nTimeoutMS,
+                                  @Nonnegative final int nThreads,
+                                  @Nonnegative final int nQueueSize)
+  {
+    ValueEnforcer.notNull (aNestedHandler, "NestedHandler");
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    m_aNestedHandler = aNestedHandler;
+    m_nTimeoutMS = nTimeoutMS;
+    m_nThreads = nThreads;
+    m_nQueueSize = nQueueSize;
+  }
+
+  @Override
+  public void onServletInit (@Nonnull final ICommonsMap <String, String> aInitParams) throws ServletException
+  {
+    m_aNestedHandler.onServletInit (aInitParams);
+    m_aES = AS4WorkerPool.createExecutorService (m_nThreads, m_nQueueSize, EAS4WorkerRejectionPolicy.REJECT, 0);
+  }
+
+  @Override
+  public void onServletDestroy ()
+  {
+    if (m_aES != null)
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+      m_aES = null;
+    }
+    m_aNestedHandler.onServletDestroy ();
+  }
+
+  /**
+   * @return The number of received requests waiting for processing. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public int getQueueDepth ()
+  {
+    final ThreadPoolExecutor aES = m_aES;
+    return aES == null ? 0 : aES.getQueue ().size ();
+  }
+
+  public void onRequest (@Nonnull final HttpServletRequest aHttpRequest,
+                         @Nonnull final HttpServletResponse aHttpResponse,
+                         @Nonnull final EHttpVersion eHttpVersion,
+                         @Nonnull final EHttpMethod eHttpMethod,
+                         @Nonnull final IRequestWebScope aRequestScope) throws ServletException, IOException
+  {
+    if (m_aES == null || !aHttpRequest.isAsyncSupported ())
+    {
+      // Fallback to synchronous processing
+      m_aNestedHandler.onRequest (aHttpRequest, aHttpResponse, eHttpVersion, eHttpMethod, aRequestScope);
+      return;
+    }
+
+    final AsyncContext aAsyncContext = aHttpRequest.startAsync (aHttpRequest, aHttpResponse);
+    aAsyncContext.setTimeout (m_nTimeoutMS > 0 ? m_nTimeoutMS : 0);
+    new AsyncRequest (aAsyncContext, aHttpRequest, aHttpResponse, eHttpVersion, eHttpMethod, aRequestScope).start ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("NestedHandler", m_aNestedHandler)
+                                       .append ("TimeoutMS", m_nTimeoutMS)
+                                       .append ("Threads", m_nThreads)
+                                       .append ("QueueSize", m_nQueueSize)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Lightweight StAX scanner for the ebMS <code>Messaging</code> SOAP header. It
+ * only reads the beginning of a SOAP envelope and extracts the values required
+ * to resolve the PMode, so that messages that will be rejected anyway don't
+ * need to be parsed completely.
+ *
+ * @author Philip Helger
+ */
+final class AS4EbmsHeaderPreScanner
+{
+  /**
+   * The values extracted from the ebMS header.
+   */
+  @NotThreadSafe
+  static final class Result
+  {
+    private ESOAPVersion m_eSOAPVersion;
+    private boolean m_bUserMessage;
+    private String m_sMessageID;
+    private String m_sMPC;
+    private String m_sPModeID;
+    private String m_sService;
+    private String m_sAction;
+    private String m_sFromPartyID;
+    private String m_sToPartyID;
+    private int m_nFromPartyIDs;
+    private int m_nToPartyIDs;
+
+    Result ()
+    {}
+
+    @Nonnull
+    ESOAPVersion getSOAPVersion ()
+    {
+      return m_eSOAPVersion;
+    }
+
+    boolean isUserMessage ()
+    {
+      return m_bUserMessage;
+    }
+
+    @Nullable
+    String getMessageID ()
+    {
+      return m_sMessageID;
+    }
+
+    @Nullable
+    String getMPC ()
+    {
+      return m_sMPC;
+    }
+
+    @Nullable
+    String getPModeID ()
+    {
+      return m_sPModeID;
+    }
+
+    @Nullable
+    String getService ()
+    {
+      return m_sService;
+    }
+
+    @Nullable
+    String getAction ()
+    {
+      return m_sAction;
+    }
+
+    @Nullable
+    String getFromPartyID ()
+    {
+      return m_sFromPartyID;
+    }
+
+    @Nullable
+    String getToPartyID ()
+    {
+      return m_sToPartyID;
+    }
+
+    /**
+     * @return <code>true</code> if exactly one From and one To party ID is
+     *         present.
+     */
+    boolean hasSinglePartyIDs ()
+    {
+      return m_nFromPartyIDs == 1 && m_nToPartyIDs == 1;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("SOAPVersion", m_eSOAPVersion)
+                                         .append ("UserMessage", m_bUserMessage)
+                                         .append ("MessageID", m_sMessageID)
+                                         .append ("MPC", m_sMPC)
+                                         .append ("PModeID", m_sPModeID)
+                                         .append ("Service", m_sService)
+                                         .append ("Action", m_sAction)
+                                         .append ("FromPartyID", m_sFromPartyID)
+                                         .append ("ToPartyID", m_sToPartyID)
+                                         .getToString ();
+    }
+  }
+
+  /**
+   * Input stream that returns EOF after a maximum number of bytes and that
+   * does not close the underlying stream.
+   */
+  private static final class LimitedInputStream extends FilterInputStream
+  {
+    private long m_nRemaining;
+
+    LimitedInputStream (@Nonnull final InputStream aIS, @Nonnegative final long nMaxBytes)
+    {
+      super (aIS);
+      m_nRemaining = nMaxBytes;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      if (m_nRemaining <= 0)
+        return -1;
+      final int ret = super.read ();
+      if (ret >= 0)
+        m_nRemaining--;
+      return ret;
+    }
+
+    @Override
+    public int read (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      if (m_nRemaining <= 0)
+        return -1;
+      final int ret = super.read (aBuf, nOfs, (int) Math.min (nLen, m_nRemaining));
+      if (ret > 0)
+        m_nRemaining -= ret;
+      return ret;
+    }
+
+    @Override
+    public long skip (final long n) throws IOException
+    {
+      final long ret = super.skip (Math.min (n, m_nRemaining));
+      m_nRemaining -= ret;
+      return ret;
+    }
+
+    @Override
+    public boolean markSupported ()
+    {
+      return false;
+    }
+
+    @Override
+    public void close ()
+    {
+      // Don't close the underlying stream
+    }
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4EbmsHeaderPreScanner.class);
+
+  private static final XMLInputFactory s_aXIF = XMLInputFactory.newFactory ();
+
+  static
+  {
+    s_aXIF.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    s_aXIF.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    s_aXIF.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    s_aXIF.setProperty (XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+  }
+
+  private AS4EbmsHeaderPreScanner ()
+  {}
+
+  @Nullable
+  private static String _getText (@Nonnull final XMLStreamReader aReader) throws XMLStreamException
+  {
+    return StringHelper.trim (aReader.getElementText ());
+  }
+
+  /**
+   * Scan the SOAP header of the passed stream. At most the passed number of
+   * bytes is read.
+   *
+   * @param aIS
+   *        The input stream to read the SOAP envelope from. May not be
+   *        <code>null</code>. Is not closed.
+   * @param nMaxBytes
+   *        The maximum number of bytes to read. Must be &gt; 0.
+   * @return <code>null</code> if the stream is no SOAP envelope, if no ebMS
+   *         header is contained, if the header is not complete within the
+   *         maximum number of bytes, if more than one message unit is present
+   *         or if parsing fails.
+   */
+  @Nullable
+  static Result scan (@Nonnull final InputStream aIS, @Nonnegative final int nMaxBytes)
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.isGT0 (nMaxBytes, "MaxBytes");
+
+    try
+    {
+      final XMLStreamReader aReader = s_aXIF.createXMLStreamReader (new LimitedInputStream (aIS, nMaxBytes));
+      try
+      {
+        final Result ret = new Result ();
+        // Local names of all open elements below the ebMS Messaging element
+        final ICommonsList <String> aPath = new CommonsArrayList <> ();
+        int nDepth = 0;
+        int nMessageUnits = 0;
+        boolean bMessagingFound = false;
+        while (aReader.hasNext ())
+        {
+          final int nEvent = aReader.next ();
+          if (nEvent == XMLStreamConstants.START_ELEMENT)
+          {
+            nDepth++;
+            final String sNamespaceURI = aReader.getNamespaceURI ();
+            final String sLocalName = aReader.getLocalName ();
+            if (nDepth == 1)
+            {
+              ret.m_eSOAPVersion = ESOAPVersion.getFromNamespaceURIOrNull (sNamespaceURI);
+              if (ret.m_eSOAPVersion == null)
+                return null;
+            }
+            else
+              if (nDepth == 2)
+              {
+                if (ret.m_eSOAPVersion.getBodyElementName ().equals (sLocalName))
+                {
+                  // Header is done
+                  break;
+                }
+              }
+              else
+                if (nDepth == 3)
+                {
+                  if (CAS4.EBMS_NS.equals (sNamespaceURI) && "Messaging".equals (sLocalName))
+                    bMessagingFound = true;
+                }
+                else
+                  if (bMessagingFound && aPath.size () == nDepth - 4 && CAS4.EBMS_NS.equals (sNamespaceURI))
+                  {
+                    aPath.add (sLocalName);
+                    final String sPath = StringHelper.getImploded ('/', aPath);
+                    boolean bTextRead = false;
+                    switch (sPath)
+                    {
+                      case "UserMessage":
+                        nMessageUnits++;
+                        ret.m_bUserMessage = true;
+                        ret.m_sMPC = aReader.getAttributeValue (null, "mpc");
+                        break;
+                      case "SignalMessage":
+                        nMessageUnits++;
+                        break;
+                      case "UserMessage/MessageInfo/MessageId":
+                      case "SignalMessage/MessageInfo/MessageId":
+                        ret.m_sMessageID = _getText (aReader);
+                        bTextRead = true;
+                        break;
+                      case "UserMessage/PartyInfo/From/PartyId":
+                        ret.m_nFromPartyIDs++;
+                        ret.m_sFromPartyID = _getText (aReader);
+                        bTextRead = true;
+                        break;
+                      case "UserMessage/PartyInfo/To/PartyId":
+                        ret.m_nToPartyIDs++;
+                        ret.m_sToPartyID = _getText (aReader);
+                        bTextRead = true;
+                        break;
+                      case "UserMessage/CollaborationInfo/AgreementRef":
+                        ret.m_sPModeID = aReader.getAttributeValue (null, "pmode");
+                        break;
+                      case "UserMessage/CollaborationInfo/Service":
+                        ret.m_sService = _getText (aReader);
+                        bTextRead = true;
+                        break;
+                      case "UserMessage/CollaborationInfo/Action":
+                        ret.m_sAction = _getText (aReader);
+                        bTextRead = true;
+                        break;
+                    }
+                    if (nMessageUnits > 1)
+                    {
+                      // Leave it to the regular processing
+                      return null;
+                    }
+                    if (bTextRead)
+                    {
+                      // End element was already consumed
+                      nDepth--;
+                      aPath.removeLast ();
+                    }
+                  }
+          }
+          else
+            if (nEvent == XMLStreamConstants.END_ELEMENT)
+            {
+              if (aPath.size () == nDepth - 3)
+                aPath.removeLast ();
+              nDepth--;
+              if (nDepth == 1)
+              {
+                // End of SOAP header
+                break;
+              }
+            }
+        }
+
+        if (!bMessagingFound || nMessageUnits == 0)
+          return null;
+        return ret;
+      }
+      finally
+      {
+        aReader.close ();
+      }
+    }
+    catch (final XMLStreamException | RuntimeException ex)
+    {
+      // E.g. the header is larger than the maximum number of bytes
+      if (s_aLogger.isDebugEnabled ())
+        s_aLogger.debug ("Failed to pre-scan ebMS header: " + ex.getMessage ());
+      return null;
+    }
+  }
+}
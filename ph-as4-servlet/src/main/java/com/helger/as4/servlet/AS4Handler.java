@@ -16,15 +16,18 @@
  */
 package com.helger.as4.servlet;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipException;
 
@@ -32,6 +35,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.servlet.http.HttpServletRequest;
@@ -50,9 +54,11 @@ import org.xml.sax.SAXException;
 import com.helger.as4.CAS4;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.IIncomingAttachmentFactory;
+import com.helger.as4.attachment.IIncomingAttachmentStreamFactory;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.client.BasicAS4Sender;
 import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.delivery.AS4DeliveryDispatcher;
 import com.helger.as4.error.EEbmsError;
 import com.helger.as4.http.AS4HttpDebug;
 import com.helger.as4.http.HttpMimeMessageEntity;
@@ -103,21 +109,27 @@ import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
 import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.callback.IThrowingRunnable;
 import com.helger.commons.collection.ArrayHelper;
 import com.helger.commons.collection.CollectionHelper;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.error.IError;
 import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.http.CHttpHeader;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.EMimeContentType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.mime.MimeType;
 import com.helger.commons.mime.MimeTypeParser;
 import com.helger.commons.state.ISuccessIndicator;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
 import com.helger.commons.string.StringHelper;
 import com.helger.httpclient.response.ResponseHandlerXml;
 import com.helger.web.multipart.MultipartProgressNotifier;
@@ -158,8 +170,11 @@ public final class AS4Handler implements AutoCloseable
 
     public void applyToResponse (@Nonnull final ESOAPVersion eSOAPVersion, @Nonnull final AS4Response aHttpResponse)
     {
-      final String sXML = AS4XMLHelper.serializeXML (m_aDoc);
-      aHttpResponse.setContentAndCharset (sXML, AS4XMLHelper.XWS.getCharset ())
+      // Serialize directly to bytes without an intermediate String
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+      AS4XMLHelper.serializeXML (m_aDoc, aBAOS);
+      aHttpResponse.setContent (aBAOS.directGetBuffer (), 0, aBAOS.size ())
+                   .setCharset (AS4XMLHelper.XWS.getCharset ())
                    .setMimeType (eSOAPVersion.getMimeType ());
     }
 
@@ -220,10 +235,12 @@ public final class AS4Handler implements AutoCloseable
   private static final IMimeType MT_MULTIPART_RELATED = EMimeContentType.MULTIPART.buildMimeType ("related");
 
   private static final AtomicBoolean s_aDebug = new AtomicBoolean (false);
+  private static final IMutableStatisticsHandlerCounter s_aStatsPreScanRejected = StatisticsManager.getCounterHandler (AS4Handler.class.getName () +
+                                                                                                                      "$prescan-rejected");
 
   private final AS4ResourceManager m_aResMgr = new AS4ResourceManager ();
   private Locale m_aLocale = CGlobal.DEFAULT_LOCALE;
-  private final AS4CryptoFactory m_aCryptoFactory = AS4CryptoFactory.DEFAULT_INSTANCE;
+  private AS4CryptoFactory m_aCryptoFactory = AS4ServerSettings.getAS4CryptoFactory ();
 
   public AS4Handler ()
   {}
@@ -276,17 +293,20 @@ public final class AS4Handler implements AutoCloseable
       final EAS4CompressionMode eCompressionMode = aState.getAttachmentCompressionMode (aIncomingAttachment.getId ());
       if (eCompressionMode != null)
       {
-        final IHasInputStream aOldISP = aIncomingAttachment.getInputStreamProvider ();
-        aIncomingAttachment.setSourceStreamProvider (new HasInputStream ( () -> {
-          try
-          {
-            return eCompressionMode.getDecompressStream (aOldISP.getInputStream ());
-          }
-          catch (final IOException ex)
-          {
-            throw new UncheckedIOException (ex);
-          }
-        }, aOldISP.isReadMultiple ()));
+        if (!aState.isAttachmentDecompressed (aIncomingAttachment.getId ()))
+        {
+          final IHasInputStream aOldISP = aIncomingAttachment.getInputStreamProvider ();
+          aIncomingAttachment.setSourceStreamProvider (new HasInputStream ( () -> {
+            try
+            {
+              return eCompressionMode.getDecompressStream (aOldISP.getInputStream ());
+            }
+            catch (final IOException ex)
+            {
+              throw new UncheckedIOException (ex);
+            }
+          }, aOldISP.isReadMultiple ()));
+        }
 
         final String sAttachmentContentID = StringHelper.trimStart (aIncomingAttachment.getId (), "attachment=");
         // x.getHref() != null needed since, if a message contains a payload and
@@ -472,6 +492,83 @@ public final class AS4Handler implements AutoCloseable
     }
   }
 
+  /**
+   * The result of the {@link EAS4PipelineStage#PARSE} stage.
+   */
+  private static final class ParsedRequest
+  {
+    private final Document m_aSOAPDocument;
+    private final ESOAPVersion m_eSOAPVersion;
+    private final ICommonsList <WSS4JAttachment> m_aIncomingAttachments;
+    // Set if the request was already rejected by the pre-scan
+    private final IAS4ResponseFactory m_aEarlyResponse;
+
+    ParsedRequest (@Nonnull final Document aSOAPDocument,
+                   @Nonnull final ESOAPVersion eSOAPVersion,
+                   @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments)
+    {
+      m_aSOAPDocument = aSOAPDocument;
+      m_eSOAPVersion = eSOAPVersion;
+      m_aIncomingAttachments = aIncomingAttachments;
+      m_aEarlyResponse = null;
+    }
+
+    ParsedRequest (@Nonnull final ESOAPVersion eSOAPVersion, @Nonnull final IAS4ResponseFactory aEarlyResponse)
+    {
+      m_aSOAPDocument = null;
+      m_eSOAPVersion = eSOAPVersion;
+      m_aIncomingAttachments = new CommonsArrayList <> ();
+      m_aEarlyResponse = aEarlyResponse;
+    }
+  }
+
+  /**
+   * The result of the {@link EAS4PipelineStage#VALIDATION} stage.
+   */
+  private static final class ValidatedMessage
+  {
+    private Ebms3UserMessage m_aUserMessage;
+    private Ebms3SignalMessage m_aSignalMessage;
+    private Ebms3Error m_aError;
+    private Node m_aPayloadNode;
+    private ICommonsList <WSS4JAttachment> m_aDecryptedAttachments;
+    private String m_sMessageID;
+    private boolean m_bCanInvokeSPIs = false;
+  }
+
+  @Nullable
+  private static <T> T _callStage (@Nonnull final EAS4PipelineStage eStage,
+                                   @Nonnull final IThrowingSupplier <T, Exception> aSupplier) throws IOException,
+                                                                                              MessagingException,
+                                                                                              SAXException,
+                                                                                              WSSecurityException
+  {
+    try
+    {
+      return AS4InboundPipeline.getInstance ().call (eStage, aSupplier);
+    }
+    catch (final IOException | MessagingException | SAXException | WSSecurityException | RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (final Exception ex)
+    {
+      throw new IllegalStateException ("Error in AS4 pipeline stage '" + eStage.getID () + "'", ex);
+    }
+  }
+
+  private static void _runStage (@Nonnull final EAS4PipelineStage eStage,
+                                 @Nonnull final IThrowingRunnable <Exception> aRunnable) throws IOException,
+                                                                                         MessagingException,
+                                                                                         SAXException,
+                                                                                         WSSecurityException
+  {
+    _callStage (eStage, () -> {
+      aRunnable.run ();
+      return null;
+    });
+  }
+
   /**
    * Invoke custom SPI message processors
    *
@@ -661,11 +758,245 @@ public final class AS4Handler implements AutoCloseable
     aSPIResult.setSuccess (true);
   }
 
+  /**
+   * Determine the contained message, validate it and check for duplicates. This
+   * is the {@link EAS4PipelineStage#VALIDATION} stage.
+   *
+   * @param aSOAPDocument
+   *        The original SOAP document. Never <code>null</code>.
+   * @param eSOAPVersion
+   *        The SOAP version. Never <code>null</code>.
+   * @param aState
+   *        The state after the header processing. Never <code>null</code>.
+   * @param aErrorMessages
+   *        The list of errors to be filled. Never <code>null</code>.
+   * @param aMsg
+   *        The result object to be filled. Never <code>null</code>.
+   */
+  private void _validateMessage (@Nonnull final Document aSOAPDocument,
+                                 @Nonnull final ESOAPVersion eSOAPVersion,
+                                 @Nonnull final IAS4MessageState aState,
+                                 @Nonnull final ICommonsList <Ebms3Error> aErrorMessages,
+                                 @Nonnull final ValidatedMessage aMsg)
+  {
+    final IPMode aPMode = aState.getPMode ();
+    final PModeLeg aEffectiveLeg = aState.getEffectivePModeLeg ();
+    Ebms3UserMessage aEbmsUserMessage = null;
+    Ebms3SignalMessage aEbmsSignalMessage = null;
+    Ebms3Error aEbmsError = null;
+    Node aPayloadNode = null;
+    ICommonsList <WSS4JAttachment> aDecryptedAttachments = null;
+    boolean bCanInvokeSPIs = false;
+    String sMessageID = null;
+    String sProfileID = null;
+
+    // Every message can only contain 1 User message or 1 pull message
+    // aUserMessage can be null on incoming Pull-Message!
+    aEbmsUserMessage = aState.getMessaging ().hasUserMessageEntries () ? aState.getMessaging ()
+                                                                               .getUserMessageAtIndex (0)
+                                                                       : null;
+    aEbmsSignalMessage = aState.getMessaging ().hasSignalMessageEntries ()
+                                                                           ? aState.getMessaging ()
+                                                                                   .getSignalMessageAtIndex (0)
+                                                                           : null;
+    aEbmsError = aEbmsSignalMessage != null &&
+                 !aEbmsSignalMessage.getError ().isEmpty () ? aEbmsSignalMessage.getErrorAtIndex (0) : null;
+
+    final Ebms3PullRequest aEbmsPullRequest = aEbmsSignalMessage != null ? aEbmsSignalMessage.getPullRequest ()
+                                                                         : null;
+    final Ebms3Receipt aEbmsReceipt = aEbmsSignalMessage != null ? aEbmsSignalMessage.getReceipt () : null;
+
+    final int nCountData = (aEbmsUserMessage != null ? 1 : 0) +
+                           (aEbmsPullRequest != null ? 1 : 0) +
+                           (aEbmsReceipt != null ? 1 : 0) +
+                           (aEbmsError != null ? 1 : 0);
+    // Errors do not count
+    if (nCountData != 1)
+      throw new BadRequestException ("Exactly one UserMessage or one PullRequest or one Receipt or on Error must be present!");
+
+    // XXX debugging
+    if (aEbmsReceipt != null)
+    {
+      s_aLogger.info ("RECEIPT INCOMING");
+    }
+
+    // Ensure the decrypted attachments are used
+    aDecryptedAttachments = aState.hasDecryptedAttachments () ? aState.getDecryptedAttachments ()
+                                                              : aState.getOriginalAttachments ();
+
+    if (aEbmsUserMessage != null)
+    {
+      // User message requires PMode
+      if (aPMode == null)
+        throw new BadRequestException ("No AS4 P-Mode configuration found for user-message!");
+
+      // Only check leg if the message is a usermessage
+      if (aEffectiveLeg == null)
+        throw new BadRequestException ("No AS4 P-Mode leg could be determined!");
+
+      // Only do profile checks if a profile is set
+      sProfileID = AS4ServerConfiguration.getAS4ProfileID ();
+      if (StringHelper.hasText (sProfileID))
+      {
+        final IAS4Profile aProfile = MetaAS4Manager.getProfileMgr ().getProfileOfID (sProfileID);
+        if (aProfile == null)
+          throw new IllegalStateException ("The configured AS4 profile " + sProfileID + " does not exist.");
+
+        // Profile Checks gets set when started with Server
+        final ErrorList aErrorList = new ErrorList ();
+        aProfile.getValidator ().validatePMode (aPMode, aErrorList);
+        aProfile.getValidator ().validateUserMessage (aEbmsUserMessage, aErrorList);
+        if (aErrorList.isNotEmpty ())
+        {
+          throw new BadRequestException ("Error validating incoming AS4 message with the profile " +
+                                         aProfile.getDisplayName () +
+                                         "\n Following errors are present: " +
+                                         aErrorList.getAllErrors ().getAllTexts (m_aLocale));
+        }
+      }
+      final Ebms3MessageInfo aMessageInfo = aEbmsUserMessage.getMessageInfo ();
+      if (aMessageInfo == null)
+        throw new BadRequestException ("UserMessage is missing the MessageInfo element");
+      sMessageID = aMessageInfo.getMessageId ();
+      // Decompress attachments (if compressed)
+      // Result is directly in the decrypted attachments list!
+      _decompressAttachments (aEbmsUserMessage, aState, aDecryptedAttachments);
+    }
+    else
+    {
+      // Signal message
+
+      // Pull-request also requires PMode
+      if (aEbmsPullRequest != null && aPMode == null)
+        throw new BadRequestException ("No AS4 P-Mode configuration found for pull-request!");
+
+      final Ebms3MessageInfo aMessageInfo = aEbmsSignalMessage.getMessageInfo ();
+      if (aMessageInfo == null)
+        throw new BadRequestException ("SignalMessage is missing the MessageInfo element");
+      sMessageID = aMessageInfo.getMessageId ();
+    }
+
+    final boolean bUseDecryptedSOAP = aState.hasDecryptedSOAPDocument ();
+    final Document aRealSOAPDoc = bUseDecryptedSOAP ? aState.getDecryptedSOAPDocument () : aSOAPDocument;
+    assert aRealSOAPDoc != null;
+
+    // Find SOAP body
+    final Node aBodyNode = XMLHelper.getFirstChildElementOfName (aRealSOAPDoc.getDocumentElement (),
+                                                                 eSOAPVersion.getNamespaceURI (),
+                                                                 eSOAPVersion.getBodyElementName ());
+    if (aBodyNode == null)
+      throw new BadRequestException ((bUseDecryptedSOAP ? "Decrypted" : "Original") +
+                                     " SOAP document is missing a Body element");
+    aPayloadNode = aBodyNode.getFirstChild ();
+
+    if (aEbmsUserMessage != null)
+    {
+      // Check if originalSender and finalRecipient are present
+      // Since these two properties are mandatory
+      if (aEbmsUserMessage.getMessageProperties () == null)
+        throw new BadRequestException ("No Message Properties present but OriginalSender and finalRecipient have to be present");
+
+      final List <Ebms3Property> aProps = aEbmsUserMessage.getMessageProperties ().getProperty ();
+      if (aProps.isEmpty ())
+        throw new BadRequestException ("Message Property element present but no properties");
+
+      _checkPropertiesOrignalSenderAndFinalRecipient (aProps);
+    }
+
+    final boolean bIsDuplicate = MetaAS4Manager.getIncomingDuplicateMgr ()
+                                               .registerAndCheck (sMessageID,
+                                                                  sProfileID,
+                                                                  aPMode == null ? null : aPMode.getID ())
+                                               .isBreak ();
+    if (bIsDuplicate)
+    {
+      s_aLogger.info ("Not invoking SPIs, because message was already handled!");
+      aErrorMessages.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                                 sMessageID,
+                                                                 "Another message with the same ID was already received!"));
+    }
+    else
+    {
+      // Complete pending reliable deliveries - but not for replayed or
+      // unsigned signals
+      if (aEbmsReceipt != null || aEbmsError != null)
+        _notifyDeliveryDispatcher (aEbmsSignalMessage,
+                                   aEbmsReceipt,
+                                   aEbmsError,
+                                   aState.isSoapSignatureChecked () ? aState.getSigningCertificate () : null);
+
+      if (_isNotPingMessage (aPMode))
+      {
+        // Invoke SPIs if
+        // * Valid PMode
+        // * Exactly one UserMessage or SignalMessage
+        // * No ping/test message
+        // * No Duplicate message ID
+        // * No errors so far (sign, encrypt, ...)
+        bCanInvokeSPIs = true;
+      }
+    }
+
+    aMsg.m_aUserMessage = aEbmsUserMessage;
+    aMsg.m_aSignalMessage = aEbmsSignalMessage;
+    aMsg.m_aError = aEbmsError;
+    aMsg.m_aPayloadNode = aPayloadNode;
+    aMsg.m_aDecryptedAttachments = aDecryptedAttachments;
+    aMsg.m_sMessageID = sMessageID;
+    aMsg.m_bCanInvokeSPIs = bCanInvokeSPIs;
+  }
+
+  /**
+   * Notify the delivery dispatcher about a received receipt or error, so that
+   * pending reliable deliveries are completed.
+   *
+   * @param aEbmsSignalMessage
+   *        The received signal message. May not be <code>null</code>.
+   * @param aEbmsReceipt
+   *        The contained receipt. May be <code>null</code>.
+   * @param aEbmsError
+   *        The contained error. May be <code>null</code>.
+   * @param aSigningCertificate
+   *        The certificate of the verified signature of the signal message.
+   *        May be <code>null</code> if it was not signed, in which case the
+   *        dispatcher ignores the signal.
+   */
+  private static void _notifyDeliveryDispatcher (@Nonnull final Ebms3SignalMessage aEbmsSignalMessage,
+                                                 @Nullable final Ebms3Receipt aEbmsReceipt,
+                                                 @Nullable final Ebms3Error aEbmsError,
+                                                 @Nullable final X509Certificate aSigningCertificate)
+  {
+    final AS4DeliveryDispatcher aDispatcher = AS4DeliveryDispatcher.getInstanceIfInstantiated ();
+    if (aDispatcher == null)
+      return;
+
+    // RefToMessageId is optional
+    final Ebms3MessageInfo aMessageInfo = aEbmsSignalMessage.getMessageInfo ();
+    final String sRefToMessageID = aMessageInfo == null ? null : aMessageInfo.getRefToMessageId ();
+    if (aEbmsReceipt != null)
+    {
+      if (StringHelper.hasText (sRefToMessageID))
+        aDispatcher.onReceiptReceived (sRefToMessageID, aSigningCertificate);
+    }
+    else
+      if (aEbmsError != null)
+      {
+        final String sRefToMessageInError = StringHelper.getNotNull (aEbmsError.getRefToMessageInError (),
+                                                                     sRefToMessageID);
+        if (StringHelper.hasText (sRefToMessageInError))
+          aDispatcher.onErrorReceived (sRefToMessageInError,
+                                       aEbmsError.getErrorCode () + " " + aEbmsError.getShortDescription (),
+                                       aSigningCertificate);
+      }
+  }
+
   @Nullable
   private IAS4ResponseFactory _handleSOAPMessage (@Nonnull final Document aSOAPDocument,
                                                   @Nonnull final ESOAPVersion eSOAPVersion,
-                                                  @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments) throws WSSecurityException,
-                                                                                                                      MessagingException
+                                                  @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments) throws IOException,
+                                                                                                                             MessagingException,
+                                                                                                                             SAXException,
+                                                                                                                             WSSecurityException
   {
     ValueEnforcer.notNull (aSOAPDocument, "SOAPDocument");
     ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
@@ -689,163 +1020,38 @@ public final class AS4Handler implements AutoCloseable
       final AS4MessageState aStateImpl = new AS4MessageState (eSOAPVersion, m_aResMgr);
 
       // Handle all headers - the only place where the AS4MessageState values
-      _processSOAPHeaderElements (aSOAPDocument, eSOAPVersion, aIncomingAttachments, aStateImpl, aErrorMessages);
+      _runStage (EAS4PipelineStage.HEADERS,
+                 () -> _processSOAPHeaderElements (aSOAPDocument,
+                                                   eSOAPVersion,
+                                                   aIncomingAttachments,
+                                                   aStateImpl,
+                                                   aErrorMessages));
 
       aState = aStateImpl;
     }
 
     final IPMode aPMode = aState.getPMode ();
+    // Sign and encrypt the response with the keys of the responder
+    m_aCryptoFactory = AS4ServerSettings.getAS4CryptoFactory (aPMode);
     final PModeLeg aEffectiveLeg = aState.getEffectivePModeLeg ();
     final boolean bIsEffectiveLeg1 = aState.getEffectivePModeLegNumber () == 1;
-    Ebms3UserMessage aEbmsUserMessage = null;
-    Ebms3SignalMessage aEbmsSignalMessage = null;
-    Ebms3Error aEbmsError = null;
-    Node aPayloadNode = null;
-    ICommonsList <WSS4JAttachment> aDecryptedAttachments = null;
-    // Storing for two-way response messages
-    final ICommonsList <WSS4JAttachment> aResponseAttachments = new CommonsArrayList <> ();
-    boolean bCanInvokeSPIs = false;
-    String sMessageID = null;
-    String sProfileID = null;
 
+    final ValidatedMessage aMsg = new ValidatedMessage ();
     if (aErrorMessages.isEmpty ())
-    {
-      // Every message can only contain 1 User message or 1 pull message
-      // aUserMessage can be null on incoming Pull-Message!
-      aEbmsUserMessage = aState.getMessaging ().hasUserMessageEntries () ? aState.getMessaging ()
-                                                                                 .getUserMessageAtIndex (0)
-                                                                         : null;
-      aEbmsSignalMessage = aState.getMessaging ().hasSignalMessageEntries ()
-                                                                             ? aState.getMessaging ()
-                                                                                     .getSignalMessageAtIndex (0)
-                                                                             : null;
-      aEbmsError = aEbmsSignalMessage != null &&
-                   !aEbmsSignalMessage.getError ().isEmpty () ? aEbmsSignalMessage.getErrorAtIndex (0) : null;
-
-      final Ebms3PullRequest aEbmsPullRequest = aEbmsSignalMessage != null ? aEbmsSignalMessage.getPullRequest ()
-                                                                           : null;
-      final Ebms3Receipt aEbmsReceipt = aEbmsSignalMessage != null ? aEbmsSignalMessage.getReceipt () : null;
-
-      final int nCountData = (aEbmsUserMessage != null ? 1 : 0) +
-                             (aEbmsPullRequest != null ? 1 : 0) +
-                             (aEbmsReceipt != null ? 1 : 0) +
-                             (aEbmsError != null ? 1 : 0);
-      // Errors do not count
-      if (nCountData != 1)
-        throw new BadRequestException ("Exactly one UserMessage or one PullRequest or one Receipt or on Error must be present!");
-
-      // XXX debugging
-      if (aEbmsReceipt != null)
-      {
-        s_aLogger.info ("RECEIPT INCOMING");
-      }
-
-      // Ensure the decrypted attachments are used
-      aDecryptedAttachments = aState.hasDecryptedAttachments () ? aState.getDecryptedAttachments ()
-                                                                : aState.getOriginalAttachments ();
-
-      if (aEbmsUserMessage != null)
-      {
-        // User message requires PMode
-        if (aPMode == null)
-          throw new BadRequestException ("No AS4 P-Mode configuration found for user-message!");
-
-        // Only check leg if the message is a usermessage
-        if (aEffectiveLeg == null)
-          throw new BadRequestException ("No AS4 P-Mode leg could be determined!");
-
-        // Only do profile checks if a profile is set
-        sProfileID = AS4ServerConfiguration.getAS4ProfileID ();
-        if (StringHelper.hasText (sProfileID))
-        {
-          final IAS4Profile aProfile = MetaAS4Manager.getProfileMgr ().getProfileOfID (sProfileID);
-          if (aProfile == null)
-            throw new IllegalStateException ("The configured AS4 profile " + sProfileID + " does not exist.");
-
-          // Profile Checks gets set when started with Server
-          final ErrorList aErrorList = new ErrorList ();
-          aProfile.getValidator ().validatePMode (aPMode, aErrorList);
-          aProfile.getValidator ().validateUserMessage (aEbmsUserMessage, aErrorList);
-          if (aErrorList.isNotEmpty ())
-          {
-            throw new BadRequestException ("Error validating incoming AS4 message with the profile " +
-                                           aProfile.getDisplayName () +
-                                           "\n Following errors are present: " +
-                                           aErrorList.getAllErrors ().getAllTexts (m_aLocale));
-          }
-        }
-        sMessageID = aEbmsUserMessage.getMessageInfo ().getMessageId ();
-        // Decompress attachments (if compressed)
-        // Result is directly in the decrypted attachments list!
-        _decompressAttachments (aEbmsUserMessage, aState, aDecryptedAttachments);
-      }
-      else
-      {
-        // Signal message
-
-        // Pull-request also requires PMode
-        if (aEbmsPullRequest != null && aPMode == null)
-          throw new BadRequestException ("No AS4 P-Mode configuration found for pull-request!");
-
-        sMessageID = aEbmsSignalMessage.getMessageInfo ().getMessageId ();
-      }
-
-      final boolean bUseDecryptedSOAP = aState.hasDecryptedSOAPDocument ();
-      final Document aRealSOAPDoc = bUseDecryptedSOAP ? aState.getDecryptedSOAPDocument () : aSOAPDocument;
-      assert aRealSOAPDoc != null;
-
-      // Find SOAP body
-      final Node aBodyNode = XMLHelper.getFirstChildElementOfName (aRealSOAPDoc.getDocumentElement (),
-                                                                   eSOAPVersion.getNamespaceURI (),
-                                                                   eSOAPVersion.getBodyElementName ());
-      if (aBodyNode == null)
-        throw new BadRequestException ((bUseDecryptedSOAP ? "Decrypted" : "Original") +
-                                       " SOAP document is missing a Body element");
-      aPayloadNode = aBodyNode.getFirstChild ();
-
-      if (aEbmsUserMessage != null)
-      {
-        // Check if originalSender and finalRecipient are present
-        // Since these two properties are mandatory
-        if (aEbmsUserMessage.getMessageProperties () == null)
-          throw new BadRequestException ("No Message Properties present but OriginalSender and finalRecipient have to be present");
-
-        final List <Ebms3Property> aProps = aEbmsUserMessage.getMessageProperties ().getProperty ();
-        if (aProps.isEmpty ())
-          throw new BadRequestException ("Message Property element present but no properties");
-
-        _checkPropertiesOrignalSenderAndFinalRecipient (aProps);
-      }
-
-      final boolean bIsDuplicate = MetaAS4Manager.getIncomingDuplicateMgr ()
-                                                 .registerAndCheck (sMessageID,
-                                                                    sProfileID,
-                                                                    aPMode == null ? null : aPMode.getID ())
-                                                 .isBreak ();
-      if (bIsDuplicate)
-      {
-        s_aLogger.info ("Not invoking SPIs, because message was already handled!");
-        aErrorMessages.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
-                                                                   sMessageID,
-                                                                   "Another message with the same ID was already received!"));
-      }
-      else
-      {
-        if (_isNotPingMessage (aPMode))
-        {
-          // Invoke SPIs if
-          // * Valid PMode
-          // * Exactly one UserMessage or SignalMessage
-          // * No ping/test message
-          // * No Duplicate message ID
-          // * No errors so far (sign, encrypt, ...)
-          bCanInvokeSPIs = true;
-        }
-      }
-    }
+      _runStage (EAS4PipelineStage.VALIDATION,
+                 () -> _validateMessage (aSOAPDocument, eSOAPVersion, aState, aErrorMessages, aMsg));
+
+    final Ebms3UserMessage aEbmsUserMessage = aMsg.m_aUserMessage;
+    final Ebms3SignalMessage aEbmsSignalMessage = aMsg.m_aSignalMessage;
+    final Ebms3Error aEbmsError = aMsg.m_aError;
+    final Node aPayloadNode = aMsg.m_aPayloadNode;
+    final ICommonsList <WSS4JAttachment> aDecryptedAttachments = aMsg.m_aDecryptedAttachments;
+    final String sMessageID = aMsg.m_sMessageID;
+    // Storing for two-way response messages
+    final ICommonsList <WSS4JAttachment> aResponseAttachments = new CommonsArrayList <> ();
 
     final SPIInvocationResult aSPIResult = new SPIInvocationResult ();
-    if (bCanInvokeSPIs)
+    if (aMsg.m_bCanInvokeSPIs)
     {
       // PMode may be null for receipts
       if (aPMode == null ||
@@ -858,15 +1064,16 @@ public final class AS4Handler implements AutoCloseable
         // Might add to aErrorMessages
         // Might add to aResponseAttachments
         // Might add to m_aPullReturnUserMsg
-        _invokeSPIs (aEbmsUserMessage,
-                     aEbmsSignalMessage,
-                     aPayloadNode,
-                     aDecryptedAttachments,
-                     aErrorMessages,
-                     aResponseAttachments,
-                     aPMode,
-                     aState,
-                     aSPIResult);
+        _runStage (EAS4PipelineStage.SPI,
+                   () -> _invokeSPIs (aEbmsUserMessage,
+                                      aEbmsSignalMessage,
+                                      aPayloadNode,
+                                      aDecryptedAttachments,
+                                      aErrorMessages,
+                                      aResponseAttachments,
+                                      aPMode,
+                                      aState,
+                                      aSPIResult));
         if (aSPIResult.isFailure ())
           s_aLogger.warn ("Error invoking synchronous SPIs");
         else
@@ -883,7 +1090,7 @@ public final class AS4Handler implements AutoCloseable
         final Node aFinalPayloadNode = aPayloadNode;
         final ICommonsList <WSS4JAttachment> aFinalDecryptedAttachments = aDecryptedAttachments;
 
-        AS4WorkerPool.getInstance ().run ( () -> {
+        final IThrowingRunnable <Exception> aAsyncProcessing = () -> {
           final ICommonsList <Ebms3Error> aLocalErrorMessages = new CommonsArrayList <> ();
           final ICommonsList <WSS4JAttachment> aLocalResponseAttachments = new CommonsArrayList <> ();
           IAS4ResponseFactory aAsyncResponseFactory;
@@ -934,18 +1141,98 @@ public final class AS4Handler implements AutoCloseable
           if (isDebug ())
             s_aLogger.info ("Responding asynchronous to: " + sAsyncResponseURL);
 
-          // invoke client with new document
-          final BasicAS4Sender aSender = new BasicAS4Sender ();
-          final Document aAsyncResponse = aSender.sendGenericMessage (sAsyncResponseURL,
-                                                                      aAsyncResponseFactory.getHttpEntity (eSOAPVersion),
-                                                                      new ResponseHandlerXml ());
-          AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
-                                     XMLWriter.getNodeAsString (aAsyncResponse,
-                                                                new XMLWriterSettings ().setIndent (EXMLSerializeIndent.NONE)));
-        });
+          // invoke client with new document - I/O bound
+          final IAS4ResponseFactory aFinalAsyncResponseFactory = aAsyncResponseFactory;
+          final IThrowingRunnable <Exception> aSendResponse = () -> {
+            final BasicAS4Sender aSender = new BasicAS4Sender ();
+            final Document aAsyncResponse = aSender.sendGenericMessage (sAsyncResponseURL,
+                                                                        aFinalAsyncResponseFactory.getHttpEntity (eSOAPVersion),
+                                                                        new ResponseHandlerXml ());
+            AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
+                                       XMLWriter.getNodeAsString (aAsyncResponse,
+                                                                  new XMLWriterSettings ().setIndent (EXMLSerializeIndent.NONE)));
+          };
+
+          final AS4WorkerPool aWorkerPool = AS4WorkerPool.getInstance ();
+          boolean bSendInline = true;
+          if (aWorkerPool.isThreadPerIOTask ())
+          {
+            try
+            {
+              aWorkerPool.runIO (aSendResponse);
+              bSendInline = false;
+            }
+            catch (final RejectedExecutionException ex)
+            {
+              s_aLogger.warn ("Failed to start sending the asynchronous response for '" +
+                              sMessageID +
+                              "' - sending it in the worker thread: " +
+                              ex.getMessage ());
+            }
+          }
+          // Otherwise resubmitting to the pool from a pool thread may block
+          // or be rejected, and the response would be lost
+          if (bSendInline)
+            aSendResponse.run ();
+        };
+
+        try
+        {
+          AS4WorkerPool.getInstance ().run (aAsyncProcessing);
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          // The message ID is already registered as received, so an error
+          // response would make the retry of the sender fail as a duplicate
+          s_aLogger.warn ("Failed to queue asynchronous processing of '" +
+                          sMessageID +
+                          "' - processing it in the request thread: " +
+                          ex.getMessage ());
+          try
+          {
+            aAsyncProcessing.run ();
+          }
+          catch (final Exception ex2)
+          {
+            s_aLogger.error ("Error processing '" + sMessageID + "' asynchronously", ex2);
+          }
+        }
       }
     }
 
+    return _callStage (EAS4PipelineStage.RESPONSE,
+                       () -> _createResponse (aSOAPDocument,
+                                              eSOAPVersion,
+                                              aPMode,
+                                              aEffectiveLeg,
+                                              aEbmsUserMessage,
+                                              aEbmsSignalMessage,
+                                              aEbmsError,
+                                              aErrorMessages,
+                                              aResponseAttachments,
+                                              aSPIResult));
+  }
+
+  /**
+   * Create the synchronous response. This is the
+   * {@link EAS4PipelineStage#RESPONSE} stage.
+   *
+   * @return The response factory or <code>null</code> if no response should be
+   *         sent.
+   */
+  @Nullable
+  private IAS4ResponseFactory _createResponse (@Nonnull final Document aSOAPDocument,
+                                               @Nonnull final ESOAPVersion eSOAPVersion,
+                                               @Nullable final IPMode aPMode,
+                                               @Nullable final PModeLeg aEffectiveLeg,
+                                               @Nullable final Ebms3UserMessage aEbmsUserMessage,
+                                               @Nullable final Ebms3SignalMessage aEbmsSignalMessage,
+                                               @Nullable final Ebms3Error aEbmsError,
+                                               @Nonnull final ICommonsList <Ebms3Error> aErrorMessages,
+                                               @Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachments,
+                                               @Nonnull final SPIInvocationResult aSPIResult) throws WSSecurityException,
+                                                                                              MessagingException
+  {
     // Try building error message
     if (aEbmsError == null)
     {
@@ -1393,28 +1680,84 @@ public final class AS4Handler implements AutoCloseable
     return DOMReader.readXMLDOM (aRequestIS);
   }
 
-  public void handleRequest (@Nonnull final IRequestWebScopeWithoutResponse aRequestScope,
-                             @Nonnull final AS4Response aHttpResponse) throws BadRequestException,
-                                                                       IOException,
-                                                                       MessagingException,
-                                                                       SAXException,
-                                                                       WSSecurityException
+  /**
+   * Scan the ebMS header at the beginning of the passed stream and check
+   * whether the message can be rejected without parsing it completely. This is
+   * only the case for user messages with an unknown PMode. The same error would
+   * be created by the regular processing, but only after the whole message was
+   * read and the WS-Security header was processed. Duplicates are deliberately
+   * not rejected here, because the message is not yet authenticated - a forged
+   * message with a known ID must not be answered as a duplicate.
+   *
+   * @param aIS
+   *        The stream containing the SOAP envelope. Must support mark and
+   *        reset. It is reset to the beginning after scanning.
+   * @return <code>null</code> if the message needs to be processed regularly.
+   * @throws IOException
+   *         In case resetting the stream fails
+   */
+  @Nullable
+  private ParsedRequest _preScanEbmsHeader (@Nonnull final InputStream aIS) throws IOException
   {
-    AS4HttpDebug.debug ( () -> "RECEIVE-START at " + aRequestScope.getFullContextAndServletPath ());
-
-    final HttpServletRequest aHttpServletRequest = aRequestScope.getRequest ();
-
-    // Determine content type
-    final String sContentType = aHttpServletRequest.getContentType ();
-    if (StringHelper.hasNoText (sContentType))
-      throw new BadRequestException ("Content-Type header is missing");
-
-    final MimeType aContentType = MimeTypeParser.parseMimeType (sContentType);
-    if (isDebug ())
-      s_aLogger.info ("Received Content-Type: " + aContentType);
-    if (aContentType == null)
-      throw new BadRequestException ("Failed to parse Content-Type '" + sContentType + "'");
+    final int nMaxBytes = AS4ServerConfiguration.getIncomingPreScanMaxSize ();
+    if (nMaxBytes <= 0 || isDebug ())
+      return null;
+
+    aIS.mark (nMaxBytes);
+    final AS4EbmsHeaderPreScanner.Result aScan = AS4EbmsHeaderPreScanner.scan (aIS, nMaxBytes);
+    aIS.reset ();
+
+    // Signal messages and inconsistent user messages are left to the regular
+    // processing
+    if (aScan == null ||
+        !aScan.isUserMessage () ||
+        !aScan.hasSinglePartyIDs () ||
+        StringHelper.hasNoText (aScan.getService ()))
+      return null;
+
+    final String sMessageID = aScan.getMessageID ();
+    final IPMode aPMode = AS4ServerSettings.getPModeResolver ().getPModeOfID (aScan.getPModeID (),
+                                                                            aScan.getService (),
+                                                                            aScan.getAction (),
+                                                                            aScan.getFromPartyID (),
+                                                                            aScan.getToPartyID (),
+                                                                            AS4ServerConfiguration.getServerAddress ());
+    if (aPMode != null)
+      return null;
+
+    s_aLogger.warn ("Rejecting message '" +
+                    sMessageID +
+                    "' early, because PMode '" +
+                    aScan.getPModeID () +
+                    "' cannot be resolved");
+    final Ebms3Error aError = EEbmsError.EBMS_PROCESSING_MODE_MISMATCH.getAsEbms3Error (m_aLocale, sMessageID);
+    s_aStatsPreScanRejected.increment ();
+    final ESOAPVersion eSOAPVersion = aScan.getSOAPVersion ();
+    final AS4ErrorMessage aErrorMsg = ErrorMessageCreator.createErrorMessage (eSOAPVersion,
+                                                                              MessageHelperMethods.createEbms3MessageInfo (),
+                                                                              new CommonsArrayList <> (aError));
+    return new ParsedRequest (eSOAPVersion, new AS4ResponseFactoryXML (aErrorMsg.getAsSOAPDocument ()));
+  }
 
+  /**
+   * Read the SOAP document and the attachments from the request. This is the
+   * {@link EAS4PipelineStage#PARSE} stage.
+   *
+   * @param aHttpServletRequest
+   *        The HTTP request to read from. Never <code>null</code>.
+   * @param sContentType
+   *        The original Content-Type header. Never <code>null</code>.
+   * @param aContentType
+   *        The parsed Content-Type header. Never <code>null</code>.
+   * @return The parsed request. Never <code>null</code>.
+   */
+  @Nonnull
+  private ParsedRequest _parseRequest (@Nonnull final HttpServletRequest aHttpServletRequest,
+                                       @Nonnull final String sContentType,
+                                       @Nonnull final MimeType aContentType) throws IOException,
+                                                                             MessagingException,
+                                                                             SAXException
+  {
     Document aSOAPDocument = null;
     ESOAPVersion eSOAPVersion = null;
     final ICommonsList <WSS4JAttachment> aIncomingAttachments = new CommonsArrayList <> ();
@@ -1440,6 +1783,7 @@ public final class AS4Handler implements AutoCloseable
                                                           sBoundary.getBytes (StandardCharsets.ISO_8859_1),
                                                           (MultipartProgressNotifier) null);
       final IIncomingAttachmentFactory aIAF = AS4ServerSettings.getIncomingAttachmentFactory ();
+      final IIncomingAttachmentStreamFactory aIASF = AS4ServerSettings.getIncomingAttachmentStreamFactory ();
 
       int nIndex = 0;
       while (true)
@@ -1452,25 +1796,42 @@ public final class AS4Handler implements AutoCloseable
           s_aLogger.info ("Found MIME part " + nIndex);
         final MultipartItemInputStream aItemIS2 = aMulti.createInputStream ();
 
-        final MimeBodyPart aBodyPart = new MimeBodyPart (aItemIS2);
         if (nIndex == 0)
         {
           // First MIME part -> SOAP document
-          final IMimeType aPlainPartMT = MimeTypeParser.parseMimeType (aBodyPart.getContentType ())
-                                                       .getCopyWithoutParameters ();
+          // Only parse the headers - the body is read directly into the DOM
+          final InternetHeaders aPartHeaders = new InternetHeaders (aItemIS2);
+          final String sPartContentType = aPartHeaders.getHeader (CHttpHeader.CONTENT_TYPE, null);
+          final IMimeType aPlainPartMT = sPartContentType == null ? null
+                                                                  : MimeTypeParser.parseMimeType (sPartContentType)
+                                                                                  .getCopyWithoutParameters ();
 
           // Determine SOAP version from MIME part content type
-          eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (), x -> aPlainPartMT.equals (x.getMimeType ()));
+          eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (), x -> x.getMimeType ().equals (aPlainPartMT));
 
           // Read SOAP document
-          aSOAPDocument = _readXML (aBodyPart.getInputStream ());
+          final InputStream aSoapIS = new BufferedInputStream (WSS4JAttachment.getDecodedInputStream (aPartHeaders,
+                                                                                                       aItemIS2));
+          final ParsedRequest aEarlyRejection = _preScanEbmsHeader (aSoapIS);
+          if (aEarlyRejection != null)
+            return aEarlyRejection;
+          aSOAPDocument = _readXML (aSoapIS);
         }
         else
-        {
-          // MIME Attachment (index is gt 0)
-          final WSS4JAttachment aAttachment = aIAF.createAttachment (aBodyPart, m_aResMgr);
-          aIncomingAttachments.add (aAttachment);
-        }
+          if (aIASF != null)
+          {
+            // MIME Attachment (index is gt 0) - stream the part body
+            final InternetHeaders aPartHeaders = new InternetHeaders (aItemIS2);
+            final WSS4JAttachment aAttachment = aIASF.createAttachment (aPartHeaders, aItemIS2, m_aResMgr);
+            aIncomingAttachments.add (aAttachment);
+          }
+          else
+          {
+            // MIME Attachment (index is gt 0) - read the whole part
+            final MimeBodyPart aBodyPart = new MimeBodyPart (aItemIS2);
+            final WSS4JAttachment aAttachment = aIAF.createAttachment (aBodyPart, m_aResMgr);
+            aIncomingAttachments.add (aAttachment);
+          }
         nIndex++;
       }
     }
@@ -1481,7 +1842,11 @@ public final class AS4Handler implements AutoCloseable
 
       // Expect plain SOAP - read whole request to DOM
       // Note: this may require a huge amount of memory for large requests
-      aSOAPDocument = _readXML (_getRequestIS (aHttpServletRequest));
+      final InputStream aRequestIS = new BufferedInputStream (_getRequestIS (aHttpServletRequest));
+      final ParsedRequest aEarlyRejection = _preScanEbmsHeader (aRequestIS);
+      if (aEarlyRejection != null)
+        return aEarlyRejection;
+      aSOAPDocument = _readXML (aRequestIS);
 
       if (aSOAPDocument != null)
       {
@@ -1515,8 +1880,41 @@ public final class AS4Handler implements AutoCloseable
         throw new BadRequestException ("Failed to determine SOAP version from XML document!");
     }
 
+    return new ParsedRequest (aSOAPDocument, eSOAPVersion, aIncomingAttachments);
+  }
+
+  public void handleRequest (@Nonnull final IRequestWebScopeWithoutResponse aRequestScope,
+                             @Nonnull final AS4Response aHttpResponse) throws BadRequestException,
+                                                                       IOException,
+                                                                       MessagingException,
+                                                                       SAXException,
+                                                                       WSSecurityException
+  {
+    AS4HttpDebug.debug ( () -> "RECEIVE-START at " + aRequestScope.getFullContextAndServletPath ());
+
+    final HttpServletRequest aHttpServletRequest = aRequestScope.getRequest ();
+
+    // Determine content type
+    final String sContentType = aHttpServletRequest.getContentType ();
+    if (StringHelper.hasNoText (sContentType))
+      throw new BadRequestException ("Content-Type header is missing");
+
+    final MimeType aContentType = MimeTypeParser.parseMimeType (sContentType);
+    if (isDebug ())
+      s_aLogger.info ("Received Content-Type: " + aContentType);
+    if (aContentType == null)
+      throw new BadRequestException ("Failed to parse Content-Type '" + sContentType + "'");
+
+    // Parse the request
+    final ParsedRequest aRequest = _callStage (EAS4PipelineStage.PARSE,
+                                               () -> _parseRequest (aHttpServletRequest, sContentType, aContentType));
+    final ESOAPVersion eSOAPVersion = aRequest.m_eSOAPVersion;
+
     // SOAP document and SOAP version are determined
-    final IAS4ResponseFactory aResponder = _handleSOAPMessage (aSOAPDocument, eSOAPVersion, aIncomingAttachments);
+    final IAS4ResponseFactory aResponder = aRequest.m_aEarlyResponse != null ? aRequest.m_aEarlyResponse
+                                                                             : _handleSOAPMessage (aRequest.m_aSOAPDocument,
+                                                                                                   eSOAPVersion,
+                                                                                                   aRequest.m_aIncomingAttachments);
     if (aResponder != null)
     {
       // Response present -> send back
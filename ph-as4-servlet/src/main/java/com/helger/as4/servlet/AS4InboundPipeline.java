@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.IStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * The staged pipeline that incoming messages pass (see
+ * {@link EAS4PipelineStage}). Each stage can have its own bounded executor, so
+ * that crypto bound and I/O bound stages can be sized independently. Stages
+ * without threads run in the calling thread. The caller always waits for the
+ * result of a stage, so the processing order of a single message does not
+ * change. If the queue of a stage is full, a
+ * {@link RejectedExecutionException} is thrown - but only for the stages before
+ * the message ID was registered for duplicate detection (see
+ * {@link EAS4PipelineStage#isRejectable()}). The later stages run in the
+ * calling thread instead, which is waiting for the result anyway. So an
+ * overloaded server rejects a message only before it has any side effects. For
+ * each stage the queue waiting time, the execution time and the number of
+ * rejected tasks are recorded.<br>
+ * Note: stages that run in their own threads have no request scope.
+ *
+ * @author Philip Helger
+ */
+public final class AS4InboundPipeline extends AbstractGlobalSingleton
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4InboundPipeline.class);
+
+  /**
+   * A single stage with an optional executor.
+   */
+  static final class Stage
+  {
+    private final EAS4PipelineStage m_eStage;
+    private final IMutableStatisticsHandlerTimer m_aStatsQueueTimer;
+    private final IMutableStatisticsHandlerTimer m_aStatsExecTimer;
+    private final IMutableStatisticsHandlerCounter m_aStatsRejected;
+    private final ThreadPoolExecutor m_aES;
+
+    Stage (@Nonnull final EAS4PipelineStage eStage, final int nThreads, final int nQueueSize)
+    {
+      final String sPrefix = AS4InboundPipeline.class.getName () + "$" + eStage.getID ();
+      m_eStage = eStage;
+      m_aStatsQueueTimer = StatisticsManager.getTimerHandler (sPrefix + "$queue");
+      m_aStatsExecTimer = StatisticsManager.getTimerHandler (sPrefix + "$exec");
+      m_aStatsRejected = StatisticsManager.getCounterHandler (sPrefix + "$rejected");
+      m_aES = nThreads > 0 ? AS4WorkerPool.createExecutorService (nThreads,
+                                                                  nQueueSize,
+                                                                  EAS4WorkerRejectionPolicy.REJECT,
+                                                                  0)
+                           : null;
+    }
+
+    void shutdown ()
+    {
+      if (m_aES != null)
+        ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+    }
+
+    private <T, EX extends Exception> T _callInCallingThread (@Nonnull final IThrowingSupplier <T, EX> aSupplier) throws EX
+    {
+      final long nStart = System.nanoTime ();
+      m_aStatsQueueTimer.addTime (0);
+      try
+      {
+        return aSupplier.get ();
+      }
+      finally
+      {
+        m_aStatsExecTimer.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart));
+      }
+    }
+
+    @SuppressWarnings ("unchecked")
+    <T, EX extends Exception> T call (@Nonnull final IThrowingSupplier <T, EX> aSupplier) throws EX
+    {
+      if (m_aES == null)
+        return _callInCallingThread (aSupplier);
+
+      final long nQueued = System.nanoTime ();
+
+      final Future <T> aFuture;
+      try
+      {
+        aFuture = m_aES.submit ( () -> {
+          final long nStart = System.nanoTime ();
+          m_aStatsQueueTimer.addTime (TimeUnit.NANOSECONDS.toMillis (nStart - nQueued));
+          try
+          {
+            return aSupplier.get ();
+          }
+          finally
+          {
+            m_aStatsExecTimer.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart));
+          }
+        });
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        m_aStatsRejected.increment ();
+        if (m_eStage.isRejectable ())
+          throw new RejectedExecutionException ("The AS4 pipeline stage '" + m_eStage.getID () + "' is full", ex);
+
+        // The message was already registered as received - rejecting it now
+        // would make the retry of the sender fail
+        s_aLogger.warn ("The AS4 pipeline stage '" + m_eStage.getID () + "' is full - running it in the calling thread");
+        return _callInCallingThread (aSupplier);
+      }
+
+      try
+      {
+        return aFuture.get ();
+      }
+      catch (final InterruptedException ex)
+      {
+        aFuture.cancel (true);
+        Thread.currentThread ().interrupt ();
+        throw new IllegalStateException ("Interrupted while waiting for AS4 pipeline stage '" +
+                                         m_eStage.getID () +
+                                         "'",
+                                         ex);
+      }
+      catch (final ExecutionException ex)
+      {
+        final Throwable aCause = ex.getCause ();
+        if (aCause instanceof Error)
+          throw (Error) aCause;
+        // Either a RuntimeException or EX
+        throw (EX) aCause;
+      }
+    }
+  }
+
+  private final Map <EAS4PipelineStage, Stage> m_aStages = new EnumMap <> (EAS4PipelineStage.class);
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4InboundPipeline ()
+  {
+    for (final EAS4PipelineStage eStage : EAS4PipelineStage.values ())
+    {
+      final int nThreads = AS4ServerConfiguration.getPipelineStageThreads (eStage);
+      m_aStages.put (eStage, new Stage (eStage, nThreads, AS4ServerConfiguration.getPipelineStageQueueSize (eStage)));
+      if (nThreads > 0)
+        s_aLogger.info ("AS4 pipeline stage '" + eStage.getID () + "' uses " + nThreads + " threads");
+    }
+  }
+
+  @Nonnull
+  public static AS4InboundPipeline getInstance ()
+  {
+    return getGlobalSingleton (AS4InboundPipeline.class);
+  }
+
+  @Override
+  protected void onDestroy (@Nonnull final IScope aScopeInDestruction) throws Exception
+  {
+    for (final Stage aStage : m_aStages.values ())
+      aStage.shutdown ();
+  }
+
+  @Nonnull
+  private Stage _getStage (@Nonnull final EAS4PipelineStage eStage)
+  {
+    ValueEnforcer.notNull (eStage, "Stage");
+    return m_aStages.get (eStage);
+  }
+
+  /**
+   * Run a stage and wait for the result.
+   *
+   * @param eStage
+   *        The stage to run. May not be <code>null</code>.
+   * @param aSupplier
+   *        The stage logic. May not be <code>null</code>.
+   * @return The result of the supplier. May be <code>null</code>.
+   * @throws EX
+   *         If the supplier throws an exception
+   * @throws RejectedExecutionException
+   *         If the queue of a rejectable stage is full
+   * @param <T>
+   *        Result type
+   * @param <EX>
+   *        Exception type
+   */
+  @Nullable
+  public <T, EX extends Exception> T call (@Nonnull final EAS4PipelineStage eStage,
+                                           @Nonnull final IThrowingSupplier <T, EX> aSupplier) throws EX
+  {
+    ValueEnforcer.notNull (aSupplier, "Supplier");
+    return _getStage (eStage).call (aSupplier);
+  }
+
+  /**
+   * Run a stage without a result and wait until it is done.
+   *
+   * @param eStage
+   *        The stage to run. May not be <code>null</code>.
+   * @param aRunnable
+   *        The stage logic. May not be <code>null</code>.
+   * @throws EX
+   *         If the runnable throws an exception
+   * @throws RejectedExecutionException
+   *         If the queue of a rejectable stage is full
+   * @param <EX>
+   *        Exception type
+   */
+  public <EX extends Exception> void run (@Nonnull final EAS4PipelineStage eStage,
+                                          @Nonnull final IThrowingRunnable <EX> aRunnable) throws EX
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+    _getStage (eStage).call ( () -> {
+      aRunnable.run ();
+      return null;
+    });
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return <code>true</code> if the stage has its own threads,
+   *         <code>false</code> if it runs in the calling thread.
+   */
+  public boolean hasOwnThreads (@Nonnull final EAS4PipelineStage eStage)
+  {
+    return _getStage (eStage).m_aES != null;
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return The number of currently queued tasks of the stage. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getQueueDepth (@Nonnull final EAS4PipelineStage eStage)
+  {
+    final ThreadPoolExecutor aES = _getStage (eStage).m_aES;
+    return aES == null ? 0 : aES.getQueue ().size ();
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return Statistics on the milliseconds a task of the stage waited before
+   *         execution. Never <code>null</code>.
+   */
+  @Nonnull
+  public IStatisticsHandlerTimer getQueueWaitStatistics (@Nonnull final EAS4PipelineStage eStage)
+  {
+    return _getStage (eStage).m_aStatsQueueTimer;
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return Statistics on the milliseconds a task of the stage took to
+   *         execute. Never <code>null</code>.
+   */
+  @Nonnull
+  public IStatisticsHandlerTimer getExecutionStatistics (@Nonnull final EAS4PipelineStage eStage)
+  {
+    return _getStage (eStage).m_aStatsExecTimer;
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return The number of tasks of the stage that were rejected because the
+   *         queue was full.
+   */
+  @Nonnegative
+  public long getRejectedCount (@Nonnull final EAS4PipelineStage eStage)
+  {
+    return _getStage (eStage).m_aStatsRejected.getCount ();
+  }
+}
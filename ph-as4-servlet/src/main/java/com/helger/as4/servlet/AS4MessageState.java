@@ -39,6 +39,7 @@ import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.attr.AttributeContainerAny;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsSet;
 import com.helger.commons.datetime.PDTFactory;
 
 /**
@@ -59,10 +60,12 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
   private static final String KEY_DECRYPTED_SOAP_DOCUMENT = "as4.soap.decrypted.document";
   private static final String KEY_DECRYPTED_ATTACHMENT_LIST = "as4.soap.decrypted.attachmentlist";
   private static final String KEY_COMPRESSED_ATTACHMENT_IDS = "as4.compressed.attachment.ids";
+  private static final String KEY_DECOMPRESSED_ATTACHMENT_IDS = "as4.decompressed.attachment.ids";
   private static final String KEY_SOAP_BODY_PAYLOAD_PRESENT = "as4.soap.body.payload.present";
   private static final String KEY_INITIATOR_ID = "as4.initiator.id";
   private static final String KEY_RESPONDER_ID = "as4.responder.id";
   private static final String KEY_USED_CERTIFICATE = "as4.used.certificate";
+  private static final String KEY_SIGNING_CERTIFICATE = "as4.signing.certificate";
   private static final String KEY_EFFECTIVE_PMODE_LEG = "as4.pmode.effective.leg";
   private static final String KEY_EFFECTIVE_PMODE_LEG_NUMBER = "as4.pmode.effective.leg.number";
   private static final String KEY_SOAP_CHECKED_SIGNATURE = "as4.soap.signature.checked";
@@ -169,6 +172,17 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
     return getCastedValue (KEY_COMPRESSED_ATTACHMENT_IDS);
   }
 
+  public void setDecompressedAttachmentIDs (@Nullable final ICommonsSet <String> aIDs)
+  {
+    putIn (KEY_DECOMPRESSED_ATTACHMENT_IDS, aIDs);
+  }
+
+  @Nullable
+  public ICommonsSet <String> getDecompressedAttachmentIDs ()
+  {
+    return getCastedValue (KEY_DECOMPRESSED_ATTACHMENT_IDS);
+  }
+
   public void setMPC (@Nullable final IMPC aMPC)
   {
     putIn (KEY_MPC, aMPC);
@@ -223,6 +237,17 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
     return getCastedValue (KEY_USED_CERTIFICATE);
   }
 
+  public void setSigningCertificate (@Nullable final X509Certificate aCert)
+  {
+    putIn (KEY_SIGNING_CERTIFICATE, aCert);
+  }
+
+  @Nullable
+  public X509Certificate getSigningCertificate ()
+  {
+    return getCastedValue (KEY_SIGNING_CERTIFICATE);
+  }
+
   public void setEffectivePModeLeg (@Nonnegative final int nLegNumber, @Nullable final PModeLeg aEffectiveLeg)
   {
     ValueEnforcer.isTrue (nLegNumber == 1 || nLegNumber == 2, "LegNumber must be 1 or 2");
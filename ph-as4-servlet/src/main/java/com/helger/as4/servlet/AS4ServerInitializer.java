@@ -19,6 +19,9 @@ package com.helger.as4.servlet;
 import javax.annotation.concurrent.Immutable;
 import javax.xml.namespace.QName;
 
+import com.helger.as4.attachment.AS4AttachmentMemoryBudget;
+import com.helger.as4.client.AS4ClientExecutors;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.servlet.mgr.AS4DuplicateCleanupJob;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
@@ -62,6 +65,17 @@ public final class AS4ServerInitializer
     if (!aReg.containsHeaderElementProcessor (QNAME_SECURITY))
       aReg.registerHeaderElementProcessor (QNAME_SECURITY, new SOAPHeaderElementProcessorWSS4J ());
 
+    // Apply the attachment memory limits
+    AS4AttachmentMemoryBudget.setMaxInMemorySize (Math.max (0,
+                                                            AS4ServerConfiguration.getIncomingAttachmentMaxInMemorySize ()));
+    AS4AttachmentMemoryBudget.setBudget (Math.max (0, AS4ServerConfiguration.getIncomingAttachmentMemoryBudget ()));
+
+    // Trusted partners only?
+    Ebms3MarshallerPool.setXSDValidationEnabled (AS4ServerConfiguration.isXSDValidationEnabled ());
+
+    // Bound the outgoing send queue
+    AS4ClientExecutors.setSendQueueSize (AS4ServerConfiguration.getClientSendQueueSize ());
+
     // Ensure all managers are initialized
     MetaAS4Manager.getInstance ();
 
@@ -16,8 +16,10 @@
  */
 package com.helger.as4.servlet;
 
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
 import com.helger.commons.http.EHttpMethod;
 import com.helger.xservlet.AbstractXServlet;
+import com.helger.xservlet.handler.simple.XServletHandlerToSimpleHandler;
 
 /**
  * AS4 receiving servlet.<br>
@@ -28,6 +30,7 @@ import com.helger.xservlet.AbstractXServlet;
 &lt;servlet&gt;
   &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
   &lt;servlet-class&gt;com.helger.as4.servlet.AS4Servlet&lt;/servlet-class&gt;
+  &lt;async-supported&gt;true&lt;/async-supported&gt;
 &lt;/servlet&gt;
 &lt;servlet-mapping&gt;
   &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
@@ -35,6 +38,11 @@ import com.helger.xservlet.AbstractXServlet;
 &lt;/servlet-mapping&gt;
  * </pre>
  *
+ * If <code>server.async.enabled</code> is set in the configuration, requests
+ * are handled with non-blocking I/O by an {@link AS4AsyncXServletHandler}. This
+ * requires <code>async-supported</code> as shown above - otherwise requests are
+ * handled synchronously.
+ *
  * @author Martin Bayerl
  * @author Philip Helger
  */
@@ -44,6 +52,14 @@ public final class AS4Servlet extends AbstractXServlet
   {
     // Multipart is handled specifically inside
     settings ().setMultipartEnabled (false);
-    handlerRegistry ().registerHandler (EHttpMethod.POST, new AS4XServletHandler ());
+    if (AS4ServerConfiguration.isAsyncEnabled ())
+      handlerRegistry ().registerHandler (EHttpMethod.POST,
+                                          new AS4AsyncXServletHandler (new XServletHandlerToSimpleHandler (new AS4XServletHandler ()),
+                                                                       AS4ServerConfiguration.getAsyncTimeoutMS (),
+                                                                       AS4ServerConfiguration.getAsyncThreads (),
+                                                                       AS4ServerConfiguration.getAsyncQueueSize ()),
+                                          false);
+    else
+      handlerRegistry ().registerHandler (EHttpMethod.POST, new AS4XServletHandler ());
   }
 }
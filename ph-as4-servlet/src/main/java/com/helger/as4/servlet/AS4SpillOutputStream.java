@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * An output stream that keeps the written bytes in memory as long as
+ * {@link WSS4JAttachment#canBeKeptInMemory(long)} allows it and spills
+ * everything to a temporary file of the resource manager afterwards. This is
+ * used to buffer request and response bodies that are received or sent with
+ * non-blocking I/O.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+final class AS4SpillOutputStream extends OutputStream
+{
+  private final AS4ResourceManager m_aResMgr;
+  private final NonBlockingByteArrayOutputStream m_aBAOS = new NonBlockingByteArrayOutputStream ();
+  private File m_aTempFile;
+  private OutputStream m_aFileOS;
+
+  AS4SpillOutputStream (@Nonnull final AS4ResourceManager aResMgr)
+  {
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+    m_aResMgr = aResMgr;
+  }
+
+  private void _ensureCapacity (final int nLen) throws IOException
+  {
+    if (m_aTempFile == null && !WSS4JAttachment.canBeKeptInMemory ((long) m_aBAOS.size () + nLen))
+    {
+      // Threshold exceeded - switch to temp file
+      final File aTempFile = m_aResMgr.createTempFile ();
+      m_aFileOS = FileHelper.getBufferedOutputStream (aTempFile);
+      if (m_aFileOS == null)
+        throw new IOException ("Failed to open temporary file " + aTempFile.getAbsolutePath ());
+      m_aTempFile = aTempFile;
+      m_aBAOS.writeTo (m_aFileOS);
+      m_aBAOS.reset ();
+    }
+  }
+
+  @Override
+  public void write (final int b) throws IOException
+  {
+    _ensureCapacity (1);
+    if (m_aFileOS != null)
+      m_aFileOS.write (b);
+    else
+      m_aBAOS.write (b);
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    _ensureCapacity (nLen);
+    if (m_aFileOS != null)
+      m_aFileOS.write (aBuf, nOfs, nLen);
+    else
+      m_aBAOS.write (aBuf, nOfs, nLen);
+  }
+
+  @Override
+  public void flush () throws IOException
+  {
+    if (m_aFileOS != null)
+      m_aFileOS.flush ();
+  }
+
+  @Override
+  public void close ()
+  {
+    StreamHelper.close (m_aFileOS);
+  }
+
+  /**
+   * @return A repeatable input stream provider on the written content. Must
+   *         only be called after the stream was closed. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IHasInputStream getAsInputStreamProvider ()
+  {
+    final File aTempFile = m_aTempFile;
+    if (aTempFile != null)
+      return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile));
+
+    // Use the buffer directly without a copy
+    final byte [] aData = m_aBAOS.directGetBuffer ();
+    final int nLength = m_aBAOS.size ();
+    return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aData, 0, nLength));
+  }
+}
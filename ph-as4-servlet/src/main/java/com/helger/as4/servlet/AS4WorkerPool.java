@@ -16,42 +16,221 @@
  */
 package com.helger.as4.servlet;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.UsedViaReflection;
 import com.helger.commons.callback.IThrowingRunnable;
 import com.helger.commons.concurrent.BasicThreadFactory;
 import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.IStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
 import com.helger.scope.IScope;
 import com.helger.scope.singleton.AbstractGlobalSingleton;
 
 /**
- * Asynchronous worker pool that handles stuff that runs in the background.
+ * Asynchronous worker pool that handles stuff that runs in the background. The
+ * pool has a fixed number of threads and a bounded queue. What happens if the
+ * queue is full is defined by the {@link EAS4WorkerRejectionPolicy}. All
+ * settings are taken from the {@link AS4ServerConfiguration}. Optionally I/O
+ * bound tasks (see {@link #runIO(IThrowingRunnable)}) can be run in a separate
+ * thread each, so that they don't block the pool threads. The number of these
+ * threads is limited as well - if all of them are busy, a
+ * {@link RejectedExecutionException} is thrown.
  *
  * @author Philip Helger
  */
 public final class AS4WorkerPool extends AbstractGlobalSingleton
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (AS4WorkerPool.class);
+  private static final IMutableStatisticsHandlerTimer s_aStatsQueueTimer = StatisticsManager.getTimerHandler (AS4WorkerPool.class.getName () +
+                                                                                                              "$queue");
+  private static final IMutableStatisticsHandlerTimer s_aStatsExecTimer = StatisticsManager.getTimerHandler (AS4WorkerPool.class.getName () +
+                                                                                                             "$exec");
+  private static final IMutableStatisticsHandlerCounter s_aStatsRejected = StatisticsManager.getCounterHandler (AS4WorkerPool.class.getName () +
+                                                                                                                "$rejected");
 
-  private final ExecutorService m_aES;
+  private final ThreadPoolExecutor m_aES;
+  private final Executor m_aExecutor;
+  private final ThreadPoolExecutor m_aIOES;
+  private final Executor m_aIOExecutor;
+  private final boolean m_bThreadPerIOTask;
 
   @Deprecated
   @UsedViaReflection
   public AS4WorkerPool ()
   {
-    m_aES = Executors.newFixedThreadPool (Runtime.getRuntime ().availableProcessors () * 2,
-                                          new BasicThreadFactory.Builder ().setDaemon (true)
-                                                                           .setNamingPattern ("as4-worker-%d")
-                                                                           .build ());
+    this (AS4ServerConfiguration.getWorkerPoolThreads (),
+          AS4ServerConfiguration.getWorkerPoolQueueSize (),
+          AS4ServerConfiguration.getWorkerPoolRejectionPolicy (),
+          AS4ServerConfiguration.getWorkerPoolBlockTimeoutMS (),
+          AS4ServerConfiguration.isWorkerPoolThreadPerTask (),
+          AS4ServerConfiguration.getWorkerPoolMaxIOThreads ());
+  }
+
+  private AS4WorkerPool (@Nonnegative final int nThreads,
+                         @Nonnegative final int nQueueSize,
+                         @Nonnull final EAS4WorkerRejectionPolicy eRejectionPolicy,
+                         @Nonnegative final long nBlockTimeoutMS,
+                         final boolean bThreadPerTask,
+                         @Nonnegative final int nMaxIOThreads)
+  {
+    m_aES = createExecutorService (nThreads, nQueueSize, eRejectionPolicy, nBlockTimeoutMS);
+    m_aExecutor = r -> m_aES.execute (_wrap (r));
+    m_bThreadPerIOTask = bThreadPerTask;
+    if (bThreadPerTask)
+    {
+      m_aIOES = createIOExecutorService (nMaxIOThreads);
+      m_aIOExecutor = r -> m_aIOES.execute (_wrap (r));
+    }
+    else
+    {
+      m_aIOES = null;
+      m_aIOExecutor = m_aExecutor;
+    }
+
+    s_aLogger.info ("AS4 worker pool created with " +
+                    nThreads +
+                    " threads, a queue size of " +
+                    nQueueSize +
+                    " and rejection policy " +
+                    eRejectionPolicy +
+                    (bThreadPerTask ? " and up to " + nMaxIOThreads + " threads for I/O tasks" : ""));
+  }
+
+  /**
+   * Create the bounded executor service used by this pool.
+   *
+   * @param nThreads
+   *        Number of threads. Must be &gt; 0.
+   * @param nQueueSize
+   *        Maximum number of queued tasks. Must be &gt; 0.
+   * @param eRejectionPolicy
+   *        What to do if the queue is full. May not be <code>null</code>.
+   * @param nBlockTimeoutMS
+   *        Milliseconds to wait for a free queue slot with
+   *        {@link EAS4WorkerRejectionPolicy#BLOCK}. Must be &ge; 0.
+   * @return The new executor service. Never <code>null</code>.
+   */
+  @Nonnull
+  static ThreadPoolExecutor createExecutorService (@Nonnegative final int nThreads,
+                                                   @Nonnegative final int nQueueSize,
+                                                   @Nonnull final EAS4WorkerRejectionPolicy eRejectionPolicy,
+                                                   @Nonnegative final long nBlockTimeoutMS)
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    ValueEnforcer.notNull (eRejectionPolicy, "RejectionPolicy");
+    ValueEnforcer.isGE0 (nBlockTimeoutMS, "BlockTimeoutMS");
+
+    return new ThreadPoolExecutor (nThreads,
+                                   nThreads,
+                                   0,
+                                   TimeUnit.MILLISECONDS,
+                                   new ArrayBlockingQueue <> (nQueueSize),
+                                   new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                    .setNamingPattern ("as4-worker-%d")
+                                                                    .build (),
+                                   _createRejectionHandler (eRejectionPolicy, nBlockTimeoutMS));
+  }
+
+  /**
+   * Create the executor service for I/O bound tasks. Each task gets its own
+   * thread, up to the passed maximum. Idle threads are terminated after a
+   * minute.
+   *
+   * @param nMaxThreads
+   *        Maximum number of concurrent threads. Must be &gt; 0.
+   * @return The new executor service. Never <code>null</code>.
+   */
+  @Nonnull
+  static ThreadPoolExecutor createIOExecutorService (@Nonnegative final int nMaxThreads)
+  {
+    ValueEnforcer.isGT0 (nMaxThreads, "MaxThreads");
+
+    final ThreadFactory aThreadFactory = new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                          .setNamingPattern ("as4-worker-io-%d")
+                                                                          .build ();
+    return new ThreadPoolExecutor (0,
+                                   nMaxThreads,
+                                   60,
+                                   TimeUnit.SECONDS,
+                                   new SynchronousQueue <> (),
+                                   aThreadFactory,
+                                   (r, aExecutor) -> {
+                                     s_aStatsRejected.increment ();
+                                     throw new RejectedExecutionException ("All AS4 worker I/O threads are busy");
+                                   });
+  }
+
+  @Nonnull
+  private static RejectedExecutionHandler _createRejectionHandler (@Nonnull final EAS4WorkerRejectionPolicy eRejectionPolicy,
+                                                                   final long nBlockTimeoutMS)
+  {
+    switch (eRejectionPolicy)
+    {
+      case CALLER_RUNS:
+        return (r, aExecutor) -> {
+          s_aStatsRejected.increment ();
+          if (!aExecutor.isShutdown ())
+            r.run ();
+        };
+      case BLOCK:
+        return (r, aExecutor) -> {
+          try
+          {
+            if (!aExecutor.isShutdown () && aExecutor.getQueue ().offer (r, nBlockTimeoutMS, TimeUnit.MILLISECONDS))
+              return;
+          }
+          catch (final InterruptedException ex)
+          {
+            Thread.currentThread ().interrupt ();
+          }
+          s_aStatsRejected.increment ();
+          throw new RejectedExecutionException ("AS4 worker queue is full");
+        };
+      default:
+        return (r, aExecutor) -> {
+          s_aStatsRejected.increment ();
+          throw new RejectedExecutionException ("AS4 worker queue is full");
+        };
+    }
+  }
+
+  @Nonnull
+  private static Runnable _wrap (@Nonnull final Runnable aRunnable)
+  {
+    final long nQueued = System.nanoTime ();
+    return () -> {
+      final long nStart = System.nanoTime ();
+      s_aStatsQueueTimer.addTime (TimeUnit.NANOSECONDS.toMillis (nStart - nQueued));
+      try
+      {
+        aRunnable.run ();
+      }
+      finally
+      {
+        s_aStatsExecTimer.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart));
+      }
+    };
   }
 
   @Nonnull
@@ -65,11 +244,72 @@ public final class AS4WorkerPool extends AbstractGlobalSingleton
   {
     s_aLogger.info ("Global AS4 worker queue about to be closed");
     ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+    if (m_aIOES != null)
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aIOES);
     s_aLogger.info ("Global AS4 worker queue closed!");
   }
 
+  /**
+   * @return <code>true</code> if I/O bound tasks are run in a separate thread
+   *         each, <code>false</code> if they are run in the pool.
+   */
+  public boolean isThreadPerIOTask ()
+  {
+    return m_bThreadPerIOTask;
+  }
+
+  /**
+   * @return The number of currently queued tasks. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getQueueDepth ()
+  {
+    return m_aES.getQueue ().size ();
+  }
+
+  /**
+   * @return The approximate number of pool threads currently executing tasks.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public int getActiveCount ()
+  {
+    return m_aES.getActiveCount ();
+  }
+
+  /**
+   * @return Statistics on the milliseconds a task waited before execution.
+   *         Never <code>null</code>.
+   */
   @Nonnull
-  public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+  public static IStatisticsHandlerTimer getQueueWaitStatistics ()
+  {
+    return s_aStatsQueueTimer;
+  }
+
+  /**
+   * @return Statistics on the milliseconds a task took to execute. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerTimer getExecutionStatistics ()
+  {
+    return s_aStatsExecTimer;
+  }
+
+  /**
+   * @return The number of tasks that could not be queued because the queue was
+   *         full, incl. the ones run in the caller thread.
+   */
+  @Nonnegative
+  public static long getRejectedCount ()
+  {
+    return s_aStatsRejected.getCount ();
+  }
+
+  @Nonnull
+  private static CompletableFuture <Void> _run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable,
+                                                @Nonnull final Executor aExecutor)
   {
     return CompletableFuture.runAsync ( () -> {
       try
@@ -80,7 +320,40 @@ public final class AS4WorkerPool extends AbstractGlobalSingleton
       {
         s_aLogger.error ("Error running AS4 runner " + aRunnable, t);
       }
-    }, m_aES);
+    }, aExecutor);
+  }
+
+  /**
+   * Run a CPU bound task in the pool.
+   *
+   * @param aRunnable
+   *        The runnable to execute. May not be <code>null</code>.
+   * @return The future of the execution. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the queue is full and the rejection policy does not allow to
+   *         run the task
+   */
+  @Nonnull
+  public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+  {
+    return _run (aRunnable, m_aExecutor);
+  }
+
+  /**
+   * Run an I/O bound task. Depending on the configuration this happens in the
+   * pool or in a separate thread.
+   *
+   * @param aRunnable
+   *        The runnable to execute. May not be <code>null</code>.
+   * @return The future of the execution. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the queue is full and the rejection policy does not allow to
+   *         run the task, or if all I/O threads are busy
+   */
+  @Nonnull
+  public CompletableFuture <Void> runIO (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+  {
+    return _run (aRunnable, m_aIOExecutor);
   }
 
   @Nonnull
@@ -96,6 +369,6 @@ public final class AS4WorkerPool extends AbstractGlobalSingleton
         s_aLogger.error ("Error running AS4 supplier " + aSupplier, ex);
         return null;
       }
-    }, m_aES);
+    }, m_aExecutor);
   }
 }
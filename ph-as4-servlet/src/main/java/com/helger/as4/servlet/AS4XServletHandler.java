@@ -16,6 +16,8 @@
  */
 package com.helger.as4.servlet;
 
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.annotation.Nonnull;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -77,6 +79,13 @@ public final class AS4XServletHandler implements IXServletSimpleHandler
                                       "Bad Request: " + ex.getMessage (),
                                       ex.getCause ());
     }
+    catch (final RejectedExecutionException ex)
+    {
+      // A pipeline stage is overloaded
+      aHttpResponse.setResponseError (HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                      "Service Unavailable: " + ex.getMessage (),
+                                      null);
+    }
     catch (final Throwable t)
     {
       // Logged inside
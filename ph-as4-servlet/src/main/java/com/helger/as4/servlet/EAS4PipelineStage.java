@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The stages of the {@link AS4InboundPipeline} an incoming message passes in
+ * this order.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4PipelineStage implements IHasID <String>
+{
+  /** Read the SOAP document and the attachments from the request */
+  PARSE ("parse", true),
+  /** Process the SOAP headers incl. signature verification and decryption */
+  HEADERS ("headers", true),
+  /**
+   * Determine the message type and validate it against the profile. At the end
+   * the message ID is registered for duplicate detection.
+   */
+  VALIDATION ("validation", true),
+  /** Invoke the synchronous message processor SPIs */
+  SPI ("spi", false),
+  /** Create and sign the response message */
+  RESPONSE ("response", false);
+
+  private final String m_sID;
+  private final boolean m_bRejectable;
+
+  private EAS4PipelineStage (@Nonnull @Nonempty final String sID, final boolean bRejectable)
+  {
+    m_sID = sID;
+    m_bRejectable = bRejectable;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return <code>true</code> if a message may be rejected in this stage if it
+   *         is overloaded, <code>false</code> if the message was already
+   *         registered as received, so that a rejection would make the retry of
+   *         the sender fail as a duplicate.
+   */
+  public boolean isRejectable ()
+  {
+    return m_bRejectable;
+  }
+
+  @Nullable
+  public static EAS4PipelineStage getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4PipelineStage.class, sID);
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines what the {@link AS4WorkerPool} does with a task, if the queue is
+ * full.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4WorkerRejectionPolicy implements IHasID <String>
+{
+  /** Run the task in the submitting thread */
+  CALLER_RUNS ("callerruns"),
+  /**
+   * Reject the task immediately. For incoming messages this results in an ebMS
+   * error.
+   */
+  REJECT ("reject"),
+  /**
+   * Wait for a free queue slot for at most the configured timeout and reject
+   * the task afterwards.
+   */
+  BLOCK ("block");
+
+  private final String m_sID;
+
+  private EAS4WorkerRejectionPolicy (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4WorkerRejectionPolicy getFromIDOrDefault (@Nullable final String sID,
+                                                             @Nullable final EAS4WorkerRejectionPolicy eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4WorkerRejectionPolicy.class, sID, eDefault);
+  }
+}
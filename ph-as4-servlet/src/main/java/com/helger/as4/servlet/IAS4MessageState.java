@@ -36,6 +36,7 @@ import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.commons.collection.attr.IAttributeContainer;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsSet;
 
 /**
  * Read-only AS4 message state.
@@ -151,6 +152,25 @@ public interface IAS4MessageState extends IAttributeContainer <String, Object>
     return aIDs != null && aIDs.containsKey (sID);
   }
 
+  /**
+   * @return IDs of all compressed attachments that were already decompressed
+   *         while being decrypted. May be <code>null</code>.
+   */
+  @Nullable
+  ICommonsSet <String> getDecompressedAttachmentIDs ();
+
+  /**
+   * @param sID
+   *        the id to look up
+   * @return <code>true</code> if the attachment with the given ID was
+   *         compressed but is already provided decompressed.
+   */
+  default boolean isAttachmentDecompressed (@Nullable final String sID)
+  {
+    final ICommonsSet <String> aIDs = getDecompressedAttachmentIDs ();
+    return aIDs != null && aIDs.contains (sID);
+  }
+
   /**
    * @return the MPC that is used in the current message exchange
    */
@@ -184,6 +204,14 @@ public interface IAS4MessageState extends IAttributeContainer <String, Object>
   @Nullable
   X509Certificate getUsedCertificate ();
 
+  /**
+   * @return The certificate of the verified SOAP signature. May be
+   *         <code>null</code> if the message was not signed.
+   * @see #isSoapSignatureChecked()
+   */
+  @Nullable
+  X509Certificate getSigningCertificate ();
+
   /**
    * @return The effective leg to use. May be leg 1 or leg 2 of the PMode.
    * @see #getPMode()
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.mgr;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4CryptoRegistry;
+import com.helger.as4.model.pmode.IPMode;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An {@link IAS4CryptoFactoryResolver} that selects the crypto factory based
+ * on the responder ID of the PMode, so that a single server can act on behalf
+ * of multiple identities. Registering a crypto factory is cheap, because the
+ * keystore is only loaded upon first use and is managed by the
+ * {@link AS4CryptoRegistry}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4ResponderCryptoFactoryResolver implements IAS4CryptoFactoryResolver
+{
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, AS4CryptoFactory> m_aMap = new CommonsHashMap <> ();
+
+  public AS4ResponderCryptoFactoryResolver ()
+  {}
+
+  /**
+   * Register the crypto factory to be used for a responder.
+   *
+   * @param sResponderID
+   *        The responder ID as contained in the PMode. May neither be
+   *        <code>null</code> nor empty.
+   * @param aCryptoFactory
+   *        The crypto factory to use. May not be <code>null</code>.
+   */
+  public void registerCryptoFactory (@Nonnull @Nonempty final String sResponderID,
+                                     @Nonnull final AS4CryptoFactory aCryptoFactory)
+  {
+    ValueEnforcer.notEmpty (sResponderID, "ResponderID");
+    ValueEnforcer.notNull (aCryptoFactory, "CryptoFactory");
+    m_aRWLock.writeLocked ( () -> m_aMap.put (sResponderID, aCryptoFactory));
+  }
+
+  @Nonnull
+  public EChange unregisterCryptoFactory (@Nullable final String sResponderID)
+  {
+    return m_aRWLock.writeLocked ( () -> m_aMap.removeObject (sResponderID));
+  }
+
+  @Nullable
+  public AS4CryptoFactory getCryptoFactory (@Nonnull final IPMode aPMode)
+  {
+    final String sResponderID = aPMode.getResponderID ();
+    return m_aRWLock.readLocked ( () -> m_aMap.get (sResponderID));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ResponderIDs", m_aRWLock.readLocked ( () -> m_aMap.copyOfKeySet ()))
+                                       .getToString ();
+  }
+}
@@ -23,6 +23,11 @@ import javax.annotation.concurrent.NotThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.attachment.AS4AttachmentMemoryBudget;
+import com.helger.as4.client.AS4ClientExecutors;
+import com.helger.as4.servlet.EAS4PipelineStage;
+import com.helger.as4.servlet.EAS4WorkerRejectionPolicy;
+import com.helger.commons.CGlobal;
 import com.helger.commons.annotation.VisibleForTesting;
 import com.helger.commons.exception.InitializationException;
 import com.helger.settings.ISettings;
@@ -48,6 +53,11 @@ public final class AS4ServerConfiguration
   private static final Settings SETTINGS = new Settings ("as4-server");
   private static boolean s_bTestMode = false;
   private static final long DEFAULT_RESET_MINUTES = 10;
+  private static final int DEFAULT_WORKER_POOL_QUEUE_SIZE = 1000;
+  private static final long DEFAULT_WORKER_POOL_BLOCK_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_WORKER_POOL_MAX_IO_THREADS = 64;
+  private static final long DEFAULT_ASYNC_TIMEOUT_MS = 5 * CGlobal.MILLISECONDS_PER_MINUTE;
+  private static final int DEFAULT_INCOMING_PRESCAN_MAX_SIZE = 64 * CGlobal.BYTES_PER_KILOBYTE;
 
   public static void reinit (final boolean bForTest)
   {
@@ -140,6 +150,193 @@ public final class AS4ServerConfiguration
     return getSettings ().getAsLong (sFieldName, DEFAULT_RESET_MINUTES);
   }
 
+  /**
+   * @return The number of threads of the AS4 worker pool. Defaults to twice
+   *         the number of available processors.
+   */
+  public static int getWorkerPoolThreads ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.threads", Runtime.getRuntime ().availableProcessors () * 2);
+  }
+
+  /**
+   * @return The maximum number of queued tasks in the AS4 worker pool.
+   */
+  public static int getWorkerPoolQueueSize ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.queuesize", DEFAULT_WORKER_POOL_QUEUE_SIZE);
+  }
+
+  /**
+   * @return What to do with a task if the AS4 worker pool queue is full.
+   */
+  @Nonnull
+  public static EAS4WorkerRejectionPolicy getWorkerPoolRejectionPolicy ()
+  {
+    return EAS4WorkerRejectionPolicy.getFromIDOrDefault (getSettings ().getAsString ("server.workerpool.rejection"),
+                                                         EAS4WorkerRejectionPolicy.CALLER_RUNS);
+  }
+
+  /**
+   * @return The maximum milliseconds to wait for a free queue slot with
+   *         rejection policy {@link EAS4WorkerRejectionPolicy#BLOCK}.
+   */
+  public static long getWorkerPoolBlockTimeoutMS ()
+  {
+    return getSettings ().getAsLong ("server.workerpool.blocktimeout.ms", DEFAULT_WORKER_POOL_BLOCK_TIMEOUT_MS);
+  }
+
+  /**
+   * @return <code>true</code> if I/O bound tasks of the AS4 worker pool (like
+   *         sending asynchronous responses) should each run in a separate new
+   *         thread instead of a pooled thread.
+   */
+  public static boolean isWorkerPoolThreadPerTask ()
+  {
+    return getSettings ().getAsBoolean ("server.workerpool.threadpertask", false);
+  }
+
+  /**
+   * @return The maximum number of concurrent threads for I/O bound tasks if
+   *         {@link #isWorkerPoolThreadPerTask()} is enabled. If all of them are
+   *         busy, the task is run in the calling thread.
+   */
+  public static int getWorkerPoolMaxIOThreads ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.io.maxthreads", DEFAULT_WORKER_POOL_MAX_IO_THREADS);
+  }
+
+  /**
+   * @param eStage
+   *        The pipeline stage to query. May not be <code>null</code>.
+   * @return The number of threads of the passed inbound pipeline stage. Values
+   *         &le; 0 (the default) mean that the stage is run in the calling
+   *         thread.
+   */
+  public static int getPipelineStageThreads (@Nonnull final EAS4PipelineStage eStage)
+  {
+    return getSettings ().getAsInt ("server.pipeline." + eStage.getID () + ".threads", 0);
+  }
+
+  /**
+   * @param eStage
+   *        The pipeline stage to query. May not be <code>null</code>.
+   * @return The maximum number of queued tasks of the passed inbound pipeline
+   *         stage. If the queue is full, further messages are rejected.
+   */
+  public static int getPipelineStageQueueSize (@Nonnull final EAS4PipelineStage eStage)
+  {
+    return getSettings ().getAsInt ("server.pipeline." + eStage.getID () + ".queuesize",
+                                    DEFAULT_WORKER_POOL_QUEUE_SIZE);
+  }
+
+  /**
+   * @return <code>true</code> if ebMS headers and SOAP envelopes should be
+   *         validated against the XSDs (the default). Disabling it saves time
+   *         per message, but should only be done if all partners are trusted.
+   */
+  public static boolean isXSDValidationEnabled ()
+  {
+    return getSettings ().getAsBoolean ("server.xsdvalidation.enabled", true);
+  }
+
+  /**
+   * @return <code>true</code> if incoming AS4 requests should be handled with
+   *         Servlet 3.1 asynchronous, non-blocking I/O. This requires
+   *         <code>async-supported</code> to be enabled for the servlet.
+   *         Defaults to <code>false</code>.
+   */
+  public static boolean isAsyncEnabled ()
+  {
+    return getSettings ().getAsBoolean ("server.async.enabled", false);
+  }
+
+  /**
+   * @return The maximum milliseconds an asynchronous request may take in
+   *         total, incl. upload and processing. Values &le; 0 mean no
+   *         timeout. Defaults to 5 minutes.
+   */
+  public static long getAsyncTimeoutMS ()
+  {
+    return getSettings ().getAsLong ("server.async.timeout.ms", DEFAULT_ASYNC_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The number of threads processing fully received asynchronous
+   *         requests. Defaults to twice the number of available processors.
+   */
+  public static int getAsyncThreads ()
+  {
+    return getSettings ().getAsInt ("server.async.threads", Runtime.getRuntime ().availableProcessors () * 2);
+  }
+
+  /**
+   * @return The maximum number of fully received asynchronous requests waiting
+   *         for processing. If the queue is full, further requests are
+   *         rejected with HTTP 503.
+   */
+  public static int getAsyncQueueSize ()
+  {
+    return getSettings ().getAsInt ("server.async.queuesize", DEFAULT_WORKER_POOL_QUEUE_SIZE);
+  }
+
+  /**
+   * @return The minimum number of encrypted attachments of an incoming message
+   *         that are decrypted in parallel. Values &le; 0 (the default)
+   *         disable parallel processing.
+   */
+  public static int getIncomingAttachmentParallelThreshold ()
+  {
+    return getSettings ().getAsInt ("server.incoming.attachments.parallelthreshold", 0);
+  }
+
+  /**
+   * @return The maximum number of bytes at the beginning of an incoming SOAP
+   *         envelope that are scanned for the ebMS header, to reject messages
+   *         with an unknown PMode before they are parsed completely. Defaults
+   *         to 64 KB. Values &le; 0 disable the pre-scan.
+   */
+  public static int getIncomingPreScanMaxSize ()
+  {
+    return getSettings ().getAsInt ("server.incoming.prescan.maxsize", DEFAULT_INCOMING_PRESCAN_MAX_SIZE);
+  }
+
+  /**
+   * @return The maximum size in bytes of a single incoming attachment that may
+   *         be kept in memory. Larger attachments are spilled to a temporary
+   *         file. Defaults to
+   *         {@link AS4AttachmentMemoryBudget#DEFAULT_MAX_IN_MEMORY_SIZE}.
+   */
+  public static long getIncomingAttachmentMaxInMemorySize ()
+  {
+    return getSettings ().getAsLong ("server.incoming.attachments.inmemory.maxsize",
+                                     AS4AttachmentMemoryBudget.DEFAULT_MAX_IN_MEMORY_SIZE);
+  }
+
+  /**
+   * @return The maximum number of bytes of all incoming attachments that may
+   *         be kept in memory at the same time. If the budget is exhausted,
+   *         further attachments are spilled to temporary files. Defaults to
+   *         {@link AS4AttachmentMemoryBudget#DEFAULT_BUDGET}.
+   */
+  public static long getIncomingAttachmentMemoryBudget ()
+  {
+    return getSettings ().getAsLong ("server.incoming.attachments.inmemory.budget",
+                                     AS4AttachmentMemoryBudget.DEFAULT_BUDGET);
+  }
+
+  /**
+   * @return The maximum number of outgoing AS4 messages waiting for a free
+   *         sender thread. If the queue is full, further asynchronous sends
+   *         are rejected. Defaults to
+   *         {@link AS4ClientExecutors#DEFAULT_SEND_QUEUE_SIZE}. Values &le; 0
+   *         mean unbounded.
+   */
+  public static int getClientSendQueueSize ()
+  {
+    return getSettings ().getAsInt ("client.sendqueue.size", AS4ClientExecutors.DEFAULT_SEND_QUEUE_SIZE);
+  }
+
   @Nullable
   public static String getServerAddress ()
   {
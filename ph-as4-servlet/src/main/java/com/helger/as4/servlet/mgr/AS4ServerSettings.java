@@ -17,11 +17,14 @@
 package com.helger.as4.servlet.mgr;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
 import com.helger.as4.attachment.IIncomingAttachmentFactory;
+import com.helger.as4.attachment.IIncomingAttachmentStreamFactory;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.resolve.DefaultPModeResolver;
 import com.helger.as4.model.pmode.resolve.IPModeResolver;
 import com.helger.commons.ValueEnforcer;
@@ -34,8 +37,10 @@ public final class AS4ServerSettings
 
   private static String s_sResponderID = DEFAULT_RESPONDER_ID;
   private static IIncomingAttachmentFactory s_aIncomingAttachmentFactory = WSS4JAttachment::createIncomingFileAttachment;
+  private static IIncomingAttachmentStreamFactory s_aIncomingAttachmentStreamFactory = WSS4JAttachment::createIncomingFileAttachment;
   private static IPModeResolver s_aPModeResolver = new DefaultPModeResolver (false);
   private static AS4CryptoFactory s_aAS4CryptoFactory = AS4CryptoFactory.DEFAULT_INSTANCE;
+  private static IAS4CryptoFactoryResolver s_aAS4CryptoFactoryResolver;
 
   private AS4ServerSettings ()
   {}
@@ -59,10 +64,42 @@ public final class AS4ServerSettings
     return s_aIncomingAttachmentFactory;
   }
 
+  /**
+   * Set the incoming attachment factory that works on fully read MIME body
+   * parts. Note: this implicitly disables the streaming attachment factory, so
+   * that the provided factory is really used.
+   *
+   * @param aIncomingAttachmentFactory
+   *        The factory to use. May not be <code>null</code>.
+   */
   public static void setIncomingAttachmentFactory (@Nonnull final IIncomingAttachmentFactory aIncomingAttachmentFactory)
   {
     ValueEnforcer.notNull (aIncomingAttachmentFactory, "IncomingAttachmentFactory");
     s_aIncomingAttachmentFactory = aIncomingAttachmentFactory;
+    s_aIncomingAttachmentStreamFactory = null;
+  }
+
+  /**
+   * @return The streaming incoming attachment factory. If it is
+   *         <code>null</code> the MIME body parts are read completely and
+   *         {@link #getIncomingAttachmentFactory()} is used instead.
+   */
+  @Nullable
+  public static IIncomingAttachmentStreamFactory getIncomingAttachmentStreamFactory ()
+  {
+    return s_aIncomingAttachmentStreamFactory;
+  }
+
+  /**
+   * Set the streaming incoming attachment factory.
+   *
+   * @param aIncomingAttachmentStreamFactory
+   *        The factory to use. May be <code>null</code> to disable streaming
+   *        and fall back to {@link #getIncomingAttachmentFactory()}.
+   */
+  public static void setIncomingAttachmentStreamFactory (@Nullable final IIncomingAttachmentStreamFactory aIncomingAttachmentStreamFactory)
+  {
+    s_aIncomingAttachmentStreamFactory = aIncomingAttachmentStreamFactory;
   }
 
   @Nonnull
@@ -88,4 +125,46 @@ public final class AS4ServerSettings
     ValueEnforcer.notNull (aAS4CryptoFactory, "AS4CryptoFactory");
     s_aAS4CryptoFactory = aAS4CryptoFactory;
   }
+
+  @Nullable
+  public static IAS4CryptoFactoryResolver getAS4CryptoFactoryResolver ()
+  {
+    return s_aAS4CryptoFactoryResolver;
+  }
+
+  /**
+   * Set the resolver to determine the crypto factory based on the PMode of a
+   * message.
+   *
+   * @param aAS4CryptoFactoryResolver
+   *        The resolver to use. May be <code>null</code> to always use
+   *        {@link #getAS4CryptoFactory()}.
+   */
+  public static void setAS4CryptoFactoryResolver (@Nullable final IAS4CryptoFactoryResolver aAS4CryptoFactoryResolver)
+  {
+    s_aAS4CryptoFactoryResolver = aAS4CryptoFactoryResolver;
+  }
+
+  /**
+   * Get the crypto factory to be used for a message with the passed PMode.
+   *
+   * @param aPMode
+   *        The resolved PMode. May be <code>null</code>.
+   * @return The crypto factory from the resolver or the default crypto
+   *         factory. Never <code>null</code>.
+   * @see #getAS4CryptoFactoryResolver()
+   * @see #getAS4CryptoFactory()
+   */
+  @Nonnull
+  public static AS4CryptoFactory getAS4CryptoFactory (@Nullable final IPMode aPMode)
+  {
+    final IAS4CryptoFactoryResolver aResolver = s_aAS4CryptoFactoryResolver;
+    if (aResolver != null && aPMode != null)
+    {
+      final AS4CryptoFactory ret = aResolver.getCryptoFactory (aPMode);
+      if (ret != null)
+        return ret;
+    }
+    return s_aAS4CryptoFactory;
+  }
 }
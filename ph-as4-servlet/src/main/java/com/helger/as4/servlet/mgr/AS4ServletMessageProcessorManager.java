@@ -79,4 +79,17 @@ public final class AS4ServletMessageProcessorManager
   {
     return s_aRWLock.readLocked ( () -> s_aProcessors.getClone ());
   }
+
+  /**
+   * @return <code>true</code> if exactly one processor is registered and it
+   *         declares that it reads each incoming attachment at most once. In
+   *         that case decrypted attachments are passed as single-use streams
+   *         without spilling them to memory or disk first.
+   * @see IAS4ServletMessageProcessorSPI#isReadIncomingAttachmentsOnlyOnce()
+   */
+  public static boolean isReadIncomingAttachmentsOnlyOnce ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aProcessors.size () == 1 &&
+                                        s_aProcessors.getFirst ().isReadIncomingAttachmentsOnlyOnce ());
+  }
 }
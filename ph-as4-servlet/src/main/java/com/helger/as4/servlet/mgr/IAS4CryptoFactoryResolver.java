@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.mgr;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.model.pmode.IPMode;
+
+/**
+ * Resolve the crypto factory (keystore and key alias) to be used for a
+ * message from the PMode that was resolved for it.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface IAS4CryptoFactoryResolver
+{
+  /**
+   * Get the crypto factory for the passed PMode.
+   *
+   * @param aPMode
+   *        The resolved PMode of the current message. Never <code>null</code>.
+   * @return <code>null</code> to use the default crypto factory from
+   *         {@link AS4ServerSettings#getAS4CryptoFactory()}.
+   */
+  @Nullable
+  AS4CryptoFactory getCryptoFactory (@Nonnull IPMode aPMode);
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.soap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.security.auth.callback.CallbackHandler;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.dom.WSConstants;
+import org.apache.wss4j.dom.engine.WSSConfig;
+import org.apache.wss4j.dom.handler.RequestData;
+
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4CryptoRegistry;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.map.LRUMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The pre-built and thread-safe part of the WSS4J configuration that is
+ * required to verify and decrypt incoming messages. Creating a
+ * {@link WSSConfig} and resolving the crypto is comparatively expensive, so it
+ * is done only once and each message only binds its own attachments via
+ * {@link #createRequestData(CallbackHandler)}. One context per crypto is
+ * kept, so that multiple identities can be served in parallel. The context is
+ * rebuilt automatically if the crypto was reloaded.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+final class AS4VerificationContext
+{
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  // Key is the crypto, which is compared by identity
+  @GuardedBy ("s_aRWLock")
+  private static final LRUMap <Crypto, AS4VerificationContext> s_aMap = new LRUMap <> (AS4CryptoRegistry.DEFAULT_MAX_SIZE);
+
+  private final AS4CryptoFactory m_aCryptoFactory;
+  private final Crypto m_aCrypto;
+  private final WSSConfig m_aWSSConfig;
+  private final KeyStoreCallbackHandler m_aKeyStoreCallback;
+
+  private AS4VerificationContext (@Nonnull final AS4CryptoFactory aCryptoFactory, @Nonnull final Crypto aCrypto)
+  {
+    m_aCryptoFactory = aCryptoFactory;
+    m_aCrypto = aCrypto;
+    m_aWSSConfig = WSSConfig.getNewInstance ();
+    // Cache the results of the certificate trust verification
+    m_aWSSConfig.setValidator (WSConstants.SIGNATURE, new TrustCachingSignatureTrustValidator ());
+    m_aKeyStoreCallback = new KeyStoreCallbackHandler (aCryptoFactory.getCryptoProperties ());
+  }
+
+  /**
+   * Get the verification context for the provided crypto factory. If a
+   * context was already built for the same crypto, it is reused.
+   *
+   * @param aCryptoFactory
+   *        The crypto factory to use. May not be <code>null</code>.
+   * @return The context to use. Never <code>null</code>.
+   */
+  @Nonnull
+  static AS4VerificationContext getInstance (@Nonnull final AS4CryptoFactory aCryptoFactory)
+  {
+    ValueEnforcer.notNull (aCryptoFactory, "CryptoFactory");
+
+    // The crypto itself is cached in the AS4CryptoRegistry
+    final Crypto aCrypto = aCryptoFactory.getCrypto ();
+    // LRUMap is access ordered so a write lock is needed
+    final AS4VerificationContext aCurrent = s_aRWLock.writeLocked ( () -> s_aMap.get (aCrypto));
+    if (aCurrent != null)
+      return aCurrent;
+
+    // Racing threads may build it concurrently which is harmless
+    final AS4VerificationContext ret = new AS4VerificationContext (aCryptoFactory, aCrypto);
+    s_aRWLock.writeLocked ( () -> s_aMap.put (aCrypto, ret));
+    return ret;
+  }
+
+  /**
+   * Create the per-message request data.
+   *
+   * @param aAttachmentCallbackHandler
+   *        The attachment callback handler of the message. May be
+   *        <code>null</code> if the message has no attachments.
+   * @return A new {@link RequestData} that must not be shared between
+   *         messages. Never <code>null</code>.
+   */
+  @Nonnull
+  RequestData createRequestData (@Nullable final CallbackHandler aAttachmentCallbackHandler)
+  {
+    final RequestData ret = new RequestData ();
+    ret.setCallbackHandler (m_aKeyStoreCallback);
+    if (aAttachmentCallbackHandler != null)
+      ret.setAttachmentCallbackHandler (aAttachmentCallbackHandler);
+    ret.setSigVerCrypto (m_aCrypto);
+    ret.setDecCrypto (m_aCrypto);
+    ret.setWssConfig (m_aWSSConfig);
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("CryptoFactory", m_aCryptoFactory)
+                                       .append ("Crypto", m_aCrypto)
+                                       .getToString ();
+  }
+}
@@ -18,6 +18,7 @@ package com.helger.as4.servlet.soap;
 
 import java.io.IOException;
 
+import javax.annotation.Nonnull;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.UnsupportedCallbackException;
@@ -27,21 +28,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.as4.crypto.CryptoProperties;
-import com.helger.as4.servlet.mgr.AS4ServerSettings;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.equals.EqualsHelper;
 
 final class KeyStoreCallbackHandler implements CallbackHandler
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (KeyStoreCallbackHandler.class);
 
+  private final CryptoProperties m_aCP;
+
+  public KeyStoreCallbackHandler (@Nonnull final CryptoProperties aCP)
+  {
+    m_aCP = ValueEnforcer.notNull (aCP, "CryptoProperties");
+  }
+
   public void handle (final Callback [] aCallbacks) throws IOException, UnsupportedCallbackException
   {
-    final CryptoProperties aCP = AS4ServerSettings.getAS4CryptoFactory ().getCryptoProperties ();
+    final CryptoProperties aCP = m_aCP;
     for (final Callback aCallback : aCallbacks)
     {
       if (aCallback instanceof WSPasswordCallback)
       {
         final WSPasswordCallback aPasswordCallback = (WSPasswordCallback) aCallback;
-        if (aCP.getKeyAlias ().equals (aPasswordCallback.getIdentifier ()))
+        if (EqualsHelper.equals (aCP.getKeyAlias (), aPasswordCallback.getIdentifier ()))
         {
           aPasswordCallback.setPassword (aCP.getKeyPassword ());
           s_aLogger.info ("Found keystore password for alias '" + aPasswordCallback.getIdentifier () + "'");
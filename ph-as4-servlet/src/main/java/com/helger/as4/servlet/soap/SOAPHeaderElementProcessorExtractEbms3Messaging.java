@@ -30,7 +30,8 @@ import org.w3c.dom.Element;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.error.EEbmsError;
-import com.helger.as4.marshaller.Ebms3ReaderBuilder;
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
 import com.helger.as4.messaging.domain.UserMessageCreator;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.model.mpc.IMPC;
@@ -171,6 +172,61 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
     return aBody != null && aBody.hasChildNodes ();
   }
 
+  /**
+   * Check the elements and attributes that are mandatory according to the
+   * ebMS 3 XSD and are dereferenced during processing. Usually this is already
+   * ensured by the XSD validation, but that may be disabled via
+   * {@link Ebms3MarshallerPool#setXSDValidationEnabled(boolean)}.
+   *
+   * @param aMessaging
+   *        The messaging object to check. May not be <code>null</code>.
+   * @return The name of the first missing element or <code>null</code> if all
+   *         required elements are present.
+   */
+  @Nullable
+  private static String _getFirstMissingRequiredElement (@Nonnull final Ebms3Messaging aMessaging)
+  {
+    for (final Ebms3UserMessage aUserMessage : aMessaging.getUserMessage ())
+    {
+      if (aUserMessage.getMessageInfo () == null)
+        return "UserMessage/MessageInfo";
+      if (StringHelper.hasNoText (aUserMessage.getMessageInfo ().getMessageId ()))
+        return "UserMessage/MessageInfo/MessageId";
+      if (aUserMessage.getPartyInfo () == null)
+        return "UserMessage/PartyInfo";
+      if (aUserMessage.getPartyInfo ().getFrom () == null ||
+          aUserMessage.getPartyInfo ().getFrom ().hasNoPartyIdEntries ())
+        return "UserMessage/PartyInfo/From/PartyId";
+      if (aUserMessage.getPartyInfo ().getTo () == null ||
+          aUserMessage.getPartyInfo ().getTo ().hasNoPartyIdEntries ())
+        return "UserMessage/PartyInfo/To/PartyId";
+      if (aUserMessage.getCollaborationInfo () == null)
+        return "UserMessage/CollaborationInfo";
+      if (aUserMessage.getCollaborationInfo ().getService () == null)
+        return "UserMessage/CollaborationInfo/Service";
+      if (aUserMessage.getCollaborationInfo ().getAction () == null)
+        return "UserMessage/CollaborationInfo/Action";
+      if (aUserMessage.getMessageProperties () != null)
+        for (final Ebms3Property aProperty : aUserMessage.getMessageProperties ().getProperty ())
+          if (aProperty.getName () == null)
+            return "UserMessage/MessageProperties/Property/@name";
+      if (aUserMessage.getPayloadInfo () != null)
+        for (final Ebms3PartInfo aPart : aUserMessage.getPayloadInfo ().getPartInfo ())
+          if (aPart.getPartProperties () != null)
+            for (final Ebms3Property aProperty : aPart.getPartProperties ().getProperty ())
+              if (aProperty.getName () == null)
+                return "UserMessage/PayloadInfo/PartInfo/PartProperties/Property/@name";
+    }
+    for (final Ebms3SignalMessage aSignalMessage : aMessaging.getSignalMessage ())
+    {
+      if (aSignalMessage.getMessageInfo () == null)
+        return "SignalMessage/MessageInfo";
+      if (StringHelper.hasNoText (aSignalMessage.getMessageInfo ().getMessageId ()))
+        return "SignalMessage/MessageInfo/MessageId";
+    }
+    return null;
+  }
+
   @Nonnull
   public ESuccess processHeaderElement (@Nonnull final Document aSOAPDoc,
                                         @Nonnull final Element aElement,
@@ -188,9 +244,10 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
 
     // Parse EBMS3 Messaging object
     final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
-    final Ebms3Messaging aMessaging = Ebms3ReaderBuilder.ebms3Messaging ()
-                                                        .setValidationEventHandler (aCVEH)
-                                                        .read (aElement);
+    final Ebms3Messaging aMessaging = Ebms3MarshallerPool.read (EEbms3DocumentType.MESSAGING,
+                                                                Ebms3Messaging.class,
+                                                                aElement,
+                                                                aCVEH);
 
     // If the ebms3reader above fails aMessageing will be null => invalid/not
     // wellformed
@@ -208,6 +265,15 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
       return ESuccess.FAILURE;
     }
 
+    // Without XSD validation the mandatory elements may be missing
+    final String sMissingElement = _getFirstMissingRequiredElement (aMessaging);
+    if (sMissingElement != null)
+    {
+      s_aLogger.warn ("Required ebMS element " + sMissingElement + " is missing");
+      aErrorList.add (EEbmsError.EBMS_INVALID_HEADER.getAsError (aLocale));
+      return ESuccess.FAILURE;
+    }
+
     // Remember in state
     aState.setMessaging (aMessaging);
 
@@ -16,18 +16,19 @@
  */
 package com.helger.as4.servlet.soap;
 
-import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.wss4j.common.util.AttachmentUtils;
 import org.apache.wss4j.dom.WSConstants;
-import org.apache.wss4j.dom.engine.WSSConfig;
 import org.apache.wss4j.dom.engine.WSSecurityEngine;
 import org.apache.wss4j.dom.engine.WSSecurityEngineResult;
 import org.apache.wss4j.dom.handler.RequestData;
@@ -37,6 +38,8 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import com.helger.as4.CAS4;
+import com.helger.as4.attachment.AS4AttachmentParallelHelper;
+import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.attachment.WSS4JAttachmentCallbackHandler;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
@@ -45,6 +48,8 @@ import com.helger.as4.error.EEbmsError;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
 import com.helger.as4.servlet.AS4MessageState;
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.as4.servlet.mgr.AS4ServletMessageProcessorManager;
 import com.helger.as4.servlet.mgr.AS4ServerSettings;
 import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
@@ -53,7 +58,7 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsSet;
 import com.helger.commons.debug.GlobalDebug;
 import com.helger.commons.error.list.ErrorList;
-import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.state.ESuccess;
@@ -70,6 +75,26 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (SOAPHeaderElementProcessorWSS4J.class);
 
+  @Nonnull
+  private static InputStream _getPlainStream (@Nonnull final IHasInputStream aDecryptedISP,
+                                              @Nullable final EAS4CompressionMode eCompressionMode)
+  {
+    final InputStream aIS = aDecryptedISP.getInputStream ();
+    if (aIS == null)
+      throw new IllegalStateException ("Got no InputStream from " + aDecryptedISP);
+    if (eCompressionMode == null)
+      return aIS;
+    try
+    {
+      return eCompressionMode.getDecompressStream (aIS);
+    }
+    catch (final IOException ex)
+    {
+      StreamHelper.close (aIS);
+      throw new UncheckedIOException (ex);
+    }
+  }
+
   @Nonnull
   public ESuccess processHeaderElement (@Nonnull final Document aSOAPDoc,
                                         @Nonnull final Element aSecurityNode,
@@ -186,18 +211,14 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
       try
       {
         // Convert to WSS4J attachments
-        final KeyStoreCallbackHandler aKeyStoreCallback = new KeyStoreCallbackHandler ();
         final WSS4JAttachmentCallbackHandler aAttachmentCallbackHandler = new WSS4JAttachmentCallbackHandler (aAttachments,
                                                                                                               aState.getResourceMgr ());
 
         // Configure RequestData needed for the check / decrpyt process!
-        final RequestData aRequestData = new RequestData ();
-        aRequestData.setCallbackHandler (aKeyStoreCallback);
-        if (aAttachments.isNotEmpty ())
-          aRequestData.setAttachmentCallbackHandler (aAttachmentCallbackHandler);
-        aRequestData.setSigVerCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
-        aRequestData.setDecCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
-        aRequestData.setWssConfig (WSSConfig.getNewInstance ());
+        // The message independent part is shared
+        final AS4VerificationContext aContext = AS4VerificationContext.getInstance (AS4ServerSettings.getAS4CryptoFactory (aPMode));
+        final RequestData aRequestData = aContext.createRequestData (aAttachments.isNotEmpty () ? aAttachmentCallbackHandler
+                                                                                                : null);
 
         // Upon success, the SOAP document contains the decrypted content
         // afterwards!
@@ -217,6 +238,7 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
             {
               case WSConstants.SIGN:
                 aState.setSoapSignatureChecked (true);
+                aState.setSigningCertificate (aCert);
                 break;
               case WSConstants.ENCR:
                 aState.setSoapDecrypted (true);
@@ -238,20 +260,55 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
 
         // Decrypting the Attachments
         final ICommonsList <WSS4JAttachment> aResponseAttachments = aAttachmentCallbackHandler.getAllResponseAttachments ();
-        for (final WSS4JAttachment aResponseAttachment : aResponseAttachments)
+        // Not decrypted attachments are already repeatable
+        final ICommonsList <WSS4JAttachment> aDecryptedAttachments = aResponseAttachments.getAll (x -> {
+          final IHasInputStream aISP = x.getInputStreamProvider ();
+          return aISP == null || !aISP.isReadMultiple ();
+        });
+
+        // Compressed attachments are decompressed directly after decryption
+        final ICommonsSet <String> aDecompressedIDs = new CommonsHashSet <> ();
+        for (final WSS4JAttachment aResponseAttachment : aDecryptedAttachments)
+        {
+          final EAS4CompressionMode eCompressionMode = aState.getAttachmentCompressionMode (aResponseAttachment.getId ());
+          if (eCompressionMode != null)
+            aDecompressedIDs.add (aResponseAttachment.getId ());
+        }
+
+        if (AS4ServletMessageProcessorManager.isReadIncomingAttachmentsOnlyOnce ())
+        {
+          // The only SPI reads each attachment once - decrypt and decompress
+          // while it reads
+          for (final WSS4JAttachment aResponseAttachment : aDecryptedAttachments)
+          {
+            final IHasInputStream aEncryptedISP = aResponseAttachment.getInputStreamProvider ();
+            final EAS4CompressionMode eCompressionMode = aState.getAttachmentCompressionMode (aResponseAttachment.getId ());
+            aResponseAttachment.setSourceStreamProvider (HasInputStream.once ( () -> _getPlainStream (aEncryptedISP,
+                                                                                                       eCompressionMode)));
+          }
+        }
+        else
         {
-          final InputStream aIS = aResponseAttachment.getSourceStream ();
-
-          // Always copy to a temporary file, so that decrypted content can be
-          // read more than once.
-          // Not nice, but working :)
-          final File aTempFile = aState.getResourceMgr ().createTempFile ();
-          StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aIS, FileHelper.getBufferedOutputStream (aTempFile));
-          aResponseAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
+          // Consume each decrypted stream exactly once into memory or a
+          // temporary file, so that the content can be read more than once.
+          // WSS4J decrypts lazily, so this is where the CPU time is spent.
+          // Compressed content is inflated in the same pass.
+          AS4AttachmentParallelHelper.forEach (aDecryptedAttachments,
+                                               AS4ServerConfiguration.getIncomingAttachmentParallelThreshold (),
+                                               aResponseAttachment -> {
+                                                 final EAS4CompressionMode eCompressionMode = aState.getAttachmentCompressionMode (aResponseAttachment.getId ());
+                                                 try (final InputStream aIS = _getPlainStream (aResponseAttachment.getInputStreamProvider (),
+                                                                                               eCompressionMode))
+                                                 {
+                                                   aResponseAttachment.setSourceStreamProvider (WSS4JAttachment.createRepeatableInputStreamProvider (aIS,
+                                                                                                                                                    aState.getResourceMgr ()));
+                                                 }
+                                               });
         }
 
         // Remember in State
         aState.setDecryptedAttachments (aResponseAttachments);
+        aState.setDecompressedAttachmentIDs (aDecompressedIDs);
       }
       catch (final Exception ex)
       {
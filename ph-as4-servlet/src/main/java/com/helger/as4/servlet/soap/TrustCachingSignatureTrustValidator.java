@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.soap;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.apache.wss4j.dom.handler.RequestData;
+import org.apache.wss4j.dom.validate.SignatureTrustValidator;
+
+import com.helger.as4.crypto.AS4TrustVerificationCache;
+
+/**
+ * Special {@link SignatureTrustValidator} that uses the
+ * {@link AS4TrustVerificationCache} to avoid validating the same certificate
+ * chain against the truststore over and over again. The validity period of the
+ * certificates is still checked for every message.
+ *
+ * @author Philip Helger
+ */
+final class TrustCachingSignatureTrustValidator extends SignatureTrustValidator
+{
+  @Override
+  protected void verifyTrustInCerts (final X509Certificate [] aCerts,
+                                     final Crypto aCrypto,
+                                     final RequestData aData,
+                                     final boolean bEnableRevocation) throws WSSecurityException
+  {
+    String sKey = null;
+    if (aCerts != null && aCerts.length > 0)
+    {
+      try
+      {
+        sKey = AS4TrustVerificationCache.getCacheKey (aCerts, bEnableRevocation);
+      }
+      catch (final CertificateEncodingException ex)
+      {
+        // Not cachable
+      }
+    }
+
+    if (AS4TrustVerificationCache.isTrusted (sKey, aCrypto))
+      return;
+
+    // Throws an exception if not trusted
+    super.verifyTrustInCerts (aCerts, aCrypto, aData, bEnableRevocation);
+
+    if (sKey != null)
+      AS4TrustVerificationCache.putTrusted (sKey, aCerts, aCrypto);
+  }
+}
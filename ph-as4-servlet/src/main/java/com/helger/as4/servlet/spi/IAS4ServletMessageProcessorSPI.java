@@ -37,6 +37,23 @@ import com.helger.commons.collection.impl.ICommonsList;
 @IsSPIInterface
 public interface IAS4ServletMessageProcessorSPI
 {
+  /**
+   * Declare whether this processor reads the stream of each incoming
+   * attachment at most once. If so, and if it is the only registered
+   * processor, decrypted attachments are decrypted and decompressed on the fly
+   * while the processor reads them, without any intermediate copy. Attachments
+   * passed to {@link #processAS4UserMessage(Ebms3UserMessage, IPMode, Node,
+   * ICommonsList, IAS4MessageState)} may then only be read once.
+   *
+   * @return <code>true</code> to receive single-use streams,
+   *         <code>false</code> for repeatable streams. The default is
+   *         <code>false</code>.
+   */
+  default boolean isReadIncomingAttachmentsOnlyOnce ()
+  {
+    return false;
+  }
+
   /**
    * Process incoming AS4 user message
    *
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4EbmsHeaderPreScanner}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4EbmsHeaderPreScannerTest
+{
+  private static final String SOAP = "<S:Envelope xmlns:S='" +
+                                     ESOAPVersion.SOAP_12.getNamespaceURI () +
+                                     "'><S:Header><eb:Messaging xmlns:eb='" +
+                                     CAS4.EBMS_NS +
+                                     "'><eb:UserMessage mpc='mpc1'>" +
+                                     "<eb:MessageInfo><eb:Timestamp>2017-01-01T00:00:00Z</eb:Timestamp><eb:MessageId> id1 </eb:MessageId></eb:MessageInfo>" +
+                                     "<eb:PartyInfo><eb:From><eb:PartyId>from</eb:PartyId><eb:Role>r</eb:Role></eb:From>" +
+                                     "<eb:To><eb:PartyId>to</eb:PartyId><eb:Role>r</eb:Role></eb:To></eb:PartyInfo>" +
+                                     "<eb:CollaborationInfo><eb:AgreementRef pmode='pm1'>ref</eb:AgreementRef>" +
+                                     "<eb:Service>svc</eb:Service><eb:Action>act</eb:Action>" +
+                                     "<eb:ConversationId>c</eb:ConversationId></eb:CollaborationInfo>" +
+                                     "</eb:UserMessage></eb:Messaging></S:Header>" +
+                                     "<S:Body><Payload/></S:Body></S:Envelope>";
+
+  @Test
+  public void testScan () throws Exception
+  {
+    final byte [] aBytes = SOAP.getBytes (StandardCharsets.UTF_8);
+    final InputStream aIS = new BufferedInputStream (new NonBlockingByteArrayInputStream (aBytes));
+    aIS.mark (aBytes.length);
+    final AS4EbmsHeaderPreScanner.Result aResult = AS4EbmsHeaderPreScanner.scan (aIS, aBytes.length);
+    assertNotNull (aResult);
+    assertEquals (ESOAPVersion.SOAP_12, aResult.getSOAPVersion ());
+    assertTrue (aResult.isUserMessage ());
+    assertEquals ("id1", aResult.getMessageID ());
+    assertEquals ("mpc1", aResult.getMPC ());
+    assertEquals ("pm1", aResult.getPModeID ());
+    assertEquals ("svc", aResult.getService ());
+    assertEquals ("act", aResult.getAction ());
+    assertEquals ("from", aResult.getFromPartyID ());
+    assertEquals ("to", aResult.getToPartyID ());
+    assertTrue (aResult.hasSinglePartyIDs ());
+
+    // Stream can be re-read completely
+    aIS.reset ();
+    assertEquals (aBytes.length, StreamHelper.getAllBytes (aIS).length);
+
+    // Header exceeds the limit
+    assertNull (AS4EbmsHeaderPreScanner.scan (new NonBlockingByteArrayInputStream (aBytes), 100));
+
+    // No ebMS header
+    assertNull (AS4EbmsHeaderPreScanner.scan (new NonBlockingByteArrayInputStream (SOAP.replace (CAS4.EBMS_NS,
+                                                                                                  "urn:other")
+                                                                                         .getBytes (StandardCharsets.UTF_8)),
+                                              aBytes.length));
+
+    // No SOAP
+    assertNull (AS4EbmsHeaderPreScanner.scan (new NonBlockingByteArrayInputStream ("<root/>".getBytes (StandardCharsets.UTF_8)),
+                                              100));
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4InboundPipeline}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4InboundPipelineTest
+{
+  @Test
+  public void testStage () throws Exception
+  {
+    final Thread aCaller = Thread.currentThread ();
+
+    // Inline
+    AS4InboundPipeline.Stage aStage = new AS4InboundPipeline.Stage (EAS4PipelineStage.PARSE, 0, 1);
+    assertSame (aCaller, aStage.call ( () -> Thread.currentThread ()));
+
+    // Own threads
+    aStage = new AS4InboundPipeline.Stage (EAS4PipelineStage.PARSE, 1, 1);
+    try
+    {
+      assertNotSame (aCaller, aStage.call ( () -> Thread.currentThread ()));
+      assertEquals ("x", aStage.call ( () -> "x"));
+
+      // Exceptions are passed to the caller
+      try
+      {
+        aStage.call ( () -> {
+          throw new IOException ("test");
+        });
+        fail ();
+      }
+      catch (final IOException ex)
+      {
+        assertEquals ("test", ex.getMessage ());
+      }
+    }
+    finally
+    {
+      aStage.shutdown ();
+    }
+  }
+
+  private static void _checkFullStage (@Nonnull final EAS4PipelineStage eStage) throws Exception
+  {
+    final Thread aCaller = Thread.currentThread ();
+    final AS4InboundPipeline.Stage aStage = new AS4InboundPipeline.Stage (eStage, 1, 1);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final Runnable aBlocker = () -> {
+      try
+      {
+        aStage.call ( () -> {
+          aStarted.countDown ();
+          return Boolean.valueOf (aRelease.await (10, TimeUnit.SECONDS));
+        });
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+    };
+    final Thread aRunning = new Thread (aBlocker);
+    final Thread aQueued = new Thread (aBlocker);
+    try
+    {
+      // Occupy the thread and the queue
+      aRunning.start ();
+      assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+      aQueued.start ();
+      while (aQueued.getState () != Thread.State.WAITING)
+        Thread.sleep (5);
+
+      if (eStage.isRejectable ())
+      {
+        try
+        {
+          aStage.call ( () -> "x");
+          fail ();
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          // expected
+        }
+      }
+      else
+      {
+        // Never rejected
+        assertSame (aCaller, aStage.call ( () -> Thread.currentThread ()));
+      }
+    }
+    finally
+    {
+      aRelease.countDown ();
+      aRunning.join ();
+      aQueued.join ();
+      aStage.shutdown ();
+    }
+  }
+
+  @Test
+  public void testFullStage () throws Exception
+  {
+    // Before the duplicate registration
+    _checkFullStage (EAS4PipelineStage.VALIDATION);
+    // After the duplicate registration
+    _checkFullStage (EAS4PipelineStage.SPI);
+    _checkFullStage (EAS4PipelineStage.RESPONSE);
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.helger.as4.attachment.AS4AttachmentMemoryBudget;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4SpillOutputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SpillOutputStreamTest
+{
+  @Test
+  public void testSpill () throws Exception
+  {
+    final byte [] aData = new byte [(int) AS4AttachmentMemoryBudget.getMaxInMemorySize () + 100];
+    for (int i = 0; i < aData.length; ++i)
+      aData[i] = (byte) i;
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      // In memory
+      try (final AS4SpillOutputStream aOS = new AS4SpillOutputStream (aResMgr))
+      {
+        aOS.write (aData, 0, 100);
+        aOS.close ();
+        assertArrayEquals (Arrays.copyOf (aData, 100),
+                           StreamHelper.getAllBytes (aOS.getAsInputStreamProvider ().getInputStream ()));
+      }
+
+      // Spilled to a file
+      try (final AS4SpillOutputStream aOS = new AS4SpillOutputStream (aResMgr))
+      {
+        aOS.write (aData[0]);
+        aOS.write (aData, 1, aData.length - 1);
+        aOS.close ();
+        assertArrayEquals (aData, StreamHelper.getAllBytes (aOS.getAsInputStreamProvider ().getInputStream ()));
+        // Repeatable
+        assertArrayEquals (aData, StreamHelper.getAllBytes (aOS.getAsInputStreamProvider ().getInputStream ()));
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+
+/**
+ * Test class for class {@link AS4WorkerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4WorkerPoolTest
+{
+  @Test
+  public void testRejection () throws Exception
+  {
+    final ThreadPoolExecutor aES = AS4WorkerPool.createExecutorService (1, 1, EAS4WorkerRejectionPolicy.REJECT, 0);
+    try
+    {
+      final CountDownLatch aStarted = new CountDownLatch (1);
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      aES.execute ( () -> {
+        aStarted.countDown ();
+        try
+        {
+          aRelease.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+      });
+      assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+      assertEquals (1, aES.getActiveCount ());
+
+      // Fill the queue
+      aES.execute ( () -> {});
+      assertEquals (1, aES.getQueue ().size ());
+
+      final long nRejected = AS4WorkerPool.getRejectedCount ();
+      try
+      {
+        aES.execute ( () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+      assertEquals (nRejected + 1, AS4WorkerPool.getRejectedCount ());
+      aRelease.countDown ();
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+    assertEquals (0, aES.getQueue ().size ());
+    assertEquals (2, aES.getCompletedTaskCount ());
+  }
+
+  @Test
+  public void testCallerRuns () throws Exception
+  {
+    final ThreadPoolExecutor aES = AS4WorkerPool.createExecutorService (1, 1, EAS4WorkerRejectionPolicy.CALLER_RUNS, 0);
+    try
+    {
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      final Runnable aBlocker = () -> {
+        try
+        {
+          aRelease.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+      };
+      aES.execute (aBlocker);
+      aES.execute (aBlocker);
+
+      // Queue is full - executed in this thread
+      final Thread aCaller = Thread.currentThread ();
+      final AtomicBoolean aInCaller = new AtomicBoolean (false);
+      aES.execute ( () -> aInCaller.set (Thread.currentThread () == aCaller));
+      assertTrue (aInCaller.get ());
+      aRelease.countDown ();
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+
+  @Test
+  public void testIOThreadLimit () throws Exception
+  {
+    final ThreadPoolExecutor aES = AS4WorkerPool.createIOExecutorService (2);
+    try
+    {
+      final CountDownLatch aStarted = new CountDownLatch (2);
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      final Runnable aBlocker = () -> {
+        aStarted.countDown ();
+        try
+        {
+          aRelease.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+      };
+      aES.execute (aBlocker);
+      aES.execute (aBlocker);
+      assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+
+      // All threads are busy - no new thread is created
+      final long nRejected = AS4WorkerPool.getRejectedCount ();
+      try
+      {
+        aES.execute ( () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+      assertEquals (nRejected + 1, AS4WorkerPool.getRejectedCount ());
+      assertEquals (2, aES.getLargestPoolSize ());
+      aRelease.countDown ();
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+}